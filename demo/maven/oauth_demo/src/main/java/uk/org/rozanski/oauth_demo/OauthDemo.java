@@ -2,6 +2,8 @@ package uk.org.rozanski.oauth_demo;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import com.dropbox.core.DbxException;
 
@@ -39,9 +41,14 @@ public class OauthDemo {
             ConsoleLogger.error("fatal error: failed to start HTTP server, error='%s'", e.getMessage());
         }
 
+        // connect to Dropbox in the background while the menu is displayed
+        if (CommonConfig.DROPBOX_WARMUP) {
+            DropboxWarmup.startDefault();
+        }
+
         outerloop:
         while(true) {
-            if (AccessData.accessTokenFileExists()) {
+            if (AccessDataCache.exists()) {
                 System.out.println("\nThe client is authorised with Dropbox (Dropbox token file exists)");
                 System.out.println(" e. Run accessTokenFileExists() (should return true)");
                 System.out.println(" d. List contents of directory");
@@ -50,6 +57,7 @@ public class OauthDemo {
                 System.out.println(" x. Delete file");
                 System.out.println(" t. Print access token file");
                 System.out.println(" z. Remove access token file (re-authorisation will be required)");
+                System.out.println(" b. Onboard a batch of users (writes their authorisation URLs to a manifest)");
                 System.out.println(" q. EXIT");
             }
             else {
@@ -58,6 +66,7 @@ public class OauthDemo {
                 System.out.println(" e. Run accessTokenFileExists() (should return False)");
                 System.out.println(" n. run noredirect authorisation workflow (requires auth code to be entered)");
                 System.out.println(" r. run redirect authorisation workflow (uses HTTP web server to simulate URL schema)");
+                System.out.println(" b. Onboard a batch of users (writes their authorisation URLs to a manifest)");
                 System.out.println(" q. EXIT");
             }
 
@@ -68,6 +77,9 @@ public class OauthDemo {
                 }
                 catch (IndexOutOfBoundsException e) { }
                 switch(option) {
+                    case 'b':
+                        oauthOnboardBatch();
+                        break;
                     case 'c':
                         String createpath = readDropboxPath("Enter Dropbox file path using forward-slashes");
                         DropboxTools.createFile(createpath);
@@ -111,6 +123,10 @@ public class OauthDemo {
 
         }
 
+        if (DropboxWarmup.getDefault() != null) {
+            ConsoleLogger.info("%s", DropboxWarmup.getDefault().getReport());
+        }
+
         // stop the HTTP server
         try {
             HttpdServer.stopServer();
@@ -128,9 +144,9 @@ public class OauthDemo {
      * <ol>
      *    <li>Delete the access token file if it exists.
      *    <li>Start the workflow by calling {@code DropboxWorkflowNoRedirect.noRedirectClientStart()}.
-     *    <li>Open a browser window at the URL returned by {@code noRedirectClientStart()}.
+     *    <li>Open a browser window at the URL held by the flow returned by {@code noRedirectClientStart()}.
      *    <li>Prompt the user to enter the authorisation code displayed by Dropbox in this window.
-     *    <li>Finish the workflow, save the access token and generate the sample files
+     *    <li>Finish the workflow, save the access token and queue the creation of the sample files
      *    by calling {@code DropboxWorkflowNoRedirect.noRedirectClientFinishAndSave()}.
      * </ol>
      *
@@ -144,18 +160,18 @@ public class OauthDemo {
         // EXERCISE:
         //  - delete the access token file (use AccessData)
         //  - start the Dropbox no-redirect workflow (use DropboxWorkflowNoRedirect)
-        //    store the returned information in dropboxStatus
+        //    store the returned flow in flow
         // SPA14_OAUTH_START
         AccessData.deleteAccessTokenFile();
-        DropboxStatus dropboxStatus = DropboxWorkflowNoRedirect.noRedirectClientStart();
+        DropboxFlow flow = DropboxWorkflowNoRedirect.noRedirectClientStart();
         // SPA14_OAUTH_FINISH
 
         printWorkflowPrompts( "4. Copy the provided authorisation code to the clipboard");
         // readLine("Press Enter to start no-redirect authorisation");
 
-        Browser.openBrowserWindow(dropboxStatus.redirectUrl.toString());
+        Browser.openBrowserWindow(flow.status.redirectUrl.toString());
         String securityCode = readLine("Enter the Dropbox security code");
-        AccessData accessData = DropboxWorkflowNoRedirect.noRedirectClientFinishAndSave(securityCode);
+        AccessData accessData = DropboxWorkflowNoRedirect.noRedirectClientFinishAndSave(flow, securityCode);
         System.out.println("\nNO-REDIRECT AUTHORISATION COMPLETED SUCCESSFULLY\n");
     }
 
@@ -166,9 +182,10 @@ public class OauthDemo {
      * <ol>
      *    <li>Delete the access token file if it exists.
      *    <li>Start the workflow by calling {@code DropboxWorkflowRedirect.redirectClientStart()}.
-     *    <li>Open a browser window at the URL returned by {@code redirectClientStart()}.
-     *    <li>Wait for the access token file to be created by the HTTP server (which is running the
-     *    finish step of the workflow).
+     *    <li>Open a browser window at the URL held by the flow returned by {@code redirectClientStart()}.
+     *    <li>Wait for the HTTP server (which is running the finish step of the workflow) to finish the flow,
+     *    by calling {@code DropboxWorkflowRedirect.redirectClientAwait()}; the wait ends when the flow expires,
+     *    after {@code CommonConfig.FLOW_TTL} seconds, if the user never authorises.
      * </ol>
      *
      * @throws IOException if there is an error saving the access token file
@@ -180,22 +197,77 @@ public class OauthDemo {
         // EXERCISE:
         //  - delete the access token file (use AccessData)
         //  - start the Dropbox no-redirect workflow (use DropboxWorkflowRedirect)
-        //    store the returned information in dropboxStatus
+        //    store the returned flow in flow
         // SPA14_OAUTH_START
         AccessData.deleteAccessTokenFile();
-        DropboxStatus dropboxStatus = DropboxWorkflowRedirect.redirectClientStart();
+        DropboxFlow flow = DropboxWorkflowRedirect.redirectClientStart();
         // SPA14_OAUTH_FINISH
 
         printWorkflowPrompts("");
         // readLine("Ensure the HTTP server is running and press enter to start redirect authorisation");
 
-        Browser.openBrowserWindow(dropboxStatus.redirectUrl.toString());
-        if (AccessData.waitForAccessTokenFile()) {
-            AccessData accessData = new AccessData();
-            accessData.load();
+        Browser.openBrowserWindow(flow.status.redirectUrl.toString());
+        try {
+            AccessData accessData = DropboxWorkflowRedirect.redirectClientAwait(flow, 5);
             System.out.println("\nREDIRECT AUTHORISATION COMPLETED SUCCESSFULLY\n");
         }
+        catch (TimeoutException e) {
+            System.out.println("\nREDIRECT AUTHORISATION EXPIRED: " + e.getMessage() + "\n");
+        }
+        catch (ExecutionException e) {
+            System.out.println("\nREDIRECT AUTHORISATION FAILED: " + e.getCause().getMessage() + "\n");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("\nREDIRECT AUTHORISATION INTERRUPTED\n");
+        }
+    }
 
+    /**
+     * Onboard a batch of users with the Oauth redirect workflow.
+     *
+     * <p>This consists of the following steps:
+     * <ol>
+     *    <li>Start one redirect workflow per user, and write their authorisation URLs to the manifest
+     *    {@code CommonConfig.ONBOARDING_MANIFEST} (see {@link BulkOnboarding}).
+     *    <li>Hand the URLs out to the users, who authorise in their own browsers; the HTTP server runs the finish
+     *    step of each workflow.
+     *    <li>Report progress (completed, failed and pending workflows, throughput and time to complete)
+     *    until every workflow has finished or the user stops tracking.
+     * </ol>
+     *
+     * @throws IOException if a workflow cannot be started or the manifest cannot be written
+     *
+     * @see BulkOnboarding
+     */
+    public static void oauthOnboardBatch() throws IOException {
+        int count;
+        try {
+            count = Integer.parseInt(readLine("Enter the number of users to onboard").trim());
+        }
+        catch (NumberFormatException e) {
+            System.out.println("\n  not a number");
+            return;
+        }
+        if (count <= 0) {
+            return;
+        }
+        BulkOnboarding batch = BulkOnboarding.start(count, java.nio.file.Paths.get(CommonConfig.ONBOARDING_MANIFEST),
+                CommonConfig.ONBOARDING_THREADS);
+        System.out.println("\nThe authorisation URLs are in " + batch.getManifestFile());
+        System.out.println("Each user should open their URL, log in to Dropbox and click 'Allow'");
+        while (batch.getPending() > 0) {
+            String line = readLine("Press Enter to show progress, or enter q to stop tracking");
+            batch.writeManifest();
+            System.out.println("\n  " + batch.getReport());
+            if (line != null && line.trim().equals("q")) {
+                break;
+            }
+        }
+        if (batch.getPending() == 0) {
+            batch.writeManifest();
+            System.out.println("\nBATCH ONBOARDING FINISHED: " + batch.getReport() + "\n");
+        }
     }
 
     /**
@@ -2,8 +2,10 @@ package uk.org.rozanski.oauth_demo.lib;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.charset.*;
-import org.json.simple.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Contains the Dropbox Oauth access token and related information.
@@ -23,11 +25,20 @@ public class AccessData {
      */
     public static final String ACCESS_TOKEN_FILE = String.format("%s%saccess_token.json", CommonConfig.FILES_DIRECTORY, File.separator);
 
+    /**
+     * Published when the redirect workflow has saved the access token.
+     *
+     * @see #waitForAccessTokenFile
+     */
+    public static final CompletionEvent<AccessData> ACCESS_TOKEN_SAVED = new CompletionEvent<AccessData>("access token saved", ACCESS_TOKEN_FILE);
+
     /** access data */
     public String accessToken = "";
     public String userId = "";
     public String saveMessage = "";
     public String creationTime = "";
+    /** id of the redirect flow whose finish step saved the access data ("" if it was not saved by a flow) */
+    public String flowId = "";
 
     public AccessData(String accessToken, String userId, String saveMessage) {
         this.accessToken = accessToken;
@@ -42,6 +53,18 @@ public class AccessData {
         ConsoleLogger.debug("Access token file is %s", AccessData.ACCESS_TOKEN_FILE);
     }
 
+    /**
+     * Return a copy of the access data.
+     *
+     * @return the copy
+     */
+    public AccessData copy() {
+        AccessData copy = new AccessData(this.accessToken, this.userId, this.saveMessage);
+        copy.creationTime = this.creationTime;
+        copy.flowId = this.flowId;
+        return copy;
+    }
+
     /**
      * Load access data from file into the object.
      *
@@ -50,14 +73,8 @@ public class AccessData {
     public void load() throws IOException {
         ConsoleLogger.debug("Attempting to load access data from token file %s", AccessData.ACCESS_TOKEN_FILE);
         byte[] encoded = Files.readAllBytes(Paths.get(AccessData.ACCESS_TOKEN_FILE));
-        String jsonFileContents = new String(encoded, StandardCharsets.UTF_8);
         ConsoleLogger.debug("Access data successfully loaded from token file %s", AccessData.ACCESS_TOKEN_FILE);
-        // @see https://code.google.com/p/json-simple/wiki/DecodingExamples
-        JSONObject jsonObject = (JSONObject) JSONValue.parse(jsonFileContents);
-        this.accessToken = (String) jsonObject.get("access_token");
-        this.userId      = (String) jsonObject.get("user_id");
-        this.saveMessage = (String) jsonObject.get("message");
-        this.creationTime = (String) jsonObject.get("creation_time");
+        this.read(new JsonReader(encoded, 0, encoded.length));
         ConsoleLogger.debug("Access token is %s, user id is %s, message is %s", this.accessToken, this.userId, this.saveMessage);
     }
 
@@ -66,32 +83,83 @@ public class AccessData {
      * Save access data from the object to file.
      *
      * @throws IOException if there is an error saving the file
-     *
-     * @see <a href="http://stackoverflow.com/questions/197986/what-causes-javac-to-issue-the-uses-unchecked-or-unsafe-operations-warning">@SuppressWarnings</a>
      */
-    @SuppressWarnings("unchecked")
     public void save() throws IOException {
         ConsoleLogger.debug("Attempting to save access data to token file %s", AccessData.ACCESS_TOKEN_FILE);
-        JSONObject obj=new JSONObject();
-        obj.put("access_token",this.accessToken);
-        obj.put("user_id",this.userId);
-        obj.put("message",this.saveMessage);
-        obj.put("creation_time",TimeNow.timeNowString());
-        StringWriter stringWriter = new StringWriter();
-        obj.writeJSONString(stringWriter);
-        String jsonText = stringWriter.toString();
-        // do not put commas or braces in the JSON data
-        jsonText = jsonText.replace("{", "{\n    ");
-        jsonText = jsonText.replace(",", ",\n    ");
-        jsonText = jsonText.replace("}", "\n}\n");
-        // ConsoleLogger.debug("string representation of access data is %s", jsonText);
+        this.creationTime = TimeNow.timeNowString();
+        JsonWriter writer = new JsonWriter(true);
+        this.write(writer);
         ConsoleLogger.debug("About to save access data to token file %s", AccessData.ACCESS_TOKEN_FILE);
-        PrintWriter printWriter = new PrintWriter(AccessData.ACCESS_TOKEN_FILE);
-        printWriter.println(jsonText);
-        printWriter.close();
+        // write a temporary file and rename it, so a crash never leaves a truncated token file
+        AtomicFileWriter.write(Paths.get(AccessData.ACCESS_TOKEN_FILE), writer.toByteArray());
+        AccessDataCache.invalidate();
         ConsoleLogger.debug("Access data successfully saved to token file %s", AccessData.ACCESS_TOKEN_FILE);
     }
 
+    /**
+     * Write the access data as a JSON object.
+     *
+     * @param writer the writer
+     */
+    public void write(JsonWriter writer) {
+        writer.beginObject();
+        writer.name(ACCESS_TOKEN_KEY).value(this.accessToken);
+        writer.name(USER_ID_KEY).value(this.userId);
+        writer.name(MESSAGE_KEY).value(this.saveMessage);
+        writer.name(CREATION_TIME_KEY).value(this.creationTime);
+        writer.name(FLOW_ID_KEY).value(this.flowId);
+        writer.endObject();
+    }
+
+    /**
+     * Read access data from a JSON object into the object. Unknown members are ignored.
+     *
+     * @param reader the reader, positioned at the start of the object
+     *
+     * @throws IOException if the JSON is malformed
+     */
+    public void read(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!this.readMember(name, reader)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Read the value of an object member into the object, if it is one of the access data members.
+     *
+     * @param name member name
+     * @param reader the reader, positioned at the value of the member
+     * @return true if the value was read, false if the member is not known (the value has not been consumed)
+     *
+     * @throws IOException if the JSON is malformed
+     */
+    boolean readMember(String name, JsonReader reader) throws IOException {
+        if (name.equals(ACCESS_TOKEN_KEY)) {
+            this.accessToken = reader.nextString();
+        }
+        else if (name.equals(USER_ID_KEY)) {
+            this.userId = reader.nextString();
+        }
+        else if (name.equals(MESSAGE_KEY)) {
+            this.saveMessage = reader.nextString();
+        }
+        else if (name.equals(CREATION_TIME_KEY)) {
+            this.creationTime = reader.nextString();
+        }
+        else if (name.equals(FLOW_ID_KEY)) {
+            this.flowId = reader.nextString();
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Check if the access token file exists.
      *
@@ -154,6 +222,7 @@ public class AccessData {
         if(AccessData.accessTokenFileExists(true)) {
             File file = new File(AccessData.ACCESS_TOKEN_FILE);
             if(file.delete()){
+                AccessDataCache.invalidate();
                 ConsoleLogger.info("deleted file %s", AccessData.ACCESS_TOKEN_FILE);
             }
             else {
@@ -165,33 +234,43 @@ public class AccessData {
     /**
      * Wait indefinitely until the access token file exists.
      *
+     * <p>The method returns as soon as {@code ACCESS_TOKEN_SAVED} is published (or, if the token is saved by another
+     * process, as soon as the file system reports that the file has been written).
+     *
      * @param messageInterval how often to print waiting message
      *
      * @return true if file found, false if interrupted
      */
     public static boolean waitForAccessTokenFile(int messageInterval) {
-        int SLEEP_TIME = 1; // second
-        int timeOfLastCheck = TimeNow.timeNowInt();
+        // ask to be notified before checking the file, so that the notification cannot be missed
+        CompletableFuture<AccessData> saved = ACCESS_TOKEN_SAVED.next();
         try {
             ConsoleLogger.info("waiting for access token file %s...", AccessData.ACCESS_TOKEN_FILE);
-            while(true) {
-                if(AccessData.accessTokenFileExists(true)) {
-                    ConsoleLogger.info("access token file %s present", AccessData.ACCESS_TOKEN_FILE);
-                    break;
+            while (!AccessData.accessTokenFileExists(true)) {
+                if (saved.isDone()) {
+                    // the file changed but does not exist (it has been deleted), so wait for the next change
+                    saved = ACCESS_TOKEN_SAVED.next();
+                    continue;
+                }
+                try {
+                    saved.get(messageInterval, TimeUnit.SECONDS);
+                }
+                catch (TimeoutException e) {
+                    ConsoleLogger.info("still waiting for access token file...");
                 }
-                else {
-                    if((TimeNow.timeNowInt() - timeOfLastCheck) > messageInterval) {
-                        ConsoleLogger.info("still waiting for access token file...");
-                        timeOfLastCheck = TimeNow.timeNowInt();
-                    }
-                    Thread.sleep(1000 * SLEEP_TIME);
+                catch (ExecutionException e) {
+                    // not possible: the event never fails
                 }
             }
+            ConsoleLogger.info("access token file %s present", AccessData.ACCESS_TOKEN_FILE);
         }
         catch (InterruptedException e) {
             ConsoleLogger.error("access token file not found");
             return false;
         }
+        finally {
+            saved.cancel(false);
+        }
         return true;
     }
     /**
@@ -202,4 +281,11 @@ public class AccessData {
         return AccessData.waitForAccessTokenFile(5);
     }
 
+    /** JSON member names */
+    static final String ACCESS_TOKEN_KEY = "access_token";
+    static final String USER_ID_KEY = "user_id";
+    static final String MESSAGE_KEY = "message";
+    static final String CREATION_TIME_KEY = "creation_time";
+    static final String FLOW_ID_KEY = "flow_id";
+
 }
@@ -0,0 +1,111 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide cache of the access data held in {@code AccessData.ACCESS_TOKEN_FILE}.
+ *
+ * <p>The token file is read (at most) once, the first time it is needed, and the access data is then served from
+ * memory. The cache is invalidated whenever the file changes:
+ * <ul>
+ * <li>{@code AccessData.save()} and {@code AccessData.deleteAccessTokenFile()} invalidate it directly, so changes made
+ * by this process are seen immediately
+ * <li>{@link FileWatcher} watches the file using a {@code WatchService}, so changes made by
+ * other processes (or by hand) are seen as soon as the file system reports them
+ * </ul>
+ *
+ * <p>If the directory cannot be watched, nothing is cached and every call reads the file, as before.
+ *
+ * <p>The {@code AccessData} object returned by {@code get()} is shared, and must not be modified.
+ *
+ */
+public class AccessDataCache {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private AccessDataCache() {}
+
+    /**
+     * Return the access data from the token file.
+     *
+     * @return the (shared) access data
+     *
+     * @throws NoSuchFileException if the token file does not exist
+     * @throws IOException if there is an error reading the file
+     */
+    public static AccessData get() throws IOException {
+        Entry entry = currentEntry();
+        if (!entry.exists) {
+            throw new NoSuchFileException(AccessData.ACCESS_TOKEN_FILE);
+        }
+        AccessData accessData = entry.accessData;
+        if (accessData == null) {
+            accessData = new AccessData();
+            accessData.load();
+            // if the cache has been invalidated meanwhile, the entry is no longer current and this does no harm
+            entry.accessData = accessData;
+        }
+        return accessData;
+    }
+
+    /**
+     * Check whether the token file exists, without touching the file system if the answer is cached.
+     *
+     * @return true if the access token file exists
+     */
+    public static boolean exists() {
+        return currentEntry().exists;
+    }
+
+    /**
+     * Discard the cached access data, so that the token file is read again when it is next needed.
+     */
+    public static void invalidate() {
+        version.incrementAndGet();
+        cached.set(null);
+    }
+
+    /**
+     * Return the current cache entry, creating it if necessary.
+     *
+     * @return the entry (which is not cached if the directory cannot be watched)
+     */
+    private static Entry currentEntry() {
+        Entry entry = cached.get();
+        if (entry != null) {
+            return entry;
+        }
+        // start watching before looking at the file, so that no change can be missed
+        boolean watching = FileWatcher.watch(TOKEN_FILE, invalidator);
+        long entryVersion = version.get();
+        entry = new Entry(Files.exists(TOKEN_FILE));
+        if (watching && cached.compareAndSet(null, entry) && version.get() != entryVersion) {
+            // invalidated while we were checking the file, so the entry may already be stale
+            cached.compareAndSet(entry, null);
+        }
+        return entry;
+    }
+
+    /** whether the token file exists and, once it has been read, its contents */
+    private static final class Entry {
+        final boolean exists;
+        volatile AccessData accessData = null;
+        Entry(boolean exists) {
+            this.exists = exists;
+        }
+    }
+
+    private static final Path TOKEN_FILE = Paths.get(AccessData.ACCESS_TOKEN_FILE);
+
+    /** called by {@link FileWatcher} when the token file changes */
+    private static final Runnable invalidator = new Runnable() {
+        public void run() { invalidate(); }
+    };
+
+    private static final AtomicReference<Entry> cached = new AtomicReference<Entry>();
+    /** incremented whenever the cache is invalidated */
+    private static final AtomicLong version = new AtomicLong();
+
+}
@@ -0,0 +1,289 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the access data for many Dropbox accounts, indexed by Dropbox user id.
+ *
+ * <p>{@link AccessData} on its own supports a single account, stored in {@code AccessData.ACCESS_TOKEN_FILE}.
+ * The vault supports any number of accounts, stored in a single append-only log file {@code VAULT_FILE}:
+ * <ul>
+ * <li>each change is appended to the log as one line of JSON (an account record, or a deletion record)
+ * <li>the whole log is read once, when the vault is first used, to build an in-memory index by user id
+ * <li>lookups are served from the index, so {@code get()} is O(1) and does no I/O
+ * <li>the index holds its own copies of the access data: {@code put()} stores a copy and {@code get()} returns one,
+ * so a caller which changes the object it passed in or got back does not change the vault for other threads
+ * <li>when the log contains more than {@code COMPACTION_RATIO} times as many records as there are accounts,
+ * it is compacted: the live records are rewritten to a new log which atomically replaces the old one
+ * </ul>
+ *
+ * <p>If the process crashes while appending, the partial last line is discarded the next time the vault is loaded.
+ *
+ */
+public class AccessTokenVault {
+
+    /** Full pathname of the vault log file. */
+    public static final String VAULT_FILE = String.format("%s%saccess_tokens.log", CommonConfig.FILES_DIRECTORY, File.separator);
+
+    /** compact the log when it holds more than this many records per account */
+    public static int COMPACTION_RATIO = 4;
+
+    /** never compact logs with fewer records than this */
+    public static int COMPACTION_MIN_RECORDS = 1000;
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private AccessTokenVault() {}
+
+    /**
+     * Return the access data for a Dropbox user.
+     *
+     * @param userId Dropbox user id
+     * @return a copy of the access data, or null if the vault does not hold the user
+     *
+     * @throws IOException if there is an error loading the vault
+     */
+    public static AccessData get(String userId) throws IOException {
+        load();
+        AccessData accessData = index.get(userId);
+        return (accessData == null) ? null : accessData.copy();
+    }
+
+    /**
+     * Add or replace the access data for a Dropbox user.
+     *
+     * @param accessData access data (its {@code userId} is the key)
+     *
+     * @throws IOException if there is an error writing the vault
+     */
+    public static void put(AccessData accessData) throws IOException {
+        if (accessData.creationTime == null || accessData.creationTime.length() == 0) {
+            accessData.creationTime = TimeNow.timeNowString();
+        }
+        synchronized (AccessTokenVault.class) {
+            load();
+            JsonWriter writer = new JsonWriter(false);
+            accessData.write(writer);
+            append(writer);
+            index.put(accessData.userId, accessData.copy());
+            compactIfNeeded();
+        }
+        ConsoleLogger.debug("saved access data for user %s to vault", accessData.userId);
+    }
+
+    /**
+     * Remove the access data for a Dropbox user.
+     *
+     * @param userId Dropbox user id
+     * @return true if the vault held the user
+     *
+     * @throws IOException if there is an error writing the vault
+     */
+    public static boolean remove(String userId) throws IOException {
+        synchronized (AccessTokenVault.class) {
+            load();
+            if (!index.containsKey(userId)) {
+                return false;
+            }
+            JsonWriter writer = new JsonWriter(false);
+            writer.beginObject();
+            writer.name(AccessData.USER_ID_KEY).value(userId);
+            writer.name(DELETED_KEY).value(true);
+            writer.endObject();
+            append(writer);
+            index.remove(userId);
+            compactIfNeeded();
+        }
+        ConsoleLogger.debug("removed access data for user %s from vault", userId);
+        return true;
+    }
+
+    /**
+     * Return the user ids held in the vault.
+     *
+     * @return unmodifiable set of user ids
+     *
+     * @throws IOException if there is an error loading the vault
+     */
+    public static Set<String> userIds() throws IOException {
+        load();
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Return the number of accounts held in the vault.
+     *
+     * @return number of accounts
+     *
+     * @throws IOException if there is an error loading the vault
+     */
+    public static int size() throws IOException {
+        load();
+        return index.size();
+    }
+
+    /**
+     * Rewrite the log so that it contains only one record per account.
+     *
+     * @throws IOException if there is an error writing the vault
+     */
+    public static synchronized void compact() throws IOException {
+        load();
+        JsonWriter writer = new JsonWriter(false);
+        int records = 0;
+        for (AccessData accessData : index.values()) {
+            accessData.write(writer);
+            writer.endRecord();
+            records++;
+        }
+        closeLog();
+        AtomicFileWriter.write(Paths.get(VAULT_FILE), writer.toByteArray());
+        recordCount = records;
+        ConsoleLogger.info("compacted access token vault %s, %d accounts", VAULT_FILE, recordCount);
+    }
+
+    /**
+     * Discard the in-memory index, so that the vault is reloaded from disk when it is next used.
+     *
+     * <p>This is mainly for testing.
+     */
+    public static synchronized void unload() {
+        try {
+            closeLog();
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("failed to close vault file %s, error='%s'", VAULT_FILE, e.getMessage());
+        }
+        index.clear();
+        recordCount = 0;
+        loaded = false;
+    }
+
+    /**
+     * Load the index from the log file, if it has not already been loaded.
+     *
+     * @throws IOException if there is an error reading the file
+     */
+    private static void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        synchronized (AccessTokenVault.class) {
+            if (loaded) {
+                return;
+            }
+            Path vaultPath = Paths.get(VAULT_FILE);
+            if (Files.exists(vaultPath)) {
+                byte[] contents = Files.readAllBytes(vaultPath);
+                int lineStart = 0;
+                for (int i = 0; i < contents.length; i++) {
+                    if (contents[i] == '\n') {
+                        applyRecord(contents, lineStart, i - lineStart);
+                        lineStart = i + 1;
+                    }
+                }
+                if (lineStart < contents.length) {
+                    // the process crashed part-way through appending the last record
+                    ConsoleLogger.error("discarding partial record at end of vault file %s", VAULT_FILE);
+                    FileChannel channel = FileChannel.open(vaultPath, StandardOpenOption.WRITE);
+                    try {
+                        channel.truncate(lineStart);
+                    }
+                    finally {
+                        channel.close();
+                    }
+                }
+            }
+            loaded = true;
+            ConsoleLogger.debug("loaded access token vault %s, %d accounts", VAULT_FILE, index.size());
+        }
+    }
+
+    /**
+     * Apply one record from the log to the index.
+     *
+     * @param contents the log
+     * @param offset offset of the record in the log
+     * @param length length of the record
+     */
+    private static void applyRecord(byte[] contents, int offset, int length) {
+        AccessData accessData = new AccessData();
+        accessData.creationTime = null;
+        boolean deleted = false;
+        try {
+            JsonReader reader = new JsonReader(contents, offset, length);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(DELETED_KEY)) {
+                    deleted = reader.nextBoolean();
+                }
+                else if (!accessData.readMember(name, reader)) {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("ignoring corrupt record in vault file %s", VAULT_FILE);
+            return;
+        }
+        if (deleted) {
+            index.remove(accessData.userId);
+        }
+        else {
+            index.put(accessData.userId, accessData);
+        }
+        recordCount++;
+    }
+
+    /**
+     * Append a record to the log and force it to disk.
+     *
+     * @param record writer holding one compact JSON record
+     *
+     * @throws IOException if there is an error writing the file
+     */
+    private static void append(JsonWriter record) throws IOException {
+        if (log == null) {
+            log = FileChannel.open(Paths.get(VAULT_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        record.endRecord();
+        ByteBuffer buffer = ByteBuffer.wrap(record.toByteArray());
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        log.force(false);
+        recordCount++;
+    }
+
+    private static void compactIfNeeded() throws IOException {
+        if (recordCount >= COMPACTION_MIN_RECORDS && recordCount > COMPACTION_RATIO * index.size()) {
+            compact();
+        }
+    }
+
+    private static void closeLog() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+    }
+
+    private static final String DELETED_KEY = "deleted";
+
+    /** the index: Dropbox user id to access data */
+    private static final ConcurrentHashMap<String, AccessData> index = new ConcurrentHashMap<String, AccessData>();
+    /** number of records in the log (guarded by the class lock) */
+    private static int recordCount = 0;
+    /** the log, open for appending (guarded by the class lock) */
+    private static FileChannel log = null;
+    private static volatile boolean loaded = false;
+
+}
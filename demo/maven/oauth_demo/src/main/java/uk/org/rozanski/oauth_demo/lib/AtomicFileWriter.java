@@ -0,0 +1,199 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Crash-safe file writes.
+ *
+ * <p>{@code write()} never writes over the live file. It writes the new contents to a temporary file in the same
+ * directory, forces it to disk and then atomically renames it over the live file. A crash at any point leaves either
+ * the old or the new contents, never a truncated file.
+ *
+ * <p>If {@code CommonConfig.GROUP_COMMIT} is true, concurrent writes are batched (group commit):
+ * <ul>
+ * <li>one thread (the leader) commits every write which is waiting, while the other callers wait for it to finish
+ * <li>if several writes to the same file are waiting, only the latest contents are written and forced to disk,
+ * and all of the callers share that one fsync
+ * <li>each directory in the batch is forced to disk once, after all of its renames
+ * </ul>
+ *
+ * <p>Usage: {@code AtomicFileWriter.write(Paths.get(filename), contents)}
+ *
+ */
+public class AtomicFileWriter {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private AtomicFileWriter() {}
+
+    /**
+     * Atomically replace the contents of a file.
+     *
+     * <p>The method returns once the new contents are durable (or the write has been superseded by a later
+     * write to the same file which is durable).
+     *
+     * @param file file to write (its directory must exist)
+     * @param contents new contents of the file
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, byte[] contents) throws IOException {
+        if (!CommonConfig.GROUP_COMMIT) {
+            writeAndRename(file, contents);
+            forceDirectory(file.toAbsolutePath().getParent());
+            return;
+        }
+        Request request = new Request(file.toAbsolutePath(), contents);
+        synchronized (pending) {
+            Request superseded = pending.put(request.file, request);
+            if (superseded != null) {
+                request.superseded.add(superseded);
+                request.superseded.addAll(superseded.superseded);
+            }
+        }
+        commitLock.lock();
+        try {
+            if (!request.done) {
+                commitPending();
+            }
+            if (request.failure != null) {
+                throw new IOException(String.format("failed to write file %s", file), request.failure);
+            }
+        }
+        finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Return the number of batches committed since the class was loaded (for monitoring and benchmarks).
+     *
+     * @return number of batches
+     */
+    public static long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Commit every pending write (called by the leader while holding {@code commitLock}).
+     */
+    private static void commitPending() {
+        List<Request> batch;
+        synchronized (pending) {
+            batch = new ArrayList<Request>(pending.values());
+            pending.clear();
+        }
+        Set<Path> directories = new LinkedHashSet<Path>();
+        for (Request request : batch) {
+            try {
+                writeAndRename(request.file, request.contents);
+                directories.add(request.file.getParent());
+            }
+            catch (IOException e) {
+                request.failure = e;
+            }
+        }
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+        for (Request request : batch) {
+            request.done = true;
+            for (Request superseded : request.superseded) {
+                superseded.failure = request.failure;
+                superseded.done = true;
+            }
+        }
+        batchCount++;
+        ConsoleLogger.debug("group commit wrote %d files", batch.size());
+    }
+
+    /**
+     * Write contents to a temporary file, force it to disk and rename it over the live file.
+     *
+     * @param file the live file
+     * @param contents new contents
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeAndRename(Path file, byte[] contents) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path tmpFile = Files.createTempFile(directory, file.getFileName().toString() + ".", TMP_SUFFIX);
+        try {
+            FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Force a directory to disk, so that renames within it are durable.
+     *
+     * <p>This is not supported on all platforms (eg Windows), in which case it does nothing.
+     *
+     * @param directory the directory
+     */
+    private static void forceDirectory(Path directory) {
+        try {
+            FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (IOException e) {
+            // not supported on this platform
+        }
+    }
+
+    /** a write waiting to be committed */
+    private static final class Request {
+        final Path file;
+        final byte[] contents;
+        /** earlier writes to the same file which this write replaces */
+        final List<Request> superseded = new ArrayList<Request>();
+        /** guarded by commitLock */
+        boolean done = false;
+        /** guarded by commitLock */
+        IOException failure = null;
+        Request(Path file, byte[] contents) {
+            this.file = file;
+            this.contents = contents;
+        }
+    }
+
+    /** suffix of temporary files (these are only left behind if the process crashes) */
+    public static final String TMP_SUFFIX = ".tmp";
+
+    private static final Map<Path, Request> pending = new LinkedHashMap<Path, Request>();
+    private static final ReentrantLock commitLock = new ReentrantLock();
+    private static volatile long batchCount = 0;
+
+}
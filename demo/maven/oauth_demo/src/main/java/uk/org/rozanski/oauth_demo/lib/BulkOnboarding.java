@@ -0,0 +1,374 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Onboards a batch of users at once: starts one redirect workflow per user, writes their authorisation URLs to a
+ * manifest, and tracks the workflows as their finish callbacks arrive at {@link HttpdServer}.
+ *
+ * <p>Each workflow is a {@link DropboxFlow} with its own state, so the URLs can be handed out to the users and
+ * authorised in any order. The flows are started by several threads, and each is tracked through its result
+ * future, so nothing polls. The report gives the number of flows completed, failed and pending, the throughput
+ * (completions per second since the batch was started) and percentiles of the time from start to completion.
+ *
+ * <p>The manifest is a JSON file holding each flow's id, URL and status; it is written when the batch is started
+ * and rewritten by {@code writeManifest()}.
+ *
+ * <p>If any flow cannot be started, no more are started, and the flows already started are failed and their
+ * CSRF token files deleted, so nothing is left waiting for the flows to expire.
+ *
+ * <p>Usage:
+ * <p>{@code BulkOnboarding batch = BulkOnboarding.start(100, Paths.get(CommonConfig.ONBOARDING_MANIFEST), CommonConfig.ONBOARDING_THREADS);}
+ * <p>{@code System.out.println(batch.getReport());}
+ *
+ */
+public class BulkOnboarding {
+
+    /** status of a flow which has not yet finished */
+    public static final String PENDING = "pending";
+    /** status of a flow which has saved its access token */
+    public static final String COMPLETED = "completed";
+    /** status of a flow which failed or expired */
+    public static final String FAILED = "failed";
+
+    /** starts one workflow of a batch */
+    public interface Starter {
+        /**
+         * Start a workflow.
+         *
+         * @return the flow, which has been registered with {@link DropboxFlowRegistry}
+         *
+         * @throws Exception if the workflow cannot be started
+         */
+        DropboxFlow start() throws Exception;
+    }
+
+    /**
+     * Start a batch of redirect workflows and write the manifest.
+     *
+     * @param count number of workflows
+     * @param manifestFile file to which the manifest is written
+     * @param threads number of threads which start the workflows
+     * @return the batch, which is tracking the workflows
+     *
+     * @throws IOException if a workflow cannot be started or the manifest cannot be written
+     */
+    public static BulkOnboarding start(int count, Path manifestFile, int threads) throws IOException {
+        return start(count, manifestFile, threads, new Starter() {
+            public DropboxFlow start() {
+                return DropboxWorkflowRedirect.redirectClientStart();
+            }
+        });
+    }
+
+    /**
+     * Start a batch of workflows and write the manifest.
+     *
+     * @param count number of workflows
+     * @param manifestFile file to which the manifest is written
+     * @param threads number of threads which start the workflows
+     * @param starter starts each workflow
+     * @return the batch, which is tracking the workflows
+     *
+     * @throws IOException if a workflow cannot be started or the manifest cannot be written
+     */
+    public static BulkOnboarding start(int count, Path manifestFile, int threads, Starter starter) throws IOException {
+        BulkOnboarding batch = new BulkOnboarding(count, manifestFile);
+        batch.startFlows(Math.max(1, Math.min(threads, count)), starter);
+        batch.writeManifest();
+        ConsoleLogger.info("started %d onboarding flows, manifest is %s", count, manifestFile);
+        return batch;
+    }
+
+    /**
+     * Return the number of flows in the batch.
+     *
+     * @return number of flows
+     */
+    public int getCount() {
+        return entries.length;
+    }
+
+    /**
+     * Return the flows in the batch.
+     *
+     * @return the flows, in the order of the manifest
+     */
+    public List<DropboxFlow> getFlows() {
+        List<DropboxFlow> flows = new ArrayList<DropboxFlow>(entries.length);
+        for (Entry entry : entries) {
+            flows.add(entry.flow);
+        }
+        return flows;
+    }
+
+    /**
+     * Return the number of flows which have saved their access token.
+     *
+     * @return number of flows
+     */
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Return the number of flows which have failed or expired.
+     *
+     * @return number of flows
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Return the number of flows which have not yet finished.
+     *
+     * @return number of flows
+     */
+    public int getPending() {
+        return (int) finished.getCount();
+    }
+
+    /**
+     * Return the throughput of the batch.
+     *
+     * @return flows completed per second since the batch was started
+     */
+    public double getThroughput() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return (elapsed <= 0) ? 0 : 1000.0 * completed.get() / elapsed;
+    }
+
+    /**
+     * Return a percentile of the time taken by the completed flows, from start to completion.
+     *
+     * @param percentile the percentile (eg 50 for the median)
+     * @return the time in milliseconds, or -1 if no flow has completed
+     */
+    public long getPercentile(double percentile) {
+        long[] times;
+        synchronized (completionTimes) {
+            times = new long[completionTimes.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = completionTimes.get(i);
+            }
+        }
+        if (times.length == 0) {
+            return -1;
+        }
+        Arrays.sort(times);
+        // nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0 * times.length);
+        return times[Math.min(Math.max(rank, 1), times.length) - 1];
+    }
+
+    /**
+     * Wait for every flow to finish.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return true if every flow has finished
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    /**
+     * Return a one-line report of the progress of the batch.
+     *
+     * @return the report
+     */
+    public String getReport() {
+        return String.format("%d flows: %d completed, %d failed, %d pending; %.2f completions/s; time to complete p50 %d ms, p90 %d ms, p99 %d ms",
+                entries.length, getCompleted(), getFailed(), getPending(), getThroughput(),
+                getPercentile(50), getPercentile(90), getPercentile(99));
+    }
+
+    /**
+     * Write the manifest, with the current status of each flow.
+     *
+     * @throws IOException if the manifest cannot be written
+     */
+    public synchronized void writeManifest() throws IOException {
+        JsonWriter writer = new JsonWriter(true);
+        writer.beginObject();
+        writer.name(CREATED_KEY).value(startTime);
+        writer.name(COUNT_KEY).value((long) entries.length);
+        writer.name(FLOWS_KEY).beginArray();
+        for (Entry entry : entries) {
+            writer.beginObject();
+            writer.name(FLOW_ID_KEY).value(entry.flow.flowId);
+            writer.name(URL_KEY).value(entry.flow.status.redirectUrl.toString());
+            writer.name(STATUS_KEY).value(entry.status);
+            writer.name(USER_ID_KEY).value(entry.userId);
+            writer.name(MILLIS_KEY).value(entry.millis);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+        Path directory = manifestFile.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        AtomicFileWriter.write(manifestFile, writer.toByteArray());
+    }
+
+    /**
+     * Return the manifest file.
+     *
+     * @return path of the manifest
+     */
+    public Path getManifestFile() {
+        return manifestFile;
+    }
+
+    private BulkOnboarding(int count, Path manifestFile) {
+        this.entries = new Entry[count];
+        this.manifestFile = manifestFile;
+        this.finished = new CountDownLatch(count);
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /** start the flows, dividing them between the threads, and abandon them all if one cannot be started */
+    private void startFlows(final int threads, final Starter starter) throws IOException {
+        final AtomicBoolean stopped = new AtomicBoolean();
+        IOException failure = null;
+        ExecutorService starters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "onboarding-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(starters.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = first; i < entries.length && !stopped.get(); i += threads) {
+                            try {
+                                track(i, starter.start());
+                            }
+                            catch (Exception e) {
+                                stopped.set(true);
+                                throw e;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            // wait for every thread, so that no flow is started after the others are abandoned
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new IOException("failed to start onboarding flows", e.getCause());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            stopped.set(true);
+            Thread.currentThread().interrupt();
+            failure = new InterruptedIOException("interrupted while starting onboarding flows");
+        }
+        finally {
+            starters.shutdown();
+        }
+        if (failure != null) {
+            abandonFlows(failure);
+            throw failure;
+        }
+    }
+
+    /** fail the flows started so far, and delete their CSRF token files */
+    private void abandonFlows(IOException failure) {
+        int abandoned = 0;
+        for (Entry entry : entries) {
+            if (entry != null) {
+                DropboxFlowRegistry.fail(entry.flow.flowId, failure);
+                if (entry.flow.sessionStore != null) {
+                    entry.flow.sessionStore.clear();
+                }
+                abandoned++;
+            }
+        }
+        ConsoleLogger.info("possible error: abandoned %d onboarding flows, error='%s'", abandoned, failure.getMessage());
+    }
+
+    /** record a flow, and update the counts when it finishes */
+    private void track(int index, DropboxFlow flow) {
+        final Entry entry = new Entry(flow);
+        entries[index] = entry;
+        flow.getResult().whenComplete(new BiConsumer<AccessData, Throwable>() {
+            public void accept(AccessData accessData, Throwable failure) {
+                entry.millis = System.currentTimeMillis() - entry.flow.startTime;
+                if (failure == null) {
+                    entry.userId = accessData.userId;
+                    entry.status = COMPLETED;
+                    synchronized (completionTimes) {
+                        completionTimes.add(entry.millis);
+                    }
+                    completed.incrementAndGet();
+                }
+                else {
+                    entry.status = FAILED;
+                    failed.incrementAndGet();
+                }
+                finished.countDown();
+            }
+        });
+    }
+
+    /** one flow of the batch */
+    private static final class Entry {
+        final DropboxFlow flow;
+        volatile String status = PENDING;
+        volatile String userId = null;
+        /** milliseconds from start to finish (0 while pending) */
+        volatile long millis = 0;
+        Entry(DropboxFlow flow) {
+            this.flow = flow;
+        }
+    }
+
+    private static final String CREATED_KEY = "created";
+    private static final String COUNT_KEY = "count";
+    private static final String FLOWS_KEY = "flows";
+    private static final String FLOW_ID_KEY = "flow_id";
+    private static final String URL_KEY = "url";
+    private static final String STATUS_KEY = "status";
+    private static final String USER_ID_KEY = "user_id";
+    private static final String MILLIS_KEY = "millis";
+
+    private final Entry[] entries;
+    private final Path manifestFile;
+    private final CountDownLatch finished;
+    private final long startTime;
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<Long> completionTimes = new ArrayList<Long>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+}
@@ -2,6 +2,8 @@ package uk.org.rozanski.oauth_demo.lib;
 
 import java.io.File;
 
+import com.dropbox.core.DbxHost;
+
 /**
  * Common configuration data (file paths)
  *
@@ -28,5 +30,79 @@ public class CommonConfig {
      */
     public static final String DOC_DIRECTORY = DEMO_DIRECTORY + File.separator + "oauth_demo/target/site";
 
-}
+    /**
+     * If true, concurrent saves of the access token and session files are batched (see AtomicFileWriter).
+     *
+     * <p>This is set from the system property {@code oauth.groupCommit} (default true).
+     */
+    public static boolean GROUP_COMMIT = Boolean.parseBoolean(System.getProperty("oauth.groupCommit", "true"));
+
+    /**
+     * Pathname of the directory which holds the records of tasks run after authorisation (see PostAuthPipeline).
+     *
+     * <p>This is set from the system property {@code oauth.postAuthDirectory}.
+     */
+    public static String POST_AUTH_DIRECTORY = System.getProperty("oauth.postAuthDirectory",
+            FILES_DIRECTORY + File.separator + "post_auth_tasks");
+    /** number of threads which run tasks after authorisation (system property {@code oauth.postAuthThreads}) */
+    public static int POST_AUTH_THREADS = Integer.getInteger("oauth.postAuthThreads", 2);
+    /** number of times a task is tried before it is given up (system property {@code oauth.postAuthAttempts}) */
+    public static int POST_AUTH_MAX_ATTEMPTS = Integer.getInteger("oauth.postAuthAttempts", 5);
+    /** seconds before a failed task is retried, doubled after each failure (system property {@code oauth.postAuthRetryDelay}) */
+    public static int POST_AUTH_RETRY_DELAY = Integer.getInteger("oauth.postAuthRetryDelay", 5);
+
+    /** seconds after which an authorisation workflow which has not finished expires (system property {@code oauth.flowTtl}) */
+    public static int FLOW_TTL = Integer.getInteger("oauth.flowTtl", 600);
+
+    /**
+     * Pathname of the manifest of authorisation URLs written by bulk onboarding (see BulkOnboarding).
+     *
+     * <p>This is set from the system property {@code oauth.onboardingManifest}.
+     */
+    public static String ONBOARDING_MANIFEST = System.getProperty("oauth.onboardingManifest",
+            FILES_DIRECTORY + File.separator + "onboarding_manifest.json");
+    /** number of threads which start the workflows of a bulk onboarding batch (system property {@code oauth.onboardingThreads}) */
+    public static int ONBOARDING_THREADS = Integer.getInteger("oauth.onboardingThreads", 8);
+
+    /**
+     * If true, calls to Dropbox use a pooled HTTP requestor which keeps its connections alive (see PooledHttpRequestor);
+     * if false, they use the SDK's standard requestor.
+     *
+     * <p>This is set from the system property {@code oauth.dropboxPooled} (default true).
+     */
+    public static boolean DROPBOX_POOLED = Boolean.parseBoolean(System.getProperty("oauth.dropboxPooled", "true"));
+    /** seconds allowed to connect to Dropbox (system property {@code oauth.dropboxConnectTimeout}) */
+    public static int DROPBOX_CONNECT_TIMEOUT = Integer.getInteger("oauth.dropboxConnectTimeout", 35);
+    /** seconds allowed to wait for data from Dropbox (system property {@code oauth.dropboxReadTimeout}) */
+    public static int DROPBOX_READ_TIMEOUT = Integer.getInteger("oauth.dropboxReadTimeout", 35);
+    /** maximum number of requests in progress to each Dropbox host (system property {@code oauth.dropboxMaxConnections}) */
+    public static int DROPBOX_MAX_CONNECTIONS = Integer.getInteger("oauth.dropboxMaxConnections", 8);
+
+    /**
+     * Pathname of the PEM file of the root certificates trusted for connections to Dropbox (see DropboxSslContext).
+     *
+     * <p>This is set from the system property {@code oauth.dropboxRootCertificate} (default the DigiCert root in the
+     * repository's {@code etc} directory).
+     */
+    public static String DROPBOX_ROOT_CERTIFICATE = System.getProperty("oauth.dropboxRootCertificate",
+            DEMO_DIRECTORY + File.separator + ".." + File.separator + ".." + File.separator + "etc" + File.separator + "digicert-highassurance-root.pem");
+    /** number of TLS sessions held for resumption (system property {@code oauth.tlsSessionCacheSize}) */
+    public static int TLS_SESSION_CACHE_SIZE = Integer.getInteger("oauth.tlsSessionCacheSize", 100);
+    /** seconds for which a TLS session can be resumed (system property {@code oauth.tlsSessionTimeout}) */
+    public static int TLS_SESSION_TIMEOUT = Integer.getInteger("oauth.tlsSessionTimeout", 3600);
 
+    /**
+     * If true, {@code OauthDemo} warms up the connections to Dropbox in the background when it starts (see DropboxWarmup).
+     *
+     * <p>This is set from the system property {@code oauth.dropboxWarmup} (default true).
+     */
+    public static boolean DROPBOX_WARMUP = Boolean.parseBoolean(System.getProperty("oauth.dropboxWarmup", "true"));
+    /**
+     * Comma-separated hosts ({@code host} or {@code host:port}) to which the warm-up connects.
+     *
+     * <p>This is set from the system property {@code oauth.dropboxWarmupHosts} (default the SDK's API and content hosts).
+     */
+    public static String DROPBOX_WARMUP_HOSTS = System.getProperty("oauth.dropboxWarmupHosts",
+            DbxHost.Default.api + "," + DbxHost.Default.content);
+
+}
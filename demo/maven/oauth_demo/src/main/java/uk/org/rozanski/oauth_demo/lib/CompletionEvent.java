@@ -0,0 +1,106 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.nio.file.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * In-process notification that something has happened (for example, the access token has been saved).
+ *
+ * <p>The producer calls {@code publish()}. A consumer calls {@code next()} <i>before</i> checking whether the thing
+ * has already happened, and gets a {@code CompletableFuture} which is completed by the next {@code publish()}.
+ * This replaces polling: the consumer wakes up as soon as the event is published.
+ *
+ * <p>Each event is also associated with a file which the producer writes (for example, the token file). If the
+ * producer is in another process, {@code publish()} is never called in this process; instead, the future is
+ * completed (with a null value) when {@link FileWatcher} reports that the file has changed.
+ *
+ * @param <T> type of the value published with the event
+ *
+ */
+public class CompletionEvent<T> {
+
+    /**
+     * Create an event.
+     *
+     * @param name name of the event (for messages)
+     * @param file file written by the producer, watched in case the producer is in another process
+     */
+    public CompletionEvent(String name, String file) {
+        this.name = name;
+        this.file = Paths.get(file);
+    }
+
+    /**
+     * Complete every future returned by {@code next()} which has not yet completed.
+     *
+     * @param value value passed to the futures
+     */
+    public void publish(T value) {
+        ConsoleLogger.debug("publishing event '%s'", name);
+        CompletableFuture<T> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.complete(value);
+        }
+    }
+
+    /**
+     * Return a future which is completed by the next event.
+     *
+     * <p>Cancel the future if you stop waiting for it before it completes.
+     *
+     * @return the future (completed with null if the event was seen in another process)
+     */
+    public CompletableFuture<T> next() {
+        final CompletableFuture<T> waiter = new CompletableFuture<T>();
+        final Runnable fileChanged = new Runnable() {
+            public void run() { waiter.complete(null); }
+        };
+        waiters.add(waiter);
+        FileWatcher.watch(file, fileChanged);
+        waiter.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable failure) {
+                waiters.remove(waiter);
+                FileWatcher.unwatch(file, fileChanged);
+            }
+        });
+        return waiter;
+    }
+
+    /**
+     * Return a future which is completed by the next event, or fails with a {@code TimeoutException}.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return the future
+     */
+    public CompletableFuture<T> next(long timeout, TimeUnit unit) {
+        final CompletableFuture<T> waiter = next();
+        timer.schedule(new Runnable() {
+            public void run() {
+                waiter.completeExceptionally(new TimeoutException(String.format("timed out waiting for event '%s'", name)));
+            }
+        }, timeout, unit);
+        return waiter;
+    }
+
+    private final String name;
+    private final Path file;
+    private final ConcurrentLinkedQueue<CompletableFuture<T>> waiters = new ConcurrentLinkedQueue<CompletableFuture<T>>();
+
+    /** completes futures which have timed out */
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "completion-event-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+}
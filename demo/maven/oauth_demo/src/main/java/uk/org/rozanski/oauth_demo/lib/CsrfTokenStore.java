@@ -2,8 +2,6 @@ package uk.org.rozanski.oauth_demo.lib;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.charset.*;
-import org.json.simple.*;
 
 import com.dropbox.core.*;
 
@@ -65,20 +63,27 @@ public class CsrfTokenStore implements DbxSessionStore {
      */
     public String get() {
         ConsoleLogger.debug("Attempting to load CSRF token from session file %s", HTTPD_SESSION_FILE);
-        String jsonFileContents = "";
+        String CsrfToken = null;
         try {
             byte[] encoded = Files.readAllBytes(Paths.get(HTTPD_SESSION_FILE));
-            jsonFileContents = new String(encoded, StandardCharsets.UTF_8);
             ConsoleLogger.debug("CSRF token successfully loaded from token file %s", HTTPD_SESSION_FILE);
+            JsonReader reader = new JsonReader(encoded, 0, encoded.length);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(HttpConfig.CSRF_SESSION_KEY)) {
+                    CsrfToken = reader.nextString();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
         }
         catch (IOException e) {
             // depending on context, this may or may not be an error
             ConsoleLogger.info("possible error: failed to load CSRF token from token file %s, error='%s'", HTTPD_SESSION_FILE, e.getMessage());
             return null; // no way to return an error in this interface
         }
-        // @see https://code.google.com/p/json-simple/wiki/DecodingExamples
-        JSONObject jsonObject = (JSONObject) JSONValue.parse(jsonFileContents);
-        String CsrfToken = (String) jsonObject.get(HttpConfig.CSRF_SESSION_KEY);
         ConsoleLogger.debug("CSRF token is %s", CsrfToken);
         return CsrfToken;
     }
@@ -87,22 +92,15 @@ public class CsrfTokenStore implements DbxSessionStore {
      * {@inheritDoc}
      *
      */
-    @SuppressWarnings("unchecked")
     public void set(String value) {
         ConsoleLogger.debug("Attempting to save CSRF token to session file %s", HTTPD_SESSION_FILE);
-        JSONObject obj=new JSONObject();
-        obj.put(HttpConfig.CSRF_SESSION_KEY,value);
-        StringWriter stringWriter = new StringWriter();
+        JsonWriter writer = new JsonWriter(true);
+        writer.beginObject();
+        writer.name(HttpConfig.CSRF_SESSION_KEY).value(value);
+        writer.endObject();
         try {
-            obj.writeJSONString(stringWriter);
-            String jsonText = stringWriter.toString();
-            jsonText = jsonText.replace("{", "{\n    ");
-            jsonText = jsonText.replace(",", ",\n    ");
-            jsonText = jsonText.replace("}", "\n}\n");
             ConsoleLogger.debug("About to save CSRF token to session file %s", HTTPD_SESSION_FILE);
-            PrintWriter printWriter = new PrintWriter(HTTPD_SESSION_FILE);
-            printWriter.println(jsonText);
-            printWriter.close();
+            AtomicFileWriter.write(Paths.get(HTTPD_SESSION_FILE), writer.toByteArray());
             ConsoleLogger.debug("CSRF token successfully saved to session file %s", HTTPD_SESSION_FILE);
         }
         catch (IOException e) {
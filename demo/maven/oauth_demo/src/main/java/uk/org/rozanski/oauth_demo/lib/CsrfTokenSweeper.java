@@ -0,0 +1,67 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread which removes expired CSRF tokens.
+ *
+ * <p>The sweeper runs every {@code HttpConfig.CSRF_SWEEP_INTERVAL} seconds. It removes expired tokens held in memory
+ * (see {@link MemoryCsrfTokenStore}) and expired token files in the shared session directory
+ * (see {@link DirectoryCsrfTokenStore}). It also removes expired results of finish requests
+ * (see {@link FinishResultCache}) and expired workflows (see {@link DropboxFlowRegistry}).
+ *
+ * <p>It is started and stopped by {@link HttpdServer}.
+ *
+ */
+public class CsrfTokenSweeper {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private CsrfTokenSweeper() {}
+
+    /**
+     * Remove expired tokens now.
+     */
+    public static void sweep() {
+        MemoryCsrfTokenStore.sweep();
+        DropboxWorkflowRedirect.getFinishResults().sweep();
+        DropboxFlowRegistry.sweep();
+        // redirect flows keep their tokens in the directory whatever the mode (see DropboxFlowRegistry)
+        DirectoryCsrfTokenStore.sweep();
+    }
+
+    /**
+     * Start the background thread (does nothing if it is already running).
+     */
+    public static synchronized void start() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "csrf-token-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            public void run() { sweep(); }
+        }, HttpConfig.CSRF_SWEEP_INTERVAL, HttpConfig.CSRF_SWEEP_INTERVAL, TimeUnit.SECONDS);
+        ConsoleLogger.debug("started CSRF token sweeper, interval %d seconds", HttpConfig.CSRF_SWEEP_INTERVAL);
+    }
+
+    /**
+     * Stop the background thread.
+     */
+    public static synchronized void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    private static ScheduledExecutorService sweeper = null;
+
+}
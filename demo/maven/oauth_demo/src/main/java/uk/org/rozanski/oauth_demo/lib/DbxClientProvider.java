@@ -0,0 +1,118 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dropbox.core.*;
+
+/**
+ * Process-wide cache of Dropbox clients, one per access token.
+ *
+ * <p>A {@code DbxClient} holds nothing but its request configuration and access token, and can be used by any number
+ * of threads at once, so there is no need to build one for every operation. {@code get()} returns the client for the
+ * access token currently in the token file (see {@link AccessDataCache}), so a new client is only built when the
+ * token changes; {@code getForUser()} returns the client for one of the accounts held in {@link AccessTokenVault}.
+ *
+ * <p>Clients are built with the request configuration of {@link DropboxWorkflowEngine}. The cache holds at most
+ * {@code MAX_CLIENTS} clients; when it is full it is emptied, as clients are cheap to build again.
+ *
+ */
+public class DbxClientProvider {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private DbxClientProvider() {}
+
+    /**
+     * Return the client for the access token in the token file.
+     *
+     * @return the (shared) client
+     *
+     * @throws IOException if the token file does not exist or cannot be read
+     */
+    public static DbxClient get() throws IOException {
+        return get(AccessDataCache.get().accessToken);
+    }
+
+    /**
+     * Return the client for one of the accounts held in the access token vault.
+     *
+     * @param userId Dropbox user id of the account
+     * @return the (shared) client
+     *
+     * @throws IOException if the vault does not hold the account, or cannot be loaded
+     */
+    public static DbxClient getForUser(String userId) throws IOException {
+        AccessData accessData = AccessTokenVault.get(userId);
+        if (accessData == null) {
+            throw new IOException(String.format("no access token for user %s in vault %s", userId, AccessTokenVault.VAULT_FILE));
+        }
+        return get(accessData.accessToken);
+    }
+
+    /**
+     * Return the client for an access token, building it if it is not cached.
+     *
+     * @param accessToken the access token
+     * @return the (shared) client
+     */
+    public static DbxClient get(String accessToken) {
+        DbxClient client = clients.get(accessToken);
+        if (client != null) {
+            return client;
+        }
+        if (clients.size() >= MAX_CLIENTS) {
+            clients.clear();
+        }
+        DbxClient newClient = DropboxWorkflowEngine.get().newClient(accessToken);
+        client = clients.putIfAbsent(accessToken, newClient);
+        if (client != null) {
+            // another thread built one first
+            return client;
+        }
+        buildCount.incrementAndGet();
+        ConsoleLogger.debug("created DbxClient() object for config %s, %d clients cached", AppData.APP_NAME_VERSION, clients.size());
+        return newClient;
+    }
+
+    /**
+     * Discard the client for an access token (eg when the token has been revoked).
+     *
+     * @param accessToken the access token
+     */
+    public static void remove(String accessToken) {
+        clients.remove(accessToken);
+    }
+
+    /**
+     * Discard every client.
+     */
+    public static void clear() {
+        clients.clear();
+    }
+
+    /**
+     * Return the number of clients cached.
+     *
+     * @return number of clients
+     */
+    public static int size() {
+        return clients.size();
+    }
+
+    /**
+     * Return the number of clients which have been built.
+     *
+     * @return number of clients
+     */
+    public static long getBuildCount() {
+        return buildCount.get();
+    }
+
+    /** maximum number of clients cached */
+    public static final int MAX_CLIENTS = 10000;
+
+    private static final ConcurrentHashMap<String, DbxClient> clients = new ConcurrentHashMap<String, DbxClient>();
+    private static final AtomicLong buildCount = new AtomicLong();
+
+}
@@ -0,0 +1,221 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+
+import com.dropbox.core.*;
+
+/**
+ * Store CSRF tokens in a directory shared by several HTTP server processes, one file per browser session.
+ *
+ * <p>This allows several {@code HttpdServer} processes on the same host (for example behind a local load balancer)
+ * to serve the workflow: any process can handle the {@code HttpConfig.FINISH_PAGE} callback for a flow
+ * started by any other process.
+ *
+ * <p>The token for session {@code id} is kept in the file {@code id.json} in {@code HttpConfig.CSRF_SESSION_DIRECTORY}.
+ * <ul>
+ * <li>{@code set()} writes the file using {@link AtomicFileWriter}, so other processes
+ * never see a partly-written file.
+ * <li>{@code get()} reads the file while holding a shared {@code FileChannel} lock.
+ * <li>{@code clear()} takes an exclusive lock (so it waits for any process which is reading the file),
+ * atomically renames the file out of the way and deletes it.
+ * </ul>
+ *
+ * <p>Tokens expire {@code HttpConfig.CSRF_SESSION_TTL} seconds after they are set; expired files are deleted by
+ * {@code sweep()}.
+ *
+ * @see <a href='http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxSessionStore.html'>DbxSessionStore</a>
+ *
+ */
+public class DirectoryCsrfTokenStore implements DbxSessionStore {
+
+    /**
+     * Create a token store for a browser session.
+     *
+     * @param sessionId the browser session id (see {@link HttpSession})
+     */
+    public DirectoryCsrfTokenStore(String sessionId) {
+        this.sessionId = sessionId;
+        this.sessionFile = getSessionFile(sessionId);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public void clear() {
+        if (!Files.exists(sessionFile)) {
+            return;
+        }
+        Path expiredFile = sessionFile.resolveSibling(sessionId + "." + HttpSession.newSessionId() + EXPIRED_SUFFIX);
+        try {
+            FileChannel channel = FileChannel.open(sessionFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    Files.move(sessionFile, expiredFile, StandardCopyOption.ATOMIC_MOVE);
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            finally {
+                channel.close();
+            }
+            Files.delete(expiredFile);
+            ConsoleLogger.debug("cleared CSRF token file %s", sessionFile);
+        }
+        catch (NoSuchFileException e) {
+            // another process has already cleared the token
+            ConsoleLogger.debug("CSRF token file %s already cleared", sessionFile);
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("failed to clear CSRF token file %s, error='%s'", sessionFile, e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public String get() {
+        String token = null;
+        long expiry = 0;
+        try {
+            FileChannel channel = FileChannel.open(sessionFile, StandardOpenOption.READ);
+            try {
+                FileLock lock = channel.lock(0L, Long.MAX_VALUE, true);
+                try {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                    while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+                    JsonReader reader = new JsonReader(buffer.array(), 0, buffer.position());
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals(HttpConfig.CSRF_SESSION_KEY)) {
+                            token = reader.nextString();
+                        }
+                        else if (name.equals(EXPIRY_KEY)) {
+                            expiry = reader.nextLong();
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (IOException e) {
+            ConsoleLogger.info("possible error: failed to load CSRF token from token file %s, error='%s'", sessionFile, e.getMessage());
+            return null; // no way to return an error in this interface
+        }
+        if (TimeNow.timeNowInt() > expiry) {
+            ConsoleLogger.info("possible error: CSRF token in file %s has expired", sessionFile);
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public void set(String value) {
+        JsonWriter writer = new JsonWriter(false);
+        writer.beginObject();
+        writer.name(HttpConfig.CSRF_SESSION_KEY).value(value);
+        writer.name(EXPIRY_KEY).value((long) TimeNow.timeNowInt() + HttpConfig.CSRF_SESSION_TTL);
+        writer.endObject();
+        try {
+            Files.createDirectories(sessionFile.getParent());
+            AtomicFileWriter.write(sessionFile, writer.toByteArray());
+            ConsoleLogger.debug("CSRF token successfully saved to token file %s", sessionFile);
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("failed to save CSRF token to token file %s, error='%s'", sessionFile, e.getMessage());
+        }
+    }
+
+    /**
+     * Check whether a CSRF token file exists for a browser session.
+     *
+     * @param sessionId the browser session id
+     * @return true if there is a token file (which may have expired)
+     */
+    public static boolean hasToken(String sessionId) {
+        return Files.exists(getSessionFile(sessionId));
+    }
+
+    /**
+     * Delete expired token files, and any temporary files left behind by a crashed process.
+     *
+     * <p>A file is treated as expired if it was last modified more than {@code HttpConfig.CSRF_SESSION_TTL} seconds ago.
+     * Only files named like those this class creates ({@code SWEEP_GLOB}) are deleted, since the directory may be
+     * shared with other files.
+     *
+     * @return number of files deleted
+     */
+    public static int sweep() {
+        Path directory = Paths.get(HttpConfig.CSRF_SESSION_DIRECTORY);
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        long oldestValidTime = System.currentTimeMillis() - 1000L * HttpConfig.CSRF_SESSION_TTL;
+        int removed = 0;
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SWEEP_GLOB);
+            try {
+                for (Path file : stream) {
+                    try {
+                        if (Files.getLastModifiedTime(file).toMillis() < oldestValidTime && Files.deleteIfExists(file)) {
+                            removed++;
+                        }
+                    }
+                    catch (IOException e) {
+                        // the file has been cleared by another process
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("failed to sweep CSRF token directory %s, error='%s'", directory, e.getMessage());
+        }
+        if (removed > 0) {
+            ConsoleLogger.debug("swept %d expired CSRF token files", removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Return the token file for a session.
+     *
+     * @param sessionId the browser session id
+     * @return path of the token file
+     */
+    private static Path getSessionFile(String sessionId) {
+        return Paths.get(HttpConfig.CSRF_SESSION_DIRECTORY, sessionId + ".json");
+    }
+
+    /** key in the token file which holds the expiry time (seconds since 1970) */
+    private static final String EXPIRY_KEY = "expiry";
+    private static final String EXPIRED_SUFFIX = ".EXPIRED";
+    /** names of token files, of the temporary files written by AtomicFileWriter, and of files renamed by clear() */
+    private static final String SWEEP_GLOB = "*.{json,json.*" + AtomicFileWriter.TMP_SUFFIX + ",*" + EXPIRED_SUFFIX + "}";
+
+    private final String sessionId;
+    private final Path sessionFile;
+
+}
@@ -0,0 +1,104 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.dropbox.core.*;
+
+/**
+ * Handle of one Dropbox authorisation workflow which has been started but not yet finished.
+ *
+ * <p>A flow is returned by the start step ({@code DropboxWorkflowNoRedirect.noRedirectClientStart()} or
+ * {@code DropboxWorkflowRedirect.redirectClientStart()}) and is held in {@link DropboxFlowRegistry} until it finishes
+ * or expires. Each flow has its own id and its own state (for a redirect flow, its own CSRF token store), so any
+ * number of flows of either type can run at the same time.
+ *
+ * <p>{@code getResult()} returns a future which is completed with the access data when the flow finishes, or fails
+ * if the flow fails or expires.
+ *
+ */
+public class DropboxFlow {
+
+    /** type of a flow run by {@link DropboxWorkflowNoRedirect} */
+    public static final String NO_REDIRECT = "no-redirect";
+    /** type of a flow run by {@link DropboxWorkflowRedirect} */
+    public static final String REDIRECT = "redirect";
+
+    /**
+     * Create a flow (call {@code DropboxFlowRegistry.register()} to make it visible to the finish step).
+     *
+     * @param flowId the flow's id (see {@code DropboxFlowRegistry.newFlowId()})
+     * @param type {@code NO_REDIRECT} or {@code REDIRECT}
+     * @param status the result of the start step, which holds the Dropbox authorisation URL
+     * @param sessionStore the flow's CSRF token store (null for a no-redirect flow)
+     */
+    public DropboxFlow(String flowId, String type, DropboxStatus status, DbxSessionStore sessionStore) {
+        this.flowId = flowId;
+        this.type = type;
+        this.status = status;
+        this.sessionStore = sessionStore;
+        this.startTime = System.currentTimeMillis();
+        this.expiryTime = startTime + 1000L * CommonConfig.FLOW_TTL;
+    }
+
+    /**
+     * Return a future which is completed when the flow finishes.
+     *
+     * @return the future, completed with the saved access data, or failed if the flow fails or expires
+     */
+    public CompletableFuture<AccessData> getResult() {
+        return result;
+    }
+
+    /**
+     * Return the time at which the flow expires.
+     *
+     * @return the time (in milliseconds), {@code CommonConfig.FLOW_TTL} seconds after the flow was started
+     */
+    public long getExpiryTime() {
+        return expiryTime;
+    }
+
+    /**
+     * Check whether the flow has expired.
+     *
+     * @param timeNow the time now (in milliseconds)
+     * @return true if the flow is older than {@code CommonConfig.FLOW_TTL} seconds
+     */
+    public boolean hasExpired(long timeNow) {
+        return timeNow >= expiryTime;
+    }
+
+    /**
+     * Claim the flow for a finish step, so that the same flow is not finished twice at once.
+     *
+     * @return true if no other finish step is running for the flow
+     */
+    boolean startFinish() {
+        return finishing.compareAndSet(false, true);
+    }
+
+    /**
+     * Release the flow after a finish step which failed, so that it can be finished again (eg with the right code).
+     */
+    void abandonFinish() {
+        finishing.set(false);
+    }
+
+    /** the flow's id */
+    public final String flowId;
+    /** {@code NO_REDIRECT} or {@code REDIRECT} */
+    public final String type;
+    /** the result of the start step, whose {@code redirectUrl} is the Dropbox authorisation URL */
+    public final DropboxStatus status;
+    /** time (in milliseconds) at which the flow was started */
+    public final long startTime;
+
+    /** the flow's CSRF token store (null for a no-redirect flow) */
+    final DbxSessionStore sessionStore;
+
+    private final long expiryTime;
+    private final CompletableFuture<AccessData> result = new CompletableFuture<AccessData>();
+    private final AtomicBoolean finishing = new AtomicBoolean();
+
+}
@@ -0,0 +1,191 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import com.dropbox.core.*;
+
+/**
+ * Registry of the Dropbox authorisation workflows which have been started but not yet finished, keyed by flow id.
+ *
+ * <p>The start step creates a {@link DropboxFlow} and registers it; the finish step looks the flow up by its id,
+ * and removes it when it has finished. Flows expire {@code CommonConfig.FLOW_TTL} seconds after they are started;
+ * expired flows are never returned by {@code get()}, and are removed (and their results failed) by {@code sweep()},
+ * which is called periodically by {@link CsrfTokenSweeper}.
+ *
+ * <p>A redirect flow passes its id to Dropbox as the URL state, so the id comes back in the {@code state} parameter
+ * of the finish URL. The flow's CSRF token is kept in its own file in {@code HttpConfig.CSRF_SESSION_DIRECTORY}
+ * (see {@link DirectoryCsrfTokenStore}), so the finish step can be run by an HTTP server in another process.
+ *
+ */
+public class DropboxFlowRegistry {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private DropboxFlowRegistry() {}
+
+    /**
+     * Return a new flow id.
+     *
+     * @return 32 random lower-case hex characters
+     */
+    public static String newFlowId() {
+        return HttpSession.newSessionId();
+    }
+
+    /**
+     * Add a flow to the registry.
+     *
+     * @param flow the flow
+     */
+    public static void register(DropboxFlow flow) {
+        flows.put(flow.flowId, flow);
+        ConsoleLogger.debug("registered %s flow %s, %d flows in progress", flow.type, flow.flowId, flows.size());
+    }
+
+    /**
+     * Return a flow which is in progress.
+     *
+     * @param flowId the flow's id
+     * @return the flow, or null if there is no such flow or it has expired
+     */
+    public static DropboxFlow get(String flowId) {
+        if (flowId == null) {
+            return null;
+        }
+        DropboxFlow flow = flows.get(flowId);
+        if (flow != null && flow.hasExpired(System.currentTimeMillis())) {
+            expire(flow);
+            return null;
+        }
+        return flow;
+    }
+
+    /**
+     * Remove a flow which has finished, and complete its result.
+     *
+     * @param flowId the flow's id (nothing is done if the flow is not in the registry)
+     * @param accessData the access data saved by the finish step
+     */
+    public static void complete(String flowId, AccessData accessData) {
+        DropboxFlow flow = (flowId == null) ? null : flows.remove(flowId);
+        if (flow != null) {
+            flow.getResult().complete(accessData);
+            ConsoleLogger.debug("%s flow %s finished, %d flows in progress", flow.type, flowId, flows.size());
+        }
+    }
+
+    /**
+     * Remove a flow which has failed, and fail its result.
+     *
+     * @param flowId the flow's id (nothing is done if the flow is not in the registry)
+     * @param failure why the flow failed
+     */
+    public static void fail(String flowId, Throwable failure) {
+        DropboxFlow flow = (flowId == null) ? null : flows.remove(flowId);
+        if (flow != null) {
+            flow.getResult().completeExceptionally(failure);
+            ConsoleLogger.info("possible error: %s flow %s failed, error='%s'", flow.type, flowId, failure.getMessage());
+        }
+    }
+
+    /**
+     * Create the CSRF token store of a redirect flow.
+     *
+     * @param flowId the flow's id
+     * @return the token store
+     */
+    public static DbxSessionStore createSessionStore(String flowId) {
+        return new DirectoryCsrfTokenStore(SESSION_PREFIX + flowId);
+    }
+
+    /**
+     * Return the CSRF token store of the redirect flow which a finish request belongs to.
+     *
+     * @param state the {@code state} parameter of the finish URL (may be null)
+     * @return the token store, or null if the state does not name a flow whose token is held
+     */
+    public static DbxSessionStore getSessionStore(String state) {
+        String flowId = flowIdFromState(state);
+        if (flowId == null || !DirectoryCsrfTokenStore.hasToken(SESSION_PREFIX + flowId)) {
+            return null;
+        }
+        return createSessionStore(flowId);
+    }
+
+    /**
+     * Return the flow id held in the {@code state} parameter of a finish URL.
+     *
+     * <p>{@code DbxWebAuth} makes the state from the CSRF token and the URL state, separated by {@code |}.
+     *
+     * @param state the {@code state} parameter (may be null)
+     * @return the flow id, or null if the state does not hold a well-formed flow id
+     */
+    public static String flowIdFromState(String state) {
+        if (state == null) {
+            return null;
+        }
+        int bar = state.indexOf('|');
+        if (bar < 0) {
+            return null;
+        }
+        String flowId = state.substring(bar + 1);
+        // the id becomes part of a file name, so nothing but the hex produced by newFlowId() is accepted
+        if (flowId.length() != FLOW_ID_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < flowId.length(); i++) {
+            char c = flowId.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return null;
+            }
+        }
+        return flowId;
+    }
+
+    /**
+     * Return the number of flows in progress (including any which have expired but not yet been removed).
+     *
+     * @return number of flows
+     */
+    public static int size() {
+        return flows.size();
+    }
+
+    /**
+     * Remove all expired flows, failing their results with a {@code TimeoutException}.
+     *
+     * @return number of flows removed
+     */
+    public static int sweep() {
+        long timeNow = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<DropboxFlow> iterator = flows.values().iterator();
+        while (iterator.hasNext()) {
+            DropboxFlow flow = iterator.next();
+            if (flow.hasExpired(timeNow) && expire(flow)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            ConsoleLogger.debug("swept %d expired flows, %d remaining", removed, flows.size());
+        }
+        return removed;
+    }
+
+    /** remove an expired flow and fail its result, returning false if another thread has already removed it */
+    private static boolean expire(DropboxFlow flow) {
+        if (!flows.remove(flow.flowId, flow)) {
+            return false;
+        }
+        flow.getResult().completeExceptionally(new TimeoutException(String.format("%s flow %s has expired", flow.type, flow.flowId)));
+        return true;
+    }
+
+    /** prefix of the CSRF token store session id of a redirect flow */
+    private static final String SESSION_PREFIX = "flow-";
+    private static final int FLOW_ID_LENGTH = 32;
+
+    private static final ConcurrentHashMap<String, DropboxFlow> flows = new ConcurrentHashMap<String, DropboxFlow>();
+
+}
@@ -0,0 +1,251 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS context for connections to Dropbox, which trusts only the root certificates it is given and resumes sessions.
+ *
+ * <p>The context is built once and shared by every connection, so its client session cache is shared too: a new
+ * connection to a host which has been connected to before resumes the earlier session (an abbreviated handshake,
+ * with no certificate chain to send or check) rather than making a full handshake. The cache holds
+ * {@code CommonConfig.TLS_SESSION_CACHE_SIZE} sessions for {@code CommonConfig.TLS_SESSION_TIMEOUT} seconds.
+ *
+ * <p>The socket factory returned by {@code getSocketFactory()} counts the handshakes of the connections it opens, how
+ * many of them resumed a session, and the time from opening each connection to the end of its handshake.
+ *
+ * <p>The demo's context is returned by {@code get()}: it trusts the root certificate in
+ * {@code CommonConfig.DROPBOX_ROOT_CERTIFICATE} (the DigiCert root bundled in {@code etc/}), and is used by
+ * {@link PooledHttpRequestor}. If that certificate cannot be loaded, {@code get()} returns null and the SDK's own
+ * certificate checks are used instead.
+ *
+ */
+public class DropboxSslContext {
+
+    /**
+     * Create a context.
+     *
+     * @param rootCertificates the certificates which are trusted
+     * @param sessionCacheSize number of sessions held in the client session cache
+     * @param sessionTimeout seconds for which a session can be resumed
+     *
+     * @throws GeneralSecurityException if the context cannot be built
+     * @throws IOException if the trust store cannot be built
+     */
+    public DropboxSslContext(Collection<? extends Certificate> rootCertificates, int sessionCacheSize, int sessionTimeout)
+            throws GeneralSecurityException, IOException {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        int index = 0;
+        for (Certificate certificate : rootCertificates) {
+            trustStore.setCertificateEntry("root-" + index++, certificate);
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        SSLSessionContext sessions = context.getClientSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+        socketFactory = new MeteredSocketFactory(context.getSocketFactory());
+    }
+
+    /**
+     * Return the demo's context (building it the first time).
+     *
+     * @return the context, or null if the root certificate cannot be loaded
+     */
+    public static synchronized DropboxSslContext get() {
+        if (!loaded) {
+            loaded = true;
+            try {
+                sslContext = new DropboxSslContext(loadCertificates(Paths.get(CommonConfig.DROPBOX_ROOT_CERTIFICATE)),
+                        CommonConfig.TLS_SESSION_CACHE_SIZE, CommonConfig.TLS_SESSION_TIMEOUT);
+                ConsoleLogger.debug("created TLS context trusting %s, session cache size %d", CommonConfig.DROPBOX_ROOT_CERTIFICATE,
+                        CommonConfig.TLS_SESSION_CACHE_SIZE);
+            }
+            catch (IOException e) {
+                ConsoleLogger.info("possible error: failed to load root certificate %s, using the SDK's certificates, error='%s'",
+                        CommonConfig.DROPBOX_ROOT_CERTIFICATE, e.getMessage());
+            }
+            catch (GeneralSecurityException e) {
+                ConsoleLogger.info("possible error: failed to create TLS context from %s, using the SDK's certificates, error='%s'",
+                        CommonConfig.DROPBOX_ROOT_CERTIFICATE, e.getMessage());
+            }
+        }
+        return sslContext;
+    }
+
+    /**
+     * Load the certificates in a PEM file.
+     *
+     * @param pemFile the file
+     * @return the certificates
+     *
+     * @throws IOException if the file cannot be read or holds no certificates
+     * @throws GeneralSecurityException if the file cannot be parsed
+     */
+    public static List<Certificate> loadCertificates(Path pemFile) throws IOException, GeneralSecurityException {
+        InputStream in = Files.newInputStream(pemFile);
+        try {
+            List<Certificate> certificates = new ArrayList<Certificate>(CertificateFactory.getInstance("X.509").generateCertificates(in));
+            if (certificates.isEmpty()) {
+                throw new IOException("no certificates in " + pemFile);
+            }
+            return certificates;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the context.
+     *
+     * @return the context
+     */
+    public SSLContext getContext() {
+        return context;
+    }
+
+    /**
+     * Return the socket factory, which shares the context's session cache and counts handshakes.
+     *
+     * @return the socket factory
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Return the number of handshakes completed by connections opened by the socket factory.
+     *
+     * @return number of handshakes
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Return the number of handshakes which resumed an earlier session.
+     *
+     * @return number of handshakes
+     */
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    /**
+     * Return the total time taken to open connections and complete their handshakes.
+     *
+     * @return time in nanoseconds
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos.get();
+    }
+
+    /**
+     * Return a one-line report of the handshakes.
+     *
+     * @return the report
+     */
+    public String getReport() {
+        long count = handshakes.get();
+        return String.format("%d TLS handshakes (%d resumed), mean time to connect and handshake %.1f ms",
+                count, resumed.get(), (count == 0) ? 0.0 : handshakeNanos.get() / 1e6 / count);
+    }
+
+    /** record a handshake which completed */
+    private void handshakeCompleted(HandshakeCompletedEvent event, long openTime) {
+        long nanos = System.nanoTime() - openTime;
+        handshakes.incrementAndGet();
+        handshakeNanos.addAndGet(nanos);
+        // a resumed session was created before this connection was opened
+        long openMillis = System.currentTimeMillis() - nanos / 1000000;
+        if (event.getSession().getCreationTime() < openMillis) {
+            resumed.incrementAndGet();
+        }
+    }
+
+    /** socket factory which records the handshake of each socket it creates */
+    private final class MeteredSocketFactory extends SSLSocketFactory {
+
+        MeteredSocketFactory(SSLSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return factory.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            return meter(factory.createSocket());
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return meter(factory.createSocket(socket, host, port, autoClose));
+        }
+
+        public Socket createSocket(String host, int port) throws IOException {
+            return meter(factory.createSocket(host, port));
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return meter(factory.createSocket(host, port, localHost, localPort));
+        }
+
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return meter(factory.createSocket(host, port));
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return meter(factory.createSocket(address, port, localAddress, localPort));
+        }
+
+        private Socket meter(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long openTime = System.nanoTime();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        DropboxSslContext.this.handshakeCompleted(event, openTime);
+                    }
+                });
+            }
+            return socket;
+        }
+
+        private final SSLSocketFactory factory;
+    }
+
+    private static boolean loaded = false;
+    private static DropboxSslContext sslContext = null;
+
+    private final SSLContext context;
+    private final SSLSocketFactory socketFactory;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+
+}
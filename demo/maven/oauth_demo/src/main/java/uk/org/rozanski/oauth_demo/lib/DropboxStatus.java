@@ -2,12 +2,23 @@ package uk.org.rozanski.oauth_demo.lib;
 
 import java.net.URL;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * This class contains status information used after completion of a workflow task.
  *
  * <p>It includes an HTTP status, message and an optional redirect URL.
  *
+ * <p>When the status is sent back to a browser by the HTTP server, the message is the response body. It is encoded
+ * as UTF-8 once, the first time {@code getBody()} is called, so that the server can send it with a known
+ * {@code Content-Length} (which lets the browser keep the connection alive). A body which is already encoded, such
+ * as the contents of a file, can be passed to the constructor as bytes. A large body can be left in a file (see
+ * {@code getBodyFile()}), and the server then copies it straight from the file to the connection.
+ *
  * <p>Construct an object as follows:
  *
  * <p>{@code DropboxStatus dropboxStatus = new DropboxStatus(200, pageBody)};
@@ -50,11 +61,17 @@ public class DropboxStatus {
      * <p>Redirection is indicated by an httpStatus of 301.
      * It occurs in the second step of the redirect workflow.
      *
-     * If httpStatus is not 301, this field is ignored.
+     * If httpStatus is not a redirect (3xx), this field is ignored.
      *
      */
     public URL redirectUrl;
 
+    /**
+     * Content type of the response body (by default {@code HTML_CONTENT_TYPE}), or null if it is not known.
+     *
+     */
+    public String contentType = HTML_CONTENT_TYPE;
+
     /**
      * Constructor when an HTTP status is needed.
      *
@@ -93,6 +110,116 @@ public class DropboxStatus {
         this.__DropboxStatus(httpStatus, message, redirectUrl);
     }
 
+    /**
+     * Constructor when the response body is already encoded.
+     *
+     * <p>The {@code message} field is null for an object created this way.
+     *
+     * @param httpStatus HTTP status
+     * @param body response body
+     * @param contentType content type of the body (eg {@code text/css}), or null if not known
+     */
+    public DropboxStatus(int httpStatus, byte[] body, String contentType) {
+        this.__DropboxStatus(httpStatus, null, null);
+        this.body = body;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Return the response body: the message encoded as UTF-8, or the bytes given to the constructor.
+     *
+     * <p>The array is shared and must not be modified.
+     *
+     * @return the body
+     */
+    public byte[] getBody() {
+        String currentMessage = message;
+        if (currentMessage != null && currentMessage != encodedMessage) {
+            body = currentMessage.getBytes(StandardCharsets.UTF_8);
+            encodedMessage = currentMessage;
+        }
+        return (body == null) ? NO_BODY : body;
+    }
+
+    /**
+     * Constructor when the response body is (part of) a file, which the server sends without reading it into memory.
+     *
+     * <p>The {@code message} field is null for an object created this way.
+     *
+     * @param httpStatus HTTP status
+     * @param file file containing the body
+     * @param offset position of the body in the file
+     * @param length length of the body
+     * @param contentType content type of the body, or null if not known
+     */
+    public DropboxStatus(int httpStatus, Path file, long offset, long length, String contentType) {
+        this.__DropboxStatus(httpStatus, null, null);
+        this.bodyFile = file;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Return the file containing the response body, if the body was given as a file.
+     *
+     * @return the file, or null if the body is returned by {@code getBody()}
+     */
+    public Path getBodyFile() {
+        return bodyFile;
+    }
+
+    /**
+     * Return the position of the response body in {@code getBodyFile()}.
+     *
+     * @return the offset in bytes
+     */
+    public long getBodyOffset() {
+        return bodyOffset;
+    }
+
+    /**
+     * Return the length of the response body (whether it is in a file or returned by {@code getBody()}).
+     *
+     * @return the length in bytes
+     */
+    public long getBodyLength() {
+        return (bodyFile != null) ? bodyLength : getBody().length;
+    }
+
+    /**
+     * Add a response header (or replace it, if it has already been set).
+     *
+     * @param name header name, eg {@code Cache-Control}
+     * @param value header value
+     * @return this object, so that calls can be chained
+     */
+    public DropboxStatus setHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Return the headers to send with the response, apart from {@code Content-Length} and cookies (which the HTTP
+     * server adds).
+     *
+     * <p>These are {@code Content-Type}, any headers added with {@code setHeader()}, and {@code Location} if this is
+     * a redirect (a 3xx status with a redirect URL).
+     *
+     * @return map of header name to value
+     */
+    public Map<String, String> getHeaders() {
+        Map<String, String> allHeaders = new LinkedHashMap<String, String>();
+        if (contentType != null) {
+            allHeaders.put("Content-Type", contentType);
+        }
+        allHeaders.putAll(headers);
+        if (redirectUrl != null && httpStatus >= 300 && httpStatus < 400) {
+            allHeaders.put("Location", redirectUrl.toString());
+        }
+        return Collections.unmodifiableMap(allHeaders);
+    }
+
     /**
      * Construct a URL object from a string.
      *
@@ -123,8 +250,9 @@ public class DropboxStatus {
      *
      */
     public static String makePage(String body) {
-        return "<html>\n<head>\n<title>BCS SPA 2014 - OAuth</title>\n</head>\n<body>\n"+
-             String.format("%s<p><i>%s</i></p>\n</body>\n</html>", body, TimeNow.timeNowString());
+        String timeNow = TimeNow.timeNowString();
+        return new StringBuilder(PAGE_START.length() + body.length() + timeNow.length() + PAGE_END.length() + 20)
+                .append(PAGE_START).append(body).append("<p><i>").append(timeNow).append(PAGE_END).toString();
     }
 
     private void __DropboxStatus(int httpStatus, String message, URL redirectUrl) {
@@ -134,5 +262,22 @@ public class DropboxStatus {
         this.redirectUrl = redirectUrl;
     }
 
+    /** content type of the pages served by the demo */
+    public static final String HTML_CONTENT_TYPE = "text/html; charset=UTF-8";
+
+    private static final String PAGE_START = "<html>\n<head>\n<title>BCS SPA 2014 - OAuth</title>\n</head>\n<body>\n";
+    private static final String PAGE_END = "</i></p>\n</body>\n</html>";
+    private static final byte[] NO_BODY = new byte[0];
+
+    /** extra response headers */
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+    /** the encoded body, and the message it was encoded from (null if the body was given as bytes) */
+    private byte[] body = null;
+    private String encodedMessage = null;
+    /** the file containing the body, if the body is not in memory */
+    private Path bodyFile = null;
+    private long bodyOffset = 0;
+    private long bodyLength = 0;
+
 }
 
@@ -1,14 +1,18 @@
 package uk.org.rozanski.oauth_demo.lib;
 
-import java.util.Locale;
 import java.util.Iterator;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 import com.dropbox.core.*;
 
 /**
  * Static methods for performing some Dropbox actions (creating or printing files etc).
  *
+ * <p>Files are uploaded from memory or streams, and downloaded into streams or channels; nothing is written to a
+ * temporary file.
+ *
  * <p><b>Note</b>.
  * All paths in these methods are relative to the Dropbox app directory (eg
  * {@code ~/Dropbox/apps/bcs_spa_2014)}.
@@ -53,13 +57,13 @@ public class DropboxTools {
         ConsoleLogger.debug("requested directory is %s", directory);
         String output = "\nCONTENTS OF DROPBOX DIRECTORY '"+directory+"': ";
         // EXERCISE:
-        //  - create a Dropbox client
-        //    hint: a helper function to create the Dropbox client is at the end of this file
+        //  - get a Dropbox client
+        //    hint: a helper function to get the Dropbox client is at the end of this file
         //  - create a Dropbox metada object which you will use to get the directory contents
         //    hint: the Dropbox class is DbxEntry.WithChildren
         //    @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxEntry.WithChildren.html
         // SPA14_OAUTH_START
-        createDbxClient();
+        DbxClient client = getDbxClient();
         DbxEntry.WithChildren metadata = client.getMetadataWithChildren(directory);
         // SPA14_OAUTH_FINISH
         if (metadata == null) {
@@ -100,71 +104,201 @@ public class DropboxTools {
     /**
      * Print the contents of a file in the Dropbox app folder (using Dropbox calls, not file I/O).
      *
+     * <p>The file is read line by line as it is downloaded, so nothing is written to disk.
+     *
      * @param printpath Dropbox path of the file to print
      *
-     * @throws IOException if there is an error creating temporary files
+     * @throws IOException if there is an error reading the download
      * @throws DbxException if a Dropbox error occurs
      */
     public static void printFile(String printpath) throws IOException, DbxException {
         // EXERCISE:
-        //  - create a Dropbox client
-        //    hint: a helper function to create the Dropbox client is at the end of this file
-        //  - get the Dropbox file at printpath using client.getFile()
-        //    hint: you need to create a temporary file into which you will download the Dropbox file
-        //    @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxClient.html#getFile(java.lang.String, java.lang.String, java.io.OutputStream)
+        //  - get a Dropbox client
+        //    hint: a helper function to get the Dropbox client is at the end of this file
+        //  - start downloading the Dropbox file at printpath using client.startGetFile()
+        //    hint: the downloader's body is an InputStream which you can read as the file arrives (it is null if there is no such file)
+        //    @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxClient.html#startGetFile(java.lang.String, java.lang.String)
         // SPA14_OAUTH_START
-        createDbxClient();
-        File tmpfile = File.createTempFile(AppData.APP_NAME, "txt");
+        DbxClient client = getDbxClient();
         ConsoleLogger.debug("requested path is %s", printpath);
-        client.getFile(printpath, null, new FileOutputStream(tmpfile));
+        DbxClient.Downloader downloader = client.startGetFile(printpath, null);
         // SPA14_OAUTH_FINISH
 
-        ConsoleLogger.debug("saved file contents to temporary file '%s'", tmpfile.getPath());
-        BufferedReader br = new BufferedReader(new FileReader(tmpfile.getPath()));
-        int lineCount = 1;
-        String line = null;
         System.out.println("\nCONTENTS OF DROPBOX FILE '"+printpath+"': ");
-        while ((line = br.readLine()) != null) {
-            String printLine = String.format("%3d: %s", lineCount, line);
-            System.out.println(printLine);
-            lineCount++;
+        if (downloader == null) {
+            System.out.println("<none>");
+            return;
+        }
+        try {
+            BufferedReader br = new BufferedReader(new InputStreamReader(downloader.body, "UTF-8"));
+            int lineCount = 1;
+            String line = null;
+            while ((line = br.readLine()) != null) {
+                String printLine = String.format("%3d: %s", lineCount, line);
+                System.out.println(printLine);
+                lineCount++;
+            }
+        }
+        finally {
+            downloader.close();
         }
-        br.close();
+    }
+
+    /**
+     * Download a file in the Dropbox app folder into a stream.
+     *
+     * @param path Dropbox path of the file
+     * @param out stream to which the contents are written (it is not closed)
+     * @return metadata of the file, or null if there is no such file
+     *
+     * @throws IOException if there is an error writing to the stream
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File downloadFile(String path, OutputStream out) throws IOException, DbxException {
+        return downloadFile(getDbxClient(), path, out);
+    }
+
+    /**
+     * Download a file in the Dropbox app folder into a channel.
+     *
+     * @param path Dropbox path of the file
+     * @param channel channel to which the contents are written (it is not closed)
+     * @return metadata of the file, or null if there is no such file
+     *
+     * @throws IOException if there is an error writing to the channel
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File downloadFile(String path, WritableByteChannel channel) throws IOException, DbxException {
+        return downloadFile(getDbxClient(), path, channel);
+    }
+
+    /**
+     * Download a file into a stream using a Dropbox client.
+     *
+     * @param client the client
+     * @param path Dropbox path of the file
+     * @param out stream to which the contents are written (it is not closed)
+     * @return metadata of the file, or null if there is no such file
+     *
+     * @throws IOException if there is an error writing to the stream
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File downloadFile(DbxClient client, String path, OutputStream out) throws IOException, DbxException {
+        DbxEntry.File metadata = client.getFile(path, null, out);
+        ConsoleLogger.debug("downloaded Dropbox path '%s', %d bytes", path, (metadata == null) ? -1 : metadata.numBytes);
+        return metadata;
+    }
+
+    /**
+     * Download a file into a channel using a Dropbox client.
+     *
+     * @param client the client
+     * @param path Dropbox path of the file
+     * @param channel channel to which the contents are written (it is not closed)
+     * @return metadata of the file, or null if there is no such file
+     *
+     * @throws IOException if there is an error writing to the channel
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File downloadFile(DbxClient client, String path, WritableByteChannel channel) throws IOException, DbxException {
+        // the stream writes straight to the channel, and closing it would close the channel
+        return downloadFile(client, path, Channels.newOutputStream(channel));
+    }
+
+    /**
+     * Upload a file to the Dropbox app folder from a buffer, replacing any file at the path.
+     *
+     * @param path Dropbox path of the file
+     * @param contents contents of the file
+     * @return metadata of the file
+     *
+     * @throws IOException if the client cannot be created
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File uploadFile(String path, byte[] contents) throws IOException, DbxException {
+        return uploadFile(getDbxClient(), path, contents);
+    }
+
+    /**
+     * Upload a file to the Dropbox app folder from a stream (eg a piped stream), replacing any file at the path.
+     *
+     * @param path Dropbox path of the file
+     * @param in stream from which the contents are read (it is not closed)
+     * @param numBytes number of bytes to read, or -1 to read to the end of the stream (which uploads in chunks)
+     * @return metadata of the file
+     *
+     * @throws IOException if there is an error reading the stream
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File uploadFile(String path, InputStream in, long numBytes) throws IOException, DbxException {
+        return uploadFile(getDbxClient(), path, in, numBytes);
+    }
+
+    /**
+     * Upload a file from a buffer using a Dropbox client.
+     *
+     * @param client the client
+     * @param path Dropbox path of the file
+     * @param contents contents of the file
+     * @return metadata of the file
+     *
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File uploadFile(DbxClient client, String path, byte[] contents) throws DbxException {
+        DbxEntry.File metadata = client.uploadFile(path, DbxWriteMode.force(), contents.length, new DbxStreamWriter.ByteArrayCopier(contents));
+        ConsoleLogger.debug("uploaded %d bytes to Dropbox path '%s'", contents.length, path);
+        return metadata;
+    }
+
+    /**
+     * Upload a file from a stream using a Dropbox client.
+     *
+     * @param client the client
+     * @param path Dropbox path of the file
+     * @param in stream from which the contents are read (it is not closed)
+     * @param numBytes number of bytes to read, or -1 to read to the end of the stream (which uploads in chunks)
+     * @return metadata of the file
+     *
+     * @throws IOException if there is an error reading the stream
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static DbxEntry.File uploadFile(DbxClient client, String path, InputStream in, long numBytes) throws IOException, DbxException {
+        DbxEntry.File metadata = client.uploadFile(path, DbxWriteMode.force(), numBytes, in);
+        ConsoleLogger.debug("uploaded %d bytes to Dropbox path '%s'", (metadata == null) ? -1 : metadata.numBytes, path);
+        return metadata;
     }
 
     /**
      * Create a file in the Dropbox app folder (using Dropbox calls, not file I/O).
      *
+     * <p>The lines entered are held in memory and uploaded from there.
+     *
      * @param createpath Dropbox path of the file to create (this will be created under the Dropbox app folder)
      *
-     * @throws IOException if there is an error creating temporary files
+     * @throws IOException if the client cannot be created
      * @throws DbxException if a Dropbox error occurs
      */
     public static void createFile(String createpath) throws IOException, DbxException {
-        String tmpFilePath = File.createTempFile(AppData.APP_NAME, "txt").getPath();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFilePath));
+        StringBuilder contents = new StringBuilder();
         System.out.println("Enter file lines, blank line to finish");
         int lineCount = 0;
         while(true) {
             String line = System.console().readLine();
             if (line.length() == 0) { break; }
-            bw.write(line+"\n");
+            contents.append(line).append("\n");
             lineCount++;
         }
-        bw.close();
-        ConsoleLogger.debug("wrote %d lines to temporary file '%s'", lineCount, tmpFilePath);
+        ConsoleLogger.debug("read %d lines", lineCount);
         // EXERCISE:
-        //  - create a Dropbox client
-        //    hint: a helper function to create the Dropbox client is at the end of this file
-        //  - upload the temporary file you created above into the Dropbox location createpath
-        //    hint: use Dropbox force mode to overwrite the file if it exists
+        //  - get a Dropbox client
+        //    hint: a helper function to get the Dropbox client is at the end of this file
+        //  - upload the lines you read above into the Dropbox location createpath
+        //    hint: use uploadFile() above, which uploads a byte array (in force mode, to overwrite the file if it exists)
         // SPA14_OAUTH_START
-        createDbxClient();
-        File f = new File(tmpFilePath);
-        client.uploadFile(createpath, DbxWriteMode.force(), f.length(), new FileInputStream(f));
+        DbxClient client = getDbxClient();
+        uploadFile(client, createpath, contents.toString().getBytes("UTF-8"));
         // SPA14_OAUTH_FINISH
-        ConsoleLogger.debug("copied temporary file '%s' to Dropbox path '%s'", tmpFilePath, createpath);
-        f.delete(); 
+        ConsoleLogger.debug("copied %d lines to Dropbox path '%s'", lineCount, createpath);
     }
 
     /**
@@ -172,12 +306,11 @@ public class DropboxTools {
      *
      * @param deletepath Dropbox path of the file to create (this will be created under the Dropbox app folder)
      *
-     * @throws IOException if there is an error creating temporary files
+     * @throws IOException if the client cannot be created
      * @throws DbxException if a Dropbox error occurs
      */
     public static void deleteFile(String deletepath) throws IOException, DbxException {
-        createDbxClient();
-        client.delete(deletepath);
+        getDbxClient().delete(deletepath);
     }
 
     /**
@@ -190,28 +323,43 @@ public class DropboxTools {
      *    <li>{@code DB_REVIEW_FILE} - contains a review of the session
      * </ul>
      *
-     * @throws IOException if there is an error creating temporary files
+     * @throws IOException if the client cannot be created
      * @throws DbxException if a Dropbox error occurs
      */
     public static void createSampleFiles() throws IOException, DbxException {
-        createDbxClient();
+        createSampleFiles(getDbxClient());
+    }
+
+    /**
+     * Create the sample files (see {@code createSampleFiles()}) for one of the accounts held in the access token vault.
+     *
+     * <p>It can be called by several threads at once (see {@link PostAuthPipeline}).
+     *
+     * @param userId Dropbox user id of the account
+     *
+     * @throws IOException if the vault does not hold the account
+     * @throws DbxException if a Dropbox error occurs
+     */
+    public static void createSampleFiles(String userId) throws IOException, DbxException {
+        createSampleFiles(getDbxClient(userId));
+    }
+
+    /**
+     * Create the sample files using a Dropbox client.
+     */
+    private static void createSampleFiles(DbxClient client) throws IOException, DbxException {
         DbxAccountInfo clientInfo = client.getAccountInfo();
         // create account info file
-        String tmpFilePath = File.createTempFile(AppData.APP_NAME, "txt").getPath();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFilePath));
-        bw.write("DROPBOX ACCOUNT INFORMATION\n");
-        bw.write(String.format("country = %s\n", clientInfo.country));
-        bw.write(String.format("displayName = %s\n", clientInfo.displayName));
-        bw.write(String.format("referralLink = %s\n", clientInfo.referralLink));
+        StringBuilder contents = new StringBuilder();
+        contents.append("DROPBOX ACCOUNT INFORMATION\n");
+        contents.append(String.format("country = %s\n", clientInfo.country));
+        contents.append(String.format("displayName = %s\n", clientInfo.displayName));
+        contents.append(String.format("referralLink = %s\n", clientInfo.referralLink));
         DbxAccountInfo.Quota quota = clientInfo.quota;
-        bw.write(String.format("quota normal = %d, shared=%d, total=%d\n", quota.normal, quota.shared, quota.total));
-        bw.close();
-        ConsoleLogger.debug("wrote temporary account info file '%s'", tmpFilePath);
-        File f = new File(tmpFilePath);
-        ConsoleLogger.debug("uploading temporary account info file '%s' to Dropbox path '%s'", tmpFilePath, DB_ACCOUNT_INFO_FILE);
-        client.uploadFile(DB_ACCOUNT_INFO_FILE, DbxWriteMode.force(), f.length(), new FileInputStream(f));
-        ConsoleLogger.info("uploaded account info file '%s' to Dropbox path '%s'", tmpFilePath, DB_ACCOUNT_INFO_FILE);
-        f.delete();
+        contents.append(String.format("quota normal = %d, shared=%d, total=%d\n", quota.normal, quota.shared, quota.total));
+        ConsoleLogger.debug("uploading account info file to Dropbox path '%s'", DB_ACCOUNT_INFO_FILE);
+        uploadFile(client, DB_ACCOUNT_INFO_FILE, contents.toString().getBytes("UTF-8"));
+        ConsoleLogger.info("uploaded account info file to Dropbox path '%s'", DB_ACCOUNT_INFO_FILE);
         // create Dropbox review directory if it doesn't already exist
         DbxEntry.Folder folderMetatada = client.createFolder(DB_REVIEW_DIRECTORY);
         if (folderMetatada == null) {
@@ -221,59 +369,61 @@ public class DropboxTools {
             ConsoleLogger.debug("created review folder %s", DB_REVIEW_DIRECTORY);
         }
         // save file containing session review
-        tmpFilePath = File.createTempFile(AppData.APP_NAME, "txt").getPath();
-        bw = new BufferedWriter(new FileWriter(tmpFilePath));
-        bw.write("# KEEPING PASSWORDS PRIVATE WITH OAUTH\n");
-        bw.write("An interesting and thought-provoking session\n");
-        bw.write("The presenters were top-notch and I learned a lot!\n");
-        bw.close();
-        ConsoleLogger.debug("wrote temporary review file '%s'", tmpFilePath);
-        f = new File(tmpFilePath);
-        ConsoleLogger.debug("uploading temporary review file '%s' to Dropbox path '%s'", tmpFilePath, DB_REVIEW_FILE);
-        client.uploadFile(DB_REVIEW_FILE, DbxWriteMode.force(), f.length(), new FileInputStream(f));
-        ConsoleLogger.info("uploaded review file '%s' to Dropbox path '%s'", tmpFilePath, DB_REVIEW_FILE);
+        contents.setLength(0);
+        contents.append("# KEEPING PASSWORDS PRIVATE WITH OAUTH\n");
+        contents.append("An interesting and thought-provoking session\n");
+        contents.append("The presenters were top-notch and I learned a lot!\n");
+        ConsoleLogger.debug("uploading review file to Dropbox path '%s'", DB_REVIEW_FILE);
+        uploadFile(client, DB_REVIEW_FILE, contents.toString().getBytes("UTF-8"));
+        ConsoleLogger.info("uploaded review file to Dropbox path '%s'", DB_REVIEW_FILE);
     }
 
     /**
-     * a Dropbox Dbx client variable used to perform Dropbox file actions.
-     *
-     * <p>Before using this client you must call {@code createDbxClient()}.
-     *
-     * @see <a href="http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxClient.html">DbxClient reference</a>
-     */
-    public static DbxClient client = null;
-
-    /**
-     * Factory method to create a Dropbox DbxClient client.
+     * Return the Dropbox DbxClient client for the access token in the token file.
      *
      * <p>The method performs the following steps:
      * <ol>
-     * <li>Load the access token using {@code AccessData.load()}.
-     * <li>Create a {@code DbxRequestConfig} object for the default locale.
-     * <li>Create the {@code DbxClient} object.
+     * <li>Get the access token from {@code AccessDataCache} (which loads it from file the first time).
+     * <li>Get the {@code DbxClient} object for the token from {@code DbxClientProvider}, which only builds a new one
+     * (using the {@code DbxRequestConfig} held by {@code DropboxWorkflowEngine}) when the token changes.
      * </ol>
      *
+     * <p>The client is shared, and may be used by several threads at once.
+     *
+     * @return the client
+     *
      * @throws IOException if something bad has happened
      *
+     * @see <a href="http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxClient.html">DbxClient reference</a>
      */
-    public static void createDbxClient() throws IOException {
+    public static DbxClient getDbxClient() throws IOException {
         // EXERCISE:
-        // - create a Dropbox OAuth client object with which to make Dropbox calls
-        //   hint: class is DbxClient()
+        // - get a Dropbox OAuth client object with which to make Dropbox calls
+        //   hint: class is DbxClient(), and DbxClientProvider caches one per access token
         // - this needs to be supplied with the access token
-        //   hint: create an AccessData() object and load() it from file
-        // - it also needs to be supplied with a Dropbox DbxRequestConfig() object
-        //   hint: use the app name/version from AppData and the default Locale
+        //   hint: get the AccessData() object from AccessDataCache, which loads it from file
+        // - it is built with a Dropbox DbxRequestConfig() object
+        //   hint: DropboxWorkflowEngine holds one, or use the app name/version from AppData and the default Locale
         // - return this client to the caller
         // note how you have not had to provide any user credentials during this process!
         // SPA14_OAUTH_START
-        AccessData accessData = new AccessData();
-        accessData.load();
-        DbxRequestConfig config = new DbxRequestConfig(AppData.APP_NAME_VERSION,  Locale.getDefault().toString());
-        client = new DbxClient(config, accessData.accessToken);
+        AccessData accessData = AccessDataCache.get();
+        DbxClient client = DbxClientProvider.get(accessData.accessToken);
         // SPA14_OAUTH_FINISH
+        return client;
+    }
 
-        ConsoleLogger.debug("created DbxClient() object for config %s, access token %s", AppData.APP_NAME_VERSION, accessData.accessToken);
+    /**
+     * Return the Dropbox DbxClient client for one of the accounts held in the access token vault.
+     *
+     * @param userId Dropbox user id of the account
+     * @return the (shared) client
+     *
+     * @throws IOException if the vault does not hold the account, or cannot be loaded
+     *
+     * @see AccessTokenVault
+     */
+    public static DbxClient getDbxClient(String userId) throws IOException {
+        return DbxClientProvider.getForUser(userId);
     }
 }
-
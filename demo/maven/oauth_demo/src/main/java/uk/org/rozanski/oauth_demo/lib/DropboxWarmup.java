@@ -0,0 +1,242 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.dropbox.core.DbxAccountInfo;
+import com.dropbox.core.DbxEntry;
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.json.JsonReadException;
+
+/**
+ * Warms up the connections to Dropbox in the background, so that the first Dropbox call made by the user is not the
+ * slow one.
+ *
+ * <p>Without a warm-up the first call pays for resolving the Dropbox host names, connecting, the TLS handshake, and
+ * loading and compiling the SDK's JSON parsing. The warm-up thread does these while the menu is displayed: for each
+ * host it resolves the name and makes a request (whose response is ignored) through the shared HTTP requestor, which
+ * leaves a connection in the keep-alive cache and a session in the TLS session cache (see {@link PooledHttpRequestor}
+ * and {@link DropboxSslContext}); then it parses sample account information and file metadata with the SDK's readers.
+ *
+ * <p>The hosts are those of {@code CommonConfig.DROPBOX_WARMUP_HOSTS} (by default the SDK's API and content hosts),
+ * and can be given as {@code host:port}, so the warm-up can be run against a local stand-in.
+ *
+ * <p>The report gives the time taken by each step, and the latency of the first request made through the requestor
+ * by another thread (the first operation), which is what the warm-up is for.
+ *
+ * <p>The demo's warm-up is started by {@code OauthDemo.main()} if {@code CommonConfig.DROPBOX_WARMUP} is true.
+ *
+ */
+public class DropboxWarmup {
+
+    /**
+     * Create a warm-up (call {@code start()} to run it).
+     *
+     * <p>If the requestor is a {@link PooledHttpRequestor}, the warm-up adds a listener to it (alongside any others)
+     * to time the first operation, and removes it once it has.
+     *
+     * @param requestor the HTTP requestor to warm up
+     * @param hosts the hosts, as {@code host} or {@code host:port}
+     */
+    public DropboxWarmup(HttpRequestor requestor, List<String> hosts) {
+        this.requestor = requestor;
+        this.hosts = new ArrayList<String>(hosts);
+        if (requestor instanceof PooledHttpRequestor) {
+            final PooledHttpRequestor pooled = (PooledHttpRequestor) requestor;
+            pooled.addListener(new PooledHttpRequestor.Listener() {
+                public void requestFinished(String method, String host, int statusCode, long responseNanos, long totalNanos) {
+                    if (Thread.currentThread() != thread && firstOperationNanos < 0) {
+                        firstOperationNanos = totalNanos;
+                        pooled.removeListener(this);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Start the demo's warm-up of the shared HTTP requestor (does nothing if it has already been started).
+     *
+     * @return the warm-up
+     */
+    public static synchronized DropboxWarmup startDefault() {
+        if (warmup == null) {
+            warmup = new DropboxWarmup(DropboxWorkflowEngine.get().getHttpRequestor(),
+                    Arrays.asList(CommonConfig.DROPBOX_WARMUP_HOSTS.split(","))).start();
+        }
+        return warmup;
+    }
+
+    /**
+     * Return the demo's warm-up.
+     *
+     * @return the warm-up, or null if it has not been started
+     */
+    public static synchronized DropboxWarmup getDefault() {
+        return warmup;
+    }
+
+    /**
+     * Start the warm-up thread.
+     *
+     * @return this warm-up
+     */
+    public synchronized DropboxWarmup start() {
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        warmUp();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }, "dropbox-warmup");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    /**
+     * Wait for the warm-up to finish.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of {@code timeout}
+     * @return true if the warm-up has finished
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Check whether the warm-up has finished.
+     *
+     * @return true if it has finished
+     */
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Return the number of hosts which could not be resolved or connected to.
+     *
+     * @return number of hosts
+     */
+    public int getFailedCount() {
+        synchronized (steps) {
+            return failed;
+        }
+    }
+
+    /**
+     * Return the latency of the first operation: the first request made through the requestor by another thread
+     * than the warm-up.
+     *
+     * @return time in nanoseconds, or -1 if no operation has finished (or the requestor is not pooled)
+     */
+    public long getFirstOperationNanos() {
+        return firstOperationNanos;
+    }
+
+    /**
+     * Return a one-line report of the warm-up.
+     *
+     * @return the report
+     */
+    public String getReport() {
+        StringBuilder report = new StringBuilder(isDone() ? "warm-up finished" : "warm-up running");
+        synchronized (steps) {
+            for (String step : steps) {
+                report.append("; ").append(step);
+            }
+        }
+        long first = firstOperationNanos;
+        report.append((first < 0) ? "; no operation yet" : String.format("; first operation %.1f ms", first / 1e6));
+        return report.toString();
+    }
+
+    /** warm up each host, then the JSON readers */
+    private void warmUp() {
+        long startTime = System.nanoTime();
+        for (String host : hosts) {
+            host = host.trim();
+            if (!host.isEmpty()) {
+                warmUpHost(host);
+            }
+        }
+        long jsonStart = System.nanoTime();
+        try {
+            for (int i = 0; i < JSON_ITERATIONS; i++) {
+                DbxAccountInfo.Reader.readFully(SAMPLE_ACCOUNT_INFO);
+                DbxEntry.Reader.readFully(SAMPLE_ENTRY);
+            }
+            step("JSON readers %.1f ms", System.nanoTime() - jsonStart);
+        }
+        catch (JsonReadException e) {
+            ConsoleLogger.info("possible error: failed to warm up the JSON readers, error='%s'", e.getMessage());
+        }
+        step("total %.1f ms", System.nanoTime() - startTime);
+        ConsoleLogger.debug("%s", getReport());
+    }
+
+    /** resolve a host's name and make a request to it */
+    private void warmUpHost(String host) {
+        int colon = host.indexOf(':');
+        String hostName = (colon < 0) ? host : host.substring(0, colon);
+        long startTime = System.nanoTime();
+        try {
+            InetAddress.getAllByName(hostName);
+            long connectStart = System.nanoTime();
+            step(host + " DNS %.1f ms", connectStart - startTime);
+            HttpRequestor.Response response = requestor.doGet("https://" + host + "/", Collections.<HttpRequestor.Header>emptyList());
+            // the response does not matter; closing it returns the connection to the keep-alive cache
+            response.body.close();
+            step(host + " connect %.1f ms", System.nanoTime() - connectStart);
+        }
+        catch (IOException e) {
+            synchronized (steps) {
+                failed++;
+            }
+            step(host + " failed after %.1f ms", System.nanoTime() - startTime);
+            ConsoleLogger.info("possible error: failed to warm up connection to %s, error='%s'", host, e.getMessage());
+        }
+    }
+
+    private void step(String format, long nanos) {
+        synchronized (steps) {
+            steps.add(String.format(format, nanos / 1e6));
+        }
+    }
+
+    /** number of times the sample JSON is parsed */
+    public static final int JSON_ITERATIONS = 200;
+
+    private static final String SAMPLE_ACCOUNT_INFO = "{\"uid\": 12345678, \"display_name\": \"Warm Up\", \"country\": \"GB\","
+            + " \"referral_link\": \"https://db.tt/warmup\","
+            + " \"quota_info\": {\"quota\": 2147483648, \"normal\": 1048576, \"shared\": 0}}";
+    private static final String SAMPLE_ENTRY = "{\"path\": \"/warmup.txt\", \"is_dir\": false, \"icon\": \"page_white_text\","
+            + " \"size\": \"12 bytes\", \"bytes\": 12, \"rev\": \"1f0a2b3c4d\", \"thumb_exists\": false,"
+            + " \"modified\": \"Sat, 18 Oct 2014 10:00:00 +0000\", \"client_mtime\": \"Sat, 18 Oct 2014 10:00:00 +0000\","
+            + " \"mime_type\": \"text/plain\"}";
+
+    private static DropboxWarmup warmup = null;
+
+    private final HttpRequestor requestor;
+    private final List<String> hosts;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<String> steps = new ArrayList<String>();
+    private int failed = 0;
+    private volatile Thread thread = null;
+    private volatile long firstOperationNanos = -1;
+
+}
@@ -0,0 +1,133 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.util.Locale;
+
+import com.dropbox.core.*;
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.StandardHttpRequestor;
+
+/**
+ * Holds the Dropbox SDK objects which are the same for every workflow, so that they are built once rather than for
+ * every request.
+ *
+ * <p>These are the app information ({@code DbxAppInfo}), the request configuration ({@code DbxRequestConfig}, which
+ * includes the HTTP requestor used for every call to Dropbox, which keeps its connections alive between calls), the no-redirect authoriser
+ * ({@code DbxWebAuthNoRedirect}) and the redirect authoriser for the shared session file
+ * ({@code DropboxWorkflowRedirect.csrfTokenStore}). The SDK objects are immutable, so the engine can be used by any
+ * number of threads.
+ *
+ * <p>A flow started by the client (see {@link DropboxFlow}) or from the browser has a CSRF token store of its own, so
+ * {@code getWebAuth()} creates a {@code DbxWebAuth} for it; this only copies references to the shared objects.
+ *
+ * <p>The demo's engine is returned by {@code get()}, and is built by {@link HttpdServer} when it starts.
+ *
+ */
+public class DropboxWorkflowEngine {
+
+    /**
+     * Create an engine.
+     *
+     * @param appInfo the app's key and secret
+     * @param requestConfig client identifier, locale and HTTP requestor for calls to Dropbox
+     * @param finishUrl URL to which Dropbox redirects the browser at the end of the redirect workflow
+     * @param clientSessionStore the shared CSRF token store
+     */
+    public DropboxWorkflowEngine(DbxAppInfo appInfo, DbxRequestConfig requestConfig, String finishUrl, DbxSessionStore clientSessionStore) {
+        this.appInfo = appInfo;
+        this.requestConfig = requestConfig;
+        this.finishUrl = finishUrl;
+        this.clientSessionStore = clientSessionStore;
+        this.clientWebAuth = new DbxWebAuth(requestConfig, appInfo, finishUrl, clientSessionStore);
+        this.noRedirectAuth = new DbxWebAuthNoRedirect(requestConfig, appInfo);
+    }
+
+    /**
+     * Return the demo's engine (building it the first time).
+     *
+     * <p>It is built from {@code AppData}, the default locale, the HTTP requestor (a {@link PooledHttpRequestor},
+     * or the SDK's standard requestor if {@code CommonConfig.DROPBOX_POOLED} is false),
+     * {@code HttpConfig.FINISH_URL} and {@code DropboxWorkflowRedirect.csrfTokenStore}.
+     *
+     * @return the engine
+     */
+    public static synchronized DropboxWorkflowEngine get() {
+        if (engine == null) {
+            HttpRequestor httpRequestor = CommonConfig.DROPBOX_POOLED ? PooledHttpRequestor.create() : StandardHttpRequestor.Instance;
+            engine = new DropboxWorkflowEngine(new DbxAppInfo(AppData.APP_KEY, AppData.APP_SECRET),
+                    new DbxRequestConfig(AppData.APP_NAME_VERSION, Locale.getDefault().toString(), httpRequestor),
+                    HttpConfig.FINISH_URL.toString(), DropboxWorkflowRedirect.csrfTokenStore);
+            ConsoleLogger.debug("created Dropbox workflow engine for app %s, config %s, requestor %s",
+                    AppData.APP_NAME, AppData.APP_NAME_VERSION, httpRequestor.getClass().getSimpleName());
+        }
+        return engine;
+    }
+
+    /**
+     * Return the app's key and secret.
+     *
+     * @return the app information
+     */
+    public DbxAppInfo getAppInfo() {
+        return appInfo;
+    }
+
+    /**
+     * Return the request configuration used for every call to Dropbox.
+     *
+     * @return the request configuration
+     */
+    public DbxRequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     * Return the HTTP requestor used for every call to Dropbox.
+     *
+     * @return the requestor
+     */
+    public HttpRequestor getHttpRequestor() {
+        return requestConfig.httpRequestor;
+    }
+
+    /**
+     * Return a redirect workflow authoriser.
+     *
+     * @param sessionStore the workflow's CSRF token store
+     * @return the shared authoriser if the store is the shared one, otherwise a new one
+     */
+    public DbxWebAuth getWebAuth(DbxSessionStore sessionStore) {
+        if (sessionStore == clientSessionStore) {
+            return clientWebAuth;
+        }
+        return new DbxWebAuth(requestConfig, appInfo, finishUrl, sessionStore);
+    }
+
+    /**
+     * Return the no-redirect workflow authoriser.
+     *
+     * @return the shared authoriser
+     */
+    public DbxWebAuthNoRedirect getNoRedirectAuth() {
+        return noRedirectAuth;
+    }
+
+    /**
+     * Create a client for an account.
+     *
+     * @param accessToken the account's access token
+     * @return the client, which shares the engine's request configuration
+     */
+    public DbxClient newClient(String accessToken) {
+        return new DbxClient(requestConfig, accessToken);
+    }
+
+    private static DropboxWorkflowEngine engine = null;
+
+    private final DbxAppInfo appInfo;
+    private final DbxRequestConfig requestConfig;
+    private final String finishUrl;
+    private final DbxSessionStore clientSessionStore;
+    private final DbxWebAuth clientWebAuth;
+    private final DbxWebAuthNoRedirect noRedirectAuth;
+
+}
@@ -1,7 +1,6 @@
 package uk.org.rozanski.oauth_demo.lib;
 
 import java.io.*;
-import java.util.Locale;
 
 import com.dropbox.core.*;
 
@@ -11,57 +10,56 @@ import com.dropbox.core.*;
  * <ul>
  *    <li>{@code noRedirectClientStart} implements the <b>start</b> step.
  *    <li>{@code noRedirectClientFinishAndSave} implements the <b>finish</b> step,
- *    saves the access token, and creates some sample files to show everything is working.
+ *    saves the access token, and queues the creation of some sample files to show everything is working.
  * </ul>
  *
- * These methods are both called by the client.
+ * These methods are both called by the client. The start step returns a {@link DropboxFlow}, which the
+ * finish step takes back, so any number of flows can be run at the same time (see {@link DropboxFlowRegistry}).
  *
  */
 public class DropboxWorkflowNoRedirect {
 
-    /** Dropbox client object used to call authorisation functions */
-    public static DbxWebAuthNoRedirect noredirectClient;
-
     /** we don't ever instantiate this class but just call its methods statically */
     private DropboxWorkflowNoRedirect() {}
 
     /**
      * This method implements the <b>start</b> step of the Dropbox no-redirect workflow.
      *
-     * It passes the necessary parameters to {@code DbxWebAuthNoRedirect.start()}
-     * and returns the generated URL to the caller.
+     * It passes the necessary parameters to {@code DbxWebAuthNoRedirect.start()},
+     * registers a new flow and returns it to the caller.
      *
-     * @return DropboxStatus object which is initialised with the URL to which
+     * @return the flow, whose {@code status} is initialised with the URL to which
      *         the user must be redirected to authorise with Dropbox.
      *
      * @see <a href="https://www.dropbox.com/developers/core/start/java">Using the Core API in Java</a>
-     * @see DropboxStatus
+     * @see DropboxFlow
      */
-    public static DropboxStatus noRedirectClientStart() {
+    public static DropboxFlow noRedirectClientStart() {
         ConsoleLogger.debug("starting Dropbox authorisation (no-redirect mode)");
         ConsoleLogger.debug("creating DbxWebAuthNoRedirect client for app %s with key %s and secret %s",
                 AppData.APP_NAME, AppData.APP_KEY, AppData.APP_SECRET);
 
         // EXERCISE:
-        // - create a Dropbox no-redirect client object with which to execute the Dropbox no-redirect workflow
-        //   hint: class is DbxWebAuthNoRedirect()
-        // - this needs to be supplied with the app information
+        // - get a Dropbox no-redirect client object with which to execute the Dropbox no-redirect workflow
+        //   hint: class is DbxWebAuthNoRedirect(), and DropboxWorkflowEngine holds one
+        // - this is created from the app information
         //   hint: get this from AppData()
-        // - it also needs to be supplied with a Dropbox DbxRequestConfig() object
+        // - and from a Dropbox DbxRequestConfig() object
         //   hint: use the app name/version from AppData and the default Locale
         // - call start() to start the no-redirect workflow
         //   @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxWebAuthNoRedirect.html
         // - store the authorise URL returned by start() in authoriseUrl
         // SPA14_OAUTH_START
-        DbxAppInfo appInfo = new DbxAppInfo(AppData.APP_KEY, AppData.APP_SECRET);
-        DbxRequestConfig config = new DbxRequestConfig(AppData.APP_NAME_VERSION, Locale.getDefault().toString());
-        noredirectClient = new DbxWebAuthNoRedirect(config, appInfo);
-        ConsoleLogger.debug("created DbxWebAuthNoRedirect client, running start() to generate Dropbox authorisation URL");
+        DbxWebAuthNoRedirect noredirectClient = DropboxWorkflowEngine.get().getNoRedirectAuth();
+        ConsoleLogger.debug("got DbxWebAuthNoRedirect client, running start() to generate Dropbox authorisation URL");
         String authoriseUrl = noredirectClient.start();
         // SPA14_OAUTH_FINISH
 
-        ConsoleLogger.info("Dropbox authorisation start successful, got authorisation URL %s", authoriseUrl);
-        return new DropboxStatus(301, DropboxStatus.makeUrl(authoriseUrl));
+        DropboxFlow flow = new DropboxFlow(DropboxFlowRegistry.newFlowId(), DropboxFlow.NO_REDIRECT,
+                new DropboxStatus(301, DropboxStatus.makeUrl(authoriseUrl)), null);
+        DropboxFlowRegistry.register(flow);
+        ConsoleLogger.info("Dropbox authorisation start successful for flow %s, got authorisation URL %s", flow.flowId, authoriseUrl);
+        return flow;
     }
 
     /**
@@ -69,37 +67,67 @@ public class DropboxWorkflowNoRedirect {
      *
      * It calls {@code DbxWebAuthNoRedirect.finish()} to finish the Oauth workflow.
      * It then saves the access token returned by {@code finish()} and
-     * creates some sample files in the Dropbox app folder.
+     * queues the creation of some sample files in the Dropbox app folder (see {@link PostAuthPipeline}),
+     * returning without waiting for them.
+     *
+     * <p>If {@code finish()} fails (for example because the code was mistyped) the flow can be finished again.
      *
+     * @param flow the flow returned by {@code noRedirectClientStart()}
      * @param securityCode the security code which was generated by Dropbox and pasted into the client
      *
      * @return AccessData object containing the access token returned by {@code finish()}
      *
-     * @throws IOException if there is an error creating the token file
+     * @throws IOException if the flow has expired, has already finished or is being finished by another thread,
+     *         or there is an error creating the token file
      * @throws DbxException if a Dropbox error occurs
      *
      * @see <a href="https://www.dropbox.com/developers/core/start/java">Using the Core API in Java</a>
      * @see AccessData
      */
-    public static AccessData noRedirectClientFinishAndSave(String securityCode) throws IOException, DbxException {
+    public static AccessData noRedirectClientFinishAndSave(DropboxFlow flow, String securityCode) throws IOException, DbxException {
         // this function implements the finish() portion of the Dropbox OAuth no_redirect flow
-        ConsoleLogger.debug("finishing Dropbox authorisation (no-redirect mode), security code=%s", securityCode);
+        ConsoleLogger.debug("finishing Dropbox authorisation (no-redirect mode) for flow %s, security code=%s", flow.flowId, securityCode);
+        if (DropboxFlowRegistry.get(flow.flowId) != flow) {
+            throw new IOException(String.format("no-redirect flow %s has expired or has already finished", flow.flowId));
+        }
+        if (!flow.startFinish()) {
+            throw new IOException(String.format("no-redirect flow %s is already being finished", flow.flowId));
+        }
+        try {
+            AccessData accessData = finishAndSave(securityCode);
+            DropboxFlowRegistry.complete(flow.flowId, accessData);
+            return accessData;
+        }
+        finally {
+            // does nothing if the flow has completed
+            flow.abandonFinish();
+        }
+    }
 
+    /**
+     * Run the finish step of the no-redirect workflow (see {@code noRedirectClientFinishAndSave()}).
+     */
+    private static AccessData finishAndSave(String securityCode) throws IOException, DbxException {
         // EXERCISE:
-        // - call finish() to start the no-redirect workflow
+        // - get the Dropbox no-redirect client object (see start() above) and call finish() to finish the no-redirect workflow
         //   @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxWebAuthNoRedirect.html
-        // - create an AccessData object from the token and user id returned by finish()
+        // - create an AccessData object from the token and user id returned by finish(), and store it in accessData
         // - save() this AccessData
+        AccessData accessData;
         // SPA14_OAUTH_START
+        DbxWebAuthNoRedirect noredirectClient = DropboxWorkflowEngine.get().getNoRedirectAuth();
         DbxAuthFinish authFinish = noredirectClient.finish(securityCode);
         ConsoleLogger.info("Dropbox authorisation finish successful, access token=%s, user id=%s",
                 authFinish.accessToken, authFinish.userId);
-        AccessData accessData = new AccessData(authFinish.accessToken, authFinish.userId,
+        accessData = new AccessData(authFinish.accessToken, authFinish.userId,
                 "created using Java dropbox.client.DbxWebAuthNoRedirect()");
         accessData.save();
         // SPA14_OAUTH_FINISH
+        // keep the access data for every account which has authorised, not just the latest
+        AccessTokenVault.put(accessData);
 
-        DropboxTools.createSampleFiles();
+        // the sample files are created in the background, so the caller need not wait for them
+        PostAuthPipeline.get().submit(accessData.userId);
         return accessData;
     }
 
@@ -1,9 +1,11 @@
 package uk.org.rozanski.oauth_demo.lib;
 
 import java.io.*;
-import java.util.Locale;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.net.*;
 
 import com.dropbox.core.*;
@@ -13,6 +15,7 @@ import com.dropbox.core.*;
  *
  * <ul>
  *    <li>{@code redirectClientStart} implements the <b>start</b> step.
+ *    <li>{@code redirectClientAwait} waits for the finish step, for no longer than the flow lives.
  *    <li>{@code httpdHandleFinishAndSave} implements the <b>finish</b> step,
  *    saves the access token, and creates some sample files to show everything is working.
  * </ul>
@@ -20,11 +23,15 @@ import com.dropbox.core.*;
  * <p>{@code redirectClientStart} is called by the client.
  * {@code httpdHandleFinishAndSave} is called by the local HTTP server.
  *
+ * <p>Each workflow started by the client is a {@link DropboxFlow} with its own CSRF token store, and its id is passed
+ * through Dropbox in the {@code state} parameter, so any number of workflows can run at the same time
+ * (see {@link DropboxFlowRegistry}).
+ *
  */
 public class DropboxWorkflowRedirect {
 
     /**
-     * CSRF token
+     * CSRF token store used by a finish request which does not belong to a flow or a browser session
      * @see CsrfTokenStore
      */
     public static CsrfTokenStore csrfTokenStore = new CsrfTokenStore();
@@ -35,39 +42,215 @@ public class DropboxWorkflowRedirect {
     /**
      * This method implements the <b>start</b> step of the Dropbox redirect workflow.
      *
-     * It passes the necessary parameters to {@code DbxWebAuthNoRedirect.start()}
-     * and returns the generated URL to the caller.
+     * It passes the necessary parameters to {@code DbxWebAuth.start()},
+     * registers a new flow and returns it to the caller.
      *
-     * @return DropboxStatus object which is initialised with the URL to which the user must be redirected to authorise with Dropbox.
+     * @return the flow, whose {@code status} is initialised with the URL to which the user must be redirected to authorise with Dropbox.
      *
-     * @see DropboxStatus
+     * @see DropboxFlow
      */
-    public static DropboxStatus redirectClientStart() {
+    public static DropboxFlow redirectClientStart() {
         ConsoleLogger.debug("starting Dropbox authorisation (redirect mode)");
         ConsoleLogger.debug("creating DbxWebAuth client for app %s with key %s and secret %s",
                 AppData.APP_NAME, AppData.APP_KEY, AppData.APP_SECRET);
 
         // EXERCISE:
-        //  - create a Dropbox redirect client object with which to execute the Dropbox no-redirect workflow
-        //    hint: class is DbxWebAuth()
-        //  - this needs to be supplied with:
+        //  - get a Dropbox redirect client object with which to execute the Dropbox redirect workflow
+        //    hint: class is DbxWebAuth(), and DropboxWorkflowEngine returns one for a CSRF token store
+        //  - this is created from:
         //    - the app information (hint: get this from AppData())
         //    - a Dropbox DbxRequestConfig() object (hint: use the app name/version from AppData and the default Locale)
         //    - the URL to which the user will be redirected for the finish step (hint: get this from HttpConfig)
-        //    - the CSRF token store used to prevent CSRF attacks (hint: this is a public variable to this class)
-        //  - call start() to start the redirect workflow
+        //    - the CSRF token store used to prevent CSRF attacks (this is sessionStore: each flow has its own)
+        //  - call start() to start the redirect workflow, passing the flow id as the URL state
         //  - store the authorise URL returned by start() in authoriseUrl
         //    @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxWebAuth.html
+        String flowId = DropboxFlowRegistry.newFlowId();
+        DbxSessionStore sessionStore = DropboxFlowRegistry.createSessionStore(flowId);
+        String authoriseUrl;
         //  SPA14_OAUTH_START
-        DbxAppInfo appInfo = new DbxAppInfo(AppData.APP_KEY, AppData.APP_SECRET);
-        DbxRequestConfig config = new DbxRequestConfig(AppData.APP_NAME_VERSION, Locale.getDefault().toString());
-        DbxWebAuth redirectClient = new DbxWebAuth(config, appInfo, HttpConfig.FINISH_URL.toString(), csrfTokenStore);
-        ConsoleLogger.debug("created DbxWebAuth client, running start() to generate Dropbox authorisation URL");
-        String authoriseUrl = redirectClient.start();
+        DbxWebAuth redirectClient = DropboxWorkflowEngine.get().getWebAuth(sessionStore);
+        ConsoleLogger.debug("got DbxWebAuth client, running start() to generate Dropbox authorisation URL");
+        authoriseUrl = redirectClient.start(flowId);
         // SPA14_OAUTH_FINISH
 
-        ConsoleLogger.info("Dropbox authorisation start successful, got authorisation URL %s", authoriseUrl);
-        return new DropboxStatus(301, DropboxStatus.makeUrl(authoriseUrl));
+        DropboxFlow flow = new DropboxFlow(flowId, DropboxFlow.REDIRECT, new DropboxStatus(301, DropboxStatus.makeUrl(authoriseUrl)), sessionStore);
+        DropboxFlowRegistry.register(flow);
+        ConsoleLogger.info("Dropbox authorisation start successful for flow %s, got authorisation URL %s", flowId, authoriseUrl);
+        return flow;
+    }
+
+    /**
+     * Wait for a flow started by {@code redirectClientStart()} to finish, until it expires.
+     *
+     * <p>If the HTTP server runs in this process, the finish step completes the flow's result. If it runs in another
+     * process, only the access token file is written, so the flow is taken to have finished when the file is seen to
+     * change (see {@code AccessData.ACCESS_TOKEN_SAVED}) and the file holds this flow's id; a file saved by another
+     * flow is ignored.
+     *
+     * @param flow the flow
+     * @param messageInterval how often (in seconds) to print a waiting message
+     *
+     * @return the access data saved by the finish step
+     *
+     * @throws ExecutionException if the flow failed (eg the user declined), with the reason as its cause
+     * @throws TimeoutException if the flow expired ({@code CommonConfig.FLOW_TTL} seconds after it started) before it finished
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws IOException if the access token file written by another process cannot be read
+     */
+    public static AccessData redirectClientAwait(DropboxFlow flow, int messageInterval)
+            throws ExecutionException, TimeoutException, InterruptedException, IOException {
+        CompletableFuture<AccessData> result = flow.getResult();
+        long expiryTime = flow.getExpiryTime();
+        // ask to be notified before waiting, so that a token saved by another process cannot be missed
+        CompletableFuture<AccessData> saved = AccessData.ACCESS_TOKEN_SAVED.next();
+        try {
+            ConsoleLogger.info("waiting for redirect flow %s to finish...", flow.flowId);
+            while (!result.isDone()) {
+                if (saved.isDone()) {
+                    // a null value means the file was written by another process (a value is published in this one)
+                    if (saved.getNow(null) == null) {
+                        AccessData accessData = loadAccessData(flow.flowId);
+                        if (accessData != null) {
+                            return accessData;
+                        }
+                    }
+                    saved = AccessData.ACCESS_TOKEN_SAVED.next();
+                }
+                long remaining = expiryTime - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    // expires the flow in the registry, which fails its result
+                    DropboxFlowRegistry.get(flow.flowId);
+                    if (!result.isDone()) {
+                        throw new TimeoutException(String.format("%s flow %s has expired", flow.type, flow.flowId));
+                    }
+                    break;
+                }
+                try {
+                    CompletableFuture.anyOf(result, saved).get(Math.min(remaining, 1000L * messageInterval), TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+                    ConsoleLogger.info("still waiting for redirect flow %s...", flow.flowId);
+                }
+                catch (ExecutionException e) {
+                    // the flow failed, which is reported below
+                }
+            }
+        }
+        finally {
+            saved.cancel(false);
+        }
+        try {
+            return result.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw (TimeoutException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Load the access token file, if it was saved by the finish step of a flow.
+     *
+     * @param flowId the flow's id
+     * @return the access data, or null if there is no token file or it was saved by another flow
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private static AccessData loadAccessData(String flowId) throws IOException {
+        if (!AccessData.accessTokenFileExists(true)) {
+            return null;
+        }
+        AccessData accessData = new AccessData();
+        accessData.load();
+        if (!flowId.equals(accessData.flowId)) {
+            ConsoleLogger.debug("access token file was saved by flow '%s', still waiting for flow %s", accessData.flowId, flowId);
+            return null;
+        }
+        return accessData;
+    }
+
+    /**
+     * This method implements the <b>start</b> step of the Dropbox redirect workflow when it is started
+     * from the browser (by browsing to {@code HttpConfig.START_PAGE}) rather than from the client.
+     *
+     * <p>The CSRF token is held against the browser's session, so any number of browsers
+     * can run the workflow at the same time.
+     *
+     * @param session the browser session making the request
+     *
+     * @return DropboxStatus object which redirects the browser to the Dropbox authorisation URL
+     *
+     * @see #createBrowserSessionStore
+     */
+    public static DropboxStatus httpdHandleStart(HttpSession session) {
+        ConsoleLogger.debug("starting Dropbox authorisation (redirect mode) for browser session %s", session.sessionId);
+        DbxWebAuth redirectClient = DropboxWorkflowEngine.get().getWebAuth(createBrowserSessionStore(session));
+        String authoriseUrl = redirectClient.start();
+        ConsoleLogger.info("Dropbox authorisation start successful for browser session %s", session.sessionId);
+        return new DropboxStatus(302, DropboxStatus.makeUrl(authoriseUrl));
+    }
+
+    /**
+     * Create the CSRF token store for a workflow started from the browser.
+     *
+     * <p>The type of store is selected by {@code HttpConfig.CSRF_STORE_MODE}.
+     *
+     * @param session the browser session
+     *
+     * @return the token store
+     */
+    static DbxSessionStore createBrowserSessionStore(HttpSession session) {
+        if (HttpConfig.CSRF_STORE_SIGNED.equals(HttpConfig.CSRF_STORE_MODE)) {
+            return new SignedCsrfTokenStore(session);
+        }
+        if (HttpConfig.CSRF_STORE_DIRECTORY.equals(HttpConfig.CSRF_STORE_MODE)) {
+            return new DirectoryCsrfTokenStore(session.sessionId);
+        }
+        return new MemoryCsrfTokenStore(session.sessionId);
+    }
+
+    /**
+     * Return the CSRF token store for the finish step of a redirect workflow.
+     *
+     * <p>If the workflow is a flow started by the client, the token is in the flow's own store (named by the state).
+     * If the workflow was started from the browser, the token is held against the browser session.
+     * Otherwise the token is in the session file.
+     *
+     * @param session the browser session making the finish request (may be null)
+     * @param state the {@code state} parameter of the finish URL (may be null)
+     *
+     * @return the token store
+     */
+    static DbxSessionStore getSessionStore(HttpSession session, String state) {
+        DbxSessionStore flowStore = DropboxFlowRegistry.getSessionStore(state);
+        if (flowStore != null) {
+            return flowStore;
+        }
+        if (session != null) {
+            if (SignedCsrfTokenStore.hasToken(session)) {
+                return new SignedCsrfTokenStore(session);
+            }
+            if (MemoryCsrfTokenStore.hasToken(session.sessionId)) {
+                return new MemoryCsrfTokenStore(session.sessionId);
+            }
+            if (HttpConfig.CSRF_STORE_DIRECTORY.equals(HttpConfig.CSRF_STORE_MODE)
+                    && DirectoryCsrfTokenStore.hasToken(session.sessionId)) {
+                return new DirectoryCsrfTokenStore(session.sessionId);
+            }
+        }
+        return csrfTokenStore;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The CSRF token is read from the session file (ie the workflow must have been started by the client).
+     */
+    public static DropboxStatus httpdHandleFinishAndSave(String uriPath, String queryString) throws IOException {
+        return httpdHandleFinishAndSave(uriPath, queryString, null);
     }
 
     /**
@@ -75,10 +258,16 @@ public class DropboxWorkflowRedirect {
      *
      * It calls {@code DbxWebAuth.finish()} to finish the Oauth workflow.
      * It then saves the access token returned by {@code finish()} and
-     * creates some sample files in the Dropbox app folder.
+     * queues the creation of some sample files in the Dropbox app folder (see {@link PostAuthPipeline}),
+     * returning without waiting for them.
+     *
+     * <p>The response is kept for {@code HttpConfig.FINISH_CACHE_TTL} seconds, and repeats of the request (with the
+     * same {@code state} and {@code code}) get the same response without calling {@code finish()} again; repeats which
+     * arrive while the first request is running wait for its response (see {@link FinishResultCache}).
      *
      * @param uriPath the local URL to which the user has been redirected by Dropbox (not actually needed, just for info)
      * @param queryString the query string from that local URL (this will be used to get the session token and authorsiation code)
+     * @param session the browser session making the request (used to find the CSRF token store, may be null)
      *
      * @return AccessData object containing the access token returned by {@code finish()}
      *
@@ -86,76 +275,140 @@ public class DropboxWorkflowRedirect {
      *
      * @see AccessData
      */
-    public static DropboxStatus httpdHandleFinishAndSave(String uriPath, String queryString) throws IOException {
-        try {
-            ConsoleLogger.debug("finishing Dropbox authorisation (redirect mode), uri=%s, query='%s'", uriPath, queryString);
-
-            Map<String, String[]> queryParams = new LinkedHashMap<String, String[]>();
-            for (String query : queryString.split("&")) {
-                int idx = query.indexOf("=");
-                String queryParam = URLDecoder.decode(query.substring(0, idx), "UTF-8");
-                String queryValue = URLDecoder.decode(query.substring(idx + 1), "UTF-8");
-                // the URL won't ever have the same query multiple times
-                queryParams.put(queryParam, new String[]{queryValue});
-                ConsoleLogger.debug("URL query parameter %s='%s'", queryParam, queryValue);
+    public static DropboxStatus httpdHandleFinishAndSave(String uriPath, String queryString, HttpSession session) throws IOException {
+        return httpdHandleFinishAndSave(uriPath, QueryString.parse(queryString), session);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This takes the query string already parsed (see {@code HttpdRequest.getQuery()}).
+     */
+    public static DropboxStatus httpdHandleFinishAndSave(String uriPath, QueryString query, final HttpSession session) throws IOException {
+        ConsoleLogger.debug("finishing Dropbox authorisation (redirect mode), uri=%s, %d query parameters", uriPath, query.size());
+
+        // repeats of the request (refreshes, double clicks, retries) get the first request's response
+        final String state = query.get("state");
+        String key = FinishResultCache.key(state, query.get("code"));
+        final Map<String, String[]> queryParams = query.toMultiMap();
+        if (HttpConfig.FINISH_CACHE_TTL <= 0 || key == null) {
+            return finishAndSave(queryParams, state, session);
+        }
+        return getFinishResults().get(key, new FinishResultCache.Finisher() {
+            public DropboxStatus finish() throws IOException {
+                return finishAndSave(queryParams, state, session);
             }
+        });
+    }
 
+    /**
+     * Return the cache of finish results (creating it the first time).
+     *
+     * @return the cache, which keeps results for {@code HttpConfig.FINISH_CACHE_TTL} seconds
+     */
+    static synchronized FinishResultCache getFinishResults() {
+        if (finishResults == null) {
+            finishResults = new FinishResultCache(1000L * HttpConfig.FINISH_CACHE_TTL);
+        }
+        return finishResults;
+    }
+
+    /**
+     * Run the finish step of the redirect workflow (see {@code httpdHandleFinishAndSave()}).
+     *
+     * <p>If the request belongs to a flow in this process, the flow's result is completed (or failed).
+     *
+     * @param queryParams the query parameters of the finish URL
+     * @param state the {@code state} parameter of the finish URL (may be null)
+     * @param session the browser session making the request (may be null)
+     * @return the response to the finish request
+     *
+     * @throws IOException if there is an error creating the token file
+     */
+    private static DropboxStatus finishAndSave(Map<String, String[]> queryParams, String state, HttpSession session) throws IOException {
+        String flowId = DropboxFlowRegistry.flowIdFromState(state);
+        DropboxStatus status;
+        try {
+            status = finishAndSave(queryParams, getSessionStore(session, state), flowId);
+        }
+        catch (IOException e) {
+            DropboxFlowRegistry.fail(flowId, e);
+            throw e;
+        }
+        if (status.httpStatus != 200) {
+            DropboxFlowRegistry.fail(flowId, new IOException(String.format("finish step failed with status %d", status.httpStatus)));
+        }
+        return status;
+    }
+
+    /**
+     * Run the finish step of the redirect workflow with a CSRF token store.
+     */
+    private static DropboxStatus finishAndSave(Map<String, String[]> queryParams, DbxSessionStore sessionStore, String flowId) throws IOException {
+        try {
             // EXERCISE:
-            //  - create a Dropbox redirect client object with which to execute the Dropbox no-redirect workflow
-            //    hint: class is DbxWebAuth()
-            //  - this needs to be supplied with various parameters (see start() above))
+            //  - get a Dropbox redirect client object with which to execute the Dropbox redirect workflow
+            //    hint: class is DbxWebAuth(), and DropboxWorkflowEngine returns one for a CSRF token store (see start() above)
             //    @see http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxWebAuth.html
             //  - call finish() to finish the redirect workflow
-            //  - clear the CSRF token store
-            //  - create an AccessData object from the token and user id returned by finish()
-            //  - save() this AccessData
+            //  - clear the CSRF token store (this is sessionStore, which is either csrfTokenStore or a browser session store)
+            //  - create an AccessData object from the token and user id returned by finish(), and store it in accessData
+            AccessData accessData;
             //  SPA14_OAUTH_START
-            DbxAppInfo appInfo = new DbxAppInfo(AppData.APP_KEY, AppData.APP_SECRET);
-            DbxRequestConfig config = new DbxRequestConfig(AppData.APP_NAME_VERSION, Locale.getDefault().toString());
-            DbxWebAuth redirectClient = new DbxWebAuth(config, appInfo, HttpConfig.FINISH_URL.toString(), csrfTokenStore);
+            DbxWebAuth redirectClient = DropboxWorkflowEngine.get().getWebAuth(sessionStore);
             DbxAuthFinish authFinish = redirectClient.finish(queryParams);
-            csrfTokenStore.clear();
-            AccessData accessData = new AccessData(authFinish.accessToken, authFinish.userId, "created using Java dropbox.client.DbxWebAuth()");
-            accessData.save();
+            sessionStore.clear();
+            accessData = new AccessData(authFinish.accessToken, authFinish.userId, "created using Java dropbox.client.DbxWebAuth()");
             // SPA14_OAUTH_FINISH
+            // record the flow, so that a client in another process can tell that the token file is for its flow
+            accessData.flowId = (flowId == null) ? "" : flowId;
+            accessData.save();
+            // keep the access data for every account which has authorised, not just the latest
+            AccessTokenVault.put(accessData);
+            // wake up the client, which is waiting in AccessData.waitForAccessTokenFile() or on the flow's result
+            AccessData.ACCESS_TOKEN_SAVED.publish(accessData);
+            DropboxFlowRegistry.complete(flowId, accessData);
 
-            DropboxTools.createSampleFiles();
+            // the sample files are created in the background, so the browser need not wait for them
+            PostAuthPipeline.get().submit(accessData.userId);
             return new DropboxStatus(200, DropboxStatus.makePage(
                         "<h1>Congratulations!</h1><p>The Dropbox access token was created successfully.<p>You may return to your client."));
         }
         catch (DbxWebAuth.BadRequestException ex) {
             ConsoleLogger.error("Bad request on finish, error=" + ex.getMessage());
-            csrfTokenStore.clear();
+            sessionStore.clear();
             return new DropboxStatus(400, "Bad request");
         }
         catch (DbxWebAuth.BadStateException ex) {
             // Send them back to the start of the auth flow.
             ConsoleLogger.error("Bad state on finish, error=" + ex.getMessage());
-            csrfTokenStore.clear();
+            sessionStore.clear();
             return new DropboxStatus(301, "Bad request", HttpConfig.START_URL);
         }
         catch (DbxWebAuth.CsrfException ex) {
             ConsoleLogger.error("CSRF mismatch on finish, error=" + ex.getMessage());
-            csrfTokenStore.clear();
+            sessionStore.clear();
             return new DropboxStatus(400, "Bad request");
         }
         catch (DbxWebAuth.NotApprovedException ex) {
             // When Dropbox asked "Do you want to allow this app to access your Dropbox account?", the user clicked "No".
             ConsoleLogger.error("user declined Dropbox authorisation");
-            csrfTokenStore.clear();
+            sessionStore.clear();
             return new DropboxStatus(301, "Bad request", HttpConfig.START_URL);
         }
         catch (DbxWebAuth.ProviderException ex) {
             ConsoleLogger.error("Dropbox authorisation failed, error=" + ex.getMessage());
-            csrfTokenStore.clear();
+            sessionStore.clear();
             return new DropboxStatus(503, "Service unavailable");
        }
        catch (DbxException ex) {
             ConsoleLogger.error("Dropbox authorisation failed, error=" + ex.getMessage());
-            csrfTokenStore.clear();
+            sessionStore.clear();
             return new DropboxStatus(503, "Service unavailable");
        }
     }
 
-}
+    /** results of recent finish requests (created when first needed) */
+    private static FinishResultCache finishResults = null;
 
+}
@@ -0,0 +1,176 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Notify listeners when files are created, modified or deleted, using a single {@code WatchService} thread.
+ *
+ * <p>This is how the demo notices changes made by other processes (for example, the token file being written by an
+ * HTTP server running in a different JVM) without polling. Each directory containing a watched file is registered
+ * with the watch service once; the listeners for a file are called (in the watcher thread) whenever an event for
+ * that file is reported, or if events have been lost.
+ *
+ * <p>Listeners must be quick and must not block. On some platforms the watch service polls, so events may be
+ * reported several seconds after the change.
+ *
+ */
+public class FileWatcher {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private FileWatcher() {}
+
+    /**
+     * Call a listener whenever a file changes. Adding the same listener twice has no effect.
+     *
+     * @param file the file to watch (its directory must exist)
+     * @param listener called in the watcher thread after each change
+     * @return true if the file is being watched, false if its directory cannot be watched
+     */
+    public static boolean watch(Path file, Runnable listener) {
+        Path absoluteFile = file.toAbsolutePath();
+        if (!register(absoluteFile.getParent())) {
+            return false;
+        }
+        CopyOnWriteArrayList<Runnable> fileListeners = listeners.get(absoluteFile);
+        if (fileListeners == null) {
+            listeners.putIfAbsent(absoluteFile, new CopyOnWriteArrayList<Runnable>());
+            fileListeners = listeners.get(absoluteFile);
+        }
+        fileListeners.addIfAbsent(listener);
+        return true;
+    }
+
+    /**
+     * Stop calling a listener.
+     *
+     * @param file the watched file
+     * @param listener the listener
+     */
+    public static void unwatch(Path file, Runnable listener) {
+        List<Runnable> fileListeners = listeners.get(file.toAbsolutePath());
+        if (fileListeners != null) {
+            fileListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Check whether a file's directory is being watched.
+     *
+     * @param file the file
+     * @return true if changes to the file will be reported
+     */
+    public static boolean isWatching(Path file) {
+        return directories.containsKey(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Register a directory with the watch service (starting the service if necessary).
+     *
+     * @param directory absolute path of the directory
+     * @return true if the directory is registered
+     */
+    private static synchronized boolean register(Path directory) {
+        if (directories.containsKey(directory)) {
+            return true;
+        }
+        try {
+            if (watchService == null) {
+                final WatchService newWatchService = directory.getFileSystem().newWatchService();
+                watchService = newWatchService;
+                Thread thread = new Thread(new Runnable() {
+                    public void run() { watchLoop(newWatchService); }
+                }, "file-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            directories.put(directory, key);
+            ConsoleLogger.debug("watching directory %s for changes", directory);
+            return true;
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("cannot watch directory %s, error='%s'", directory, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Dispatch events to listeners (runs in the watcher thread).
+     *
+     * @param watchService the watch service
+     */
+    private static void watchLoop(WatchService watchService) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        notifyDirectory(directory);
+                    }
+                    else {
+                        notifyListeners(directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    // the directory has gone away: stop watching it, and let the listeners know
+                    directories.remove(directory);
+                    ConsoleLogger.error("stopped watching directory %s", directory);
+                    notifyDirectory(directory);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            ConsoleLogger.error("file watcher interrupted");
+        }
+        catch (ClosedWatchServiceException e) {
+            ConsoleLogger.error("file watcher closed");
+        }
+        synchronized (FileWatcher.class) {
+            // the next call to watch() will start a new watch service
+            FileWatcher.watchService = null;
+            directories.clear();
+        }
+        for (Path file : listeners.keySet()) {
+            notifyListeners(file);
+        }
+    }
+
+    private static void notifyDirectory(Path directory) {
+        for (Path file : listeners.keySet()) {
+            if (file.getParent().equals(directory)) {
+                notifyListeners(file);
+            }
+        }
+    }
+
+    private static void notifyListeners(Path file) {
+        List<Runnable> fileListeners = listeners.get(file);
+        if (fileListeners == null) {
+            return;
+        }
+        for (Runnable listener : fileListeners) {
+            try {
+                listener.run();
+            }
+            catch (RuntimeException e) {
+                ConsoleLogger.error("file watcher listener failed for %s, error='%s'", file, e.getMessage());
+            }
+        }
+    }
+
+    /** watched files (absolute paths) and their listeners */
+    private static final ConcurrentHashMap<Path, CopyOnWriteArrayList<Runnable>> listeners
+            = new ConcurrentHashMap<Path, CopyOnWriteArrayList<Runnable>>();
+    /** registered directories (absolute paths) */
+    private static final Map<Path, WatchKey> directories = new ConcurrentHashMap<Path, WatchKey>();
+    /** guarded by the class lock */
+    private static WatchService watchService = null;
+
+}
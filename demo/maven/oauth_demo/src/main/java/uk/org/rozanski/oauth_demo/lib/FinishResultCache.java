@@ -0,0 +1,177 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache of the results of the finish step of the redirect workflow, so that repeated finish requests
+ * (when the browser is refreshed, or the link is clicked twice, or the request is retried) get the same response as
+ * the first.
+ *
+ * <p>Without the cache, each repeat calls {@code DbxWebAuth.finish()} again. That makes another round trip to Dropbox's
+ * token endpoint, and then fails with a CSRF or bad state error, because the first request cleared the CSRF token.
+ *
+ * <p>Results are cached by the {@code state} and {@code code} parameters of the finish URL for {@code ttlMillis} after
+ * they are complete. If a repeat arrives while the first request is still running, it waits for the first request's
+ * result rather than running the finish step itself. A finish step which throws an exception is not cached.
+ *
+ * <p>Expired results are removed when their key is next requested, and by {@code sweep()}.
+ *
+ */
+public class FinishResultCache {
+
+    /** runs the finish step */
+    public interface Finisher {
+        /**
+         * Run the finish step.
+         *
+         * @return the response to the finish request
+         *
+         * @throws IOException if the finish step fails (the failure is not cached)
+         */
+        DropboxStatus finish() throws IOException;
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param ttlMillis how long (in milliseconds) a result is kept after it is complete
+     */
+    public FinishResultCache(long ttlMillis) {
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    /**
+     * Return the key for a finish request.
+     *
+     * @param state the {@code state} parameter of the finish URL
+     * @param code the {@code code} parameter of the finish URL
+     * @return the key, or null if either parameter is missing (the result should not be cached)
+     */
+    public static String key(String state, String code) {
+        if (state == null || code == null) {
+            return null;
+        }
+        return state + "\n" + code;
+    }
+
+    /**
+     * Return the cached result for a finish request, or run the finish step and cache its result.
+     *
+     * @param key the key of the request (see {@code key()})
+     * @param finisher runs the finish step, if there is no result for the key
+     * @return the response to the finish request
+     *
+     * @throws IOException if the finish step fails (or the wait for a duplicate request is interrupted)
+     */
+    public DropboxStatus get(String key, Finisher finisher) throws IOException {
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(now)) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            Entry newEntry = new Entry();
+            entry = entries.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                return finish(key, newEntry, finisher);
+            }
+        }
+        hitCount.incrementAndGet();
+        ConsoleLogger.debug("repeated finish request, using the %s result", entry.result.isDone() ? "cached" : "pending");
+        try {
+            return entry.result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for repeated finish request");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Remove expired results.
+     *
+     * @return number of results removed
+     */
+    public int sweep() {
+        long now = System.nanoTime();
+        int removed = 0;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Return the number of results held (including any which have expired but not yet been removed).
+     *
+     * @return number of results
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return the number of requests which were answered from the cache (or by waiting for a duplicate request).
+     *
+     * @return number of requests
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** run the finish step for the first request with a key, and publish its result to any duplicates */
+    private DropboxStatus finish(String key, Entry entry, Finisher finisher) throws IOException {
+        DropboxStatus status;
+        try {
+            status = finisher.finish();
+        }
+        catch (IOException e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        entry.expiry = System.nanoTime() + ttlNanos;
+        entry.result.complete(status);
+        return status;
+    }
+
+    /** the result of one finish request */
+    private static final class Entry {
+        final CompletableFuture<DropboxStatus> result = new CompletableFuture<DropboxStatus>();
+        /** System.nanoTime() after which the result expires (set when the result is complete) */
+        volatile long expiry;
+        boolean isExpired(long now) {
+            return result.isDone() && now - expiry > 0;
+        }
+    }
+
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong hitCount = new AtomicLong();
+
+}
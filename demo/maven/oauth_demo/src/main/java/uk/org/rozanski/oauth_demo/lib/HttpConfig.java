@@ -25,9 +25,9 @@ public class HttpConfig {
     /** URL of home page */
     public static URL HOME_URL = null;
 
-    /** start page for the redirect flow (not used in this demo) */
+    /** start page for the redirect flow (browse here to start the workflow from the browser instead of the client) */
     public static final String START_PAGE = "dropbox-auth-start";
-    /** URL of start page (not used in this demo) */
+    /** URL of start page */
     public static URL START_URL = null;
 
     /** finish page for the redirect flow (opened in step 2) */
@@ -35,12 +35,94 @@ public class HttpConfig {
     /** URL of finish page */
     public static URL FINISH_URL = null;
 
+    /**
+     * Number of seconds for which the result of a finish request is kept, so that repeats of the request get the same
+     * response (see FinishResultCache; system property {@code oauth.finishCacheTtl}, 0 to disable)
+     */
+    public static int FINISH_CACHE_TTL = Integer.getInteger("oauth.finishCacheTtl", 60);
+
+    /** name of the cookie which holds the browser session id */
+    public static final String SESSION_COOKIE = "oauth_demo_session";
+    /** number of seconds for which a CSRF token held in memory remains valid */
+    public static int CSRF_SESSION_TTL = 600;
+    /** how often (in seconds) expired CSRF tokens are removed from memory */
+    public static int CSRF_SWEEP_INTERVAL = 60;
+    /** name of the cookie which holds the signed CSRF token (when CSRF_STORE_MODE is CSRF_STORE_SIGNED) */
+    public static final String CSRF_COOKIE = "oauth_demo_csrf";
+
+    /** keep the CSRF tokens of browser-started workflows in memory (see MemoryCsrfTokenStore) */
+    public static final String CSRF_STORE_MEMORY = "memory";
+    /** keep the CSRF tokens of browser-started workflows in a signed cookie (see SignedCsrfTokenStore) */
+    public static final String CSRF_STORE_SIGNED = "signed";
+    /** keep the CSRF tokens of browser-started workflows in files shared between processes (see DirectoryCsrfTokenStore) */
+    public static final String CSRF_STORE_DIRECTORY = "directory";
+    /**
+     * Where the CSRF tokens of browser-started workflows are kept.
+     *
+     * <p>This is set from the system property {@code oauth.csrfStore} (default {@code CSRF_STORE_MEMORY}).
+     * Whatever the mode, each workflow started by the client has its own token file in {@code CSRF_SESSION_DIRECTORY}
+     * (see {@code DropboxFlowRegistry.createSessionStore()}).
+     */
+    public static String CSRF_STORE_MODE = System.getProperty("oauth.csrfStore", CSRF_STORE_MEMORY);
+    /**
+     * Directory holding one CSRF token file per workflow started by the client, and one per browser session
+     * (when CSRF_STORE_MODE is CSRF_STORE_DIRECTORY).
+     *
+     * <p>This is set from the system property {@code oauth.csrfDirectory}; all server processes must use the same directory.
+     */
+    public static String CSRF_SESSION_DIRECTORY = System.getProperty("oauth.csrfDirectory",
+            CommonConfig.FILES_DIRECTORY + File.separator + "sessions");
+
+    /** handle every request on the HTTP server's single dispatcher thread */
+    public static final String EXECUTOR_DISPATCHER = "dispatcher";
+    /** handle requests on a fixed-size pool of {@code EXECUTOR_THREADS} platform threads */
+    public static final String EXECUTOR_FIXED = "fixed";
+    /** handle requests on a work-stealing (fork/join) pool with parallelism {@code EXECUTOR_THREADS} */
+    public static final String EXECUTOR_WORK_STEALING = "work-stealing";
+    /** handle each request on a new virtual thread (needs Java 21; otherwise EXECUTOR_FIXED is used) */
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+    /**
+     * How the HTTP server runs its request handlers (see HttpdExecutors).
+     *
+     * <p>This is set from the system property {@code oauth.executor} (default {@code EXECUTOR_FIXED}).
+     */
+    public static String EXECUTOR_MODE = System.getProperty("oauth.executor", EXECUTOR_FIXED);
+    /** number of threads used by EXECUTOR_FIXED and EXECUTOR_WORK_STEALING (system property {@code oauth.executorThreads}) */
+    public static int EXECUTOR_THREADS = Integer.getInteger("oauth.executorThreads", 16);
+
+    /** serve HTTP using the JDK's {@code com.sun.net.httpserver} */
+    public static final String ENGINE_JDK = "jdk";
+    /** serve HTTP using HttpdNioServer (a single selector thread with pooled direct buffers) */
+    public static final String ENGINE_NIO = "nio";
+    /**
+     * Which HTTP engine the server uses.
+     *
+     * <p>This is set from the system property {@code oauth.httpEngine} (default {@code ENGINE_JDK}).
+     */
+    public static String ENGINE_MODE = System.getProperty("oauth.httpEngine", ENGINE_JDK);
+    /** seconds after which HttpdNioServer closes an idle keep-alive connection (system property {@code oauth.httpIdleTimeout}) */
+    public static int HTTP_IDLE_TIMEOUT = Integer.getInteger("oauth.httpIdleTimeout", 30);
+    /** maximum number of connections waiting to be accepted (system property {@code oauth.httpBacklog}; 0 for the system default) */
+    public static int HTTP_BACKLOG = Integer.getInteger("oauth.httpBacklog", 128);
+    /** maximum number of requests waiting for a worker thread; more get status 503 (system property {@code oauth.httpQueue}) */
+    public static int HTTP_QUEUE_CAPACITY = Integer.getInteger("oauth.httpQueue", 256);
+    /**
+     * Requests per second allowed from each client address; more get status 429.
+     *
+     * <p>This is set from the system property {@code oauth.rateLimit} (default 0, for no limit). Loopback clients are
+     * never limited: the server listens on {@code HTTP_SERVER}, so by default every browser shares the loopback address.
+     */
+    public static int RATE_LIMIT = Integer.getInteger("oauth.rateLimit", 0);
+    /** number of requests a client may send at once before RATE_LIMIT applies (system property {@code oauth.rateBurst}) */
+    public static int RATE_BURST = Integer.getInteger("oauth.rateBurst", 100);
+
     /** contains the latest URL requested of the HTTP server (used for testing) */
     public static String LATEST_URL_FILE = String.format("%s%shttpd_latest_url.log", CommonConfig.FILES_DIRECTORY, File.separator);;
 
     static {
         try {
             HOME_URL      = new URL("http", HTTP_SERVER, HTTP_PORT, "/"+HOME_PAGE);
+            START_URL     = new URL("http", HTTP_SERVER, HTTP_PORT, "/"+START_PAGE);
             FINISH_URL    = new URL("http", HTTP_SERVER, HTTP_PORT, "/"+FINISH_PAGE);
         }
         catch (MalformedURLException e) {
@@ -1,6 +1,10 @@
 package uk.org.rozanski.oauth_demo.lib;
 
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Manage Latest URL File
@@ -11,6 +15,13 @@ import java.io.*;
  */
 public class HttpLatestUrlFile {
 
+    /**
+     * Published by the HTTP server whenever it receives a request (the value is the URL).
+     *
+     * @see #waitForLatestUrlFile
+     */
+    public static final CompletionEvent<String> URL_REQUESTED = new CompletionEvent<String>("URL requested", HttpConfig.LATEST_URL_FILE);
+
     /**
      * write the given URL to the latest URL file
      *
@@ -31,35 +42,50 @@ public class HttpLatestUrlFile {
     }
 
     /**
-     * Wait indefinitely until the latest URL file exists.
+     * Wait until the latest URL file exists.
+     *
+     * <p>The method returns as soon as {@code URL_REQUESTED} is published (or, if the server is in another process,
+     * as soon as the file system reports that the file has been written).
      *
      * @param timeout if not found after this number of seconds, give up
      *
      * @return true if file found, false if times out
      */
     public static boolean waitForLatestUrlFile(int timeout) {
-        int SLEEP_TIME = 1; // second
-        int timeOfFirstCheck = TimeNow.timeNowInt();
+        long deadline = System.currentTimeMillis() + 1000L * timeout;
+        // ask to be notified before checking the file, so that the notification cannot be missed
+        CompletableFuture<String> requested = URL_REQUESTED.next();
         try {
             ConsoleLogger.info("waiting for latest URL file %s...", HttpConfig.LATEST_URL_FILE);
-            while(true) {
-                if(HttpLatestUrlFile.latestUrlFileExists(true)) {
-                    ConsoleLogger.info("latest URL file %s present", HttpConfig.LATEST_URL_FILE);
-                    break;
+            while (!HttpLatestUrlFile.latestUrlFileExists(true)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    ConsoleLogger.error("latest URL file not found");
+                    return false;
                 }
-                else {
-                    if((TimeNow.timeNowInt() - timeOfFirstCheck) > timeout) {
-                        ConsoleLogger.error("latest URL file not found");
-                        return false;
-                    }
-                    Thread.sleep(1000 * SLEEP_TIME);
+                if (requested.isDone()) {
+                    // the file changed but does not exist yet, so wait for the next change
+                    requested = URL_REQUESTED.next();
+                }
+                try {
+                    requested.get(remaining, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e) {
+                    // checked at the top of the loop
+                }
+                catch (ExecutionException e) {
+                    // not possible: the event never fails
                 }
             }
+            ConsoleLogger.info("latest URL file %s present", HttpConfig.LATEST_URL_FILE);
         }
         catch (InterruptedException e) {
             ConsoleLogger.error("latest URL file not found");
             return false;
         }
+        finally {
+            requested.cancel(false);
+        }
         return true;
     }
 
@@ -0,0 +1,153 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Browser session information for a single request to the local HTTP server.
+ *
+ * <p>Each browser is identified by a random session id which is stored in the cookie
+ * {@code HttpConfig.SESSION_COOKIE}. If the browser does not send the cookie, a new session id is
+ * generated and the HTTP server sends it back in a {@code Set-Cookie} header.
+ *
+ * <p>The session id is used to key per-browser data such as the CSRF token of the redirect workflow,
+ * so that several users can run the workflow at the same time.
+ *
+ */
+public class HttpSession {
+
+    /** the session id (never null) */
+    public final String sessionId;
+
+    /** true if the session id was generated for this request (ie the browser did not send one) */
+    public final boolean isNew;
+
+    /**
+     * Create a session from the value of the request's {@code Cookie} header.
+     *
+     * @param cookieHeader value of the {@code Cookie} header, or null if there was none
+     */
+    public HttpSession(String cookieHeader) {
+        this.requestCookies = parseCookies(cookieHeader);
+        String cookieSessionId = this.requestCookies.get(HttpConfig.SESSION_COOKIE);
+        if (isValidSessionId(cookieSessionId)) {
+            this.sessionId = cookieSessionId;
+            this.isNew = false;
+        }
+        else {
+            this.sessionId = newSessionId();
+            this.isNew = true;
+            setCookie(HttpConfig.SESSION_COOKIE, this.sessionId);
+        }
+    }
+
+    /**
+     * Return the value of a cookie sent by the browser.
+     *
+     * @param name cookie name
+     * @return cookie value, or null if the browser did not send the cookie
+     */
+    public String getCookie(String name) {
+        return requestCookies.get(name);
+    }
+
+    /**
+     * Ask the browser to store a cookie (sent in the response as a {@code Set-Cookie} header).
+     *
+     * @param name cookie name
+     * @param value cookie value (must not contain ';', ',' or whitespace)
+     */
+    public void setCookie(String name, String value) {
+        responseCookies.put(name, String.format("%s=%s; Path=/; HttpOnly; SameSite=Lax", name, value));
+    }
+
+    /**
+     * Ask the browser to delete a cookie.
+     *
+     * @param name cookie name
+     */
+    public void deleteCookie(String name) {
+        responseCookies.put(name, String.format("%s=; Path=/; Max-Age=0", name));
+    }
+
+    /**
+     * Return the {@code Set-Cookie} header values to send in the response (one per cookie name).
+     *
+     * @return header values (may be empty)
+     */
+    public Collection<String> getResponseCookies() {
+        return responseCookies.values();
+    }
+
+    /**
+     * Generate a new random session id.
+     *
+     * @return 32 hex characters generated from a cryptographically-strong random number
+     */
+    static String newSessionId() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return toHex(bytes);
+    }
+
+    /**
+     * Convert bytes to a string of lower-case hex characters.
+     *
+     * @param bytes bytes to convert
+     * @return hex string (two characters per byte)
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b: bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check that a session id sent by the browser has the format generated by {@code newSessionId()}.
+     *
+     * @param sessionId session id to check (may be null)
+     * @return true if the session id is valid
+     */
+    private static boolean isValidSessionId(String sessionId) {
+        if (sessionId == null || sessionId.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < sessionId.length(); i++) {
+            if (Character.digit(sessionId.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a {@code Cookie} header of the form {@code name1=value1; name2=value2}.
+     *
+     * @param cookieHeader the header value (may be null)
+     * @return map of cookie names to values
+     */
+    private static Map<String, String> parseCookies(String cookieHeader) {
+        Map<String, String> cookies = new LinkedHashMap<String, String>();
+        if (cookieHeader == null) {
+            return cookies;
+        }
+        for (String cookie : cookieHeader.split(";")) {
+            int idx = cookie.indexOf('=');
+            if (idx > 0) {
+                cookies.put(cookie.substring(0, idx).trim(), cookie.substring(idx + 1).trim());
+            }
+        }
+        return cookies;
+    }
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Map<String, String> requestCookies;
+    private final Map<String, String> responseCookies = new LinkedHashMap<String, String>();
+
+}
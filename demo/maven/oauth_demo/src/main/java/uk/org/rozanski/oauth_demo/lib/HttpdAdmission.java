@@ -0,0 +1,292 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests the HTTP server handles, and in what order, so that a burst of requests or a misbehaving
+ * client cannot pile up unbounded work.
+ *
+ * <p>Both HTTP engines pass each request to {@code submit()}, which:
+ * <ol>
+ * <li>applies a token-bucket rate limit to each client address: a client may send {@code rateBurst} requests at once,
+ * and then {@code rateLimit} per second; any more get status 429 (Too Many Requests) at once. Loopback addresses are
+ * not limited, as every local browser shares them
+ * <li>puts the request in a queue of at most {@code queueCapacity} requests, ordered by the priority of its route
+ * (see {@link HttpdRouter}) and then by arrival
+ * <li>runs the request with the highest priority each time a worker thread (from the executor) becomes free
+ * </ol>
+ *
+ * <p>If the queue is full, a new request replaces the queued request with the lowest priority if its own priority
+ * is higher (so documentation requests cannot hold up the finish page), and otherwise it is refused. A refused
+ * request gets status 503 (Service Unavailable) at once, rather than waiting for a worker.
+ *
+ */
+public class HttpdAdmission {
+
+    /** receives the response to a submitted request */
+    public interface Callback {
+        /**
+         * Called with the response (in a worker thread, or in the submitting thread if the request is refused).
+         *
+         * @param status the handler's response, or status 429, 500 or 503
+         */
+        void done(DropboxStatus status);
+    }
+
+    /**
+     * Create an admission controller.
+     *
+     * @param executor runs the handlers, or null to run them in the submitting thread (without queueing)
+     * @param router gives the priority of each request, or null to give all requests the same priority
+     * @param queueCapacity maximum number of requests waiting for a worker
+     * @param rateLimit requests per second allowed from each non-loopback client address (0 for no limit)
+     * @param rateBurst number of requests a client may send at once
+     */
+    public HttpdAdmission(ExecutorService executor, HttpdRouter router, int queueCapacity, int rateLimit, int rateBurst) {
+        this.executor = executor;
+        this.router = router;
+        this.queueCapacity = queueCapacity;
+        this.rateLimit = rateLimit;
+        this.rateBurst = Math.max(1, rateBurst);
+    }
+
+    /**
+     * Create an admission controller configured by {@code HttpConfig}.
+     *
+     * @param executor runs the handlers, or null to run them in the submitting thread
+     * @param router gives the priority of each request
+     * @return the admission controller
+     */
+    public static HttpdAdmission create(ExecutorService executor, HttpdRouter router) {
+        return new HttpdAdmission(executor, router, HttpConfig.HTTP_QUEUE_CAPACITY, HttpConfig.RATE_LIMIT, HttpConfig.RATE_BURST);
+    }
+
+    /**
+     * Handle a request, or refuse it.
+     *
+     * @param request the request
+     * @param handler handles the request
+     * @param callback receives the response
+     */
+    public void submit(HttpdRequest request, HttpdHandler handler, Callback callback) {
+        if (!tryAcquireToken(request)) {
+            rateLimited.incrementAndGet();
+            ConsoleLogger.debug("rate limit exceeded by %s", request.remoteAddress);
+            callback.done(new DropboxStatus(429, "Too Many Requests").setHeader("Retry-After", "1"));
+            return;
+        }
+        if (executor == null) {
+            callback.done(run(handler, request));
+            return;
+        }
+        int priority = (router == null) ? HttpdRouter.PRIORITY_NORMAL : router.getPriority(request);
+        Job job = new Job(priority, sequence.getAndIncrement(), request, handler, callback);
+        Job refused = null;
+        synchronized (queue) {
+            if (queue.size() >= queueCapacity) {
+                Job lowest = lowestPriorityJob();
+                if (lowest != null && lowest.priority < job.priority) {
+                    queue.remove(lowest);
+                    refused = lowest;
+                }
+                else {
+                    refused = job;
+                }
+            }
+            if (refused != job) {
+                queue.add(job);
+            }
+        }
+        if (refused != null) {
+            refuse(refused);
+        }
+        if (refused == job) {
+            return;
+        }
+        try {
+            executor.execute(drainer);
+        }
+        catch (RejectedExecutionException e) {
+            // the executor has been shut down
+            boolean removed;
+            synchronized (queue) {
+                removed = queue.remove(job);
+            }
+            if (removed) {
+                refuse(job);
+            }
+        }
+    }
+
+    /**
+     * Return the number of requests waiting for a worker.
+     *
+     * @return the queue length
+     */
+    public int getQueueLength() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Return the number of requests refused because the queue was full.
+     *
+     * @return number of requests
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * Return the number of requests refused by the rate limit.
+     *
+     * @return number of requests
+     */
+    public long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    private void refuse(Job job) {
+        refusedCount.incrementAndGet();
+        ConsoleLogger.debug("request queue is full, refusing %s", job.request.uri);
+        job.callback.done(new DropboxStatus(503, "Service Unavailable").setHeader("Retry-After", "1"));
+    }
+
+    /** runs the queued request with the highest priority; one is scheduled for each queued request */
+    private final Runnable drainer = new Runnable() {
+        public void run() {
+            Job job;
+            synchronized (queue) {
+                job = queue.poll();
+            }
+            if (job != null) {
+                job.callback.done(HttpdAdmission.run(job.handler, job.request));
+            }
+        }
+    };
+
+    /**
+     * Run a handler, turning a failure into status 500.
+     */
+    private static DropboxStatus run(HttpdHandler handler, HttpdRequest request) {
+        try {
+            return handler.handle(request);
+        }
+        catch (Exception e) {
+            ConsoleLogger.error("error handling %s, error='%s'", request.uri, e.getMessage());
+            return new DropboxStatus(500, "Internal Server Error");
+        }
+    }
+
+    /** (called with the queue locked) */
+    private Job lowestPriorityJob() {
+        Job lowest = null;
+        for (Job job : queue) {
+            if (lowest == null || job.compareTo(lowest) > 0) {
+                lowest = job;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Take a token from the bucket for the request's client address (loopback clients are not limited).
+     *
+     * @return true if the request may proceed
+     */
+    private boolean tryAcquireToken(HttpdRequest request) {
+        if (rateLimit <= 0 || request.remoteAddress == null) {
+            return true;
+        }
+        InetAddress address = request.remoteAddress.getAddress();
+        if (address == null || address.isLoopbackAddress()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        TokenBucket bucket = buckets.get(address);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_CLIENTS) {
+                removeIdleBuckets(now);
+            }
+            buckets.putIfAbsent(address, new TokenBucket(rateBurst, now));
+            bucket = buckets.get(address);
+        }
+        return bucket.tryAcquire(now, rateLimit, rateBurst);
+    }
+
+    /** forget clients whose buckets have filled up again, so they would be treated as new anyway */
+    private void removeIdleBuckets(long now) {
+        long refillNanos = (long) (1e9 * rateBurst / rateLimit);
+        Iterator<TokenBucket> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastRefill > refillNanos) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /** a queued request */
+    private static final class Job implements Comparable<Job> {
+        final int priority;
+        final long sequence;
+        final HttpdRequest request;
+        final HttpdHandler handler;
+        final Callback callback;
+        Job(int priority, long sequence, HttpdRequest request, HttpdHandler handler, Callback callback) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.request = request;
+            this.handler = handler;
+            this.callback = callback;
+        }
+        /** highest priority first, then first come, first served */
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return (priority > other.priority) ? -1 : 1;
+            }
+            return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+
+    /** the rate limit state of one client address */
+    private static final class TokenBucket {
+        double tokens;
+        long lastRefill;
+        TokenBucket(int tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+        synchronized boolean tryAcquire(long now, int rateLimit, int rateBurst) {
+            tokens = Math.min(rateBurst, tokens + (now - lastRefill) * rateLimit / 1e9);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    /** most client addresses remembered by the rate limiter before idle ones are forgotten */
+    private static final int MAX_CLIENTS = 10000;
+
+    private final ExecutorService executor;
+    private final HttpdRouter router;
+    private final int queueCapacity;
+    private final int rateLimit;
+    private final int rateBurst;
+    /** requests waiting for a worker, highest priority first (guarded by itself) */
+    private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<InetAddress, TokenBucket>();
+    private final AtomicLong refusedCount = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+}
@@ -0,0 +1,84 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers, all of the same size, shared by the connections of {@link HttpdNioServer}.
+ *
+ * <p>Direct buffers are expensive to allocate and are only freed by the garbage collector, so rather than giving
+ * each connection its own, a connection borrows a buffer while it has data to read or write and returns it as soon
+ * as it is idle. Thousands of idle keep-alive connections therefore hold no buffers at all.
+ *
+ * <p>At most {@code maxPooled} free buffers are kept; if more are returned, the extras are dropped.
+ *
+ */
+public class HttpdBufferPool {
+
+    /**
+     * Create a pool.
+     *
+     * @param bufferSize size of each buffer in bytes
+     * @param maxPooled maximum number of free buffers to keep
+     */
+    public HttpdBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Borrow a buffer (cleared, ready for writing).
+     *
+     * @return the buffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool.
+     *
+     * @param buffer a buffer obtained from {@code acquire()}, which the caller must no longer use
+     */
+    public void release(ByteBuffer buffer) {
+        if (freeCount.incrementAndGet() <= maxPooled) {
+            free.add(buffer);
+        }
+        else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Return the size of the buffers.
+     *
+     * @return size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Return the number of buffers allocated since the pool was created (for monitoring and benchmarks).
+     *
+     * @return number of buffers
+     */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger freeCount = new AtomicInteger();
+    private final AtomicInteger allocated = new AtomicInteger();
+
+}
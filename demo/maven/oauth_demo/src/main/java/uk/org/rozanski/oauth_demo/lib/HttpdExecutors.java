@@ -0,0 +1,120 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create the executor on which the HTTP server runs its request handlers.
+ *
+ * <p>Without an executor, {@code HttpServer} runs every handler on its single dispatcher thread, so one slow request
+ * (such as the finish step, which makes several blocking calls to Dropbox) holds up every other request.
+ * The mode is selected by {@code HttpConfig.EXECUTOR_MODE}:
+ * <ul>
+ * <li>{@code EXECUTOR_DISPATCHER} - no executor (the original behaviour)
+ * <li>{@code EXECUTOR_FIXED} - a fixed pool of {@code HttpConfig.EXECUTOR_THREADS} daemon threads
+ * <li>{@code EXECUTOR_WORK_STEALING} - a fork/join pool; this suits short handlers, since a handler which blocks
+ * ties up one of the pool's threads
+ * <li>{@code EXECUTOR_VIRTUAL} - a new virtual thread per request, so blocking handlers cost almost nothing.
+ * Virtual threads need Java 21; on older JVMs a fixed pool is used instead.
+ * </ul>
+ *
+ */
+public class HttpdExecutors {
+
+    /** we don't ever instantiate this class but just call its methods statically */
+    private HttpdExecutors() {}
+
+    /**
+     * Create an executor.
+     *
+     * @param mode one of the {@code HttpConfig.EXECUTOR_} modes
+     * @param threads number of threads (for the fixed and work-stealing pools)
+     * @return the executor, or null for {@code EXECUTOR_DISPATCHER}
+     *
+     * @throws IllegalArgumentException if the mode is not recognised
+     */
+    public static ExecutorService create(String mode, int threads) {
+        if (HttpConfig.EXECUTOR_DISPATCHER.equals(mode)) {
+            return null;
+        }
+        else if (HttpConfig.EXECUTOR_FIXED.equals(mode)) {
+            return Executors.newFixedThreadPool(threads, new DaemonThreadFactory("httpd-worker-"));
+        }
+        else if (HttpConfig.EXECUTOR_WORK_STEALING.equals(mode)) {
+            return Executors.newWorkStealingPool(threads);
+        }
+        else if (HttpConfig.EXECUTOR_VIRTUAL.equals(mode)) {
+            ExecutorService executor = createVirtualThreadExecutor();
+            if (executor == null) {
+                ConsoleLogger.error("virtual threads need Java 21 or later, using a fixed pool of %d threads instead", threads);
+                return create(HttpConfig.EXECUTOR_FIXED, threads);
+            }
+            return executor;
+        }
+        throw new IllegalArgumentException(String.format("unknown HTTP server executor mode '%s'", mode));
+    }
+
+    /**
+     * Create the executor selected by {@code HttpConfig.EXECUTOR_MODE}.
+     *
+     * @return the executor, or null for {@code EXECUTOR_DISPATCHER}
+     */
+    public static ExecutorService create() {
+        return create(HttpConfig.EXECUTOR_MODE, HttpConfig.EXECUTOR_THREADS);
+    }
+
+    /**
+     * Check whether this JVM supports virtual threads.
+     *
+     * @return true if {@code EXECUTOR_VIRTUAL} really uses virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return getVirtualThreadFactoryMethod() != null;
+    }
+
+    /**
+     * Call {@code Executors.newVirtualThreadPerTaskExecutor()} (by reflection, since the demo is built for Java 8).
+     *
+     * @return the executor, or null if virtual threads are not supported
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        Method method = getVirtualThreadFactoryMethod();
+        if (method == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (Exception e) {
+            ConsoleLogger.error("failed to create virtual thread executor, error='%s'", e.getMessage());
+            return null;
+        }
+    }
+
+    private static Method getVirtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /** names the pool's threads, and makes them daemons so they never keep the JVM alive */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
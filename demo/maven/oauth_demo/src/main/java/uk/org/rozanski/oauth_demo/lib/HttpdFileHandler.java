@@ -0,0 +1,357 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Serves the static files under a directory (the javadoc site under {@code CommonConfig.DOC_DIRECTORY}).
+ *
+ * <p>Files are served as bytes, never decoded, so images and other binary files arrive intact. The handler:
+ * <ul>
+ * <li>sets {@code Content-Type} from the file extension
+ * <li>sets {@code ETag} and {@code Last-Modified}, and answers {@code If-None-Match} and {@code If-Modified-Since}
+ * with 304 (Not Modified), so a browser revisiting a page only downloads what has changed
+ * <li>answers a single {@code Range} (eg {@code bytes=0-1023}) with 206 (Partial Content)
+ * <li>serves {@code file.gz} instead of {@code file}, with {@code Content-Encoding: gzip}, if it exists, is at least
+ * as new as {@code file}, and the browser accepts gzip
+ * </ul>
+ *
+ * <p>Small files are kept in memory (up to {@code CACHE_SIZE} bytes in all, least recently used files being dropped
+ * first), and are checked against the file's size and modification time on each request. Larger files are
+ * returned as a file body (see {@code DropboxStatus.getBodyFile()}), which the HTTP engine copies to the connection
+ * with {@code FileChannel.transferTo}.
+ *
+ */
+public class HttpdFileHandler implements HttpdHandler {
+
+    /**
+     * Create a handler.
+     *
+     * @param root directory containing the files
+     * @param urlPrefix prefix of the URLs served (eg {@code /doc/}); the rest of the URL path is the file's path
+     *        relative to {@code root}
+     * @param notFoundMessage message sent with status 404
+     */
+    public HttpdFileHandler(Path root, String urlPrefix, String notFoundMessage) {
+        this.root = root.toAbsolutePath().normalize();
+        this.urlPrefix = urlPrefix;
+        this.notFoundMessage = notFoundMessage;
+    }
+
+    /**
+     * Serve a file.
+     *
+     * @param request the request (its path must start with the URL prefix)
+     * @return the file, or status 304, 404 or 416
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public DropboxStatus handle(HttpdRequest request) throws IOException {
+        Path file = resolve(request.uriPath);
+        if (file == null) {
+            ConsoleLogger.debug("refusing URL %s, which is outside %s", request.uriPath, root);
+            return new DropboxStatus(404, notFoundMessage);
+        }
+        BasicFileAttributes attributes = readAttributes(file);
+        if (attributes != null && attributes.isDirectory()) {
+            file = file.resolve("index.html");
+            attributes = readAttributes(file);
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            ConsoleLogger.debug("file not found - URL=%s, file path=%s", request.uriPath, file);
+            return new DropboxStatus(404, notFoundMessage);
+        }
+        String contentType = getContentType(file.getFileName().toString());
+
+        // a range is served from the uncompressed file, everything else from the gzipped file if there is one
+        String range = request.getHeader("Range");
+        String contentEncoding = null;
+        if (range == null && acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            Path gzipFile = file.resolveSibling(file.getFileName().toString() + ".gz");
+            BasicFileAttributes gzipAttributes = readAttributes(gzipFile);
+            if (gzipAttributes != null && gzipAttributes.isRegularFile()
+                    && gzipAttributes.lastModifiedTime().compareTo(attributes.lastModifiedTime()) >= 0) {
+                file = gzipFile;
+                attributes = gzipAttributes;
+                contentEncoding = "gzip";
+            }
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = String.format("\"%x-%x%s\"", size, lastModified, (contentEncoding == null) ? "" : "-gz");
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if ((ifNoneMatch != null && matchesEtag(ifNoneMatch, etag))
+                || (ifNoneMatch == null && ifModifiedSince != null && !modifiedSince(lastModified, ifModifiedSince))) {
+            return addHeaders(new DropboxStatus(304, NO_BODY, null), etag, lastModified, contentEncoding);
+        }
+
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                // not a single byte range we understand: ignore it and send the whole file
+                ConsoleLogger.debug("ignoring range '%s'", range);
+            }
+            else if (bounds[0] >= size) {
+                DropboxStatus unsatisfiable = new DropboxStatus(416, "Range Not Satisfiable");
+                unsatisfiable.setHeader("Content-Range", "bytes */" + size);
+                return unsatisfiable;
+            }
+            else {
+                long length = bounds[1] - bounds[0] + 1;
+                DropboxStatus partial = body(206, file, size, lastModified, bounds[0], length, contentType);
+                partial.setHeader("Content-Range", String.format("bytes %d-%d/%d", bounds[0], bounds[1], size));
+                return addHeaders(partial, etag, lastModified, contentEncoding);
+            }
+        }
+        ConsoleLogger.debug("serving contents of %s (URL is %s)", file, request.uriPath);
+        return addHeaders(body(200, file, size, lastModified, 0, size, contentType), etag, lastModified, contentEncoding);
+    }
+
+    /**
+     * Return the content type for a file name.
+     *
+     * @param fileName the file name
+     * @return the content type (with a charset for text), or {@code application/octet-stream} if the extension is
+     *         not known
+     */
+    public static String getContentType(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String contentType = (dot < 0) ? null : CONTENT_TYPES.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return (contentType == null) ? "application/octet-stream" : contentType;
+    }
+
+    /**
+     * Map a URL path to a file under the root, refusing paths which lead outside it.
+     *
+     * @param uriPath decoded URL path
+     * @return the file (which may not exist), or null if the path is not under the root
+     */
+    private Path resolve(String uriPath) {
+        String relativePath = uriPath.startsWith(urlPrefix) ? uriPath.substring(urlPrefix.length()) : "";
+        while (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        try {
+            Path file = root.resolve(relativePath.replace("/", File.separator)).normalize();
+            return file.startsWith(root) ? file : null;
+        }
+        catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the body of a file, from the memory cache if it is small enough.
+     */
+    private DropboxStatus body(int httpStatus, Path file, long size, long lastModified, long offset, long length,
+            String contentType) throws IOException {
+        if (size > CACHE_FILE_SIZE) {
+            return new DropboxStatus(httpStatus, file, offset, length, contentType);
+        }
+        byte[] contents = getCachedContents(file, size, lastModified);
+        if (offset == 0 && length == size) {
+            return new DropboxStatus(httpStatus, contents, contentType);
+        }
+        byte[] part = new byte[(int) length];
+        System.arraycopy(contents, (int) offset, part, 0, (int) length);
+        return new DropboxStatus(httpStatus, part, contentType);
+    }
+
+    /**
+     * Return the contents of a small file, reading it if it is not cached or has changed.
+     */
+    private byte[] getCachedContents(Path file, long size, long lastModified) throws IOException {
+        synchronized (cache) {
+            CachedFile cached = cache.get(file);
+            if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+                return cached.contents;
+            }
+        }
+        byte[] contents = Files.readAllBytes(file);
+        if (contents.length != size) {
+            // the file changed while we were reading it: serve what we read, but don't cache it
+            return contents;
+        }
+        synchronized (cache) {
+            CachedFile previous = cache.put(file, new CachedFile(contents, size, lastModified));
+            cacheSize += size - ((previous == null) ? 0 : previous.size);
+            Iterator<CachedFile> eldest = cache.values().iterator();
+            while (cacheSize > CACHE_SIZE && eldest.hasNext()) {
+                cacheSize -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+        return contents;
+    }
+
+    private static DropboxStatus addHeaders(DropboxStatus status, String etag, long lastModified, String contentEncoding) {
+        status.setHeader("ETag", etag);
+        status.setHeader("Last-Modified", formatHttpDate(lastModified));
+        status.setHeader("Accept-Ranges", "bytes");
+        status.setHeader("Vary", "Accept-Encoding");
+        if (contentEncoding != null) {
+            status.setHeader("Content-Encoding", contentEncoding);
+        }
+        return status;
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesEtag(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a file has been modified since the time in an {@code If-Modified-Since} header.
+     *
+     * @return true if it has, or if the header cannot be parsed
+     */
+    private static boolean modifiedSince(long lastModified, String ifModifiedSince) {
+        try {
+            Date since = httpDateFormat().parse(ifModifiedSince);
+            // HTTP dates are in whole seconds
+            return lastModified / 1000 > since.getTime() / 1000;
+        }
+        catch (java.text.ParseException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Parse a {@code Range} header.
+     *
+     * @param range the header, eg {@code bytes=100-199}, {@code bytes=100-} or {@code bytes=-100}
+     * @param size size of the file
+     * @return the first and last byte positions (the first is at least {@code size} if the range cannot be
+     *         satisfied), or null if the header is not a single byte range
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = Long.parseLong(last);
+                if (suffix == 0) {
+                    return new long[]{size, size};
+                }
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                return null;
+            }
+            return new long[]{start, end};
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String formatHttpDate(long time) {
+        return httpDateFormat().format(new Date(time));
+    }
+
+    private static SimpleDateFormat httpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /** a small file held in memory */
+    private static final class CachedFile {
+        final byte[] contents;
+        final long size;
+        final long lastModified;
+        CachedFile(byte[] contents, long size, long lastModified) {
+            this.contents = contents;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /** files larger than this are not cached, but sent straight from the file */
+    static final long CACHE_FILE_SIZE = 256 * 1024;
+    /** total size of the cached files */
+    static final long CACHE_SIZE = 32 * 1024 * 1024;
+
+    private static final byte[] NO_BODY = new byte[0];
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+        CONTENT_TYPES.put("js", "application/javascript; charset=UTF-8");
+        CONTENT_TYPES.put("json", "application/json; charset=UTF-8");
+        CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+        CONTENT_TYPES.put("xml", "application/xml; charset=UTF-8");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("zip", "application/zip");
+        CONTENT_TYPES.put("jar", "application/java-archive");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    private final Path root;
+    private final String urlPrefix;
+    private final String notFoundMessage;
+    /** small files, least recently used first (guarded by itself) */
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<Path, CachedFile>(64, 0.75f, true);
+    private long cacheSize = 0;
+
+}
@@ -0,0 +1,27 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+
+/**
+ * Handles a request received by the local HTTP server, independently of the HTTP engine which received it.
+ *
+ * <p>Both engines (the JDK's {@code com.sun.net.httpserver} and {@link HttpdNioServer}) parse the request into an
+ * {@link HttpdRequest}, call the handler, and send the returned {@link DropboxStatus} back to the browser, together
+ * with any cookies set on the request's {@link HttpSession} and a {@code Location} header if
+ * {@code redirectUrl} is set.
+ *
+ * @see HttpdUrlHandler
+ */
+public interface HttpdHandler {
+
+    /**
+     * Handle a request.
+     *
+     * @param request the request
+     * @return the HTTP status and page to send back
+     *
+     * @throws IOException if the request cannot be handled (the engine sends status 500)
+     */
+    DropboxStatus handle(HttpdRequest request) throws IOException;
+
+}
@@ -0,0 +1,151 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.sun.net.httpserver.*;
+
+/**
+ * Runs an {@link HttpdHandler} on the JDK's HTTP server ({@code com.sun.net.httpserver}).
+ *
+ * <p>Responses are sent with a fixed length, so the browser can keep the connection alive. A response body which is
+ * in a file is copied to the connection with {@code FileChannel.transferTo}, without reading the whole file into
+ * memory.
+ *
+ * <p>If it is given an {@link HttpdAdmission}, the adapter passes each request to it rather than calling the handler
+ * itself, and the response is sent by the worker thread which ran the handler. The server's dispatcher thread is then
+ * free to accept more requests at once, and requests which are refused are answered without waiting for a worker.
+ *
+ */
+public class HttpdJdkHandler implements HttpHandler {
+
+    /**
+     * Create an adapter.
+     *
+     * @param handler the handler to run
+     */
+    public HttpdJdkHandler(HttpdHandler handler) {
+        this(handler, null);
+    }
+
+    /**
+     * Create an adapter which runs the handler under admission control.
+     *
+     * @param handler the handler to run
+     * @param admission decides when (and whether) each request is handled, or null to handle it at once
+     */
+    public HttpdJdkHandler(HttpdHandler handler, HttpdAdmission admission) {
+        this.handler = handler;
+        this.admission = admission;
+    }
+
+    /**
+     * Handle a request received by the JDK's HTTP server.
+     *
+     * <p>The method converts the exchange to an {@link HttpdRequest}, calls the handler, and sends the
+     * appropriate HTTP headers and message body back to the browser. With admission control, the handler is called and
+     * the response sent later, on a worker thread.
+     *
+     * @param exchange contains the request URL
+     *
+     * @throws IOException if the handler fails or the response cannot be sent
+     *
+     */
+    public void handle(final HttpExchange exchange) throws IOException {
+        Map<String, String> requestHeaders = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            if (!header.getValue().isEmpty()) {
+                requestHeaders.put(header.getKey(), header.getValue().get(0));
+            }
+        }
+        URI uri = exchange.getRequestURI();
+        final HttpdRequest request = new HttpdRequest(exchange.getRequestMethod(), uri.toString(), uri.getPath(), uri.getQuery(),
+                requestHeaders, exchange.getRemoteAddress());
+        if (admission == null) {
+            sendResponse(exchange, request, handler.handle(request));
+            return;
+        }
+        admission.submit(request, handler, new HttpdAdmission.Callback() {
+            public void done(DropboxStatus status) {
+                try {
+                    sendResponse(exchange, request, status);
+                }
+                catch (IOException e) {
+                    ConsoleLogger.error("failed to send response to %s, error='%s'", request.uri, e.getMessage());
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a response.
+     *
+     * @param exchange the exchange
+     * @param request the request
+     * @param statusAndResponse the response
+     *
+     * @throws IOException if the response cannot be sent
+     */
+    private static void sendResponse(HttpExchange exchange, HttpdRequest request, DropboxStatus statusAndResponse) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        for (String cookie : request.session.getResponseCookies()) {
+            responseHeaders.add("Set-Cookie", cookie);
+        }
+        for (Map.Entry<String, String> header : statusAndResponse.getHeaders().entrySet()) {
+            responseHeaders.set(header.getKey(), header.getValue());
+        }
+        // send a fixed-length body (rather than chunks), so the browser can keep the connection open
+        long bodyLength = statusAndResponse.getBodyLength();
+        exchange.sendResponseHeaders(statusAndResponse.httpStatus, (bodyLength == 0) ? -1 : bodyLength);
+        OutputStream os = exchange.getResponseBody();
+        try {
+            if (statusAndResponse.getBodyFile() != null) {
+                transferFile(statusAndResponse, Channels.newChannel(os));
+            }
+            else {
+                os.write(statusAndResponse.getBody());
+            }
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Copy a response body which is in a file to a channel.
+     *
+     * @param status the response, whose body is in {@code status.getBodyFile()}
+     * @param target the channel
+     *
+     * @throws IOException if the file cannot be read (or is shorter than expected), or the channel cannot be written
+     */
+    private static void transferFile(DropboxStatus status, WritableByteChannel target) throws IOException {
+        FileChannel file = FileChannel.open(status.getBodyFile(), StandardOpenOption.READ);
+        try {
+            long position = status.getBodyOffset();
+            long remaining = status.getBodyLength();
+            while (remaining > 0) {
+                long count = file.transferTo(position, remaining, target);
+                if (count <= 0) {
+                    throw new EOFException(String.format("file %s is shorter than expected", status.getBodyFile()));
+                }
+                position += count;
+                remaining -= count;
+            }
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private final HttpdHandler handler;
+    private final HttpdAdmission admission;
+
+}
@@ -0,0 +1,648 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A small non-blocking HTTP/1.1 server, used instead of {@code com.sun.net.httpserver} when
+ * {@code HttpConfig.ENGINE_MODE} is {@code ENGINE_NIO}.
+ *
+ * <p>All connections are served by a single selector thread, which accepts connections, reads and parses requests
+ * and writes responses. Each request is passed to an {@link HttpdHandler} on the given executor (or on the selector
+ * thread if the executor is null), subject to an {@link HttpdAdmission} which queues the requests by priority and
+ * refuses them when the queue is full, and the response is handed back to the selector thread to send. A connection
+ * therefore costs no thread while it is idle or while its request is being read, and it only holds a buffer (from
+ * an {@link HttpdBufferPool}) while it has unparsed input or an unsent response. A response body which is in a file
+ * is copied to the socket with {@code FileChannel.transferTo}, without passing through the buffers.
+ *
+ * <p>The server supports keep-alive (the default for HTTP/1.1; HTTP/1.0 clients must ask for it) and pipelined
+ * requests, which are handled one at a time in the order received. Request bodies are read and discarded. Chunked
+ * request bodies are not supported. Idle connections, and connections whose response the client has stopped reading,
+ * are closed after {@code HttpConfig.HTTP_IDLE_TIMEOUT} seconds without progress.
+ *
+ * <p>A failure on one connection (an I/O error, or an unexpected exception while handling it) closes only that
+ * connection. If connections cannot be accepted (for example, because the process has run out of file descriptors)
+ * accepting is paused until the next sweep for idle connections, which may free some.
+ *
+ */
+public class HttpdNioServer {
+
+    /**
+     * Create a server (call {@code start()} to start it).
+     *
+     * @param address address to listen on (use port 0 for any free port)
+     * @param handler handles the requests
+     * @param executor runs the handler, or null to run it on the selector thread
+     */
+    public HttpdNioServer(InetSocketAddress address, HttpdHandler handler, ExecutorService executor) {
+        this(address, handler, new HttpdAdmission(executor, null, Integer.MAX_VALUE, 0, 1));
+    }
+
+    /**
+     * Create a server with admission control (call {@code start()} to start it).
+     *
+     * @param address address to listen on (use port 0 for any free port)
+     * @param handler handles the requests
+     * @param admission decides when (and whether) each request is handled
+     */
+    public HttpdNioServer(InetSocketAddress address, HttpdHandler handler, HttpdAdmission admission) {
+        this.address = address;
+        this.handler = handler;
+        this.admission = admission;
+    }
+
+    /**
+     * Start listening, and start the selector thread.
+     *
+     * @throws IOException if the server cannot listen on the address
+     */
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(address, HttpConfig.HTTP_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        selectorThread = new Thread(new Runnable() {
+            public void run() { selectLoop(); }
+        }, "httpd-nio-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        ConsoleLogger.debug("NIO HTTP server listening on port %d", getPort());
+    }
+
+    /**
+     * Stop the server, closing all connections (requests being handled are abandoned).
+     */
+    public void stop() {
+        running = false;
+        if (selector == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return the port the server is listening on.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Return the buffer pool (for monitoring and benchmarks).
+     *
+     * @return the pool
+     */
+    public HttpdBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Accept, read and write until {@code stop()} is called (runs in the selector thread).
+     */
+    private void selectLoop() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        try {
+            while (running) {
+                selector.select(SWEEP_INTERVAL);
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    }
+                    catch (RuntimeException e) {
+                        ConsoleLogger.error("NIO HTTP server task failed, error='%s'", e);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        processKey(key);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    closeIdleConnections(now);
+                    if (serverKey.isValid() && serverKey.interestOps() == 0) {
+                        serverKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("NIO HTTP server failed, error='%s'", e.getMessage());
+        }
+        finally {
+            for (Connection connection : new HashSet<Connection>(connections)) {
+                connection.close();
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+            ConsoleLogger.debug("NIO HTTP server stopped");
+        }
+    }
+
+    /** accept, read or write, closing the connection if that fails unexpectedly */
+    private void processKey(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isAcceptable()) {
+                accept();
+            }
+            else {
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write();
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            if (connection != null) {
+                connection.fail(e);
+            }
+            else {
+                ConsoleLogger.error("NIO HTTP server failed to accept a connection, error='%s'", e);
+            }
+        }
+    }
+
+    /** accept all pending connections; a connection which cannot be set up is closed */
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            }
+            catch (IOException e) {
+                // the connection stays in the backlog; stop selecting for it until the next sweep, rather than spinning
+                ConsoleLogger.info("possible error: failed to accept a connection, pausing, error='%s'", e.getMessage());
+                serverKey.interestOps(0);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.add(connection);
+            }
+            catch (IOException e) {
+                // for example, the client reset the connection already
+                ConsoleLogger.info("possible error: failed to set up connection, error='%s'", e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        long idleSince = now - HttpConfig.HTTP_IDLE_TIMEOUT * 1000L;
+        for (Connection connection : new HashSet<Connection>(connections)) {
+            // only a connection whose handler is still running is exempt: a response which the client has stopped reading times out
+            if ((!connection.handling || connection.writing) && connection.lastActive < idleSince) {
+                ConsoleLogger.debug("closing %s connection from %s", connection.writing ? "stalled" : "idle", connection.remoteAddress);
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task the task
+     */
+    private void runOnSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Return the standard reason phrase for an HTTP status.
+     *
+     * @param httpStatus the status
+     * @return the reason phrase (empty if not known)
+     */
+    static String reasonPhrase(int httpStatus) {
+        switch (httpStatus) {
+            case 200: return "OK";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "";
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        }
+        catch (IOException e) { }
+    }
+
+    /** the state of one client connection (only touched by the selector thread) */
+    private final class Connection {
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.remoteAddress = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        /** read whatever is available, then parse and dispatch a request if one is complete */
+        void read() {
+            if (input == null) {
+                input = bufferPool.acquire();
+            }
+            int count;
+            try {
+                count = channel.read(input);
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            if (count < 0) {
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            processInput();
+        }
+
+        /** parse the buffered input: skip the rest of the previous body, then dispatch the next request */
+        void processInput() {
+            if (input == null) {
+                return;
+            }
+            input.flip();
+            if (bodyRemaining > 0) {
+                int skip = (int) Math.min(bodyRemaining, input.remaining());
+                input.position(input.position() + skip);
+                bodyRemaining -= skip;
+            }
+            int headerEnd = bodyRemaining > 0 ? -1 : findHeaderEnd(input);
+            if (headerEnd < 0) {
+                input.compact();
+                if (!input.hasRemaining()) {
+                    respondAndClose(431, "Request Header Fields Too Large");
+                }
+                else {
+                    releaseInputIfEmpty();
+                }
+                return;
+            }
+            byte[] head = new byte[headerEnd - input.position()];
+            input.get(head);
+            input.position(headerEnd + 4);
+            input.compact();
+            releaseInputIfEmpty();
+            parseAndDispatch(new String(head, StandardCharsets.ISO_8859_1));
+        }
+
+        /** give back the input buffer if nothing is left in it (the buffer is in write mode) */
+        void releaseInputIfEmpty() {
+            if (input.position() == 0) {
+                bufferPool.release(input);
+                input = null;
+            }
+        }
+
+        void parseAndDispatch(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                respondAndClose(400, "Bad Request");
+                return;
+            }
+            Map<String, String> headers = new LinkedHashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    respondAndClose(400, "Bad Request");
+                    return;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                if (!headers.containsKey(name)) {
+                    headers.put(name, lines[i].substring(colon + 1).trim());
+                }
+            }
+            final HttpdRequest request;
+            try {
+                URI uri = new URI(requestLine[1]);
+                request = new HttpdRequest(requestLine[0], requestLine[1], uri.getPath(), uri.getQuery(), headers, remoteAddress);
+                String contentLength = request.getHeader("Content-Length");
+                bodyRemaining = contentLength == null ? 0 : Long.parseLong(contentLength);
+                if (bodyRemaining < 0) {
+                    throw new NumberFormatException("negative Content-Length");
+                }
+            }
+            catch (URISyntaxException e) {
+                respondAndClose(400, "Bad Request");
+                return;
+            }
+            catch (NumberFormatException e) {
+                respondAndClose(400, "Bad Request");
+                return;
+            }
+            if (request.getHeader("Transfer-Encoding") != null) {
+                respondAndClose(501, "Not Implemented");
+                return;
+            }
+            String connectionHeader = request.getHeader("Connection");
+            if (requestLine[2].equals("HTTP/1.0")) {
+                keepAlive = "keep-alive".equalsIgnoreCase(connectionHeader);
+            }
+            else {
+                keepAlive = !"close".equalsIgnoreCase(connectionHeader);
+            }
+
+            // stop reading until the response has been sent, so that pipelined requests are handled in order
+            handling = true;
+            key.interestOps(0);
+            admission.submit(request, handler, new HttpdAdmission.Callback() {
+                public void done(DropboxStatus status) { respond(status, request.session); }
+            });
+        }
+
+        /** pass a response (from a worker thread, or the selector thread) to the selector to send */
+        void respond(DropboxStatus status, HttpSession session) {
+            FileChannel file = null;
+            byte[] formatted;
+            try {
+                if (status.getBodyFile() != null) {
+                    try {
+                        file = FileChannel.open(status.getBodyFile(), StandardOpenOption.READ);
+                    }
+                    catch (IOException e) {
+                        ConsoleLogger.error("cannot open %s, error='%s'", status.getBodyFile(), e.getMessage());
+                        status = new DropboxStatus(500, "Internal Server Error");
+                    }
+                }
+                formatted = formatResponse(status, session);
+            }
+            catch (RuntimeException e) {
+                // for example, the handler returned no status
+                ConsoleLogger.error("cannot format response to %s, error='%s'", remoteAddress, e);
+                closeQuietly(file);
+                file = null;
+                status = new DropboxStatus(500, "Internal Server Error");
+                formatted = formatResponse(status, null);
+            }
+            final byte[] response = formatted;
+            final FileChannel responseFile = file;
+            final long fileOffset = status.getBodyOffset();
+            final long fileLength = (file == null) ? 0 : status.getBodyLength();
+            if (Thread.currentThread() == selectorThread) {
+                send(response, responseFile, fileOffset, fileLength);
+            }
+            else {
+                runOnSelector(new Runnable() {
+                    public void run() {
+                        try {
+                            send(response, responseFile, fileOffset, fileLength);
+                        }
+                        catch (RuntimeException e) {
+                            fail(e);
+                        }
+                    }
+                });
+            }
+        }
+
+        /** format the status line, headers and (unless it is in a file) body of a response */
+        byte[] formatResponse(DropboxStatus status, HttpSession session) {
+            byte[] body = status.getBody();
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(status.httpStatus).append(' ').append(reasonPhrase(status.httpStatus)).append("\r\n");
+            head.append("Content-Length: ").append(status.getBodyLength()).append("\r\n");
+            for (Map.Entry<String, String> header : status.getHeaders().entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (session != null) {
+                for (String cookie : session.getResponseCookies()) {
+                    head.append("Set-Cookie: ").append(cookie).append("\r\n");
+                }
+            }
+            head.append(keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+            head.append("\r\n");
+            byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+            byte[] response = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+            System.arraycopy(body, 0, response, headBytes.length, body.length);
+            return response;
+        }
+
+        /** send an error response and close the connection once it has been sent */
+        void respondAndClose(int httpStatus, String message) {
+            keepAlive = false;
+            handling = true;
+            if (key.isValid()) {
+                key.interestOps(0);
+            }
+            send(formatResponse(new DropboxStatus(httpStatus, message), null), null, 0, 0);
+        }
+
+        /**
+         * Start sending a response (in the selector thread).
+         *
+         * @param response head and body of the response, or just the head if the body is in a file
+         * @param file file containing the body, or null (it is closed once it has been sent)
+         * @param fileOffset position of the body in the file
+         * @param fileLength length of the body in the file
+         */
+        void send(byte[] response, FileChannel file, long fileOffset, long fileLength) {
+            if (!channel.isOpen()) {
+                closeQuietly(file);
+                return;
+            }
+            this.writing = true;
+            this.lastActive = System.currentTimeMillis();
+            this.response = response;
+            this.responseOffset = 0;
+            this.file = file;
+            this.filePosition = fileOffset;
+            this.fileRemaining = fileLength;
+            write();
+        }
+
+        /** send as much of the response as the socket will take */
+        void write() {
+            if (output == null) {
+                output = bufferPool.acquire();
+                output.flip();
+            }
+            try {
+                while (true) {
+                    if (!output.hasRemaining()) {
+                        if (responseOffset == response.length) {
+                            break;
+                        }
+                        output.clear();
+                        int count = Math.min(output.capacity(), response.length - responseOffset);
+                        output.put(response, responseOffset, count);
+                        output.flip();
+                        responseOffset += count;
+                    }
+                    if (channel.write(output) == 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    lastActive = System.currentTimeMillis();
+                }
+                // the body is in a file: copy it straight to the socket
+                while (fileRemaining > 0) {
+                    long count = file.transferTo(filePosition, fileRemaining, channel);
+                    if (count == 0) {
+                        if (filePosition >= file.size()) {
+                            throw new EOFException("file is shorter than expected");
+                        }
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    filePosition += count;
+                    fileRemaining -= count;
+                    lastActive = System.currentTimeMillis();
+                }
+            }
+            catch (IOException e) {
+                close();
+                return;
+            }
+            closeQuietly(file);
+            file = null;
+            bufferPool.release(output);
+            output = null;
+            response = null;
+            lastActive = System.currentTimeMillis();
+            handling = false;
+            writing = false;
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // handle any pipelined request which has already been read
+            processInput();
+        }
+
+        /** close the connection after an unexpected exception */
+        void fail(RuntimeException e) {
+            ConsoleLogger.error("closing connection from %s after an unexpected error, error='%s'", remoteAddress, e);
+            close();
+        }
+
+        void close() {
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            if (input != null) {
+                bufferPool.release(input);
+                input = null;
+            }
+            if (output != null) {
+                bufferPool.release(output);
+                output = null;
+            }
+            closeQuietly(file);
+            file = null;
+        }
+
+        final SocketChannel channel;
+        final InetSocketAddress remoteAddress;
+        SelectionKey key;
+        long lastActive;
+        /** true from when a request has been parsed until its response has been sent */
+        boolean handling = false;
+        /** true while a response is being sent (it times out if the client stops reading it) */
+        boolean writing = false;
+        boolean keepAlive = true;
+        /** unparsed input (in write mode), or null if there is none */
+        ByteBuffer input = null;
+        /** bytes of the current request body still to be discarded */
+        long bodyRemaining = 0;
+        /** the part of the response being written (in read mode), or null if there is none */
+        ByteBuffer output = null;
+        byte[] response = null;
+        int responseOffset = 0;
+        /** file containing the rest of the response body, or null if there is none */
+        FileChannel file = null;
+        long filePosition = 0;
+        long fileRemaining = 0;
+    }
+
+    /**
+     * Find the blank line which ends the request headers.
+     *
+     * @param buffer buffer in read mode (its position is not changed)
+     * @return index of the {@code \r\n\r\n}, or -1 if it has not been received yet
+     */
+    private static int findHeaderEnd(ByteBuffer buffer) {
+        for (int i = buffer.position(); i + 3 < buffer.limit(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** largest request head (request line and headers) accepted; longer heads get status 431 */
+    static final int BUFFER_SIZE = 16 * 1024;
+    /** how often (in milliseconds) idle connections are looked for */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final InetSocketAddress address;
+    private final HttpdHandler handler;
+    private final HttpdAdmission admission;
+    private final HttpdBufferPool bufferPool = new HttpdBufferPool(BUFFER_SIZE, 256);
+    /** tasks to be run on the selector thread (responses from worker threads) */
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    /** open connections (only touched by the selector thread) */
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey serverKey;
+    private Thread selectorThread;
+    private volatile boolean running = false;
+
+}
@@ -0,0 +1,94 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A request received by the local HTTP server (see {@link HttpdHandler}).
+ *
+ */
+public class HttpdRequest {
+
+    /** request method, eg {@code GET} */
+    public final String method;
+
+    /** request target as sent by the browser, eg {@code /dropbox-auth-finish?state=...} */
+    public final String uri;
+
+    /** decoded path of the request target */
+    public final String uriPath;
+
+    /** decoded query string of the request target, or null if there is none */
+    public final String queryString;
+
+    /** the browser session (created from the {@code Cookie} header) */
+    public final HttpSession session;
+
+    /** address of the browser (may be null if not known) */
+    public final InetSocketAddress remoteAddress;
+
+    /**
+     * Create a request.
+     *
+     * @param method request method
+     * @param uri request target as sent by the browser
+     * @param uriPath decoded path
+     * @param queryString decoded query string, or null
+     * @param headers request headers (names are matched case-insensitively; only the first value of each is kept)
+     * @param remoteAddress address of the browser, or null
+     */
+    public HttpdRequest(String method, String uri, String uriPath, String queryString,
+            Map<String, String> headers, InetSocketAddress remoteAddress) {
+        this.method = method;
+        this.uri = uri;
+        this.uriPath = uriPath;
+        this.queryString = queryString;
+        this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.putAll(headers);
+        this.remoteAddress = remoteAddress;
+        this.session = new HttpSession(this.headers.get("Cookie"));
+    }
+
+    /**
+     * Return the parameters of the query string.
+     *
+     * <p>The query string is parsed (from the raw request target, so an encoded {@code &} or {@code =} in a value is
+     * not mistaken for a separator) the first time this is called.
+     *
+     * @return the parameters (with none if there is no query string)
+     */
+    public QueryString getQuery() {
+        QueryString parsed = query;
+        if (parsed == null) {
+            parsed = QueryString.fromUri(uri);
+            query = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Return the value of a request header.
+     *
+     * @param name header name (case-insensitive)
+     * @return the value, or null if the browser did not send the header
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Return all of the request headers.
+     *
+     * @return unmodifiable map of header name to value (case-insensitive)
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    private final TreeMap<String, String> headers;
+    /** the parsed query string (null until getQuery() is first called) */
+    private volatile QueryString query = null;
+
+}
@@ -0,0 +1,197 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dispatches requests to the handler registered for their path and method.
+ *
+ * <p>Routes are either exact paths (eg {@code /home}) or path prefixes ending in {@code /} (eg {@code /doc/}). Both
+ * are held in hash maps: an exact path is a single lookup, and a prefix is found by looking up each of the request
+ * path's parent directories, longest first. The cost of routing therefore depends on the depth of the request path,
+ * not on the number of routes. An exact route is preferred to a prefix route.
+ *
+ * <p>If a route matches the path but has no handler for the request method, the router returns 405 with an
+ * {@code Allow} header; if nothing matches, 404. Routes may be added while the server is running.
+ *
+ * <p>Each route has a priority. When the server is busy, {@link HttpdAdmission} serves the queued requests with the
+ * highest priority first, and refuses the lowest priority requests first.
+ *
+ * <p>Example:
+ * <p>{@code router.addExact("GET", "/home", homePageHandler);}
+ * <p>{@code router.addPrefix("GET", "/doc/", docFileHandler);}
+ *
+ */
+public class HttpdRouter implements HttpdHandler {
+
+    /**
+     * Add a route for an exact path.
+     *
+     * @param method request method (eg {@code GET}), or {@code ANY_METHOD} to match every method
+     * @param path the path, eg {@code /home}
+     * @param handler handles the requests
+     * @return this router, so that calls can be chained
+     */
+    public HttpdRouter addExact(String method, String path, HttpdHandler handler) {
+        return addExact(method, path, handler, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Add a route for an exact path, with a priority.
+     *
+     * @param method request method (eg {@code GET}), or {@code ANY_METHOD} to match every method
+     * @param path the path, eg {@code /home}
+     * @param handler handles the requests
+     * @param priority priority of the requests when the server is busy (eg {@code PRIORITY_HIGH})
+     * @return this router, so that calls can be chained
+     */
+    public HttpdRouter addExact(String method, String path, HttpdHandler handler, int priority) {
+        addRoute(exactRoutes, path, method, handler, priority);
+        return this;
+    }
+
+    /**
+     * Add a route for every path beginning with a prefix.
+     *
+     * @param method request method (eg {@code GET}), or {@code ANY_METHOD} to match every method
+     * @param prefix the prefix, which must start and end with {@code /}, eg {@code /doc/}
+     * @param handler handles the requests
+     * @return this router, so that calls can be chained
+     *
+     * @throws IllegalArgumentException if the prefix does not start and end with {@code /}
+     */
+    public HttpdRouter addPrefix(String method, String prefix, HttpdHandler handler) {
+        return addPrefix(method, prefix, handler, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Add a route for every path beginning with a prefix, with a priority.
+     *
+     * @param method request method (eg {@code GET}), or {@code ANY_METHOD} to match every method
+     * @param prefix the prefix, which must start and end with {@code /}, eg {@code /doc/}
+     * @param handler handles the requests
+     * @param priority priority of the requests when the server is busy (eg {@code PRIORITY_LOW})
+     * @return this router, so that calls can be chained
+     *
+     * @throws IllegalArgumentException if the prefix does not start and end with {@code /}
+     */
+    public HttpdRouter addPrefix(String method, String prefix, HttpdHandler handler, int priority) {
+        if (!prefix.startsWith("/") || !prefix.endsWith("/")) {
+            throw new IllegalArgumentException(String.format("route prefix '%s' must start and end with '/'", prefix));
+        }
+        addRoute(prefixRoutes, prefix, method, handler, priority);
+        return this;
+    }
+
+    /**
+     * Pass a request to the handler for its path and method.
+     *
+     * @param request the request
+     * @return the handler's response, or status 404 or 405
+     *
+     * @throws IOException if the handler fails
+     */
+    public DropboxStatus handle(HttpdRequest request) throws IOException {
+        Route route = find(request.uriPath);
+        if (route == null) {
+            ConsoleLogger.debug("no route for %s", request.uriPath);
+            return new DropboxStatus(404, "Not Found");
+        }
+        HttpdHandler handler = route.handlers.get(request.method.toUpperCase(Locale.ROOT));
+        if (handler == null) {
+            handler = route.handlers.get(ANY_METHOD);
+        }
+        if (handler == null) {
+            ConsoleLogger.debug("method %s not allowed for %s", request.method, request.uriPath);
+            return new DropboxStatus(405, "Method Not Allowed").setHeader("Allow", route.allow);
+        }
+        return handler.handle(request);
+    }
+
+    /**
+     * Return the priority of a request (used by {@link HttpdAdmission} to decide which requests to serve first).
+     *
+     * @param request the request
+     * @return the priority of the request's route (the highest given for any of its methods), or {@code PRIORITY_LOW}
+     *         if there is no route for it
+     */
+    public int getPriority(HttpdRequest request) {
+        Route route = find(request.uriPath);
+        return (route == null) ? PRIORITY_LOW : route.priority;
+    }
+
+    /**
+     * Find the route for a path.
+     *
+     * @param path the request path
+     * @return the exact route for the path, or the route for its longest matching prefix, or null if there is none
+     */
+    private Route find(String path) {
+        if (path == null) {
+            return null;
+        }
+        Route route = exactRoutes.get(path);
+        if (route != null) {
+            return route;
+        }
+        int slash = path.lastIndexOf('/');
+        while (slash >= 0) {
+            route = prefixRoutes.get(path.substring(0, slash + 1));
+            if (route != null) {
+                return route;
+            }
+            slash = path.lastIndexOf('/', slash - 1);
+        }
+        return null;
+    }
+
+    private static void addRoute(Map<String, Route> routes, String path, String method, HttpdHandler handler, int priority) {
+        synchronized (routes) {
+            Route previous = routes.get(path);
+            Map<String, HttpdHandler> handlers = new LinkedHashMap<String, HttpdHandler>();
+            if (previous != null) {
+                handlers.putAll(previous.handlers);
+                priority = Math.max(priority, previous.priority);
+            }
+            handlers.put(method.toUpperCase(Locale.ROOT), handler);
+            // routes are replaced rather than changed, so that requests can be routed without locking
+            routes.put(path, new Route(handlers, priority));
+        }
+    }
+
+    /** the handlers for one path (or prefix), by method */
+    private static final class Route {
+        final Map<String, HttpdHandler> handlers;
+        final int priority;
+        /** value of the Allow header sent with 405 */
+        final String allow;
+        Route(Map<String, HttpdHandler> handlers, int priority) {
+            this.handlers = handlers;
+            this.priority = priority;
+            StringBuilder methods = new StringBuilder();
+            for (String method : handlers.keySet()) {
+                if (!method.equals(ANY_METHOD)) {
+                    methods.append((methods.length() == 0) ? "" : ", ").append(method);
+                }
+            }
+            this.allow = methods.toString();
+        }
+    }
+
+    /** use as the method of a route which handles every method */
+    public static final String ANY_METHOD = "*";
+
+    /** priority of requests which can wait, or be refused, when the server is busy (eg documentation) */
+    public static final int PRIORITY_LOW = 0;
+    /** priority of routes added without a priority */
+    public static final int PRIORITY_NORMAL = 5;
+    /** priority of requests which must be served first when the server is busy (eg the finish page) */
+    public static final int PRIORITY_HIGH = 10;
+
+    private final Map<String, Route> exactRoutes = new ConcurrentHashMap<String, Route>();
+    private final Map<String, Route> prefixRoutes = new ConcurrentHashMap<String, Route>();
+
+}
@@ -3,6 +3,7 @@ package uk.org.rozanski.oauth_demo.lib;
 import java.io.*;
 
 import java.net.*;
+import java.util.concurrent.ExecutorService;
 import com.sun.net.httpserver.*;
 
 /**
@@ -10,10 +11,15 @@ import com.sun.net.httpserver.*;
  *
  * <p>The server listens on host {@code HttpConfig.HTTP_SERVER} and port {@code HttpConfig.HTTP_PORT}.
  * It runs indefinitely until the user interrupts using control-C.
+ * Requests are handled on the executor selected by {@code HttpConfig.EXECUTOR_MODE} (see {@link HttpdExecutors}),
+ * in order of priority, and are limited by {@link HttpdAdmission}.
+ * The HTTP engine is selected by {@code HttpConfig.ENGINE_MODE}: either the JDK's {@code com.sun.net.httpserver}
+ * or {@link HttpdNioServer}.
  *
- * It serves various URLs, including:
+ * It serves the URLs configured in an {@link HttpdRouter}, including:
  * <ul>
  * <li>{@code HttpConfig.HOME_PAGE} - display a home page (use this to test that the server is running ok)
+ * <li>{@code HttpConfig.START_PAGE} - run the start step of the Dropbox redirect workflow from the browser.
  * <li>{@code HttpConfig.FINISH_PAGE} - run the finish step of the Dropbox redirect workflow.
  * </ul>
  *
@@ -30,19 +36,64 @@ public class HttpdServer {
     public static void startServer() throws IOException {
 
         InetSocketAddress inetSocketAddress = new InetSocketAddress(HttpConfig.HTTP_SERVER, HttpConfig.HTTP_PORT);
-        httpd = HttpServer.create(inetSocketAddress, 0);
-
-        HttpdUrlHandler httpHandler = new HttpdUrlHandler();
-        httpd.createContext("/", httpHandler);
+        // add any new routes here
+        HttpdRouter router = HttpdUrlHandler.addStandardRoutes(new HttpdRouter());
+        HttpdUrlHandler httpHandler = new HttpdUrlHandler(router);
+        if (HttpConfig.ENGINE_NIO.equals(HttpConfig.ENGINE_MODE)) {
+            executor = HttpdExecutors.create();
+            nioServer = new HttpdNioServer(inetSocketAddress, httpHandler, HttpdAdmission.create(executor, router));
+        }
+        else if (HttpConfig.ENGINE_JDK.equals(HttpConfig.ENGINE_MODE)) {
+            httpd = createJdkServer(inetSocketAddress);
+            executor = HttpdExecutors.create();
+            // the dispatcher thread only queues requests; HttpdAdmission runs them on the executor
+            httpd.createContext("/", new HttpdJdkHandler(httpHandler, HttpdAdmission.create(executor, router)));
+        }
+        else {
+            throw new IllegalArgumentException(String.format("unknown HTTP engine '%s'", HttpConfig.ENGINE_MODE));
+        }
+        ConsoleLogger.debug("HTTP server engine is '%s', executor mode is '%s'", HttpConfig.ENGINE_MODE, HttpConfig.EXECUTOR_MODE);
         ConsoleLogger.debug("initialised HTTP server, finish URL is '%s'", HttpConfig.FINISH_URL.toString());
 
+        // build the Dropbox SDK objects now, rather than in the first request
+        DropboxWorkflowEngine.get();
+
         ConsoleLogger.info("About to start the httpd server on '%s' listening on port %d...", HttpConfig.HTTP_SERVER, HttpConfig.HTTP_PORT);
         ConsoleLogger.info("Browse to the home page '%s' to test the server", HttpConfig.HOME_URL.toString());
-        httpd.start();
+        if (nioServer != null) {
+            nioServer.start();
+        }
+        else {
+            httpd.start();
+        }
+        CsrfTokenSweeper.start();
+        PostAuthPipeline.get().start();
 
         ConsoleLogger.info("Http server is running, press <Ctrl-C> to stop");
     }
 
+    /**
+     * Create (but do not start) a JDK HTTP server.
+     *
+     * <p>The server queues at most {@code HttpConfig.HTTP_BACKLOG} connections waiting to be accepted.
+     *
+     * <p>Unless it has been set on the command line, this sets the system property
+     * {@code sun.net.httpserver.nodelay}, which must be set before the first server is created. Without it, the server
+     * writes the headers and body of a kept-alive response separately with Nagle's algorithm enabled, and each
+     * request then waits around 40 ms for the browser's delayed ACK.
+     *
+     * @param inetSocketAddress address to listen on
+     * @return the server
+     *
+     * @throws IOException if the server cannot listen on the address
+     */
+    public static HttpServer createJdkServer(InetSocketAddress inetSocketAddress) throws IOException {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        return HttpServer.create(inetSocketAddress, HttpConfig.HTTP_BACKLOG);
+    }
+
     /**
      *
      * This function waits for the user to press Ctrl-C, after which it stops the HTTP server and returns.
@@ -84,10 +135,29 @@ public class HttpdServer {
     public static void stopServer() throws IOException {
 
         ConsoleLogger.info("\nStopping httpd server...");
-        httpd.stop(0);
+        if (nioServer != null) {
+            nioServer.stop();
+            nioServer = null;
+        }
+        else {
+            httpd.stop(0);
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        CsrfTokenSweeper.stop();
+        PostAuthPipeline.get().stop(POST_AUTH_STOP_TIMEOUT);
     }
 
+    /** seconds to wait for running post-authorisation tasks when the server stops */
+    private static final int POST_AUTH_STOP_TIMEOUT = 10;
+
     private static HttpServer httpd;
+    /** the server, if {@code HttpConfig.ENGINE_MODE} is {@code ENGINE_NIO} (otherwise null) */
+    private static HttpdNioServer nioServer;
+    /** runs the request handlers (null if they run on the dispatcher thread) */
+    private static ExecutorService executor;
 
 }
 
@@ -11,15 +11,15 @@ import java.net.MalformedURLException;
 /**
  * URL handler for the HTTP server.
  *
- * <p>This class performs the necessary actions when the server receives a request.
+ * <p>This class performs the necessary actions when the server receives a request. It serves requests from either
+ * HTTP engine: the JDK's {@code com.sun.net.httpserver} or {@link HttpdNioServer}, and dispatches them to the
+ * handlers configured in an {@link HttpdRouter}.
  *
  */
-public class HttpdUrlHandler implements HttpHandler {
+public class HttpdUrlHandler implements HttpHandler, HttpdHandler {
 
     /**
-     * Handle a GET request sent to the local HTTP server. (POSTs are ignored.)
-     *
-     * <p>The method sends the appropriate HTTP headers and message body back to the browser.
+     * Handle a request received by the JDK's HTTP server (see {@link HttpdJdkHandler}).
      *
      * @param exchange contains the request URL
      *
@@ -27,120 +27,158 @@ public class HttpdUrlHandler implements HttpHandler {
      *
      */
     public void handle(HttpExchange exchange) throws IOException {
-        String requestMethod = exchange.getRequestMethod();
+        jdkHandler.handle(exchange);
+    }
 
-        if (requestMethod.equalsIgnoreCase("GET")) {
-            URI uri = exchange.getRequestURI();
-            String uriPath = uri.getPath();
-            String queryString = uri.getQuery();
-            HttpLatestUrlFile.saveLatestUrl(uri.toString());
-            ConsoleLogger.debug("handling GET request '%s', query string '%s'", uriPath, queryString);
+    /**
+     * Create a handler which serves the standard routes (see {@code addStandardRoutes()}).
+     */
+    public HttpdUrlHandler() {
+        this(addStandardRoutes(new HttpdRouter()));
+    }
 
-            DropboxStatus statusAndResponse = getStatusAndResponse(uriPath, queryString);
-            ConsoleLogger.debug("HTTP status is %d", statusAndResponse.httpStatus);
+    /**
+     * Create a handler which serves the routes configured in a router.
+     *
+     * @param router the router
+     */
+    public HttpdUrlHandler(HttpdRouter router) {
+        this.router = router;
+    }
 
-            // exchange.sendResponseHeaders(statusAndResponse.httpStatus, statusAndResponse.message.length());
-            exchange.sendResponseHeaders(statusAndResponse.httpStatus, 0);
-            OutputStream os = exchange.getResponseBody();
-            os.write(statusAndResponse.message.getBytes());
-            os.close();
+    /**
+     * Handle a request sent to the local HTTP server, whichever HTTP engine received it.
+     *
+     * <p>The URL of every GET request is saved in the latest URL file (see {@link HttpLatestUrlFile}), and the request
+     * is then passed to the router.
+     *
+     * @param request the request
+     * @return the HTTP status and page to send back
+     *
+     * @throws IOException if there is an error reading the file
+     */
+    public DropboxStatus handle(HttpdRequest request) throws IOException {
+        if (request.method.equalsIgnoreCase("GET")) {
+            HttpLatestUrlFile.saveLatestUrl(request.uri);
+            HttpLatestUrlFile.URL_REQUESTED.publish(request.uri);
         }
+        ConsoleLogger.debug("handling %s request '%s', query string '%s'", request.method, request.uriPath, request.queryString);
+        DropboxStatus statusAndResponse = router.handle(request);
+        ConsoleLogger.debug("HTTP status is %d", statusAndResponse.httpStatus);
+        return statusAndResponse;
     }
 
     /**
-     * Processes a request sent to the HTTP server.
+     * Add the demo's routes to a router.
      *
-     * <p>This will be one of:
+     * <p>These are (all for GET requests):
      *
      * <p><b>{@code HttpConfig.HOME_PAGE}</b>
-     * <p>The method displays a home page (use this to test that the server is running ok)
+     * <p>Display a home page (use this to test that the server is running ok)
      *
      * <p><b>{@code HttpConfig.FINISH_PAGE}</b>
      * <p>The user has been redirected here by the Dropbox website. The redirection URL includes the authorisation code
      * which will be used to generate the Dropbox token.
-     * The method runs the finish step of the Dropbox redirect workflow by calling {@code DropboxWorkflowRedirect.httpdHandleFinishAndSave()}.
+     * The route runs the finish step of the Dropbox redirect workflow by calling {@code DropboxWorkflowRedirect.httpdHandleFinishAndSave()}.
      *
-     * @param uriPath The URL sent to the HTTP server
-     * @param queryString The query string in the URL
+     * <p><b>{@code HttpConfig.START_PAGE}</b>
+     * <p>The user wants to start the redirect workflow from the browser. The route runs the start step of the workflow
+     * by calling {@code DropboxWorkflowRedirect.httpdHandleStart()}, and redirects the browser to Dropbox.
      *
-     * @return a DropboxStatus containing the HTTP status code and other information
+     * <p><b>{@code /doc/}</b>
+     * <p>Files under this prefix are served from {@code CommonConfig.DOC_DIRECTORY} by an {@link HttpdFileHandler}.
      *
-     * @throws IOException if there is an error reading the file
-     * @throws MalformedURLException if a malformed URL is received
+     * <p><b>{@code /favicon.ico}</b>
+     * <p>The demo has no icon, so this is answered with 404 without logging it as an invalid page.
+     *
+     * <p>When the server is busy, the start and finish pages are served first, and the documentation and icon last
+     * (see {@link HttpdAdmission}).
+     *
+     * @param router the router
+     * @return the router
      *
      * @see DropboxStatus
      */
-    DropboxStatus getStatusAndResponse(String uriPath, String queryString) throws IOException, MalformedURLException {
-        ConsoleLogger.debug("In getStatusAndResponse, uriPath is %s", uriPath);
-        if (uriPath.endsWith(HttpConfig.FINISH_PAGE)) {
-            ConsoleLogger.debug("handling OAuth finish page");
-            return DropboxWorkflowRedirect.httpdHandleFinishAndSave(uriPath, queryString);
-        }
-        else if (uriPath.endsWith(HttpConfig.HOME_PAGE)) {
-
-            ConsoleLogger.debug("handling home page");
-            String response = String.format(
-                    "<h1>BCS SPA 2014 OAuth Demo</h1>\n" +
-                    "<p>This is the local home page for the OAuth Demo.\n" +
-                    "If you can read this your Java HTTP server is running successfully.</p>\n" +
-                    "<h2>Configuration</h2>\n" +
-                    "APP_NAME: <code>%s</code><br>\n" +
-                    "DEMO_DIRECTORY: <code>%s</code><br>\n" +
-                    "DOC_DIRECTORY: <code>%s</code><br>\n" +
-                    "FILES_DIRECTORY: <code>%s</code><br>\n" +
-                    "APP_KEY: <code>%s</code><br>\n" +
-                    "APP_SECRET: <code>%s</code><br>\n" +
-                    "ACCESS_TOKEN_FILE: <code>%s</code>\n",
-                   AppData.APP_NAME, CommonConfig.DEMO_DIRECTORY, CommonConfig.DOC_DIRECTORY, CommonConfig.FILES_DIRECTORY,
-                   AppData.APP_KEY, AppData.APP_SECRET, AccessData.ACCESS_TOKEN_FILE);
-            response += String.format(
-                    "<h2>Help</h2>\n" +
-                    "<dl>\n" +
-                    "<dt>SPA conference session page:</dt><dd>%s</dd>\n" +
-                    "<dt>Dropbox Java SDK:</dt><dd>%s</dd>\n" +
-                    "<dt>Java language reference:</dt><dd>%s</dd>\n" +
-                    "<dt>Dropbox developer page for demo app:</dt><dd>%s</dd>\n" +
-                    "</dl>\n",
-                   makeAnchor("http://spaconference.org/spa2014/sessions/session576.html"),
-                   makeAnchor("http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/"),
-                   makeAnchor("http://docs.oracle.com/javase/8/docs/api/index.html"),
-                   makeAnchor(AppData.APP_WEBSITE));
-            response += String.format(
-                    "<h2>Documentation</h2>\n" +
-                    "<p>The javadoc files for the demo classes are here: <code>%s</code>\n" +
-                    "<p>Click this link to view the javadoc in your browser: %s\n",
-                   CommonConfig.DOC_DIRECTORY + File.separator + "oauth_demo" + File.separator,
-                   makeAnchor(getDocumentationRootUrl(), true));
-            return new DropboxStatus(200,DropboxStatus.makePage(response));
-
-        }
-        else if (uriPath.startsWith("/doc/")) {
-            // chop off the initial '/doc/' and turn slashes into \ for Windows
-            String docRelativePath = uriPath.substring(5).replace("/",File.separator);
-            String docFullPath = CommonConfig.DOC_DIRECTORY + File.separator + docRelativePath;
-            File docFile = new File(docFullPath);
-
-            if (docFile.exists()) {
-                ConsoleLogger.debug("serving contents of %s (URL is %s)", docFullPath, uriPath);
-                String docFileContents = new String(Files.readAllBytes(Paths.get(docFullPath)), StandardCharsets.UTF_8);
-                return new DropboxStatus(200, docFileContents);
+    public static HttpdRouter addStandardRoutes(HttpdRouter router) {
+        router.addExact("GET", "/" + HttpConfig.HOME_PAGE, new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) throws IOException {
+                ConsoleLogger.debug("handling home page");
+                return new DropboxStatus(200, DropboxStatus.makePage(getHomePageBody()));
             }
-            else {
-                ConsoleLogger.debug("DOCUMENTATION FILE NOT FOUND - URL=%s, file path=%s", uriPath, docFullPath);
-                ConsoleLogger.debug("You must run 'mvn site' to view the documentation");
-                return new DropboxStatus(404,  String.format("Not Found (file path=%s) - you must run 'mvn site' to view the documentation", docFullPath));
-
+        });
+        router.addExact("GET", "/" + HttpConfig.START_PAGE, new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) throws IOException {
+                ConsoleLogger.debug("handling OAuth start page");
+                return DropboxWorkflowRedirect.httpdHandleStart(request.session);
             }
+        }, HttpdRouter.PRIORITY_HIGH);
+        router.addExact("GET", "/" + HttpConfig.FINISH_PAGE, new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) throws IOException {
+                ConsoleLogger.debug("handling OAuth finish page");
+                return DropboxWorkflowRedirect.httpdHandleFinishAndSave(request.uriPath, request.getQuery(), request.session);
+            }
+        }, HttpdRouter.PRIORITY_HIGH);
+        router.addPrefix("GET", DOC_URL_PREFIX, new HttpdFileHandler(Paths.get(CommonConfig.DOC_DIRECTORY), DOC_URL_PREFIX,
+                String.format("Not Found - you must run 'mvn site' to view the documentation in %s", CommonConfig.DOC_DIRECTORY)),
+                HttpdRouter.PRIORITY_LOW);
+        router.addExact("GET", "/favicon.ico", new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) {
+                return new DropboxStatus(404, "Not Found");
+            }
+        }, HttpdRouter.PRIORITY_LOW);
+        return router;
+    }
 
+    /**
+     * return the body of the home page
+     *
+     * <p>The body only depends on the configuration, so it is built once and then reused.
+     *
+     * @throws MalformedURLException if a malformed URL is received
+     * @return HTML for the body of the home page
+     */
+    private static String getHomePageBody() throws MalformedURLException {
+        if (homePageBody != null) {
+            return homePageBody;
         }
-        else if (uriPath.endsWith("favicon.ico")) {
-            ConsoleLogger.debug("handling favicon.ico");
-            return new DropboxStatus(404, "Not Found");
-        }
-        else {
-            ConsoleLogger.debug("handling invalid page %s", uriPath);
-            return new DropboxStatus(404, "Not Found");
-        }
+        String response = String.format(
+                "<h1>BCS SPA 2014 OAuth Demo</h1>\n" +
+                "<p>This is the local home page for the OAuth Demo.\n" +
+                "If you can read this your Java HTTP server is running successfully.</p>\n" +
+                "<h2>Configuration</h2>\n" +
+                "APP_NAME: <code>%s</code><br>\n" +
+                "DEMO_DIRECTORY: <code>%s</code><br>\n" +
+                "DOC_DIRECTORY: <code>%s</code><br>\n" +
+                "FILES_DIRECTORY: <code>%s</code><br>\n" +
+                "APP_KEY: <code>%s</code><br>\n" +
+                "APP_SECRET: <code>%s</code><br>\n" +
+                "ACCESS_TOKEN_FILE: <code>%s</code>\n",
+               AppData.APP_NAME, CommonConfig.DEMO_DIRECTORY, CommonConfig.DOC_DIRECTORY, CommonConfig.FILES_DIRECTORY,
+               AppData.APP_KEY, AppData.APP_SECRET, AccessData.ACCESS_TOKEN_FILE);
+        response += String.format(
+                "<h2>Help</h2>\n" +
+                "<dl>\n" +
+                "<dt>SPA conference session page:</dt><dd>%s</dd>\n" +
+                "<dt>Dropbox Java SDK:</dt><dd>%s</dd>\n" +
+                "<dt>Java language reference:</dt><dd>%s</dd>\n" +
+                "<dt>Dropbox developer page for demo app:</dt><dd>%s</dd>\n" +
+                "</dl>\n",
+               makeAnchor("http://spaconference.org/spa2014/sessions/session576.html"),
+               makeAnchor("http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/"),
+               makeAnchor("http://docs.oracle.com/javase/8/docs/api/index.html"),
+               makeAnchor(AppData.APP_WEBSITE));
+        response += String.format(
+                "<h2>Authorisation</h2>\n" +
+                "<p>Click this link to run the redirect workflow from this browser: %s\n",
+               makeAnchor(HttpConfig.START_URL.toString(), false));
+        response += String.format(
+                "<h2>Documentation</h2>\n" +
+                "<p>The javadoc files for the demo classes are here: <code>%s</code>\n" +
+                "<p>Click this link to view the javadoc in your browser: %s\n",
+               CommonConfig.DOC_DIRECTORY + File.separator + "oauth_demo" + File.separator,
+               makeAnchor(getDocumentationRootUrl(), true));
+        homePageBody = response;
+        return response;
     }
 
     /**
@@ -170,5 +208,15 @@ public class HttpdUrlHandler implements HttpHandler {
         ConsoleLogger.info("documentation URL is %s", rootUrl);
         return rootUrl;
     }
-}
 
+    private final HttpdRouter router;
+    /** runs this handler on the JDK's HTTP server */
+    private final HttpdJdkHandler jdkHandler = new HttpdJdkHandler(this);
+
+    /** URLs starting with this are served from CommonConfig.DOC_DIRECTORY */
+    static final String DOC_URL_PREFIX = "/doc/";
+
+    /** the body of the home page, once it has been built */
+    private static volatile String homePageBody = null;
+
+}
@@ -0,0 +1,377 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming (pull) JSON reader which decodes directly from UTF-8 bytes.
+ *
+ * <p>This replaces json-simple for the small JSON files used by the demo. Rather than building a map of the whole
+ * document, the caller pulls out the members it wants and skips the rest, so reading a file creates only the strings
+ * which are actually used.
+ *
+ * <p>Usage:
+ * <pre>
+ *     JsonReader reader = new JsonReader(bytes, 0, bytes.length);
+ *     reader.beginObject();
+ *     while (reader.hasNext()) {
+ *         String name = reader.nextName();
+ *         if (name.equals("access_token")) {
+ *             accessToken = reader.nextString();
+ *         }
+ *         else {
+ *             reader.skipValue();
+ *         }
+ *     }
+ *     reader.endObject();
+ * </pre>
+ *
+ * <p>Malformed input throws an {@code IOException} which gives the offset of the error.
+ *
+ */
+public class JsonReader {
+
+    /**
+     * Create a reader.
+     *
+     * @param buffer UTF-8 encoded JSON
+     * @param offset offset of the start of the JSON in the buffer
+     * @param length length of the JSON
+     */
+    public JsonReader(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    /**
+     * Consume the start of an object.
+     *
+     * @throws IOException if the next value is not an object
+     */
+    public void beginObject() throws IOException {
+        expect('{');
+        first = true;
+    }
+
+    /**
+     * Consume the end of an object.
+     *
+     * @throws IOException if the object has more members
+     */
+    public void endObject() throws IOException {
+        expect('}');
+        first = false;
+    }
+
+    /**
+     * Consume the start of an array.
+     *
+     * @throws IOException if the next value is not an array
+     */
+    public void beginArray() throws IOException {
+        expect('[');
+        first = true;
+    }
+
+    /**
+     * Consume the end of an array.
+     *
+     * @throws IOException if the array has more elements
+     */
+    public void endArray() throws IOException {
+        expect(']');
+        first = false;
+    }
+
+    /**
+     * Check whether the current object or array has another member or element.
+     *
+     * @return true if there is another member or element
+     *
+     * @throws IOException if the input is malformed
+     */
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        if (!first) {
+            expect(',');
+        }
+        first = false;
+        return true;
+    }
+
+    /**
+     * Consume the name of the next member of the current object.
+     *
+     * @return the name
+     *
+     * @throws IOException if the input is malformed
+     */
+    public String nextName() throws IOException {
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Consume a string value.
+     *
+     * @return the value, or null if the value is {@code null}
+     *
+     * @throws IOException if the value is not a string or null
+     */
+    public String nextString() throws IOException {
+        if (peek() == 'n') {
+            readLiteral("null");
+            return null;
+        }
+        return readString();
+    }
+
+    /**
+     * Consume a number value, which must be an integer.
+     *
+     * @return the value
+     *
+     * @throws IOException if the value is not an integer
+     */
+    public long nextLong() throws IOException {
+        peek();
+        int start = position;
+        int end = skipNumber();
+        long value = 0;
+        boolean negative = buffer[start] == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            throw error("expected integer");
+        }
+        for (; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw error("expected integer");
+            }
+            value = 10 * value + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Consume a boolean value.
+     *
+     * @return the value
+     *
+     * @throws IOException if the value is not a boolean
+     */
+    public boolean nextBoolean() throws IOException {
+        if (peek() == 't') {
+            readLiteral("true");
+            return true;
+        }
+        readLiteral("false");
+        return false;
+    }
+
+    /**
+     * Consume the next value (of any type, including nested objects and arrays) without decoding it.
+     *
+     * @throws IOException if the input is malformed
+     */
+    public void skipValue() throws IOException {
+        int c = peek();
+        switch (c) {
+            case '"':
+                skipString();
+                break;
+            case '{':
+                beginObject();
+                while (hasNext()) {
+                    skipString();
+                    expect(':');
+                    skipValue();
+                }
+                endObject();
+                break;
+            case '[':
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+                break;
+            case 't':
+                readLiteral("true");
+                break;
+            case 'f':
+                readLiteral("false");
+                break;
+            case 'n':
+                readLiteral("null");
+                break;
+            default:
+                skipNumber();
+        }
+    }
+
+    /**
+     * Check that there is nothing but white space left in the input.
+     *
+     * @throws IOException if there is more input
+     */
+    public void endDocument() throws IOException {
+        if (peek() != -1) {
+            throw error("expected end of input");
+        }
+    }
+
+    /** skip white space, and return the next byte without consuming it (or -1 at the end of the input) */
+    private int peek() {
+        while (position < limit) {
+            byte b = buffer[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b;
+            }
+            position++;
+        }
+        return -1;
+    }
+
+    private void expect(char c) throws IOException {
+        if (peek() != c) {
+            throw error("expected '" + c + "'");
+        }
+        position++;
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        peek();
+        if (limit - position < literal.length()) {
+            throw error("expected " + literal);
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (buffer[position + i] != literal.charAt(i)) {
+                throw error("expected " + literal);
+            }
+        }
+        position += literal.length();
+    }
+
+    /** consume a number, and return the offset of its end */
+    private int skipNumber() throws IOException {
+        peek();
+        int start = position;
+        while (position < limit) {
+            byte b = buffer[position];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E') {
+                position++;
+            }
+            else {
+                break;
+            }
+        }
+        if (position == start) {
+            throw error("expected value");
+        }
+        return position;
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while (position < limit) {
+            byte b = buffer[position++];
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                position++;
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    /**
+     * Consume a string. If the string contains no escapes (the usual case) it is decoded straight from the buffer.
+     */
+    private String readString() throws IOException {
+        expect('"');
+        int start = position;
+        while (position < limit) {
+            byte b = buffer[position];
+            if (b == '"') {
+                position++;
+                return new String(buffer, start, position - 1 - start, StandardCharsets.UTF_8);
+            }
+            if (b == '\\') {
+                return readEscapedString(start);
+            }
+            position++;
+        }
+        throw error("unterminated string");
+    }
+
+    /** consume the rest of a string which contains escapes, starting at the first escape */
+    private String readEscapedString(int start) throws IOException {
+        StringBuilder sb = new StringBuilder(position - start + 16);
+        sb.append(new String(buffer, start, position - start, StandardCharsets.UTF_8));
+        int segmentStart = position;
+        while (position < limit) {
+            byte b = buffer[position];
+            if (b == '"') {
+                sb.append(new String(buffer, segmentStart, position - segmentStart, StandardCharsets.UTF_8));
+                position++;
+                return sb.toString();
+            }
+            if (b != '\\') {
+                position++;
+                continue;
+            }
+            sb.append(new String(buffer, segmentStart, position - segmentStart, StandardCharsets.UTF_8));
+            if (position + 1 >= limit) {
+                break;
+            }
+            byte escape = buffer[position + 1];
+            position += 2;
+            switch (escape) {
+                case '"':  sb.append('"'); break;
+                case '\\': sb.append('\\'); break;
+                case '/':  sb.append('/'); break;
+                case 'n':  sb.append('\n'); break;
+                case 'r':  sb.append('\r'); break;
+                case 't':  sb.append('\t'); break;
+                case 'b':  sb.append('\b'); break;
+                case 'f':  sb.append('\f'); break;
+                case 'u':
+                    if (position + 4 > limit) {
+                        throw error("bad unicode escape");
+                    }
+                    int c = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(buffer[position++], 16);
+                        if (digit < 0) {
+                            throw error("bad unicode escape");
+                        }
+                        c = (c << 4) | digit;
+                    }
+                    sb.append((char) c);
+                    break;
+                default:
+                    throw error("bad escape");
+            }
+            segmentStart = position;
+        }
+        throw error("unterminated string");
+    }
+
+    private IOException error(String message) {
+        return new IOException(String.format("malformed JSON: %s at offset %d", message, position));
+    }
+
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+    /** true if the current object or array has just been opened */
+    private boolean first = false;
+
+}
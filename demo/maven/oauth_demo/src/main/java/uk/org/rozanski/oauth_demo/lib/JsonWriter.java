@@ -0,0 +1,315 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.util.Arrays;
+
+/**
+ * Streaming JSON writer which encodes directly to UTF-8 bytes.
+ *
+ * <p>This replaces json-simple for the small JSON files used by the demo (the access token file, session files
+ * and vault records). Values are escaped properly, so they may contain any characters (including braces and commas).
+ * The writer appends to a single growable byte array, so no intermediate strings are created.
+ *
+ * <p>Usage:
+ * <pre>
+ *     JsonWriter writer = new JsonWriter(true);
+ *     writer.beginObject();
+ *     writer.name("access_token").value(accessToken);
+ *     writer.endObject();
+ *     byte[] json = writer.toByteArray();
+ * </pre>
+ *
+ * <p>If {@code pretty} is true, each member of an object and each element of an array is written on its own line,
+ * indented by four spaces, and the output ends with a newline. Otherwise the output is compact (suitable for one-record-per-line logs).
+ *
+ */
+public class JsonWriter {
+
+    /**
+     * Create a writer.
+     *
+     * @param pretty if true, write one member or element per line
+     */
+    public JsonWriter(boolean pretty) {
+        this.pretty = pretty;
+    }
+
+    /**
+     * Start an object.
+     *
+     * @return this writer
+     */
+    public JsonWriter beginObject() {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    /**
+     * Finish the current object.
+     *
+     * @return this writer
+     */
+    public JsonWriter endObject() {
+        boolean empty = first[depth];
+        depth--;
+        if (pretty && !empty) {
+            newline();
+        }
+        writeByte('}');
+        if (pretty && depth == 0) {
+            writeByte('\n');
+        }
+        return this;
+    }
+
+    /**
+     * Start an array.
+     *
+     * @return this writer
+     */
+    public JsonWriter beginArray() {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    /**
+     * Finish the current array.
+     *
+     * @return this writer
+     */
+    public JsonWriter endArray() {
+        boolean empty = first[depth];
+        depth--;
+        if (pretty && !empty) {
+            newline();
+        }
+        writeByte(']');
+        if (pretty && depth == 0) {
+            writeByte('\n');
+        }
+        return this;
+    }
+
+    /**
+     * Write the name of the next member of the current object.
+     *
+     * @param name member name
+     * @return this writer
+     */
+    public JsonWriter name(String name) {
+        if (!first[depth]) {
+            writeByte(',');
+        }
+        first[depth] = false;
+        if (pretty) {
+            newline();
+        }
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Write a string value (or null).
+     *
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(String value) {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        }
+        else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    /**
+     * Write a number value.
+     *
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Write a boolean value.
+     *
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Write a newline after a complete top-level value, to separate records in a one-record-per-line file.
+     *
+     * @return this writer
+     */
+    public JsonWriter endRecord() {
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Return the JSON written so far.
+     *
+     * @return UTF-8 encoded JSON
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Return the number of bytes written so far.
+     *
+     * @return number of bytes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Discard everything written so far, so the writer (and its buffer) can be reused.
+     */
+    public void reset() {
+        count = 0;
+        depth = 0;
+        afterName = false;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        }
+        else if (depth > 0) {
+            // array element
+            if (!first[depth]) {
+                writeByte(',');
+            }
+            first[depth] = false;
+            if (pretty) {
+                newline();
+            }
+        }
+    }
+
+    private void push() {
+        depth++;
+        if (depth == first.length) {
+            first = Arrays.copyOf(first, 2 * first.length);
+        }
+        first[depth] = true;
+    }
+
+    private void newline() {
+        writeByte('\n');
+        for (int i = 0; i < depth; i++) {
+            writeAscii(INDENT);
+        }
+    }
+
+    /** write a quoted, escaped string, encoding it as UTF-8 */
+    private void writeString(String s) {
+        ensureCapacity(s.length() + 2);
+        buffer[count++] = '"';
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+                ensureCapacity(1);
+                buffer[count++] = (byte) c;
+            }
+            else if (c < 0x80) {
+                writeEscape(c);
+            }
+            else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                // unpaired surrogate: not valid UTF-8, so escape it
+                writeUnicodeEscape(c);
+            }
+            else {
+                ensureCapacity(3);
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        ensureCapacity(1);
+        buffer[count++] = '"';
+    }
+
+    private void writeEscape(char c) {
+        switch (c) {
+            case '"':  writeAscii("\\\""); break;
+            case '\\': writeAscii("\\\\"); break;
+            case '\n': writeAscii("\\n"); break;
+            case '\r': writeAscii("\\r"); break;
+            case '\t': writeAscii("\\t"); break;
+            case '\b': writeAscii("\\b"); break;
+            case '\f': writeAscii("\\f"); break;
+            default:   writeUnicodeEscape(c);
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        writeAscii("\\u");
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            writeByte(Character.forDigit((c >> shift) & 0xf, 16));
+        }
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, count + extra));
+        }
+    }
+
+    private static final String INDENT = "    ";
+
+    private final boolean pretty;
+    private byte[] buffer = new byte[256];
+    private int count = 0;
+    /** first[d] is true if nothing has yet been written in the object or array at depth d */
+    private boolean[] first = new boolean[8];
+    private int depth = 0;
+    private boolean afterName = false;
+
+}
@@ -0,0 +1,132 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.dropbox.core.*;
+
+/**
+ * Store CSRF tokens in memory, keyed by browser session id.
+ *
+ * <p>This is an alternative to {@link CsrfTokenStore} for redirect workflows which are started from the browser
+ * (via {@code HttpConfig.START_PAGE}). Each browser has its own session id (see {@link HttpSession}), so any number
+ * of users can run the workflow at the same time without overwriting each other's tokens.
+ *
+ * <p>Tokens expire {@code HttpConfig.CSRF_SESSION_TTL} seconds after they are set.
+ * Expired tokens are never returned by {@code get()}, and are removed from memory by {@code sweep()}
+ * (which is called periodically by {@link CsrfTokenSweeper}).
+ *
+ * <p>The tokens are held in a single map shared by all instances of this class.
+ * An instance is cheap to create and just records the session id.
+ *
+ * @see <a href='http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxSessionStore.html'>DbxSessionStore</a>
+ *
+ */
+public class MemoryCsrfTokenStore implements DbxSessionStore {
+
+    /**
+     * Create a token store for a browser session.
+     *
+     * @param sessionId the browser session id
+     */
+    public MemoryCsrfTokenStore(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public void clear() {
+        tokens.remove(sessionId);
+        ConsoleLogger.debug("cleared CSRF token for session %s", sessionId);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public String get() {
+        Token token = tokens.get(sessionId);
+        if (token == null) {
+            ConsoleLogger.info("possible error: no CSRF token for session %s", sessionId);
+            return null;
+        }
+        if (token.hasExpired(System.currentTimeMillis())) {
+            tokens.remove(sessionId, token);
+            ConsoleLogger.info("possible error: CSRF token for session %s has expired", sessionId);
+            return null;
+        }
+        return token.value;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public void set(String value) {
+        long expiryTime = System.currentTimeMillis() + 1000L * HttpConfig.CSRF_SESSION_TTL;
+        tokens.put(sessionId, new Token(value, expiryTime));
+        ConsoleLogger.debug("saved CSRF token for session %s", sessionId);
+    }
+
+    /**
+     * Check whether a CSRF token has been set for a browser session (and has not expired).
+     *
+     * @param sessionId the browser session id
+     * @return true if there is an unexpired token for the session
+     */
+    public static boolean hasToken(String sessionId) {
+        Token token = tokens.get(sessionId);
+        return (token != null) && !token.hasExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Return the number of tokens currently held in memory (including any expired tokens not yet swept).
+     *
+     * @return number of tokens
+     */
+    public static int size() {
+        return tokens.size();
+    }
+
+    /**
+     * Remove all expired tokens from memory.
+     *
+     * @return number of tokens removed
+     */
+    public static int sweep() {
+        long timeNow = System.currentTimeMillis();
+        int removed = 0;
+        Iterator<Map.Entry<String, Token>> iterator = tokens.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().hasExpired(timeNow)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            ConsoleLogger.debug("swept %d expired CSRF tokens, %d remaining", removed, tokens.size());
+        }
+        return removed;
+    }
+
+    /** a CSRF token and the time (in milliseconds) at which it expires */
+    private static final class Token {
+        final String value;
+        final long expiryTime;
+        Token(String value, long expiryTime) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+        boolean hasExpired(long timeNow) {
+            return timeNow >= expiryTime;
+        }
+    }
+
+    private final String sessionId;
+
+    private static final ConcurrentHashMap<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+
+}
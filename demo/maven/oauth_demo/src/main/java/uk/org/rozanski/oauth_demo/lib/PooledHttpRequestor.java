@@ -0,0 +1,443 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.SSLConfig;
+
+/**
+ * HTTP requestor for the Dropbox SDK which keeps its connections to the Dropbox hosts alive between requests.
+ *
+ * <p>Both this requestor and the SDK's {@code StandardHttpRequestor} use {@code HttpsURLConnection}, whose keep-alive
+ * cache holds idle connections; but the standard requestor has fixed timeouts, disconnects every upload (every POST
+ * and PUT, including the token request of the finish step) when it is closed, and opens as many connections as there
+ * are requests in progress, so a burst of requests opens connections which the keep-alive cache cannot keep, and
+ * which each cost a TLS handshake. This requestor:
+ * <ul>
+ * <li>never disconnects a request which has completed, and when a response body is closed it reads whatever the
+ * caller has not read (up to {@code MAX_DRAIN} bytes), so the connection can go back into the keep-alive cache
+ * <li>has configurable connect and read timeouts
+ * <li>limits the number of requests in progress to each host (callers wait up to the connect timeout for a turn),
+ * so it never opens more connections than the keep-alive cache can keep
+ * <li>reports the timing of each request to any number of {@link Listener}s
+ * </ul>
+ *
+ * <p>A request holds one of its host's turns until its response body is closed (or, for an upload, until the uploader
+ * is closed without {@code finish()} having been called), so every response body must be closed: a body which is
+ * never closed takes one of the host's turns for good. A response which has no content, or whose body has a known
+ * length of at most {@code MAX_BUFFERED} bytes, is read in full before it is returned and its turn given back at once,
+ * so closing it does not matter. The SDK (version 1.7.6) closes every body it reads: {@code DbxRequestUtil.finishResponse()}
+ * closes the body however the response is handled, and {@code DbxClient.startGetFile()} closes it unless it returns a
+ * {@code Downloader}, which the caller must close (as {@link DropboxTools} does). {@code getActiveCount()} shows
+ * whether any body has been left open.
+ *
+ * <p>The keep-alive cache keeps at most {@code http.maxConnections} idle connections per host (default 5);
+ * {@code create()} sets this to the per-host limit unless it has already been set.
+ *
+ * <p>Connections use the SDK's certificate checks ({@code SSLConfig}) unless a socket factory is given; the requestor
+ * returned by {@code create()} is given the socket factory of the shared {@link DropboxSslContext}.
+ *
+ */
+public class PooledHttpRequestor extends HttpRequestor {
+
+    /** receives the timing of each request */
+    public interface Listener {
+        /**
+         * Called when a request has finished (when its response body is closed, or it fails).
+         *
+         * @param method the HTTP method
+         * @param host the host
+         * @param statusCode the HTTP status, or -1 if the request failed before a response was received
+         * @param responseNanos nanoseconds from the start of the request until the response headers were received
+         * @param totalNanos nanoseconds from the start of the request until it finished
+         */
+        void requestFinished(String method, String host, int statusCode, long responseNanos, long totalNanos);
+    }
+
+    /**
+     * Create a requestor.
+     *
+     * @param connectTimeoutMillis connect timeout (also the longest a request waits for its host's limit)
+     * @param readTimeoutMillis read timeout
+     * @param maxPerHost maximum number of requests in progress to each host
+     * @param socketFactory factory for the TLS connections, or null to use the SDK's certificate checks
+     * @param hostnameVerifier verifier of the host names of the TLS connections, or null for the default
+     */
+    public PooledHttpRequestor(int connectTimeoutMillis, int readTimeoutMillis, int maxPerHost,
+            SSLSocketFactory socketFactory, HostnameVerifier hostnameVerifier) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxPerHost = maxPerHost;
+        this.socketFactory = socketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    /**
+     * Create a requestor configured by {@code CommonConfig}, whose connections use the shared TLS context
+     * ({@link DropboxSslContext}), or the SDK's certificate checks if that cannot be built.
+     *
+     * @return the requestor
+     */
+    public static PooledHttpRequestor create() {
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", Integer.toString(CommonConfig.DROPBOX_MAX_CONNECTIONS));
+        }
+        DropboxSslContext sslContext = DropboxSslContext.get();
+        return new PooledHttpRequestor(1000 * CommonConfig.DROPBOX_CONNECT_TIMEOUT, 1000 * CommonConfig.DROPBOX_READ_TIMEOUT,
+                CommonConfig.DROPBOX_MAX_CONNECTIONS, (sslContext == null) ? null : sslContext.getSocketFactory(), null);
+    }
+
+    /**
+     * Add a listener which receives the timing of each request (as well as any listeners already added).
+     *
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added by {@code addListener()}.
+     *
+     * @param listener the listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Return the number of requests which have finished.
+     *
+     * @return number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Return the number of requests in progress: those waiting for a response, or whose response body has not been
+     * closed.
+     *
+     * @return number of requests
+     */
+    public int getActiveCount() {
+        int active = 0;
+        for (Semaphore permits : hostPermits.values()) {
+            active += maxPerHost - permits.availablePermits();
+        }
+        return active;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public Response doGet(String url, Iterable<Header> headers) throws IOException {
+        Call call = open("GET", url, headers);
+        try {
+            call.connection.connect();
+            return call.response();
+        }
+        catch (IOException e) {
+            call.fail();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            call.fail();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+        return startUpload("POST", url, headers);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+        return startUpload("PUT", url, headers);
+    }
+
+    private Uploader startUpload(String method, String url, Iterable<Header> headers) throws IOException {
+        Call call = open(method, url, headers);
+        try {
+            call.connection.setDoOutput(true);
+            return new PooledUploader(call, call.connection.getOutputStream());
+        }
+        catch (IOException e) {
+            call.fail();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            call.fail();
+            throw e;
+        }
+    }
+
+    /** wait for a turn to make a request to the host, and prepare its connection */
+    private Call open(String method, String url, Iterable<Header> headers) throws IOException {
+        URL target = new URL(url);
+        String host = target.getHost();
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxPerHost, true);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        long startTime = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException(String.format("timed out waiting for one of %d connections to %s", maxPerHost, host));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a connection to " + host);
+        }
+        Call call = new Call(method, host, permits, startTime);
+        try {
+            URLConnection connection = target.openConnection();
+            if (!(connection instanceof HttpsURLConnection)) {
+                throw new IOException("not an HTTPS URL: " + url);
+            }
+            call.connection = (HttpsURLConnection) connection;
+            if (socketFactory == null) {
+                SSLConfig.apply(call.connection);
+            }
+            else {
+                call.connection.setSSLSocketFactory(socketFactory);
+            }
+            if (hostnameVerifier != null) {
+                call.connection.setHostnameVerifier(hostnameVerifier);
+            }
+            call.connection.setConnectTimeout(connectTimeoutMillis);
+            call.connection.setReadTimeout(readTimeoutMillis);
+            call.connection.setUseCaches(false);
+            call.connection.setAllowUserInteraction(false);
+            call.connection.setRequestMethod(method);
+            for (Header header : headers) {
+                call.connection.addRequestProperty(header.key, header.value);
+            }
+            return call;
+        }
+        catch (IOException e) {
+            call.fail();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            call.fail();
+            throw e;
+        }
+    }
+
+    /** one request, which holds its host's permit until it finishes */
+    private final class Call {
+
+        Call(String method, String host, Semaphore permits, long startTime) {
+            this.method = method;
+            this.host = host;
+            this.permits = permits;
+            this.startTime = startTime;
+        }
+
+        /**
+         * Read the response headers, and return the response: with a body which finishes the call when it is closed,
+         * or, if the response has no content or a short body, with its body already read and the call finished.
+         */
+        Response response() throws IOException {
+            int statusCode = connection.getResponseCode();
+            responseTime = System.nanoTime();
+            this.statusCode = statusCode;
+            InputStream body = (statusCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+            long length = connection.getContentLengthLong();
+            boolean noContent = statusCode == 204 || statusCode == 304 || length == 0;
+            if (body == null || noContent || (length > 0 && length <= MAX_BUFFERED)) {
+                byte[] content = new byte[0];
+                if (body != null) {
+                    content = readFully(body, noContent ? 0 : (int) length);
+                    body.close();
+                }
+                finish();
+                return new Response(statusCode, new ByteArrayInputStream(content), headers(connection));
+            }
+            return new Response(statusCode, new ResponseBody(body, this), headers(connection));
+        }
+
+        /** read a body to the end */
+        private byte[] readFully(InputStream body, int length) throws IOException {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(length);
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = body.read(buffer)) >= 0) {
+                content.write(buffer, 0, count);
+            }
+            return content.toByteArray();
+        }
+
+        /** the response headers, looked up without regard to case (the SDK looks them up in lower case) */
+        private Map<String, List<String>> headers(HttpsURLConnection connection) {
+            Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                // the status line has a null key
+                if (header.getKey() != null) {
+                    headers.put(header.getKey(), header.getValue());
+                }
+            }
+            return headers;
+        }
+
+        /** the response body has been closed: the connection can be reused */
+        void finish() {
+            if (finished.compareAndSet(false, true)) {
+                permits.release();
+                report(statusCode);
+            }
+        }
+
+        /** the request failed or was abandoned: the connection cannot be reused */
+        void fail() {
+            if (finished.compareAndSet(false, true)) {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                permits.release();
+                report(-1);
+            }
+        }
+
+        private void report(int status) {
+            requestCount.incrementAndGet();
+            long now = System.nanoTime();
+            for (Listener listener : listeners) {
+                listener.requestFinished(method, host, status, ((responseTime == 0) ? now : responseTime) - startTime, now - startTime);
+            }
+        }
+
+        final String method;
+        final String host;
+        final Semaphore permits;
+        final long startTime;
+        final AtomicBoolean finished = new AtomicBoolean();
+        HttpsURLConnection connection = null;
+        volatile long responseTime = 0;
+        volatile int statusCode = -1;
+    }
+
+    /** response body which reads the rest of the response when it is closed, so the connection can be reused */
+    private static final class ResponseBody extends FilterInputStream {
+
+        ResponseBody(InputStream body, Call call) {
+            super(body);
+            this.call = call;
+        }
+
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                byte[] buffer = new byte[4096];
+                long drained = 0;
+                int count;
+                while (drained < MAX_DRAIN && (count = in.read(buffer)) >= 0) {
+                    drained += count;
+                }
+                in.close();
+                if (drained < MAX_DRAIN) {
+                    call.finish();
+                }
+                else {
+                    // too much left to read: drop the connection rather than reading it all
+                    call.fail();
+                }
+            }
+            catch (IOException e) {
+                call.fail();
+                throw e;
+            }
+        }
+
+        private final Call call;
+        private boolean closed = false;
+    }
+
+    /** uploader which only disconnects if the upload is abandoned */
+    private static final class PooledUploader extends Uploader {
+
+        PooledUploader(Call call, OutputStream body) {
+            super(body);
+            this.call = call;
+        }
+
+        public Response finish() throws IOException {
+            if (finishing) {
+                throw new IllegalStateException("finish() already called");
+            }
+            finishing = true;
+            try {
+                return call.response();
+            }
+            catch (IOException e) {
+                call.fail();
+                throw e;
+            }
+            catch (RuntimeException e) {
+                call.fail();
+                throw e;
+            }
+        }
+
+        public void abort() {
+            call.fail();
+        }
+
+        public void close() {
+            // after finish() the call is finished by closing the response body; the SDK closes the uploader first
+            if (!finishing) {
+                call.fail();
+            }
+        }
+
+        private final Call call;
+        private boolean finishing = false;
+    }
+
+    /** most bytes read from a response body which is closed before it has been read to the end */
+    public static final int MAX_DRAIN = 64 * 1024;
+    /** longest response body (of known length) which is read before the response is returned */
+    public static final int MAX_BUFFERED = 16 * 1024;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxPerHost;
+    private final SSLSocketFactory socketFactory;
+    private final HostnameVerifier hostnameVerifier;
+    private final ConcurrentHashMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+}
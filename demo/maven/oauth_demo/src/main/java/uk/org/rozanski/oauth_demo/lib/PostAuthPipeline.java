@@ -0,0 +1,313 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dropbox.core.*;
+
+/**
+ * Runs the work which follows a successful authorisation (creating the sample files) in the background, so that the
+ * finish step can return as soon as the access token has been saved.
+ *
+ * <p>Each task is recorded in a file in the pipeline's directory before it is queued, and the file is only deleted
+ * once the task has succeeded. A task which fails is retried after a delay which doubles after each failure; after
+ * {@code maxAttempts} failures its file is renamed with the suffix {@code .failed} and it is given up. Task files
+ * left by an earlier process (which stopped before its tasks had run) are queued again by {@code start()}.
+ *
+ * <p>There is one task per Dropbox account: if an account authorises again while its task is queued, the queued task
+ * is kept. The tasks are run by a fixed number of worker threads.
+ *
+ * <p>The demo's pipeline is returned by {@code get()}. It is started by {@link HttpdServer}, or by the first
+ * {@code submit()}.
+ *
+ */
+public class PostAuthPipeline {
+
+    /** the work done by a task */
+    public interface Action {
+        /**
+         * Run the task for an account.
+         *
+         * @param userId Dropbox user id of the account
+         *
+         * @throws Exception if the task fails (it will be retried)
+         */
+        void run(String userId) throws Exception;
+    }
+
+    /**
+     * Create a pipeline (call {@code start()} to start it).
+     *
+     * @param directory directory which holds the task records
+     * @param threads number of worker threads
+     * @param maxAttempts number of times a task is tried before it is given up
+     * @param retryDelayMillis milliseconds before a failed task is first retried
+     * @param action the work done by each task
+     */
+    public PostAuthPipeline(Path directory, int threads, int maxAttempts, long retryDelayMillis, Action action) {
+        this.directory = directory;
+        this.threads = threads;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        this.action = action;
+    }
+
+    /**
+     * Return the demo's pipeline, which creates the sample files for each account (see {@code DropboxTools.createSampleFiles()}).
+     *
+     * @return the pipeline, configured by {@code CommonConfig}
+     */
+    public static synchronized PostAuthPipeline get() {
+        if (defaultPipeline == null) {
+            defaultPipeline = new PostAuthPipeline(Paths.get(CommonConfig.POST_AUTH_DIRECTORY), CommonConfig.POST_AUTH_THREADS,
+                    CommonConfig.POST_AUTH_MAX_ATTEMPTS, 1000L * CommonConfig.POST_AUTH_RETRY_DELAY, new Action() {
+                public void run(String userId) throws IOException, DbxException {
+                    DropboxTools.createSampleFiles(userId);
+                }
+            });
+        }
+        return defaultPipeline;
+    }
+
+    /**
+     * Start the worker threads, and queue the tasks recorded by an earlier process (does nothing if it is already running).
+     */
+    public synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        workers = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "post-auth-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // retries waiting for their delay are not run after stop(); their records are picked up by the next start()
+        workers.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        ConsoleLogger.debug("started post-authorisation pipeline with %d threads", threads);
+        recover();
+    }
+
+    /**
+     * Stop the worker threads, waiting for up to {@code timeoutSeconds} for running tasks to finish.
+     *
+     * <p>Tasks which have not finished are recorded, so they will be run by the next {@code start()}.
+     *
+     * @param timeoutSeconds how long to wait
+     */
+    public void stop(int timeoutSeconds) {
+        ScheduledThreadPoolExecutor stopping;
+        synchronized (this) {
+            stopping = workers;
+            workers = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.shutdown();
+        try {
+            if (!stopping.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                stopping.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            stopping.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        queued.clear();
+        ConsoleLogger.debug("stopped post-authorisation pipeline");
+    }
+
+    /**
+     * Record a task for an account and queue it (starting the pipeline if necessary).
+     *
+     * <p>The method returns once the task has been recorded, without waiting for it to run.
+     *
+     * @param userId Dropbox user id of the account
+     *
+     * @throws IOException if the task cannot be recorded
+     */
+    public void submit(String userId) throws IOException {
+        start();
+        if (queued.putIfAbsent(userId, Boolean.TRUE) != null) {
+            ConsoleLogger.debug("post-authorisation task for user %s is already queued", userId);
+            return;
+        }
+        try {
+            writeRecord(userId, 0, "");
+        }
+        catch (IOException e) {
+            queued.remove(userId);
+            throw e;
+        }
+        schedule(userId, 0, 0);
+    }
+
+    /**
+     * Return the number of tasks which are queued or running.
+     *
+     * @return number of tasks
+     */
+    public int getQueuedCount() {
+        return queued.size();
+    }
+
+    /**
+     * Return the record file of an account's task.
+     *
+     * @param userId Dropbox user id of the account
+     * @return path of the record (which only exists while the task has not succeeded)
+     */
+    public Path getRecordFile(String userId) {
+        return directory.resolve(userId + RECORD_SUFFIX);
+    }
+
+    /** queue the tasks whose records are in the directory */
+    private void recover() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + RECORD_SUFFIX);
+            try {
+                for (Path file : stream) {
+                    String fileName = file.getFileName().toString();
+                    String userId = fileName.substring(0, fileName.length() - RECORD_SUFFIX.length());
+                    int attempts = readAttempts(file);
+                    if (queued.putIfAbsent(userId, Boolean.TRUE) == null) {
+                        ConsoleLogger.info("resuming post-authorisation task for user %s after %d attempts", userId, attempts);
+                        schedule(userId, attempts, 0);
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("failed to read post-authorisation tasks in %s, error='%s'", directory, e.getMessage());
+        }
+    }
+
+    private void schedule(final String userId, final int attempts, long delayMillis) {
+        ScheduledThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = workers;
+        }
+        try {
+            if (executor == null) {
+                throw new RejectedExecutionException("pipeline is stopped");
+            }
+            executor.schedule(new Runnable() {
+                public void run() { runTask(userId, attempts); }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // the record is kept, so the task will be run by the next start()
+            queued.remove(userId);
+            ConsoleLogger.debug("post-authorisation pipeline is stopped, task for user %s will run when it restarts", userId);
+        }
+    }
+
+    private void runTask(String userId, int attempts) {
+        attempts++;
+        try {
+            ConsoleLogger.debug("running post-authorisation task for user %s, attempt %d", userId, attempts);
+            action.run(userId);
+        }
+        catch (Exception e) {
+            String error = (e.getMessage() == null) ? e.toString() : e.getMessage();
+            try {
+                if (attempts >= maxAttempts) {
+                    writeRecord(userId, attempts, error);
+                    Files.move(getRecordFile(userId), directory.resolve(userId + FAILED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+                    queued.remove(userId);
+                    ConsoleLogger.error("post-authorisation task for user %s failed %d times, giving up, error='%s'", userId, attempts, error);
+                    return;
+                }
+                writeRecord(userId, attempts, error);
+            }
+            catch (IOException ioe) {
+                ConsoleLogger.error("failed to record post-authorisation task for user %s, error='%s'", userId, ioe.getMessage());
+            }
+            long delayMillis = retryDelayMillis << Math.min(attempts - 1, 16);
+            ConsoleLogger.info("possible error: post-authorisation task for user %s failed, retrying in %d ms, error='%s'", userId, delayMillis, error);
+            schedule(userId, attempts, delayMillis);
+            return;
+        }
+        try {
+            Files.deleteIfExists(getRecordFile(userId));
+        }
+        catch (IOException e) {
+            ConsoleLogger.error("failed to delete post-authorisation task record for user %s, error='%s'", userId, e.getMessage());
+        }
+        queued.remove(userId);
+        ConsoleLogger.info("post-authorisation task for user %s completed", userId);
+    }
+
+    private void writeRecord(String userId, int attempts, String lastError) throws IOException {
+        JsonWriter writer = new JsonWriter(false);
+        writer.beginObject();
+        writer.name(USER_ID_KEY).value(userId);
+        writer.name(ATTEMPTS_KEY).value((long) attempts);
+        writer.name(UPDATED_KEY).value((long) TimeNow.timeNowInt());
+        writer.name(LAST_ERROR_KEY).value(lastError);
+        writer.endObject();
+        Files.createDirectories(directory);
+        AtomicFileWriter.write(getRecordFile(userId), writer.toByteArray());
+    }
+
+    private static int readAttempts(Path file) {
+        try {
+            byte[] contents = Files.readAllBytes(file);
+            JsonReader reader = new JsonReader(contents, 0, contents.length);
+            int attempts = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(ATTEMPTS_KEY)) {
+                    attempts = (int) reader.nextLong();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return attempts;
+        }
+        catch (IOException e) {
+            // a damaged record is retried from the start
+            ConsoleLogger.info("possible error: failed to read post-authorisation task record %s, error='%s'", file, e.getMessage());
+            return 0;
+        }
+    }
+
+    /** suffix of the record of a task which has not yet succeeded */
+    public static final String RECORD_SUFFIX = ".json";
+    /** suffix of the record of a task which has been given up */
+    public static final String FAILED_SUFFIX = ".failed";
+
+    private static final String USER_ID_KEY = "user_id";
+    private static final String ATTEMPTS_KEY = "attempts";
+    private static final String UPDATED_KEY = "updated";
+    private static final String LAST_ERROR_KEY = "last_error";
+
+    private static PostAuthPipeline defaultPipeline = null;
+
+    private final Path directory;
+    private final int threads;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+    private final Action action;
+    /** user ids of the tasks which are queued or running */
+    private final ConcurrentHashMap<String, Boolean> queued = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private ScheduledThreadPoolExecutor workers = null;
+
+}
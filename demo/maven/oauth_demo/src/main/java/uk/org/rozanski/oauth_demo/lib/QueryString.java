@@ -0,0 +1,349 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parameters of a URL query string (or of an {@code application/x-www-form-urlencoded} form).
+ *
+ * <p>The raw (still encoded) string is scanned once, recording where each name and value starts and ends. Nothing is
+ * decoded until it is asked for: a name or value without escapes is returned as a substring, and one with
+ * {@code %} escapes or {@code +} is decoded (as UTF-8) the first time it is returned. Names are compared without
+ * decoding them unless they contain escapes.
+ *
+ * <p>Parsing never fails: a parameter without {@code =} has the value {@code ""}, empty parameters (eg in
+ * {@code a=1&&b=2}) are skipped, and a malformed escape (eg {@code %zz}) is kept as it is.
+ *
+ * <p>Usage:
+ * <p>{@code QueryString query = QueryString.parse(rawQuery);}
+ * <p>{@code String state = query.get("state");}
+ *
+ */
+public class QueryString {
+
+    /**
+     * Parse a raw (encoded) query string.
+     *
+     * @param raw the query string, without the leading {@code ?} (may be null)
+     * @return the parameters
+     */
+    public static QueryString parse(String raw) {
+        return (raw == null) ? EMPTY : parse(raw, 0, raw.length());
+    }
+
+    /**
+     * Parse part of a string as a raw (encoded) query string.
+     *
+     * @param raw the string
+     * @param start offset of the start of the query string (after the {@code ?})
+     * @param end offset of the end of the query string (eg of the {@code #} which starts a fragment)
+     * @return the parameters
+     */
+    public static QueryString parse(String raw, int start, int end) {
+        QueryString query = new QueryString(raw);
+        int position = start;
+        while (position < end) {
+            int nameStart = position;
+            int equals = -1;
+            boolean escaped = false;
+            while (position < end) {
+                char c = raw.charAt(position);
+                if (c == '&') {
+                    break;
+                }
+                if (c == '=' && equals < 0) {
+                    equals = position;
+                }
+                else if (c == '%' || c == '+') {
+                    escaped = true;
+                }
+                position++;
+            }
+            if (position > nameStart) {
+                int nameEnd = (equals < 0) ? position : equals;
+                int valueStart = (equals < 0) ? position : equals + 1;
+                query.add(nameStart, nameEnd, valueStart, position, escaped);
+            }
+            position++; // skip the '&'
+        }
+        return query;
+    }
+
+    /**
+     * Return the query string of a request target.
+     *
+     * @param uri a request target, eg {@code /dropbox-auth-finish?state=...&code=...}
+     * @return the parameters (with none if the target has no query string)
+     */
+    public static QueryString fromUri(String uri) {
+        if (uri == null) {
+            return EMPTY;
+        }
+        int question = uri.indexOf('?');
+        if (question < 0) {
+            return EMPTY;
+        }
+        int hash = uri.indexOf('#', question);
+        return parse(uri, question + 1, (hash < 0) ? uri.length() : hash);
+    }
+
+    /**
+     * Return the number of parameters (counting each repeat of a name).
+     *
+     * @return number of parameters
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Return the decoded name of a parameter.
+     *
+     * @param index index of the parameter (in the order of the query string)
+     * @return the name
+     */
+    public String getName(int index) {
+        checkIndex(index);
+        return decode(raw, offsets[4 * index], offsets[4 * index + 1], escaped[index]);
+    }
+
+    /**
+     * Return the decoded value of a parameter.
+     *
+     * @param index index of the parameter (in the order of the query string)
+     * @return the value ({@code ""} if the parameter has no {@code =})
+     */
+    public String getValue(int index) {
+        checkIndex(index);
+        if (values == null) {
+            values = new String[offsets.length / 4];
+        }
+        String value = values[index];
+        if (value == null) {
+            value = decode(raw, offsets[4 * index + 2], offsets[4 * index + 3], escaped[index]);
+            values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Return the first value of a parameter.
+     *
+     * @param name the decoded name
+     * @return the value, or null if there is no parameter with the name
+     */
+    public String get(String name) {
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                return getValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return all of the values of a parameter.
+     *
+     * @param name the decoded name
+     * @return the values in the order of the query string (empty if there is no parameter with the name)
+     */
+    public List<String> getAll(String name) {
+        List<String> all = null;
+        for (int i = 0; i < count; i++) {
+            if (nameEquals(i, name)) {
+                if (all == null) {
+                    all = new ArrayList<String>(2);
+                }
+                all.add(getValue(i));
+            }
+        }
+        return (all == null) ? Collections.<String>emptyList() : all;
+    }
+
+    /**
+     * Return the parameters as a map from each name to all of its values (the form needed by {@code DbxWebAuth.finish()}).
+     *
+     * @return a new map, in the order in which the names first appear
+     */
+    public Map<String, String[]> toMultiMap() {
+        Map<String, String[]> map = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < count; i++) {
+            String name = getName(i);
+            String[] previous = map.get(name);
+            if (previous == null) {
+                map.put(name, new String[]{getValue(i)});
+            }
+            else {
+                String[] values = new String[previous.length + 1];
+                System.arraycopy(previous, 0, values, 0, previous.length);
+                values[previous.length] = getValue(i);
+                map.put(name, values);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Decode a URL-encoded string ({@code %} escapes as UTF-8, and {@code +} as space).
+     *
+     * @param encoded the encoded string
+     * @return the decoded string (a malformed escape is kept as it is)
+     */
+    public static String decode(String encoded) {
+        return decode(encoded, 0, encoded.length(), true);
+    }
+
+    private void add(int nameStart, int nameEnd, int valueStart, int valueEnd, boolean isEscaped) {
+        if (4 * count == offsets.length) {
+            int[] newOffsets = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+            offsets = newOffsets;
+            boolean[] newEscaped = new boolean[escaped.length * 2];
+            System.arraycopy(escaped, 0, newEscaped, 0, escaped.length);
+            escaped = newEscaped;
+        }
+        offsets[4 * count] = nameStart;
+        offsets[4 * count + 1] = nameEnd;
+        offsets[4 * count + 2] = valueStart;
+        offsets[4 * count + 3] = valueEnd;
+        escaped[count] = isEscaped;
+        count++;
+    }
+
+    /** compare a parameter's name with a decoded name, without decoding the parameter's name if possible */
+    private boolean nameEquals(int index, String name) {
+        int start = offsets[4 * index];
+        int end = offsets[4 * index + 1];
+        if (!escaped[index]) {
+            return end - start == name.length() && raw.regionMatches(start, name, 0, name.length());
+        }
+        return decode(raw, start, end, true).equals(name);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.format("parameter %d of %d", index, count));
+        }
+    }
+
+    /**
+     * Decode part of a string.
+     *
+     * @param mayBeEscaped false if the part is known to have no escapes (so it is returned as it is)
+     */
+    private static String decode(String s, int start, int end, boolean mayBeEscaped) {
+        if (mayBeEscaped) {
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c == '%' || c == '+') {
+                    return decodeEscaped(s, start, end);
+                }
+            }
+        }
+        return s.substring(start, end);
+    }
+
+    private static String decodeEscaped(String s, int start, int end) {
+        // usually the raw string is all ASCII, so it can be decoded straight into UTF-8 bytes
+        byte[] utf8 = new byte[end - start];
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            int value;
+            if (c == '+') {
+                utf8[length++] = ' ';
+                i++;
+            }
+            else if (c == '%' && (value = hexValue(s, i + 1, end)) >= 0) {
+                utf8[length++] = (byte) value;
+                i += 3;
+            }
+            else if (c < 0x80) {
+                utf8[length++] = (byte) c;
+                i++;
+            }
+            else {
+                return decodeEscapedUnicode(s, start, end);
+            }
+        }
+        return new String(utf8, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** decode part of a string which contains non-ASCII characters as well as escapes */
+    private static String decodeEscapedUnicode(String s, int start, int end) {
+        StringBuilder decoded = new StringBuilder(end - start);
+        byte[] bytes = null;
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c == '+') {
+                decoded.append(' ');
+                i++;
+            }
+            else if (c == '%' && hexValue(s, i + 1, end) >= 0) {
+                // decode a run of escapes together, as they may be the bytes of one UTF-8 character
+                if (bytes == null) {
+                    bytes = new byte[(end - i) / 3];
+                }
+                int length = 0;
+                while (i < end && s.charAt(i) == '%' && hexValue(s, i + 1, end) >= 0) {
+                    bytes[length++] = (byte) hexValue(s, i + 1, end);
+                    i += 3;
+                }
+                decoded.append(new String(bytes, 0, length, StandardCharsets.UTF_8));
+            }
+            else {
+                decoded.append(c);
+                i++;
+            }
+        }
+        return decoded.toString();
+    }
+
+    /** return the value of the two hex digits at position, or -1 if they are not hex digits */
+    private static int hexValue(String s, int position, int end) {
+        if (position + 2 > end) {
+            return -1;
+        }
+        int high = hexDigit(s.charAt(position));
+        int low = hexDigit(s.charAt(position + 1));
+        return (high < 0 || low < 0) ? -1 : (high << 4) | low;
+    }
+
+    /** return the value of an ASCII hex digit, or -1 */
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private QueryString(String raw) {
+        this.raw = raw;
+    }
+
+    /** a query string with no parameters */
+    public static final QueryString EMPTY = new QueryString("");
+
+    /** the raw query string (or the request target containing it) */
+    private final String raw;
+    /** start and end of the name and of the value of each parameter */
+    private int[] offsets = new int[4 * 4];
+    /** whether each parameter contains any escapes */
+    private boolean[] escaped = new boolean[4];
+    private int count = 0;
+    /** decoded values (created when the first value is asked for) */
+    private String[] values = null;
+
+}
@@ -0,0 +1,185 @@
+package uk.org.rozanski.oauth_demo.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.dropbox.core.*;
+
+/**
+ * Store CSRF tokens in the browser as a signed cookie, so that the server keeps no state at all.
+ *
+ * <p>The cookie {@code HttpConfig.CSRF_COOKIE} has the form {@code token.expiry.signature}, where
+ * <ul>
+ * <li>{@code token} is the CSRF token generated by Dropbox
+ * <li>{@code expiry} is the time (in seconds since 1970) after which the cookie is no longer valid
+ * <li>{@code signature} is an HMAC-SHA256 of {@code token.expiry} computed with the server's signing key
+ * </ul>
+ *
+ * <p>{@code get()} checks the expiry and signature in memory (using a constant-time comparison) and does no storage I/O.
+ * Any number of server processes can validate the cookie, as long as they share the signing key.
+ * The key is read from the environment variable {@code OAUTH_CSRF_SIGNING_KEY}; if this is not set,
+ * a random key is generated for this process.
+ *
+ * <p>Because the token travels in a cookie, this store can only be used for redirect workflows which are
+ * started from the browser (via {@code HttpConfig.START_PAGE}).
+ *
+ * @see <a href='http://dropbox.github.io/dropbox-sdk-java/api-docs/v1.7.x/com/dropbox/core/DbxSessionStore.html'>DbxSessionStore</a>
+ *
+ */
+public class SignedCsrfTokenStore implements DbxSessionStore {
+
+    /**
+     * Create a token store for a browser session.
+     *
+     * @param session the browser session (its cookies are read by {@code get()} and written by {@code set()})
+     */
+    public SignedCsrfTokenStore(HttpSession session) {
+        this.session = session;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public void clear() {
+        session.deleteCookie(HttpConfig.CSRF_COOKIE);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public String get() {
+        String cookie = session.getCookie(HttpConfig.CSRF_COOKIE);
+        if (cookie == null) {
+            ConsoleLogger.info("possible error: no CSRF cookie for session %s", session.sessionId);
+            return null;
+        }
+        String token = verify(cookie, TimeNow.timeNowInt());
+        if (token == null) {
+            ConsoleLogger.info("possible error: CSRF cookie for session %s is invalid or has expired", session.sessionId);
+        }
+        return token;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     */
+    public void set(String value) {
+        long expiry = TimeNow.timeNowInt() + HttpConfig.CSRF_SESSION_TTL;
+        session.setCookie(HttpConfig.CSRF_COOKIE, sign(value, expiry));
+        ConsoleLogger.debug("saved signed CSRF cookie for session %s", session.sessionId);
+    }
+
+    /**
+     * Check whether the browser has sent a CSRF cookie.
+     *
+     * @param session the browser session
+     * @return true if there is a CSRF cookie (which may or may not be valid)
+     */
+    public static boolean hasToken(HttpSession session) {
+        return session.getCookie(HttpConfig.CSRF_COOKIE) != null;
+    }
+
+    /**
+     * Create a signed cookie value for a token.
+     *
+     * @param token the CSRF token
+     * @param expiry time (in seconds since 1970) after which the cookie is invalid
+     * @return cookie value of the form {@code token.expiry.signature}
+     */
+    public static String sign(String token, long expiry) {
+        String payload = token + "." + expiry;
+        return payload + "." + HttpSession.toHex(hmac(payload));
+    }
+
+    /**
+     * Verify a signed cookie value.
+     *
+     * @param cookie the cookie value created by {@code sign()}
+     * @param timeNow the current time in seconds since 1970
+     * @return the CSRF token, or null if the cookie is malformed, has expired or has a bad signature
+     */
+    public static String verify(String cookie, long timeNow) {
+        int signatureIdx = cookie.lastIndexOf('.');
+        int expiryIdx = (signatureIdx > 0) ? cookie.lastIndexOf('.', signatureIdx - 1) : -1;
+        if (expiryIdx <= 0) {
+            return null;
+        }
+        long expiry;
+        try {
+            expiry = Long.parseLong(cookie.substring(expiryIdx + 1, signatureIdx));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        byte[] expected = hmac(cookie.substring(0, signatureIdx));
+        byte[] actual = fromHex(cookie.substring(signatureIdx + 1));
+        // check the signature before the expiry so that the time taken does not depend on which check fails
+        boolean signatureOk = (actual != null) && MessageDigest.isEqual(expected, actual);
+        if (!signatureOk || (timeNow > expiry)) {
+            return null;
+        }
+        return cookie.substring(0, expiryIdx);
+    }
+
+    /**
+     * Compute the HMAC-SHA256 of a string using the server's signing key.
+     *
+     * @param payload string to sign
+     * @return the HMAC
+     */
+    private static byte[] hmac(String payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(signingKey);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (GeneralSecurityException e) {
+            // HmacSHA256 is supported by every Java platform, so this is fatal
+            throw new IllegalStateException("failed to compute CSRF cookie signature", e);
+        }
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final SecretKeySpec signingKey;
+
+    static {
+        String key = System.getenv("OAUTH_CSRF_SIGNING_KEY");
+        byte[] keyBytes;
+        if (key != null && key.length() > 0) {
+            keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        }
+        else {
+            ConsoleLogger.debug("OAUTH_CSRF_SIGNING_KEY not set, generating a CSRF signing key for this process");
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        }
+        signingKey = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+    }
+
+    private final HttpSession session;
+
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import java.util.logging.Level;
 import java.io.*;
 import java.net.*;
+import javax.net.ssl.HttpsURLConnection;
 
 import uk.org.rozanski.oauth_demo.lib.*;
 import uk.org.rozanski.oauth_demo.testlib.*;
@@ -46,16 +47,26 @@ public class TestCommonClasses {
     }
 
     @Before
-    public void setUp() {
+    public void setUp() throws IOException {
         ConsoleLogger.setLevel((System.getProperty("debug") == null)?Level.INFO:Level.FINE);
         commonTest = new CommonTest();
         commonTest.deleteOauthFiles();
+        // flows started by the tests write their CSRF token files here, not in the real session directory
+        savedSessionDirectory = HttpConfig.CSRF_SESSION_DIRECTORY;
+        sessionDirectory = java.nio.file.Files.createTempDirectory("oauth_sessions").toFile();
+        HttpConfig.CSRF_SESSION_DIRECTORY = sessionDirectory.getPath();
     }
 
     @After
     public void tearDown() {
         /* comment this out if you want to see what files have been created during the tests */
         commonTest.deleteOauthFiles();
+        HttpConfig.CSRF_SESSION_DIRECTORY = savedSessionDirectory;
+        File[] files = sessionDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) { f.delete(); }
+        }
+        sessionDirectory.delete();
     }
 
     /*
@@ -116,6 +127,260 @@ public class TestCommonClasses {
         assertFalse("deleteAccessTokenFile() did not delete token file", AccessData.accessTokenFileExists(true));
     }
 
+    @Test
+    public void accessDataSaveLoadSpecialCharacters() throws IOException {
+        AccessData save_access_data = new AccessData("TOKEN{with},commas", "user \"quoted\" \\ é€😀",
+                "TEST {accessDataSaveLoadSpecialCharacters},\n\t");
+        save_access_data.save();
+        AccessData load_access_data = new AccessData();
+        load_access_data.load();
+        CommonTest.assertAccessDataEqual(save_access_data, "saved", load_access_data, "loaded");
+        assertEquals("creation time not saved", save_access_data.creationTime, load_access_data.creationTime);
+    }
+
+    /*
+       =========================
+       TESTS FOR AccessDataCache
+       =========================
+    */
+    @Test
+    public void accessDataCacheSeesSaveAndDelete() throws IOException {
+        assertFalse("cache reports missing token file exists", AccessDataCache.exists());
+        AccessData save_access_data = commonTest.createAndSaveAccessData("accessDataCacheSeesSaveAndDelete");
+        assertTrue("cache did not see save()", AccessDataCache.exists());
+        CommonTest.assertAccessDataEqual(save_access_data, "saved", AccessDataCache.get(), "cached");
+        assertSame("access data not cached", AccessDataCache.get(), AccessDataCache.get());
+        AccessData.deleteAccessTokenFile();
+        assertFalse("cache did not see deleteAccessTokenFile()", AccessDataCache.exists());
+    }
+
+    @Test
+    public void accessDataCacheSeesExternalChange() throws IOException, InterruptedException {
+        commonTest.createAndSaveAccessData("accessDataCacheSeesExternalChange");
+        AccessData cached = AccessDataCache.get();
+        // another process rewrites the token file (without going through AccessData)
+        AtomicFileWriter.write(java.nio.file.Paths.get(AccessData.ACCESS_TOKEN_FILE),
+                "{\"access_token\":\"EXTERNAL TOKEN\"}".getBytes("UTF-8"));
+        long deadline = System.currentTimeMillis() + 15000; // some platforms poll for changes
+        while (AccessDataCache.get() == cached && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("cache did not see external change", "EXTERNAL TOKEN", AccessDataCache.get().accessToken);
+    }
+
+    /*
+       ===========================
+       TESTS FOR DbxClientProvider
+       ===========================
+    */
+    @Test
+    public void dbxClientProviderCachesOneClientPerToken() throws IOException, InterruptedException {
+        AccessData first = commonTest.createAndSaveAccessData("dbxClientProviderFirst");
+        final com.dropbox.core.DbxClient client = DbxClientProvider.get();
+        assertEquals(first.accessToken, client.getAccessToken());
+        assertSame("client not cached", client, DbxClientProvider.get());
+        assertSame(client, DropboxTools.getDbxClient());
+        assertSame(DropboxWorkflowEngine.get().getRequestConfig(), client.getRequestConfig());
+
+        // many threads get the same client, and only one is built
+        final String token = "TOKEN dbxClientProviderThreads " + System.nanoTime();
+        long builds = DbxClientProvider.getBuildCount();
+        final int threads = 8;
+        final java.util.concurrent.CountDownLatch ready = new java.util.concurrent.CountDownLatch(threads);
+        final java.util.Set<com.dropbox.core.DbxClient> clients = java.util.Collections.newSetFromMap(
+                new java.util.concurrent.ConcurrentHashMap<com.dropbox.core.DbxClient, Boolean>());
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                    try {
+                        ready.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 100; j++) {
+                        clients.add(DbxClientProvider.get(token));
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(1, clients.size());
+        assertEquals(builds + 1, DbxClientProvider.getBuildCount());
+
+        // a new client is built when the token changes
+        AccessData second = commonTest.createAndSaveAccessData("dbxClientProviderSecond");
+        com.dropbox.core.DbxClient changed = DbxClientProvider.get();
+        assertNotSame(client, changed);
+        assertEquals(second.accessToken, changed.getAccessToken());
+        DbxClientProvider.remove(token);
+        AccessData.deleteAccessTokenFile();
+    }
+
+    /*
+       ===================================
+       TESTS FOR JsonWriter and JsonReader
+       ===================================
+    */
+    @Test
+    public void jsonWriterPrettyPrints() {
+        JsonWriter writer = new JsonWriter(true);
+        writer.beginObject();
+        writer.name("a").value("x,y");
+        writer.name("b").value(42L);
+        writer.endObject();
+        assertEquals("wrong pretty-printed JSON", "{\n    \"a\":\"x,y\",\n    \"b\":42\n}\n",
+                new String(writer.toByteArray(), java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void jsonWriterPrettyPrintsArrays() {
+        JsonWriter writer = new JsonWriter(true);
+        writer.beginObject();
+        writer.name("empty").beginArray().endArray();
+        writer.name("flows").beginArray();
+        writer.beginObject().name("id").value("a").endObject();
+        writer.value(7L);
+        writer.endArray();
+        writer.endObject();
+        assertEquals("wrong pretty-printed JSON",
+                "{\n    \"empty\":[],\n    \"flows\":[\n        {\n            \"id\":\"a\"\n        },\n        7\n    ]\n}\n",
+                new String(writer.toByteArray(), java.nio.charset.StandardCharsets.UTF_8));
+
+        // a top-level array ends with a newline, like a top-level object
+        writer = new JsonWriter(true);
+        writer.beginArray().value(true).endArray();
+        assertEquals("wrong pretty-printed JSON", "[\n    true\n]\n",
+                new String(writer.toByteArray(), java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void jsonReaderSkipsUnknownMembers() throws IOException {
+        byte[] json = ("{ \"skip\" : [1, {\"x\": \"}\"}, true, null, -2.5e3], \"token\" : \"a\\u0062\\/c\", "
+                + "\"expiry\" : -17, \"deleted\" : false }").getBytes("UTF-8");
+        JsonReader reader = new JsonReader(json, 0, json.length);
+        reader.beginObject();
+        assertTrue(reader.hasNext());
+        assertEquals("skip", reader.nextName());
+        reader.skipValue();
+        assertTrue(reader.hasNext());
+        assertEquals("token", reader.nextName());
+        assertEquals("ab/c", reader.nextString());
+        assertTrue(reader.hasNext());
+        assertEquals("expiry", reader.nextName());
+        assertEquals(-17L, reader.nextLong());
+        assertTrue(reader.hasNext());
+        assertEquals("deleted", reader.nextName());
+        assertFalse(reader.nextBoolean());
+        assertFalse(reader.hasNext());
+        reader.endObject();
+        reader.endDocument();
+    }
+
+    @Test(expected = IOException.class)
+    public void jsonReaderRejectsTruncatedInput() throws IOException {
+        byte[] json = "{\"user_id\":\"par".getBytes("UTF-8");
+        new AccessData().read(new JsonReader(json, 0, json.length));
+    }
+
+    /*
+       ==========================
+       TESTS FOR AccessTokenVault
+       ==========================
+    */
+    @Test
+    public void accessTokenVaultPutGetRemove() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            AccessTokenVault.put(new AccessData("TOKEN " + i, "user" + i, "TEST accessTokenVaultPutGetRemove"));
+        }
+        AccessTokenVault.put(new AccessData("TOKEN 3 updated", "user3", "TEST accessTokenVaultPutGetRemove"));
+        assertTrue("user 5 not removed", AccessTokenVault.remove("user5"));
+        // reload the vault from disk
+        AccessTokenVault.unload();
+        assertEquals("wrong number of accounts", 9, AccessTokenVault.size());
+        assertEquals("wrong token for user 7", "TOKEN 7", AccessTokenVault.get("user7").accessToken);
+        assertEquals("update to user 3 lost", "TOKEN 3 updated", AccessTokenVault.get("user3").accessToken);
+        assertNull("removed user 5 still present", AccessTokenVault.get("user5"));
+    }
+
+    @Test
+    public void accessTokenVaultHoldsItsOwnCopies() throws IOException {
+        AccessData saved = new AccessData("TOKEN", "user", "TEST accessTokenVaultHoldsItsOwnCopies");
+        AccessTokenVault.put(saved);
+        saved.accessToken = "CHANGED AFTER PUT";
+        AccessData got = AccessTokenVault.get("user");
+        assertEquals("vault changed by the caller of put()", "TOKEN", got.accessToken);
+        got.accessToken = "CHANGED AFTER GET";
+        got.userId = "other";
+        assertEquals("vault changed by the caller of get()", "TOKEN", AccessTokenVault.get("user").accessToken);
+        assertEquals("vault changed by the caller of get()", "user", AccessTokenVault.get("user").userId);
+    }
+
+    @Test
+    public void accessTokenVaultCompactAndRecover() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            AccessTokenVault.put(new AccessData("TOKEN " + i, "user", "TEST accessTokenVaultCompactAndRecover"));
+        }
+        AccessTokenVault.compact();
+        // simulate a crash part-way through appending a record
+        java.nio.file.Files.write(java.nio.file.Paths.get(AccessTokenVault.VAULT_FILE), "{\"user_id\":\"par".getBytes("UTF-8"),
+                java.nio.file.StandardOpenOption.APPEND);
+        AccessTokenVault.unload();
+        assertEquals("wrong number of accounts", 1, AccessTokenVault.size());
+        assertEquals("latest token lost", "TOKEN 19", AccessTokenVault.get("user").accessToken);
+        AccessTokenVault.put(new AccessData("TOKEN 20", "user2", "TEST accessTokenVaultCompactAndRecover"));
+        AccessTokenVault.unload();
+        assertEquals("record appended after partial record lost", "TOKEN 20", AccessTokenVault.get("user2").accessToken);
+        assertEquals("log not compacted", 2, java.nio.file.Files.readAllLines(
+                java.nio.file.Paths.get(AccessTokenVault.VAULT_FILE), java.nio.charset.StandardCharsets.UTF_8).size());
+    }
+
+    /*
+       ==========================
+       TESTS FOR AtomicFileWriter
+       ==========================
+    */
+    @Test
+    public void atomicFileWriterGroupCommit() throws IOException, InterruptedException {
+        final java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("oauth_atomic");
+        final java.nio.file.Path file = directory.resolve("file.json");
+        final java.util.List<String> contents = java.util.Collections.synchronizedList(new java.util.ArrayList<String>());
+        Thread[] threads = new Thread[8];
+        try {
+            for (int t = 0; t < threads.length; t++) {
+                final String threadContents = "contents " + t;
+                threads[t] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 20; i++) {
+                                AtomicFileWriter.write(file, threadContents.getBytes("UTF-8"));
+                            }
+                            contents.add(threadContents);
+                        }
+                        catch (IOException e) {
+                            ConsoleLogger.error("write failed, error='%s'", e.getMessage());
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) { thread.join(); }
+            assertEquals("not all writes completed", threads.length, contents.size());
+            String fileContents = new String(java.nio.file.Files.readAllBytes(file), "UTF-8");
+            assertTrue(String.format("file contents '%s' not written by any thread", fileContents), contents.contains(fileContents));
+            assertEquals("temporary files left behind", 1, directory.toFile().list().length);
+        }
+        finally {
+            for (File f : directory.toFile().listFiles()) { f.delete(); }
+            java.nio.file.Files.delete(directory);
+        }
+    }
+
     /*
        ========================
        TESTS FOR CsrfTokenStore
@@ -137,6 +402,1663 @@ public class TestCommonClasses {
         assertEquals("Loaded session token '%s' is not equal to saved session token '%s'", csrfToken, SESSION_TOKEN);
     }
 
+    /*
+       ==============================
+       TESTS FOR MemoryCsrfTokenStore
+       ==============================
+    */
+    @Test
+    public void memorySessionDataSetGetClear() {
+        MemoryCsrfTokenStore store1 = new MemoryCsrfTokenStore("session-1");
+        MemoryCsrfTokenStore store2 = new MemoryCsrfTokenStore("session-2");
+        store1.set("token-1");
+        store2.set("token-2");
+        assertEquals("session 1 token overwritten", "token-1", store1.get());
+        assertEquals("session 2 token overwritten", "token-2", store2.get());
+        store1.clear();
+        assertNull("session 1 token not cleared", store1.get());
+        assertEquals("session 2 token cleared with session 1", "token-2", store2.get());
+        store2.clear();
+    }
+
+    @Test
+    public void memorySessionDataExpires() {
+        int saveTtl = HttpConfig.CSRF_SESSION_TTL;
+        try {
+            HttpConfig.CSRF_SESSION_TTL = 0;
+            MemoryCsrfTokenStore store = new MemoryCsrfTokenStore("session-expired");
+            store.set("token");
+            assertNull("expired token returned", store.get());
+            store.set("token");
+            MemoryCsrfTokenStore.sweep();
+            assertFalse("expired token not swept", MemoryCsrfTokenStore.hasToken("session-expired"));
+        }
+        finally {
+            HttpConfig.CSRF_SESSION_TTL = saveTtl;
+        }
+    }
+
+    @Test
+    public void startPageSetsSessionCookie() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) HttpConfig.START_URL.openConnection();
+        connection.setInstanceFollowRedirects(false);
+        assertEquals("start page did not redirect", 302, connection.getResponseCode());
+        assertTrue("start page did not redirect to Dropbox",
+                connection.getHeaderField("Location").startsWith("https://www.dropbox.com/"));
+        String cookie = connection.getHeaderField("Set-Cookie");
+        assertTrue("start page did not set session cookie", cookie.startsWith(HttpConfig.SESSION_COOKIE + "="));
+        String sessionId = cookie.substring(HttpConfig.SESSION_COOKIE.length() + 1, cookie.indexOf(';'));
+        assertTrue("no CSRF token for browser session", MemoryCsrfTokenStore.hasToken(sessionId));
+        new MemoryCsrfTokenStore(sessionId).clear();
+    }
+
+    /*
+       ==============================
+       TESTS FOR SignedCsrfTokenStore
+       ==============================
+    */
+    @Test
+    public void signedSessionDataSetGetClear() {
+        HttpSession startSession = new HttpSession(null);
+        new SignedCsrfTokenStore(startSession).set("signed-token");
+        String setCookie = startSession.getResponseCookies().toArray(new String[0])[1];
+        assertTrue("CSRF cookie not set", setCookie.startsWith(HttpConfig.CSRF_COOKIE + "="));
+        String csrfCookie = setCookie.substring(0, setCookie.indexOf(';'));
+
+        HttpSession finishSession = new HttpSession(csrfCookie);
+        SignedCsrfTokenStore store = new SignedCsrfTokenStore(finishSession);
+        assertEquals("signed token not returned", "signed-token", store.get());
+        store.clear();
+        assertTrue("CSRF cookie not deleted",
+                finishSession.getResponseCookies().toArray(new String[0])[1].contains("Max-Age=0"));
+    }
+
+    @Test
+    public void signedSessionDataRejectsTampering() {
+        long expiry = TimeNow.timeNowInt() + 60;
+        String cookie = SignedCsrfTokenStore.sign("signed-token", expiry);
+        assertEquals("valid cookie rejected", "signed-token", SignedCsrfTokenStore.verify(cookie, expiry));
+        assertNull("expired cookie accepted", SignedCsrfTokenStore.verify(cookie, expiry + 1));
+        assertNull("tampered token accepted", SignedCsrfTokenStore.verify("x" + cookie, expiry));
+        String tamperedExpiry = cookie.replace("." + expiry + ".", "." + (expiry + 1000) + ".");
+        assertNull("tampered expiry accepted", SignedCsrfTokenStore.verify(tamperedExpiry, expiry));
+        assertNull("malformed cookie accepted", SignedCsrfTokenStore.verify("signed-token", expiry));
+    }
+
+    /*
+       =================================
+       TESTS FOR DirectoryCsrfTokenStore
+       =================================
+    */
+    @Test
+    public void directorySessionDataSharedBetweenProcesses() throws IOException, InterruptedException {
+        String saveDirectory = HttpConfig.CSRF_SESSION_DIRECTORY;
+        File directory = java.nio.file.Files.createTempDirectory("oauth_sessions").toFile();
+        String[] properties = new String[]{"oauth.csrfDirectory=" + directory.getPath()};
+        try {
+            HttpConfig.CSRF_SESSION_DIRECTORY = directory.getPath();
+            // this process starts the flow, another process finishes it
+            new DirectoryCsrfTokenStore("session-a").set("token-a");
+            String output = CommonTest.runJavaProcess(properties, CsrfStoreProcess.class, "get", "session-a");
+            assertTrue(String.format("other process did not read token, output '%s'", output),
+                    output.contains(CsrfStoreProcess.RESULT_PREFIX + "token-a"));
+            CommonTest.runJavaProcess(properties, CsrfStoreProcess.class, "clear", "session-a");
+            assertNull("token cleared by other process still present", new DirectoryCsrfTokenStore("session-a").get());
+            // another process starts the flow, this process finishes it
+            CommonTest.runJavaProcess(properties, CsrfStoreProcess.class, "set", "session-b", "token-b");
+            DirectoryCsrfTokenStore store = new DirectoryCsrfTokenStore("session-b");
+            assertEquals("token set by other process not read", "token-b", store.get());
+            store.clear();
+            assertFalse("token file not deleted", DirectoryCsrfTokenStore.hasToken("session-b"));
+            assertEquals("session directory not empty", 0, directory.list().length);
+        }
+        finally {
+            HttpConfig.CSRF_SESSION_DIRECTORY = saveDirectory;
+            for (File f : directory.listFiles()) { f.delete(); }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void directorySweepDeletesOnlyTokenFiles() throws IOException {
+        File directory = new File(HttpConfig.CSRF_SESSION_DIRECTORY);
+        new DirectoryCsrfTokenStore("session-old").set("token-old");
+        new DirectoryCsrfTokenStore("session-new").set("token-new");
+        String[] leftovers = new String[]{"session-crashed.json.123" + AtomicFileWriter.TMP_SUFFIX, "session-cleared.456.EXPIRED"};
+        String[] unrelated = new String[]{"notes.txt", "README", "data.json.bak"};
+        java.nio.file.attribute.FileTime old = java.nio.file.attribute.FileTime.fromMillis(
+                System.currentTimeMillis() - 2000L * HttpConfig.CSRF_SESSION_TTL);
+        java.util.List<String> oldFiles = new java.util.ArrayList<String>(java.util.Arrays.asList(leftovers));
+        oldFiles.addAll(java.util.Arrays.asList(unrelated));
+        for (String name : oldFiles) {
+            new File(directory, name).createNewFile();
+        }
+        oldFiles.add("session-old.json");
+        for (String name : oldFiles) {
+            java.nio.file.Files.setLastModifiedTime(new File(directory, name).toPath(), old);
+        }
+        assertEquals("wrong number of files swept", 3, DirectoryCsrfTokenStore.sweep());
+        assertFalse("expired token file not swept", DirectoryCsrfTokenStore.hasToken("session-old"));
+        assertTrue("current token file swept", DirectoryCsrfTokenStore.hasToken("session-new"));
+        for (String name : leftovers) {
+            assertFalse("leftover file not swept: " + name, new File(directory, name).exists());
+        }
+        for (String name : unrelated) {
+            assertTrue("unrelated file swept: " + name, new File(directory, name).exists());
+        }
+    }
+
+    /*
+       =========================
+       TESTS FOR CompletionEvent
+       =========================
+    */
+    @Test
+    public void waitForLatestUrlFileWakesOnRequest() throws InterruptedException {
+        Thread browser = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    InputStream in = HttpConfig.HOME_URL.openStream();
+                    in.close();
+                }
+                catch (Exception e) {
+                    ConsoleLogger.error("request failed, error='%s'", e.getMessage());
+                }
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        browser.start();
+        assertTrue("latest URL file not written", HttpLatestUrlFile.waitForLatestUrlFile(10));
+        long elapsed = System.currentTimeMillis() - startTime;
+        browser.join();
+        assertTrue(String.format("waited %d ms after the request", elapsed), elapsed < 1000);
+    }
+
+    @Test
+    public void waitForAccessTokenFileSeesOtherProcess() throws IOException, InterruptedException {
+        final boolean[] found = new boolean[1];
+        Thread client = new Thread(new Runnable() {
+            public void run() { found[0] = AccessData.waitForAccessTokenFile(1); }
+        });
+        client.start();
+        Thread.sleep(100);
+        // another process saves the token, so no event is published in this process
+        AtomicFileWriter.write(java.nio.file.Paths.get(AccessData.ACCESS_TOKEN_FILE),
+                "{\"access_token\":\"OTHER PROCESS\"}".getBytes("UTF-8"));
+        client.join(15000); // some platforms poll for changes
+        assertFalse("client still waiting for token file", client.isAlive());
+        assertTrue("client did not find token file", found[0]);
+    }
+
+    @Test
+    public void completionEventTimesOut() throws InterruptedException {
+        CompletionEvent<String> event = new CompletionEvent<String>("test", HttpConfig.LATEST_URL_FILE);
+        try {
+            event.next(50, java.util.concurrent.TimeUnit.MILLISECONDS).get();
+            fail("event did not time out");
+        }
+        catch (java.util.concurrent.ExecutionException e) {
+            assertTrue("wrong failure " + e.getCause(), e.getCause() instanceof java.util.concurrent.TimeoutException);
+        }
+        java.util.concurrent.CompletableFuture<String> waiter = event.next();
+        event.publish("published");
+        assertEquals("wrong value published", "published", waiter.getNow(null));
+    }
+
+    /*
+       ==========================
+       TESTS FOR PostAuthPipeline
+       ==========================
+    */
+    @Test
+    public void postAuthPipelineRetriesAndGivesUp() throws IOException, InterruptedException {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("oauth_post_auth");
+        final java.util.Map<String, Integer> attempts = new java.util.concurrent.ConcurrentHashMap<String, Integer>();
+        PostAuthPipeline pipeline = new PostAuthPipeline(root, 2, 3, 10, new PostAuthPipeline.Action() {
+            public void run(String userId) throws IOException {
+                Integer previous = attempts.get(userId);
+                int attempt = (previous == null) ? 1 : previous + 1;
+                attempts.put(userId, attempt);
+                // "flaky" succeeds at the second attempt, "broken" never does
+                if (userId.equals("broken") || attempt < 2) {
+                    throw new IOException("failed attempt " + attempt);
+                }
+            }
+        });
+        try {
+            pipeline.submit("flaky");
+            pipeline.submit("broken");
+            assertTrue("tasks should be recorded before they run", java.nio.file.Files.exists(pipeline.getRecordFile("broken")));
+            waitForPostAuthTasks(pipeline);
+            assertEquals(Integer.valueOf(2), attempts.get("flaky"));
+            assertFalse("record of successful task not deleted", java.nio.file.Files.exists(pipeline.getRecordFile("flaky")));
+            assertEquals(Integer.valueOf(3), attempts.get("broken"));
+            assertFalse(java.nio.file.Files.exists(pipeline.getRecordFile("broken")));
+            assertTrue("failed task not recorded", java.nio.file.Files.exists(root.resolve("broken" + PostAuthPipeline.FAILED_SUFFIX)));
+        }
+        finally {
+            pipeline.stop(5);
+            for (File f : root.toFile().listFiles()) { f.delete(); }
+            java.nio.file.Files.delete(root);
+        }
+    }
+
+    @Test
+    public void postAuthPipelineResumesRecordedTasks() throws IOException, InterruptedException {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("oauth_post_auth");
+        // a task left by a process which stopped after one failed attempt
+        java.nio.file.Files.write(root.resolve("resumed" + PostAuthPipeline.RECORD_SUFFIX),
+                "{\"user_id\":\"resumed\",\"attempts\":1}".getBytes("UTF-8"));
+        final java.util.List<String> ran = java.util.Collections.synchronizedList(new java.util.ArrayList<String>());
+        PostAuthPipeline pipeline = new PostAuthPipeline(root, 1, 3, 10, new PostAuthPipeline.Action() {
+            public void run(String userId) {
+                ran.add(userId);
+            }
+        });
+        try {
+            pipeline.start();
+            waitForPostAuthTasks(pipeline);
+            assertEquals(java.util.Arrays.asList("resumed"), ran);
+            assertEquals("record of resumed task not deleted", 0, root.toFile().listFiles().length);
+        }
+        finally {
+            pipeline.stop(5);
+            for (File f : root.toFile().listFiles()) { f.delete(); }
+            java.nio.file.Files.delete(root);
+        }
+    }
+
+    /** wait for up to 5 seconds for a pipeline to finish its tasks */
+    private static void waitForPostAuthTasks(PostAuthPipeline pipeline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getQueuedCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("tasks did not finish", 0, pipeline.getQueuedCount());
+    }
+
+    /*
+       =====================
+       TESTS FOR QueryString
+       =====================
+    */
+    @Test
+    public void queryStringParsesEdgeCases() {
+        QueryString query = QueryString.parse("a=1&flag&&c=x%3Dy%26z&a=2&d=%zz%4&e=caf%C3%A9+au+lait&=v&f=");
+        assertEquals(8, query.size());
+        assertEquals("1", query.get("a"));
+        assertEquals(java.util.Arrays.asList("1", "2"), query.getAll("a"));
+        assertEquals("parameter without '=' should have an empty value", "", query.get("flag"));
+        assertEquals("x=y&z", query.get("c"));
+        assertEquals("malformed escapes should be kept", "%zz%4", query.get("d"));
+        assertEquals("caf\u00e9 au lait", query.get("e"));
+        assertEquals("v", query.get(""));
+        assertEquals("", query.get("f"));
+        assertNull(query.get("missing"));
+        assertTrue(query.getAll("missing").isEmpty());
+        java.util.Map<String, String[]> map = query.toMultiMap();
+        assertEquals(java.util.Arrays.asList("a", "flag", "c", "d", "e", "", "f"), new java.util.ArrayList<String>(map.keySet()));
+        assertArrayEquals(new String[]{"1", "2"}, map.get("a"));
+        assertEquals(0, QueryString.parse(null).size());
+        assertEquals(0, QueryString.fromUri("/home").size());
+        assertEquals("b", QueryString.fromUri("/home?a=b#fragment").get("a"));
+    }
+
+    @Test
+    public void queryStringMatchesUrlDecoderForRandomParameters() throws UnsupportedEncodingException {
+        java.util.Random random = new java.util.Random(20140311);
+        String alphabet = "aZ09-_.~ &=+%/?#\u00e9\u20ac\ud83d\ude00";
+        for (int iteration = 0; iteration < 5000; iteration++) {
+            int count = random.nextInt(6);
+            String[] names = new String[count];
+            String[] values = new String[count];
+            StringBuilder raw = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                names[i] = randomString(random, alphabet);
+                values[i] = randomString(random, alphabet);
+                raw.append((i == 0) ? "" : "&").append(URLEncoder.encode(names[i], "UTF-8"))
+                        .append('=').append(URLEncoder.encode(values[i], "UTF-8"));
+            }
+            QueryString query = QueryString.parse(raw.toString());
+            assertEquals("wrong size for " + raw, count, query.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals("wrong name in " + raw, names[i], query.getName(i));
+                assertEquals("wrong value in " + raw, values[i], query.getValue(i));
+                assertEquals("wrong lookup in " + raw, values[java.util.Arrays.asList(names).indexOf(names[i])], query.get(names[i]));
+            }
+        }
+    }
+
+    @Test
+    public void queryStringNeverFailsOnRandomInput() throws UnsupportedEncodingException {
+        java.util.Random random = new java.util.Random(20140312);
+        String alphabet = "a=&%+2F9z\u00e9";
+        for (int iteration = 0; iteration < 20000; iteration++) {
+            String raw = randomString(random, alphabet);
+            QueryString query = QueryString.parse(raw);
+            int segments = 0;
+            for (String segment : raw.split("&")) {
+                segments += segment.isEmpty() ? 0 : 1;
+            }
+            assertEquals("wrong size for " + raw, segments, query.size());
+            assertEquals(segments == 0, query.toMultiMap().isEmpty());
+            // where URLDecoder accepts the value (it rejects malformed escapes), the results must agree
+            if (!raw.contains("&") && raw.contains("=") && !raw.matches(".*%([^0-9a-fA-F]|.?$|[0-9a-fA-F][^0-9a-fA-F]).*")) {
+                assertEquals("disagrees with URLDecoder for " + raw,
+                        URLDecoder.decode(raw.substring(raw.indexOf('=') + 1), "UTF-8"), query.getValue(0));
+            }
+        }
+    }
+
+    @Test
+    public void httpdRequestParsesRawQuery() {
+        HttpdRequest request = new HttpdRequest("GET", "/finish?state=a%26b%3Dc&code=1+2", "/finish", "state=a&b=c&code=1 2",
+                new java.util.HashMap<String, String>(), null);
+        assertEquals("encoded separators should not split the value", "a&b=c", request.getQuery().get("state"));
+        assertEquals("1 2", request.getQuery().get("code"));
+        assertSame(request.getQuery(), request.getQuery());
+    }
+
+    /** a random string of up to 12 characters (or surrogate pairs) from an alphabet */
+    private static String randomString(java.util.Random random, String alphabet) {
+        StringBuilder s = new StringBuilder();
+        int length = random.nextInt(13);
+        for (int i = 0; i < length; i++) {
+            int index = random.nextInt(alphabet.length());
+            char c = alphabet.charAt(index);
+            if (Character.isHighSurrogate(c)) {
+                s.append(c).append(alphabet.charAt(index + 1));
+            }
+            else if (!Character.isLowSurrogate(c)) {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+    /*
+       ===============================
+       TESTS FOR DropboxWorkflowEngine
+       ===============================
+    */
+    @Test
+    public void dropboxWorkflowEngineSharesSdkObjects() throws InterruptedException {
+        final DropboxWorkflowEngine engine = DropboxWorkflowEngine.get();
+        assertSame(engine, DropboxWorkflowEngine.get());
+        assertEquals(AppData.APP_KEY, engine.getAppInfo().key);
+        assertEquals(AppData.APP_NAME_VERSION, engine.getRequestConfig().clientIdentifier);
+        assertSame(engine.getRequestConfig().httpRequestor, engine.getHttpRequestor());
+
+        // the client's workflows share one authoriser, and a browser's workflow gets its own (for its own CSRF token store)
+        assertSame(engine.getWebAuth(DropboxWorkflowRedirect.csrfTokenStore), engine.getWebAuth(DropboxWorkflowRedirect.csrfTokenStore));
+        assertNotSame(engine.getWebAuth(DropboxWorkflowRedirect.csrfTokenStore), engine.getWebAuth(new CsrfTokenStore()));
+        assertSame(engine.getNoRedirectAuth(), engine.getNoRedirectAuth());
+        assertSame(engine.getRequestConfig(), engine.newClient("token").getRequestConfig());
+
+        // many threads can start workflows with the shared objects at once
+        final int threads = 8;
+        final java.util.concurrent.CountDownLatch ready = new java.util.concurrent.CountDownLatch(threads);
+        final java.util.Set<String> urls = java.util.Collections.synchronizedSet(new java.util.HashSet<String>());
+        final java.util.concurrent.atomic.AtomicInteger failures = new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        ready.countDown();
+                        ready.await();
+                        for (int j = 0; j < 50; j++) {
+                            assertSame(engine, DropboxWorkflowEngine.get());
+                            urls.add(engine.getWebAuth(new CsrfTokenStore()).start());
+                            urls.add(engine.getNoRedirectAuth().start());
+                        }
+                    }
+                    catch (Throwable t) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, failures.get());
+        // each redirect workflow has its own state (the CSRF token), and the no-redirect URL is always the same
+        assertEquals(threads * 50 + 1, urls.size());
+    }
+
+    /*
+       =============================
+       TESTS FOR PooledHttpRequestor
+       =============================
+    */
+    @Test
+    public void pooledHttpRequestorReusesConnections() throws Exception {
+        assertTrue(DropboxWorkflowEngine.get().getHttpRequestor() instanceof PooledHttpRequestor);
+        LocalHttpsServer server = new LocalHttpsServer();
+        try {
+            PooledHttpRequestor requestor = new PooledHttpRequestor(5000, 5000, 1, server.getSocketFactory(), null);
+            final java.util.List<String> finished = java.util.Collections.synchronizedList(new java.util.ArrayList<String>());
+            requestor.addListener(new PooledHttpRequestor.Listener() {
+                public void requestFinished(String method, String host, int statusCode, long responseNanos, long totalNanos) {
+                    assertTrue(responseNanos <= totalNanos);
+                    finished.add(method + " " + host + " " + statusCode);
+                }
+            });
+            java.util.List<com.dropbox.core.http.HttpRequestor.Header> headers = new java.util.ArrayList<com.dropbox.core.http.HttpRequestor.Header>();
+            for (int i = 0; i < 10; i++) {
+                // as the SDK does: finish the upload, close it, then read the response
+                com.dropbox.core.http.HttpRequestor.Uploader uploader = requestor.startPost(server.url("/token"), headers);
+                uploader.body.write("code=1".getBytes("UTF-8"));
+                com.dropbox.core.http.HttpRequestor.Response response = uploader.finish();
+                uploader.close();
+                assertEquals(200, response.statusCode);
+                assertEquals(LocalHttpsServer.RESPONSE_BODY, new BufferedReader(new InputStreamReader(response.body, "UTF-8")).readLine());
+                response.body.close();
+                // a response body which is closed unread is drained
+                requestor.doGet(server.url("/info"), headers).body.close();
+            }
+            assertEquals("one connection for every request", 1, server.getConnectionCount());
+            assertEquals(20, finished.size());
+            assertEquals("POST localhost 200", finished.get(0));
+            assertEquals("GET localhost 200", finished.get(1));
+
+            // a request which fails releases its host's turn
+            try {
+                requestor.doGet("http://localhost:1/", headers);
+                fail("plain HTTP accepted");
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("not an HTTPS URL"));
+            }
+            assertEquals("GET localhost -1", finished.get(20));
+            requestor.doGet(server.url("/info"), headers).body.close();
+            assertEquals(22, requestor.getRequestCount());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void pooledHttpRequestorReleasesShortResponsesAtOnce() throws Exception {
+        LocalHttpsServer server = new LocalHttpsServer(new com.sun.net.httpserver.HttpHandler() {
+            public void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/empty")) {
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                else {
+                    byte[] body = "body".getBytes("UTF-8");
+                    // any other body is chunked, so its length is not known
+                    exchange.sendResponseHeaders(200, path.equals("/short") ? body.length : 0);
+                    exchange.getResponseBody().write(body);
+                }
+                exchange.close();
+            }
+        });
+        try {
+            PooledHttpRequestor requestor = new PooledHttpRequestor(500, 5000, 1, server.getSocketFactory(), null);
+            java.util.List<com.dropbox.core.http.HttpRequestor.Header> headers = new java.util.ArrayList<com.dropbox.core.http.HttpRequestor.Header>();
+            // empty and short responses are read at once, so the host's only turn is free even though they are not closed
+            com.dropbox.core.http.HttpRequestor.Response empty = requestor.doGet(server.url("/empty"), headers);
+            assertEquals(204, empty.statusCode);
+            assertEquals(0, requestor.getActiveCount());
+            assertEquals(-1, empty.body.read());
+            com.dropbox.core.http.HttpRequestor.Response small = requestor.doGet(server.url("/short"), headers);
+            assertEquals(0, requestor.getActiveCount());
+            assertEquals("body", new BufferedReader(new InputStreamReader(small.body, "UTF-8")).readLine());
+            assertEquals(2, requestor.getRequestCount());
+
+            // a body of unknown length holds the turn until it is closed
+            com.dropbox.core.http.HttpRequestor.Response chunked = requestor.doGet(server.url("/chunked"), headers);
+            assertEquals(1, requestor.getActiveCount());
+            try {
+                requestor.doGet(server.url("/short"), headers);
+                fail("second request made while the only connection was in use");
+            }
+            catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("timed out waiting"));
+            }
+            chunked.body.close();
+            assertEquals(0, requestor.getActiveCount());
+            assertEquals(200, requestor.doGet(server.url("/short"), headers).statusCode);
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /*
+       ===========================
+       TESTS FOR DropboxSslContext
+       ===========================
+    */
+    @Test
+    public void dropboxSslContextResumesSessionsAndTrustsOnlyItsRoots() throws Exception {
+        // the demo's context trusts the bundled root
+        DropboxSslContext shared = DropboxSslContext.get();
+        assertNotNull("bundled root certificate not loaded", shared);
+        assertSame(shared, DropboxSslContext.get());
+        assertEquals(CommonConfig.TLS_SESSION_CACHE_SIZE, shared.getContext().getClientSessionContext().getSessionCacheSize());
+
+        LocalHttpsServer server = new LocalHttpsServer();
+        try {
+            DropboxSslContext sslContext = new DropboxSslContext(java.util.Collections.singletonList(server.getCertificate()), 10, 60);
+            for (int i = 0; i < 5; i++) {
+                // a new connection every time
+                HttpsURLConnection connection = (HttpsURLConnection) new URL(server.url("/info")).openConnection();
+                connection.setSSLSocketFactory(sslContext.getSocketFactory());
+                connection.setRequestProperty("Connection", "close");
+                assertEquals(200, connection.getResponseCode());
+                connection.getInputStream().close();
+            }
+            // the handshake listener runs on a thread of its own
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sslContext.getHandshakeCount() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(5, sslContext.getHandshakeCount());
+            assertEquals("sessions not resumed", 4, sslContext.getResumedCount());
+            assertTrue(sslContext.getHandshakeNanos() > 0);
+            assertTrue(sslContext.getReport().startsWith("5 TLS handshakes (4 resumed)"));
+
+            // a server whose certificate does not chain to the DigiCert root is refused
+            HttpsURLConnection connection = (HttpsURLConnection) new URL(server.url("/info")).openConnection();
+            connection.setSSLSocketFactory(shared.getSocketFactory());
+            try {
+                connection.getResponseCode();
+                fail("untrusted server accepted");
+            }
+            catch (javax.net.ssl.SSLHandshakeException e) {
+                // expected
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /*
+       =======================
+       TESTS FOR DropboxWarmup
+       =======================
+    */
+    @Test
+    public void dropboxWarmupConnectsBeforeFirstOperation() throws Exception {
+        LocalHttpsServer server = new LocalHttpsServer();
+        try {
+            PooledHttpRequestor requestor = new PooledHttpRequestor(5000, 5000, 2, server.getSocketFactory(), null);
+            // another listener, which the warm-up must not replace
+            final java.util.concurrent.atomic.AtomicLong timed = new java.util.concurrent.atomic.AtomicLong();
+            requestor.addListener(new PooledHttpRequestor.Listener() {
+                public void requestFinished(String method, String host, int statusCode, long responseNanos, long totalNanos) {
+                    timed.incrementAndGet();
+                }
+            });
+            String host = server.url("").substring("https://".length());
+            // the second host refuses connections, which is reported but does not stop the warm-up
+            DropboxWarmup warmup = new DropboxWarmup(requestor, java.util.Arrays.asList(host, "localhost:1"));
+            assertSame(warmup, warmup.start());
+            assertTrue("warm-up did not finish", warmup.await(30, java.util.concurrent.TimeUnit.SECONDS));
+            assertTrue(warmup.isDone());
+            assertEquals(1, warmup.getFailedCount());
+            // the refused connection is counted too
+            int connections = server.getConnectionCount();
+            assertEquals(2, connections);
+            assertEquals(-1, warmup.getFirstOperationNanos());
+            String report = warmup.getReport();
+            assertTrue(report, report.contains(host + " DNS") && report.contains(host + " connect"));
+            assertTrue(report, report.contains("localhost:1 failed") && report.contains("JSON readers"));
+
+            // the first operation uses the warm connection
+            requestor.doGet(server.url("/1/account/info"), new java.util.ArrayList<com.dropbox.core.http.HttpRequestor.Header>()).body.close();
+            assertEquals(connections, server.getConnectionCount());
+            long firstOperationNanos = warmup.getFirstOperationNanos();
+            assertTrue(firstOperationNanos > 0);
+            assertTrue(warmup.getReport().contains("first operation"));
+            requestor.doGet(server.url("/1/account/info"), new java.util.ArrayList<com.dropbox.core.http.HttpRequestor.Header>()).body.close();
+            assertEquals("first operation should not change", firstOperationNanos, warmup.getFirstOperationNanos());
+            assertEquals("other listener should see every request", requestor.getRequestCount(), timed.get());
+            assertEquals(4, timed.get());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /*
+       ======================
+       TESTS FOR DropboxTools
+       ======================
+    */
+    @Test
+    public void dropboxToolsStreamFilesWithoutTemporaryFiles() throws Exception {
+        // a stand-in for the Dropbox content host, which holds files in memory
+        final java.util.Map<String, byte[]> files = new java.util.concurrent.ConcurrentHashMap<String, byte[]>();
+        final java.util.Map<String, ByteArrayOutputStream> uploads = new java.util.concurrent.ConcurrentHashMap<String, ByteArrayOutputStream>();
+        LocalHttpsServer server = new LocalHttpsServer(new com.sun.net.httpserver.HttpHandler() {
+            public void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                QueryString query = QueryString.parse(exchange.getRequestURI().getRawQuery());
+                byte[] request = LocalHttpsServer.readBody(exchange.getRequestBody());
+                byte[] response = null;
+                if (path.startsWith("/1/files/auto/")) {
+                    String file = path.substring("/1/files/auto".length());
+                    byte[] contents = files.get(file);
+                    if (contents != null) {
+                        exchange.getResponseHeaders().set("x-dropbox-metadata", fileMetadata(file, contents.length));
+                        response = contents;
+                    }
+                }
+                else if (path.startsWith("/1/files_put/auto/")) {
+                    String file = path.substring("/1/files_put/auto".length());
+                    files.put(file, request);
+                    response = fileMetadata(file, request.length).getBytes("UTF-8");
+                }
+                else if (path.equals("/1/chunked_upload")) {
+                    String uploadId = (query.get("upload_id") == null) ? "upload-" + uploads.size() : query.get("upload_id");
+                    if (!uploads.containsKey(uploadId)) {
+                        uploads.put(uploadId, new ByteArrayOutputStream());
+                    }
+                    uploads.get(uploadId).write(request);
+                    response = String.format("{\"upload_id\": \"%s\", \"offset\": %d, \"expires\": \"Sat, 18 Oct 2014 10:00:00 +0000\"}",
+                            uploadId, uploads.get(uploadId).size()).getBytes("UTF-8");
+                }
+                else if (path.startsWith("/1/commit_chunked_upload/auto/")) {
+                    String file = path.substring("/1/commit_chunked_upload/auto".length());
+                    byte[] contents = uploads.remove(QueryString.parse(new String(request, "UTF-8")).get("upload_id")).toByteArray();
+                    files.put(file, contents);
+                    response = fileMetadata(file, contents.length).getBytes("UTF-8");
+                }
+                // the responses are chunked, so none is read before it is returned, and the SDK must close every body
+                if (response == null) {
+                    response = "{\"error\": \"not found\"}".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(404, 0);
+                }
+                else {
+                    exchange.sendResponseHeaders(200, 0);
+                }
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        try {
+            // the SDK does not allow a port in its host names, so the requests are sent on to the stand-in's port
+            final PooledHttpRequestor pooled = new PooledHttpRequestor(5000, 5000, 1, server.getSocketFactory(), null);
+            final String base = server.url("");
+            com.dropbox.core.http.HttpRequestor requestor = new com.dropbox.core.http.HttpRequestor() {
+                public Response doGet(String url, Iterable<Header> headers) throws IOException {
+                    return pooled.doGet(url.replace("https://localhost", base), headers);
+                }
+                public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+                    return pooled.startPost(url.replace("https://localhost", base), headers);
+                }
+                public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+                    return pooled.startPut(url.replace("https://localhost", base), headers);
+                }
+            };
+            com.dropbox.core.DbxClient client = new com.dropbox.core.DbxClient(new com.dropbox.core.DbxRequestConfig("test", "en", requestor),
+                    "token", new com.dropbox.core.DbxHost("localhost", "localhost", "localhost"));
+
+            // upload from a buffer, and download into a stream
+            byte[] contents = "line 1\nline 2\n".getBytes("UTF-8");
+            assertEquals(contents.length, DropboxTools.uploadFile(client, "/buffer.txt", contents).numBytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(contents.length, DropboxTools.downloadFile(client, "/buffer.txt", out).numBytes);
+            assertArrayEquals(contents, out.toByteArray());
+            assertNull(DropboxTools.downloadFile(client, "/missing.txt", new ByteArrayOutputStream()));
+            assertEquals("every response body should be closed", 0, pooled.getActiveCount());
+
+            // upload from a piped stream of unknown length (in chunks), and download into a channel
+            final java.io.PipedOutputStream producer = new java.io.PipedOutputStream();
+            java.io.PipedInputStream consumer = new java.io.PipedInputStream(producer);
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            producer.write(String.format("piped line %d\n", i).getBytes("UTF-8"));
+                        }
+                        producer.close();
+                    }
+                    catch (IOException e) {
+                        // the test fails on the contents
+                    }
+                }
+            });
+            writer.start();
+            com.dropbox.core.DbxEntry.File piped = DropboxTools.uploadFile(client, "/piped.txt", consumer, -1);
+            writer.join();
+            assertEquals(files.get("/piped.txt").length, piped.numBytes);
+            assertTrue(new String(files.get("/piped.txt"), "UTF-8").endsWith("piped line 999\n"));
+            java.nio.file.Path download = java.nio.file.Files.createTempFile("oauth_download", ".txt");
+            java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(download, java.nio.file.StandardOpenOption.WRITE);
+            try {
+                DropboxTools.downloadFile(client, "/piped.txt", channel);
+            }
+            finally {
+                channel.close();
+            }
+            assertArrayEquals(files.get("/piped.txt"), java.nio.file.Files.readAllBytes(download));
+            java.nio.file.Files.delete(download);
+            assertEquals("every response body should be closed", 0, pooled.getActiveCount());
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /** metadata of a file, as returned by Dropbox */
+    private static String fileMetadata(String path, int numBytes) {
+        return String.format("{\"path\": \"%s\", \"is_dir\": false, \"icon\": \"page_white_text\", \"size\": \"%d bytes\", \"bytes\": %d,"
+                + " \"rev\": \"1f0a2b3c4d\", \"thumb_exists\": false, \"modified\": \"Sat, 18 Oct 2014 10:00:00 +0000\","
+                + " \"client_mtime\": \"Sat, 18 Oct 2014 10:00:00 +0000\", \"mime_type\": \"text/plain\"}", path, numBytes, numBytes);
+    }
+
+    /*
+       =============================
+       TESTS FOR DropboxFlowRegistry
+       =============================
+    */
+    @Test
+    public void dropboxFlowRegistryRunsConcurrentRedirectFlows() throws Exception {
+        final int threads = 8;
+        final DropboxFlow[] flows = new DropboxFlow[threads];
+        final java.util.concurrent.CountDownLatch ready = new java.util.concurrent.CountDownLatch(threads);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                    try {
+                        ready.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    flows[index] = DropboxWorkflowRedirect.redirectClientStart();
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        // each flow has its own id, its own CSRF token, and is found from the state which Dropbox sends back
+        java.util.Set<String> tokens = new java.util.HashSet<String>();
+        for (DropboxFlow flow : flows) {
+            assertSame(flow, DropboxFlowRegistry.get(flow.flowId));
+            String state = QueryString.fromUri(flow.status.redirectUrl.toString()).get("state");
+            assertEquals(flow.flowId, DropboxFlowRegistry.flowIdFromState(state));
+            String token = DropboxFlowRegistry.getSessionStore(state).get();
+            assertEquals(token + "|" + flow.flowId, state);
+            tokens.add(token);
+        }
+        assertEquals(threads, tokens.size());
+
+        // the user declines one flow, which fails that flow only
+        DropboxFlow declined = flows[0];
+        String state = QueryString.fromUri(declined.status.redirectUrl.toString()).get("state");
+        DropboxStatus status = DropboxWorkflowRedirect.httpdHandleFinishAndSave("/" + HttpConfig.FINISH_PAGE,
+                "state=" + java.net.URLEncoder.encode(state, "UTF-8") + "&error=access_denied&error_description=declined");
+        assertEquals(301, status.httpStatus);
+        assertTrue(declined.getResult().isCompletedExceptionally());
+        assertNull(DropboxFlowRegistry.get(declined.flowId));
+        assertNull(DropboxFlowRegistry.getSessionStore(state));
+        for (int i = 1; i < threads; i++) {
+            assertFalse(flows[i].getResult().isDone());
+            DropboxFlowRegistry.createSessionStore(flows[i].flowId).clear();
+            DropboxFlowRegistry.fail(flows[i].flowId, new IOException("test finished"));
+        }
+    }
+
+    @Test
+    public void dropboxWorkflowRedirectAwaitEndsWhenTheFlowDoes() throws Exception {
+        // a flow which finishes
+        final DropboxFlow finished = DropboxWorkflowRedirect.redirectClientStart();
+        final AccessData accessData = new AccessData("token", "user", "test");
+        new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) { }
+                DropboxFlowRegistry.complete(finished.flowId, accessData);
+            }
+        }).start();
+        assertSame(accessData, DropboxWorkflowRedirect.redirectClientAwait(finished, 1));
+        DropboxFlowRegistry.createSessionStore(finished.flowId).clear();
+
+        // a flow which the user declines
+        DropboxFlow declined = DropboxWorkflowRedirect.redirectClientStart();
+        DropboxFlowRegistry.createSessionStore(declined.flowId).clear();
+        DropboxFlowRegistry.fail(declined.flowId, new IOException("user declined"));
+        try {
+            DropboxWorkflowRedirect.redirectClientAwait(declined, 1);
+            fail("declined flow was awaited");
+        }
+        catch (java.util.concurrent.ExecutionException e) {
+            assertEquals("user declined", e.getCause().getMessage());
+        }
+
+        // a flow which the user abandons
+        int flowTtl = CommonConfig.FLOW_TTL;
+        CommonConfig.FLOW_TTL = 1;
+        DropboxFlow abandoned;
+        try {
+            abandoned = DropboxWorkflowRedirect.redirectClientStart();
+        }
+        finally {
+            CommonConfig.FLOW_TTL = flowTtl;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            DropboxWorkflowRedirect.redirectClientAwait(abandoned, 5);
+            fail("abandoned flow was awaited");
+        }
+        catch (java.util.concurrent.TimeoutException e) {
+            assertTrue("wait should end when the flow expires", System.currentTimeMillis() - startTime < 4000);
+        }
+        assertTrue(abandoned.getResult().isCompletedExceptionally());
+        assertNull(DropboxFlowRegistry.get(abandoned.flowId));
+        DropboxFlowRegistry.createSessionStore(abandoned.flowId).clear();
+    }
+
+    @Test
+    public void dropboxWorkflowRedirectAwaitIgnoresOtherFlowsTokens() throws Exception {
+        final DropboxFlow flow = DropboxWorkflowRedirect.redirectClientStart();
+        DropboxFlow other = DropboxWorkflowRedirect.redirectClientStart();
+        final AccessData[] result = new AccessData[1];
+        Thread client = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    result[0] = DropboxWorkflowRedirect.redirectClientAwait(flow, 1);
+                }
+                catch (Exception e) {
+                    ConsoleLogger.error("wait failed, error='%s'", e.getMessage());
+                }
+            }
+        });
+        try {
+            client.start();
+            Thread.sleep(100);
+            // another process finishes a different flow, then this one (so no event is published in this process)
+            AtomicFileWriter.write(java.nio.file.Paths.get(AccessData.ACCESS_TOKEN_FILE),
+                    ("{\"access_token\":\"OTHER FLOW\",\"flow_id\":\"" + other.flowId + "\"}").getBytes("UTF-8"));
+            client.join(3000);
+            assertTrue("client accepted another flow's token", client.isAlive());
+            AtomicFileWriter.write(java.nio.file.Paths.get(AccessData.ACCESS_TOKEN_FILE),
+                    ("{\"access_token\":\"THIS FLOW\",\"flow_id\":\"" + flow.flowId + "\"}").getBytes("UTF-8"));
+            client.join(15000); // some platforms poll for changes
+            assertFalse("client still waiting for its token", client.isAlive());
+            assertNotNull("client did not get its token", result[0]);
+            assertEquals("THIS FLOW", result[0].accessToken);
+        }
+        finally {
+            DropboxFlowRegistry.fail(flow.flowId, new IOException("test finished"));
+            DropboxFlowRegistry.fail(other.flowId, new IOException("test finished"));
+            client.join(5000);
+        }
+    }
+
+    @Test
+    public void dropboxFlowRegistryExpiresFlows() throws Exception {
+        int flowTtl = CommonConfig.FLOW_TTL;
+        CommonConfig.FLOW_TTL = 0;
+        DropboxFlow flow;
+        try {
+            flow = DropboxWorkflowNoRedirect.noRedirectClientStart();
+        }
+        finally {
+            CommonConfig.FLOW_TTL = flowTtl;
+        }
+        assertEquals(DropboxFlow.NO_REDIRECT, flow.type);
+        assertNull(DropboxFlowRegistry.get(flow.flowId));
+        assertTrue(flow.getResult().isCompletedExceptionally());
+        try {
+            DropboxWorkflowNoRedirect.noRedirectClientFinishAndSave(flow, "code");
+            fail("expired flow was finished");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        // a flow which has not expired is kept by sweep()
+        DropboxFlow current = DropboxWorkflowNoRedirect.noRedirectClientStart();
+        DropboxFlowRegistry.sweep();
+        assertSame(current, DropboxFlowRegistry.get(current.flowId));
+        DropboxFlowRegistry.fail(current.flowId, new IOException("test finished"));
+        assertNull(DropboxFlowRegistry.get(current.flowId));
+    }
+
+    @Test
+    public void dropboxFlowRegistryRejectsMalformedState() {
+        String flowId = DropboxFlowRegistry.newFlowId();
+        assertEquals(flowId, DropboxFlowRegistry.flowIdFromState("token|" + flowId));
+        assertNull(DropboxFlowRegistry.flowIdFromState(null));
+        assertNull(DropboxFlowRegistry.flowIdFromState(flowId));
+        assertNull(DropboxFlowRegistry.flowIdFromState("token|"));
+        assertNull(DropboxFlowRegistry.flowIdFromState("token|../../" + flowId.substring(6)));
+        assertNull(DropboxFlowRegistry.flowIdFromState("token|" + flowId.toUpperCase()));
+        assertNull(DropboxFlowRegistry.getSessionStore("token|" + flowId));
+    }
+
+    /*
+       ========================
+       TESTS FOR BulkOnboarding
+       ========================
+    */
+    @Test
+    public void bulkOnboardingTracksFlowsAndWritesManifest() throws IOException, InterruptedException {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("oauth_onboarding");
+        java.nio.file.Path manifest = root.resolve("manifest.json");
+        int count = 20;
+        BulkOnboarding batch = BulkOnboarding.start(count, manifest, 4);
+        assertEquals(count, batch.getCount());
+        assertEquals(count, batch.getPending());
+        assertEquals(-1, batch.getPercentile(50));
+
+        // every flow has its own URL, and the manifest lists them all
+        String contents = new String(java.nio.file.Files.readAllBytes(manifest), "UTF-8");
+        java.util.Set<String> urls = new java.util.HashSet<String>();
+        for (DropboxFlow flow : batch.getFlows()) {
+            String url = flow.status.redirectUrl.toString();
+            assertTrue(contents.contains(flow.flowId));
+            urls.add(url);
+        }
+        assertEquals(count, urls.size());
+        assertEquals(count, countOccurrences(contents, "\"" + BulkOnboarding.PENDING + "\""));
+
+        // the callbacks arrive: most users authorise, some decline
+        int i = 0;
+        for (DropboxFlow flow : batch.getFlows()) {
+            DropboxFlowRegistry.createSessionStore(flow.flowId).clear();
+            if (i++ % 4 == 3) {
+                DropboxFlowRegistry.fail(flow.flowId, new IOException("user declined"));
+            }
+            else {
+                DropboxFlowRegistry.complete(flow.flowId, new AccessData("token-" + i, "user-" + i, "onboarding test"));
+            }
+        }
+        assertTrue(batch.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals(15, batch.getCompleted());
+        assertEquals(5, batch.getFailed());
+        assertEquals(0, batch.getPending());
+        assertTrue(batch.getPercentile(50) >= 0);
+        assertTrue(batch.getPercentile(50) <= batch.getPercentile(99));
+        assertTrue(batch.getThroughput() > 0);
+
+        batch.writeManifest();
+        contents = new String(java.nio.file.Files.readAllBytes(manifest), "UTF-8");
+        assertEquals(15, countOccurrences(contents, "\"" + BulkOnboarding.COMPLETED + "\""));
+        assertEquals(5, countOccurrences(contents, "\"" + BulkOnboarding.FAILED + "\""));
+        assertTrue(contents.contains("user-1"));
+
+        for (File f : root.toFile().listFiles()) { f.delete(); }
+        java.nio.file.Files.delete(root);
+    }
+
+    @Test
+    public void bulkOnboardingAbandonsStartedFlowsWhenAStartFails() throws IOException {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("oauth_onboarding");
+        final java.util.List<DropboxFlow> started = java.util.Collections.synchronizedList(new java.util.ArrayList<DropboxFlow>());
+        final java.util.concurrent.atomic.AtomicInteger attempts = new java.util.concurrent.atomic.AtomicInteger();
+        try {
+            BulkOnboarding.start(20, root.resolve("manifest.json"), 4, new BulkOnboarding.Starter() {
+                public DropboxFlow start() throws IOException {
+                    if (attempts.incrementAndGet() > 6) {
+                        throw new IOException("start failed");
+                    }
+                    DropboxFlow flow = DropboxWorkflowRedirect.redirectClientStart();
+                    started.add(flow);
+                    return flow;
+                }
+            });
+            fail("failed start not reported");
+        }
+        catch (IOException e) {
+            assertEquals("start failed", e.getCause().getMessage());
+        }
+        // the other threads stopped, and every flow which was started has been failed and its token file deleted
+        assertTrue("flows started after the failure", attempts.get() < 20);
+        assertEquals(6, started.size());
+        for (DropboxFlow flow : started) {
+            assertTrue("started flow not failed", flow.getResult().isCompletedExceptionally());
+            assertNull("started flow still registered", DropboxFlowRegistry.get(flow.flowId));
+        }
+        assertEquals("CSRF token files left behind", 0, new File(HttpConfig.CSRF_SESSION_DIRECTORY).list().length);
+        assertFalse("manifest written for a failed batch", java.nio.file.Files.exists(root.resolve("manifest.json")));
+        java.nio.file.Files.delete(root);
+    }
+
+    private static int countOccurrences(String s, String sub) {
+        int count = 0;
+        for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + sub.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    /*
+       ===========================
+       TESTS FOR FinishResultCache
+       ===========================
+    */
+    @Test
+    public void finishResultCacheCollapsesDuplicateRequests() throws IOException, InterruptedException {
+        final FinishResultCache cache = new FinishResultCache(60000);
+        final java.util.concurrent.atomic.AtomicInteger finishes = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        final FinishResultCache.Finisher finisher = new FinishResultCache.Finisher() {
+            public DropboxStatus finish() {
+                finishes.incrementAndGet();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException e) { }
+                return new DropboxStatus(200, "finished");
+            }
+        };
+        final String key = FinishResultCache.key("state", "code");
+        final DropboxStatus[] results = new DropboxStatus[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        results[index] = cache.get(key, finisher);
+                    }
+                    catch (IOException e) {
+                        ConsoleLogger.error("finish failed, error='%s'", e.getMessage());
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals("concurrent duplicates should run the finish step once", 1, finishes.get());
+        for (DropboxStatus result : results) {
+            assertSame(results[0], result);
+        }
+        assertSame("a later duplicate should get the cached result", results[0], cache.get(key, finisher));
+        assertEquals(1, finishes.get());
+        assertNull("requests without a state or code are not cached", FinishResultCache.key(null, "code"));
+    }
+
+    @Test
+    public void finishResultCacheExpiresResultsAndSkipsFailures() throws IOException, InterruptedException {
+        FinishResultCache cache = new FinishResultCache(50);
+        final int[] finishes = new int[1];
+        FinishResultCache.Finisher failing = new FinishResultCache.Finisher() {
+            public DropboxStatus finish() throws IOException {
+                finishes[0]++;
+                throw new IOException("token file not saved");
+            }
+        };
+        FinishResultCache.Finisher succeeding = new FinishResultCache.Finisher() {
+            public DropboxStatus finish() {
+                finishes[0]++;
+                return new DropboxStatus(200);
+            }
+        };
+        try {
+            cache.get("key", failing);
+            fail("failure not passed on");
+        }
+        catch (IOException e) {
+            assertEquals("token file not saved", e.getMessage());
+        }
+        DropboxStatus first = cache.get("key", succeeding);
+        assertEquals("failures should not be cached", 2, finishes[0]);
+        Thread.sleep(100);
+        assertEquals(1, cache.sweep());
+        assertNotSame("expired results should not be reused", first, cache.get("key", succeeding));
+        assertEquals(3, finishes[0]);
+    }
+
+    @Test
+    public void repeatedFinishRequestGetsSameResponse() throws IOException {
+        String query = "state=repeated-" + System.nanoTime() + "&code=repeated";
+        DropboxStatus first = DropboxWorkflowRedirect.httpdHandleFinishAndSave("/" + HttpConfig.FINISH_PAGE, query);
+        // there is no CSRF token for this state, so the browser is sent back to the start page
+        assertEquals(301, first.httpStatus);
+        assertSame(first, DropboxWorkflowRedirect.httpdHandleFinishAndSave("/" + HttpConfig.FINISH_PAGE, query));
+    }
+
+    /*
+       =======================
+       TESTS FOR DropboxStatus
+       =======================
+    */
+    @Test
+    public void dropboxStatusEncodesBodyAndHeaders() throws UnsupportedEncodingException {
+        DropboxStatus page = new DropboxStatus(200, "caf\u00e9 \u2713");
+        assertArrayEquals("body should be UTF-8", "caf\u00e9 \u2713".getBytes("UTF-8"), page.getBody());
+        assertSame("body should only be encoded once", page.getBody(), page.getBody());
+        assertEquals("page should be HTML", DropboxStatus.HTML_CONTENT_TYPE, page.getHeaders().get("Content-Type"));
+        page.message = "changed";
+        assertArrayEquals("body should follow the message", "changed".getBytes("UTF-8"), page.getBody());
+
+        DropboxStatus redirect = new DropboxStatus(302, HttpConfig.START_URL).setHeader("Cache-Control", "no-store");
+        assertEquals("redirect should have a Location", HttpConfig.START_URL.toString(), redirect.getHeaders().get("Location"));
+        assertEquals("extra header should be sent", "no-store", redirect.getHeaders().get("Cache-Control"));
+        DropboxStatus notRedirect = new DropboxStatus(200, "ok", HttpConfig.START_URL);
+        assertNull("only redirects should have a Location", notRedirect.getHeaders().get("Location"));
+
+        DropboxStatus bytes = new DropboxStatus(200, new byte[]{1, 2, 3}, null);
+        assertEquals("pre-encoded body should be sent as is", 3, bytes.getBody().length);
+        assertNull("unknown content type should not be sent", bytes.getHeaders().get("Content-Type"));
+    }
+
+    @Test
+    public void homePageHasFixedLengthBody() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) HttpConfig.HOME_URL.openConnection();
+        assertEquals("home page not served", 200, connection.getResponseCode());
+        assertEquals("home page should be UTF-8 HTML", DropboxStatus.HTML_CONTENT_TYPE, connection.getHeaderField("Content-Type"));
+        assertNull("home page should not be chunked", connection.getHeaderField("Transfer-Encoding"));
+        int contentLength = Integer.parseInt(connection.getHeaderField("Content-Length"));
+        InputStream in = connection.getInputStream();
+        int length = 0;
+        while (in.read() >= 0) {
+            length++;
+        }
+        in.close();
+        assertEquals("Content-Length should match the body", contentLength, length);
+    }
+
+    /*
+       ==========================
+       TESTS FOR HttpdFileHandler
+       ==========================
+    */
+    @Test
+    public void httpdFileHandlerServesConditionalRangeAndGzipRequests() throws IOException {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("oauth_doc");
+        try {
+            byte[] image = new byte[256];
+            for (int i = 0; i < image.length; i++) {
+                image[i] = (byte) i;
+            }
+            java.nio.file.Files.write(root.resolve("logo.png"), image);
+            java.nio.file.Files.write(root.resolve("index.html"), "<html>index</html>".getBytes("UTF-8"));
+            java.nio.file.Files.write(root.resolve("index.html.gz"), new byte[]{31, -117, 8});
+            HttpdFileHandler files = new HttpdFileHandler(root, "/doc/", "no docs");
+
+            DropboxStatus png = files.handle(docRequest("/doc/logo.png", null, null));
+            assertEquals(200, png.httpStatus);
+            assertArrayEquals("binary file should be sent unchanged", image, png.getBody());
+            assertEquals("image/png", png.getHeaders().get("Content-Type"));
+            String etag = png.getHeaders().get("ETag");
+            assertNotNull("no ETag", etag);
+            assertNotNull("no Last-Modified", png.getHeaders().get("Last-Modified"));
+
+            assertEquals("matching ETag should give 304", 304, files.handle(docRequest("/doc/logo.png", "If-None-Match", etag)).httpStatus);
+            assertEquals("unchanged file should give 304", 304, files.handle(docRequest("/doc/logo.png", "If-Modified-Since",
+                    png.getHeaders().get("Last-Modified"))).httpStatus);
+
+            DropboxStatus range = files.handle(docRequest("/doc/logo.png", "Range", "bytes=10-19"));
+            assertEquals(206, range.httpStatus);
+            assertEquals("bytes 10-19/256", range.getHeaders().get("Content-Range"));
+            assertArrayEquals(java.util.Arrays.copyOfRange(image, 10, 20), range.getBody());
+            assertEquals("suffix range", "bytes 250-255/256",
+                    files.handle(docRequest("/doc/logo.png", "Range", "bytes=-6")).getHeaders().get("Content-Range"));
+            assertEquals("range past the end", 416, files.handle(docRequest("/doc/logo.png", "Range", "bytes=300-")).httpStatus);
+
+            DropboxStatus index = files.handle(docRequest("/doc/", "Accept-Encoding", "gzip, deflate"));
+            assertEquals("directory should serve index.html.gz", "gzip", index.getHeaders().get("Content-Encoding"));
+            assertEquals("text/html; charset=UTF-8", index.getHeaders().get("Content-Type"));
+            assertEquals(3, index.getBody().length);
+            DropboxStatus plain = files.handle(docRequest("/doc/index.html", null, null));
+            assertNull("gzip sent to a browser which did not ask for it", plain.getHeaders().get("Content-Encoding"));
+            assertEquals("<html>index</html>", new String(plain.getBody(), "UTF-8"));
+
+            assertEquals("missing file", 404, files.handle(docRequest("/doc/missing.html", null, null)).httpStatus);
+            assertEquals("path outside the root", 404, files.handle(docRequest("/doc/../../etc/passwd", null, null)).httpStatus);
+        }
+        finally {
+            for (File f : root.toFile().listFiles()) { f.delete(); }
+            java.nio.file.Files.delete(root);
+        }
+    }
+
+    @Test
+    public void httpdFileHandlerSendsLargeFilesOnBothEngines() throws IOException {
+        java.nio.file.Path root = java.nio.file.Files.createTempDirectory("oauth_doc");
+        byte[] contents = new byte[1024 * 1024 + 17];
+        new java.util.Random(12).nextBytes(contents);
+        java.nio.file.Files.write(root.resolve("big.jar"), contents);
+        HttpdFileHandler files = new HttpdFileHandler(root, "/doc/", "no docs");
+        assertNotNull("large file should be sent from the file", files.handle(docRequest("/doc/big.jar", null, null)).getBodyFile());
+
+        HttpdNioServer nioServer = new HttpdNioServer(new InetSocketAddress("localhost", 0), files, (java.util.concurrent.ExecutorService) null);
+        nioServer.start();
+        com.sun.net.httpserver.HttpServer jdkServer = HttpdServer.createJdkServer(new InetSocketAddress("localhost", 0));
+        jdkServer.createContext("/", new HttpdJdkHandler(files));
+        jdkServer.start();
+        try {
+            for (int port : new int[]{nioServer.getPort(), jdkServer.getAddress().getPort()}) {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http", "localhost", port, "/doc/big.jar").openConnection();
+                assertEquals(200, connection.getResponseCode());
+                assertEquals("application/java-archive", connection.getHeaderField("Content-Type"));
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                InputStream in = connection.getInputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    received.write(buffer, 0, count);
+                }
+                in.close();
+                assertArrayEquals("large file corrupted", contents, received.toByteArray());
+
+                connection = (HttpURLConnection) new URL("http", "localhost", port, "/doc/big.jar").openConnection();
+                connection.setRequestProperty("Range", "bytes=1048576-");
+                assertEquals(206, connection.getResponseCode());
+                assertEquals("17", connection.getHeaderField("Content-Length"));
+                in = connection.getInputStream();
+                while (in.read(buffer) >= 0) { }
+                in.close();
+            }
+        }
+        finally {
+            nioServer.stop();
+            jdkServer.stop(0);
+            for (File f : root.toFile().listFiles()) { f.delete(); }
+            java.nio.file.Files.delete(root);
+        }
+    }
+
+    /** a GET request for a path, with at most one header */
+    private static HttpdRequest docRequest(String path, String headerName, String headerValue) {
+        java.util.Map<String, String> headers = new java.util.HashMap<String, String>();
+        if (headerName != null) {
+            headers.put(headerName, headerValue);
+        }
+        return new HttpdRequest("GET", path, path, null, headers, null);
+    }
+
+    /*
+       =====================
+       TESTS FOR HttpdRouter
+       =====================
+    */
+    @Test
+    public void httpdRouterMatchesExactPrefixAndMethod() throws IOException {
+        HttpdRouter router = new HttpdRouter()
+                .addExact("GET", "/home", fixedStatus(201))
+                .addExact("POST", "/home", fixedStatus(202))
+                .addPrefix("GET", "/doc/", fixedStatus(203))
+                .addPrefix("GET", "/doc/api/", fixedStatus(204))
+                .addExact(HttpdRouter.ANY_METHOD, "/doc/special.html", fixedStatus(205));
+        assertEquals(201, router.handle(docRequest("/home", null, null)).httpStatus);
+        assertEquals(202, router.handle(new HttpdRequest("post", "/home", "/home", null,
+                new java.util.HashMap<String, String>(), null)).httpStatus);
+        assertEquals("prefix", 203, router.handle(docRequest("/doc/index.html", null, null)).httpStatus);
+        assertEquals("longest prefix", 204, router.handle(docRequest("/doc/api/a/b.html", null, null)).httpStatus);
+        assertEquals("exact before prefix", 205, router.handle(docRequest("/doc/special.html", null, null)).httpStatus);
+        assertEquals("no route", 404, router.handle(docRequest("/home/", null, null)).httpStatus);
+        assertEquals("no route", 404, router.handle(docRequest("/docs", null, null)).httpStatus);
+
+        DropboxStatus notAllowed = router.handle(new HttpdRequest("DELETE", "/home", "/home", null,
+                new java.util.HashMap<String, String>(), null));
+        assertEquals("wrong method", 405, notAllowed.httpStatus);
+        assertEquals("GET, POST", notAllowed.getHeaders().get("Allow"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void httpdRouterRejectsPrefixWithoutSlash() {
+        new HttpdRouter().addPrefix("GET", "/doc", fixedStatus(200));
+    }
+
+    /** a handler which always returns the same status */
+    private static HttpdHandler fixedStatus(final int httpStatus) {
+        return new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) {
+                return new DropboxStatus(httpStatus);
+            }
+        };
+    }
+
+    /*
+       ========================
+       TESTS FOR HttpdAdmission
+       ========================
+    */
+    @Test
+    public void httpdAdmissionServesHighPriorityFirstAndShedsLowPriority() throws InterruptedException {
+        final java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        HttpdRouter router = new HttpdRouter()
+                .addExact("GET", "/block", new HttpdHandler() {
+                    public DropboxStatus handle(HttpdRequest request) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        }
+                        catch (InterruptedException e) { }
+                        return new DropboxStatus(200);
+                    }
+                }, HttpdRouter.PRIORITY_HIGH)
+                .addExact("GET", "/finish", fixedStatus(201), HttpdRouter.PRIORITY_HIGH)
+                .addPrefix("GET", "/doc/", fixedStatus(202), HttpdRouter.PRIORITY_LOW);
+        assertEquals(HttpdRouter.PRIORITY_LOW, router.getPriority(httpdRequest("/doc/index.html", null)));
+        assertEquals(HttpdRouter.PRIORITY_HIGH, router.getPriority(httpdRequest("/finish", null)));
+        assertEquals(HttpdRouter.PRIORITY_LOW, router.getPriority(httpdRequest("/no/such/page", null)));
+
+        java.util.concurrent.ExecutorService executor = HttpdExecutors.create(HttpConfig.EXECUTOR_FIXED, 1);
+        try {
+            HttpdAdmission admission = new HttpdAdmission(executor, router, 2, 0, 1);
+            final java.util.List<String> results = java.util.Collections.synchronizedList(new java.util.ArrayList<String>());
+            final java.util.concurrent.CountDownLatch finished = new java.util.concurrent.CountDownLatch(6);
+            String[] paths = {"/block", "/doc/1", "/doc/2", "/finish", "/doc/3"};
+            for (final String path : paths) {
+                admission.submit(httpdRequest(path, null), router, new HttpdAdmission.Callback() {
+                    public void done(DropboxStatus status) {
+                        results.add(path + " " + status.httpStatus);
+                        finished.countDown();
+                    }
+                });
+                if (path.equals("/block")) {
+                    // make sure the only worker is busy, so the other requests are queued
+                    assertTrue("blocking request did not start", started.await(5, java.util.concurrent.TimeUnit.SECONDS));
+                }
+            }
+            // the queue held two doc requests, so the finish request replaced the later one, and the third was refused
+            assertEquals(java.util.Arrays.asList("/doc/2 503", "/doc/3 503"), new java.util.ArrayList<String>(results));
+            assertEquals(2, admission.getQueueLength());
+            assertEquals(2, admission.getRefusedCount());
+            release.countDown();
+            finished.countDown();
+            assertTrue("queued requests were not run", finished.await(5, java.util.concurrent.TimeUnit.SECONDS));
+            assertEquals(java.util.Arrays.asList("/doc/2 503", "/doc/3 503", "/block 200", "/finish 201", "/doc/1 202"), results);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void httpdAdmissionRateLimitsEachClient() {
+        HttpdAdmission admission = new HttpdAdmission(null, null, 10, 1, 2);
+        final DropboxStatus[] response = new DropboxStatus[1];
+        HttpdAdmission.Callback callback = new HttpdAdmission.Callback() {
+            public void done(DropboxStatus status) { response[0] = status; }
+        };
+        InetSocketAddress client = new InetSocketAddress("192.0.2.1", 40000);
+        for (int i = 0; i < 2; i++) {
+            admission.submit(httpdRequest("/home", client), fixedStatus(200), callback);
+            assertEquals("burst should be allowed", 200, response[0].httpStatus);
+        }
+        admission.submit(httpdRequest("/home", new InetSocketAddress("192.0.2.1", 40001)), fixedStatus(200), callback);
+        assertEquals("client should be limited by address, not port", 429, response[0].httpStatus);
+        assertEquals("1", response[0].getHeaders().get("Retry-After"));
+        admission.submit(httpdRequest("/home", new InetSocketAddress("192.0.2.2", 40000)), fixedStatus(200), callback);
+        assertEquals("other clients should not be limited", 200, response[0].httpStatus);
+        assertEquals(1, admission.getRateLimitedCount());
+    }
+
+    @Test
+    public void httpdAdmissionDoesNotRateLimitLoopback() {
+        if (System.getProperty("oauth.rateLimit") == null) {
+            assertEquals("rate limit should be off by default", 0, HttpConfig.RATE_LIMIT);
+        }
+        HttpdAdmission admission = new HttpdAdmission(null, null, 10, 1, 2);
+        final int[] rejected = new int[1];
+        HttpdAdmission.Callback callback = new HttpdAdmission.Callback() {
+            public void done(DropboxStatus status) {
+                if (status.httpStatus != 200) {
+                    rejected[0]++;
+                }
+            }
+        };
+        for (int i = 0; i < 1000; i++) {
+            admission.submit(httpdRequest("/finish", new InetSocketAddress("127.0.0.1", 40000 + i)), fixedStatus(200), callback);
+            admission.submit(httpdRequest("/doc/index.html", new InetSocketAddress("::1", 40000 + i)), fixedStatus(200), callback);
+        }
+        assertEquals("loopback requests should not be rejected", 0, rejected[0]);
+        assertEquals(0, admission.getRateLimitedCount());
+    }
+
+    /** a GET request for a path */
+    private static HttpdRequest httpdRequest(String path, InetSocketAddress remoteAddress) {
+        return new HttpdRequest("GET", path, path, null, new java.util.HashMap<String, String>(), remoteAddress);
+    }
+
+    /*
+       ========================
+       TESTS FOR HttpdExecutors
+       ========================
+    */
+    @Test
+    public void httpdExecutorsRunRequestsConcurrently() throws InterruptedException {
+        assertNull("dispatcher mode should not have an executor", HttpdExecutors.create(HttpConfig.EXECUTOR_DISPATCHER, 4));
+        for (String mode : new String[]{HttpConfig.EXECUTOR_FIXED, HttpConfig.EXECUTOR_WORK_STEALING, HttpConfig.EXECUTOR_VIRTUAL}) {
+            java.util.concurrent.ExecutorService executor = HttpdExecutors.create(mode, 4);
+            final java.util.concurrent.CountDownLatch running = new java.util.concurrent.CountDownLatch(2);
+            try {
+                // each task waits for the other, so they only finish if they run at the same time
+                for (int i = 0; i < 2; i++) {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            running.countDown();
+                            try {
+                                running.await();
+                            }
+                            catch (InterruptedException e) { }
+                        }
+                    });
+                }
+                assertTrue(String.format("executor mode '%s' did not run requests concurrently", mode),
+                        running.await(5, java.util.concurrent.TimeUnit.SECONDS));
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void httpdExecutorsRejectUnknownMode() {
+        HttpdExecutors.create("no-such-mode", 4);
+    }
+
+    /*
+       ========================
+       TESTS FOR HttpdNioServer
+       ========================
+    */
+    @Test
+    public void httpdNioServerHandlesPipelinedKeepAliveRequests() throws IOException {
+        java.util.concurrent.ExecutorService executor = HttpdExecutors.create(HttpConfig.EXECUTOR_FIXED, 2);
+        HttpdNioServer server = new HttpdNioServer(new InetSocketAddress("localhost", 0), new HttpdUrlHandler(), executor);
+        server.start();
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            // two requests in one write; the second comes from a browser which already has a session cookie
+            out.write(("GET /" + HttpConfig.HOME_PAGE + " HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                       "GET /favicon.ico HTTP/1.1\r\nHost: localhost\r\nCookie: " + HttpConfig.SESSION_COOKIE + "=abc\r\n\r\n")
+                       .getBytes("ISO-8859-1"));
+            out.flush();
+
+            String first = readHttpResponse(in);
+            assertTrue("home page should be served: " + first, first.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue("new session should get a cookie", first.contains("Set-Cookie: " + HttpConfig.SESSION_COOKIE + "="));
+            assertTrue("home page body should be sent", first.contains("BCS SPA 2014 OAuth Demo"));
+            assertTrue("home page should be HTML", first.contains("Content-Type: " + DropboxStatus.HTML_CONTENT_TYPE + "\r\n"));
+            String second = readHttpResponse(in);
+            assertTrue("favicon should not be found: " + second, second.startsWith("HTTP/1.1 404 Not Found\r\n"));
+
+            // the connection is still open, and closes after a request which asks it to
+            out.write("POST /home HTTP/1.1\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello".getBytes("ISO-8859-1"));
+            out.flush();
+            String third = readHttpResponse(in);
+            assertTrue("POST should not be allowed: " + third, third.startsWith("HTTP/1.1 405 Method Not Allowed\r\n"));
+            assertTrue("response should say the connection is closing", third.contains("Connection: close\r\n"));
+            assertEquals("connection should be closed", -1, in.read());
+        }
+        finally {
+            socket.close();
+            server.stop();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void httpdNioServerRejectsHugeHeaders() throws IOException {
+        HttpdNioServer server = new HttpdNioServer(new InetSocketAddress("localhost", 0), new HttpdUrlHandler(), (java.util.concurrent.ExecutorService) null);
+        server.start();
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            StringBuilder request = new StringBuilder("GET /home HTTP/1.1\r\n");
+            for (int i = 0; i < 1000; i++) {
+                request.append("X-Padding-").append(i).append(": 0123456789012345678901234567890123456789\r\n");
+            }
+            OutputStream out = socket.getOutputStream();
+            try {
+                out.write(request.toString().getBytes("ISO-8859-1"));
+                out.flush();
+            }
+            catch (IOException e) {
+                // the server may close the connection before it has read everything
+            }
+            String response = readHttpResponse(new BufferedInputStream(socket.getInputStream()));
+            assertTrue("huge headers should be rejected: " + response, response.startsWith("HTTP/1.1 431 "));
+        }
+        finally {
+            socket.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void httpdNioServerSurvivesFailedConnections() throws IOException {
+        HttpdHandler handler = new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) {
+                // a broken handler, which returns no status
+                return request.uriPath.equals("/broken") ? null : new DropboxStatus(200);
+            }
+        };
+        java.util.concurrent.ExecutorService executor = HttpdExecutors.create(HttpConfig.EXECUTOR_FIXED, 2);
+        for (java.util.concurrent.ExecutorService workers : new java.util.concurrent.ExecutorService[]{null, executor}) {
+            HttpdNioServer server = new HttpdNioServer(new InetSocketAddress("localhost", 0), handler, workers);
+            server.start();
+            try {
+                // clients which reset their connections at once
+                for (int i = 0; i < 20; i++) {
+                    Socket reset = new Socket("localhost", server.getPort());
+                    reset.setSoLinger(true, 0);
+                    reset.close();
+                }
+                assertTrue("broken handler should give status 500", sendHttpRequest(server, "GET /broken HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 500 "));
+                assertTrue("negative Content-Length should be refused",
+                        sendHttpRequest(server, "GET /ok HTTP/1.1\r\nContent-Length: -5\r\n\r\nGET /ok HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 400 "));
+                assertTrue("server should still be serving", sendHttpRequest(server, "GET /ok HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 "));
+            }
+            finally {
+                server.stop();
+            }
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void httpdNioServerTimesOutStalledResponses() throws Exception {
+        final byte[] body = new byte[16 * 1024 * 1024];
+        HttpdHandler handler = new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) {
+                return new DropboxStatus(200, body, "application/octet-stream");
+            }
+        };
+        int idleTimeout = HttpConfig.HTTP_IDLE_TIMEOUT;
+        HttpConfig.HTTP_IDLE_TIMEOUT = 1;
+        HttpdNioServer server = new HttpdNioServer(new InetSocketAddress("localhost", 0), handler, (java.util.concurrent.ExecutorService) null);
+        server.start();
+        Socket socket = new Socket();
+        try {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", server.getPort()));
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("GET /big HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+            // the client stops reading, so the response stalls, and is closed after the idle timeout
+            Thread.sleep(3500);
+            InputStream in = socket.getInputStream();
+            long received = 0;
+            byte[] buffer = new byte[65536];
+            try {
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    received += count;
+                }
+            }
+            catch (IOException e) {
+                // the connection may be reset
+            }
+            assertTrue("stalled response should be abandoned, received " + received, received < body.length);
+        }
+        finally {
+            HttpConfig.HTTP_IDLE_TIMEOUT = idleTimeout;
+            socket.close();
+            server.stop();
+        }
+    }
+
+    /** send a request on a new connection, and return the first response */
+    private static String sendHttpRequest(HttpdNioServer server, String request) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(request.getBytes("ISO-8859-1"));
+            return readHttpResponse(new BufferedInputStream(socket.getInputStream()));
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /** read one HTTP response (head and Content-Length body) and return it as a string */
+    private static String readHttpResponse(InputStream in) throws IOException {
+        StringBuilder response = new StringBuilder();
+        int contentLength = 0;
+        String line;
+        while (!(line = readHttpLine(in)).isEmpty()) {
+            response.append(line).append("\r\n");
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        response.append("\r\n");
+        for (int i = 0; i < contentLength; i++) {
+            response.append((char) in.read());
+        }
+        return response.toString();
+    }
+
+    private static String readHttpLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("connection closed in the middle of a response");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
     /*
        ====================
        TESTS FOR HttpConfig
@@ -163,6 +2085,8 @@ public class TestCommonClasses {
     }
 
     private CommonTest commonTest;
+    private String savedSessionDirectory;
+    private File sessionDirectory;
 
 }
 
@@ -0,0 +1,78 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.CountDownLatch;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Benchmark of AtomicFileWriter: saves per second with and without group commit.
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchAtomicFileWriter
+ *
+ * <p>Optional arguments: number of threads (default 8), saves per thread (default 200).
+ */
+public class BenchAtomicFileWriter {
+
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int savesPerThread = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        Path directory = Files.createTempDirectory("bench_atomic");
+        try {
+            for (int run = 0; run < 2; run++) { // the first run is a warm-up
+                for (boolean groupCommit : new boolean[]{false, true}) {
+                    CommonConfig.GROUP_COMMIT = groupCommit;
+                    long batchesBefore = AtomicFileWriter.getBatchCount();
+                    double savesPerSecond = runSaves(directory.resolve("access_token.json"), threads, savesPerThread);
+                    if (run > 0) {
+                        System.out.println(String.format("group commit %-5s: %d threads, %8.0f saves/s, %d batches",
+                                groupCommit, threads, savesPerSecond, AtomicFileWriter.getBatchCount() - batchesBefore));
+                    }
+                }
+            }
+        }
+        finally {
+            for (File f : directory.toFile().listFiles()) { f.delete(); }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Save the same file concurrently from several threads.
+     *
+     * @return saves per second
+     */
+    private static double runSaves(final Path file, int threads, final int savesPerThread) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int threadNumber = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < savesPerThread; i++) {
+                            String json = String.format("{\n    \"access_token\":\"thread %d save %d\"\n}\n", threadNumber, i);
+                            AtomicFileWriter.write(file, json.getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    finally {
+                        finish.countDown();
+                    }
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        finish.await();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return threads * savesPerThread / seconds;
+    }
+
+}
@@ -0,0 +1,76 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.dropbox.core.http.HttpRequestor;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+import uk.org.rozanski.oauth_demo.testlib.LocalHttpsServer;
+
+/**
+ * Benchmark of DropboxWarmup: latency of the first operation with and without a warm-up, against a local HTTPS server
+ * which stands in for the Dropbox hosts.
+ *
+ * <p>Each trial builds a new TLS context and requestor, as a new process would, so there is no connection in the
+ * keep-alive cache and no session in the TLS session cache. Without a warm-up the first request pays for connecting
+ * and a full handshake; after a warm-up it reuses the connection the warm-up left behind. Loading and compiling the
+ * SDK's classes is only paid once per JVM, so it is not measured here (the first trials are warm-up of the benchmark).
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchDropboxWarmup
+ *
+ * <p>Optional arguments: trials (default 20).
+ */
+public class BenchDropboxWarmup {
+
+    public static void main(String[] args) throws Exception {
+        int trials = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        ConsoleLogger.setLevel(Level.OFF);
+        LocalHttpsServer server = new LocalHttpsServer();
+        try {
+            String host = server.url("").substring("https://".length());
+            long[] cold = new long[trials];
+            long[] warm = new long[trials];
+            for (int trial = -3; trial < trials; trial++) { // the first trials are warm-up
+                long coldNanos = firstOperation(server, newRequestor(server));
+                PooledHttpRequestor requestor = newRequestor(server);
+                DropboxWarmup warmup = new DropboxWarmup(requestor, Arrays.asList(host)).start();
+                warmup.await(1, TimeUnit.MINUTES);
+                firstOperation(server, requestor);
+                if (trial >= 0) {
+                    cold[trial] = coldNanos;
+                    warm[trial] = warmup.getFirstOperationNanos();
+                }
+            }
+            Arrays.sort(cold);
+            Arrays.sort(warm);
+            System.out.println(String.format("first operation without warm-up: median %6.2f ms, worst %6.2f ms",
+                    cold[trials / 2] / 1e6, cold[trials - 1] / 1e6));
+            System.out.println(String.format("first operation after warm-up  : median %6.2f ms, worst %6.2f ms",
+                    warm[trials / 2] / 1e6, warm[trials - 1] / 1e6));
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /** a requestor with a TLS context of its own, so nothing is cached */
+    private static PooledHttpRequestor newRequestor(LocalHttpsServer server) throws Exception {
+        DropboxSslContext sslContext = new DropboxSslContext(Collections.singletonList(server.getCertificate()), 10, 60);
+        return new PooledHttpRequestor(35000, 35000, 4, sslContext.getSocketFactory(), null);
+    }
+
+    /** make an account info request, returning its latency */
+    private static long firstOperation(LocalHttpsServer server, HttpRequestor requestor) throws Exception {
+        List<HttpRequestor.Header> headers = new ArrayList<HttpRequestor.Header>();
+        long startTime = System.nanoTime();
+        requestor.doGet(server.url("/1/account/info"), headers).body.close();
+        return System.nanoTime() - startTime;
+    }
+
+}
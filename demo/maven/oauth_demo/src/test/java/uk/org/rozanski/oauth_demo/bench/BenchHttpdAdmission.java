@@ -0,0 +1,81 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Benchmark of HttpdAdmission: how long a finish request waits while the server is flooded with documentation requests.
+ *
+ * <p>A pool of 4 workers is given a burst of slow (1 ms) documentation requests, and a finish request is submitted
+ * every 10 documentation requests. The benchmark reports the median and worst wait for the finish requests and the
+ * number of documentation requests refused, first with every route at the same priority and an unbounded queue (as
+ * before admission control), and then with the priorities used by {@code HttpdUrlHandler.addStandardRoutes()} and a
+ * bounded queue.
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchHttpdAdmission
+ *
+ * <p>Optional arguments: documentation requests per run (default 5000).
+ */
+public class BenchHttpdAdmission {
+
+    public static void main(String[] args) throws Exception {
+        int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        ConsoleLogger.setLevel(Level.OFF);
+        run("same priority, unbounded", requests, HttpdRouter.PRIORITY_NORMAL, Integer.MAX_VALUE);
+        run("priorities, queue 256", requests, HttpdRouter.PRIORITY_HIGH, 256);
+    }
+
+    private static void run(String name, int requests, int finishPriority, int queueCapacity) throws InterruptedException {
+        final DropboxStatus okStatus = new DropboxStatus(200);
+        HttpdHandler slow = new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) {
+                long end = System.nanoTime() + 1000000;
+                while (System.nanoTime() < end) {
+                    // simulate a handler which needs 1 ms of CPU
+                }
+                return okStatus;
+            }
+        };
+        HttpdRouter router = new HttpdRouter()
+                .addExact("GET", "/" + HttpConfig.FINISH_PAGE, slow, finishPriority)
+                .addPrefix("GET", "/doc/", slow, HttpdRouter.PRIORITY_LOW);
+        ExecutorService executor = HttpdExecutors.create(HttpConfig.EXECUTOR_FIXED, 4);
+        HttpdAdmission admission = new HttpdAdmission(executor, router, queueCapacity, 0, 1);
+        Map<String, String> headers = new HashMap<String, String>();
+        HttpdRequest doc = new HttpdRequest("GET", "/doc/index.html", "/doc/index.html", null, headers, null);
+        HttpdRequest finish = new HttpdRequest("GET", "/" + HttpConfig.FINISH_PAGE, "/" + HttpConfig.FINISH_PAGE, null, headers, null);
+
+        int finishes = (requests + 9) / 10;
+        final long[] waits = new long[finishes];
+        final CountDownLatch done = new CountDownLatch(requests + finishes);
+        HttpdAdmission.Callback docCallback = new HttpdAdmission.Callback() {
+            public void done(DropboxStatus status) { done.countDown(); }
+        };
+        for (int i = 0; i < requests; i++) {
+            admission.submit(doc, router, docCallback);
+            if (i % 10 == 0) {
+                final int index = i / 10;
+                final long submitted = System.nanoTime();
+                admission.submit(finish, router, new HttpdAdmission.Callback() {
+                    public void done(DropboxStatus status) {
+                        waits[index] = System.nanoTime() - submitted;
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        done.await(5, TimeUnit.MINUTES);
+        executor.shutdown();
+        java.util.Arrays.sort(waits);
+        System.out.println(String.format("%-26s finish wait: median %7.1f ms, worst %7.1f ms  doc requests refused: %d",
+                name, waits[finishes / 2] / 1e6, waits[finishes - 1] / 1e6, admission.getRefusedCount()));
+    }
+
+}
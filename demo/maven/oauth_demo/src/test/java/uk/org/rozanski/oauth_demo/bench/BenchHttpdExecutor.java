@@ -0,0 +1,119 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import com.sun.net.httpserver.*;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Load test of the HTTP server executor modes: finish requests per second as the number of concurrent clients grows.
+ *
+ * <p>The finish step normally makes several blocking calls to Dropbox. To measure the server rather than Dropbox,
+ * the finish handler is wrapped in one which first sleeps for a fixed time (default 50 ms) to simulate those calls;
+ * the finish step itself then fails quickly, because the requests carry no valid CSRF state.
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchHttpdExecutor
+ *
+ * <p>Optional arguments: simulated Dropbox time in ms (default 50), requests per client (default 20).
+ */
+public class BenchHttpdExecutor {
+
+    public static void main(String[] args) throws Exception {
+        final int dropboxMillis = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+        int requestsPerClient = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        ConsoleLogger.setLevel(Level.OFF);
+        String[] modes = {HttpConfig.EXECUTOR_DISPATCHER, HttpConfig.EXECUTOR_FIXED,
+                HttpConfig.EXECUTOR_WORK_STEALING, HttpConfig.EXECUTOR_VIRTUAL};
+        int[] concurrencies = {1, 8, 32, 128};
+        System.out.println(String.format("simulated Dropbox time %d ms, %d threads in pools, virtual threads %s",
+                dropboxMillis, HttpConfig.EXECUTOR_THREADS,
+                HttpdExecutors.virtualThreadsSupported() ? "supported" : "NOT supported (fixed pool used)"));
+        for (String mode : modes) {
+            StringBuilder line = new StringBuilder(String.format("%-13s", mode));
+            for (int clients : concurrencies) {
+                HttpServer server = HttpServer.create(new InetSocketAddress(HttpConfig.HTTP_SERVER, 0), 0);
+                final HttpdUrlHandler handler = new HttpdUrlHandler();
+                server.createContext("/", new HttpHandler() {
+                    public void handle(HttpExchange exchange) throws IOException {
+                        if (exchange.getRequestURI().getPath().endsWith(HttpConfig.FINISH_PAGE)) {
+                            try {
+                                Thread.sleep(dropboxMillis);
+                            }
+                            catch (InterruptedException e) { }
+                        }
+                        handler.handle(exchange);
+                    }
+                });
+                ExecutorService executor = HttpdExecutors.create(mode, HttpConfig.EXECUTOR_THREADS);
+                server.setExecutor(executor);
+                server.start();
+                try {
+                    URL finishUrl = new URL("http", HttpConfig.HTTP_SERVER, server.getAddress().getPort(),
+                            "/" + HttpConfig.FINISH_PAGE + "?state=bench&code=bench");
+                    runClients(finishUrl, clients, Math.max(1, requestsPerClient / 4)); // warm-up
+                    double requestsPerSecond = runClients(finishUrl, clients, requestsPerClient);
+                    line.append(String.format("  %4d clients: %7.0f req/s", clients, requestsPerSecond));
+                }
+                finally {
+                    server.stop(0);
+                    if (executor != null) {
+                        executor.shutdown();
+                    }
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Send finish requests from several client threads at once.
+     *
+     * @return requests per second
+     */
+    private static double runClients(final URL url, int clients, final int requestsPerClient) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(clients);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int c = 0; c < clients; c++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < requestsPerClient; i++) {
+                            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                            connection.setInstanceFollowRedirects(false);
+                            connection.getResponseCode();
+                            InputStream in = connection.getErrorStream();
+                            if (in == null) {
+                                in = connection.getInputStream();
+                            }
+                            while (in.read() >= 0) { }
+                            in.close();
+                        }
+                    }
+                    catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    finally {
+                        finish.countDown();
+                    }
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        finish.await();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        if (failures.get() > 0) {
+            System.out.println(String.format("%d clients failed", failures.get()));
+        }
+        return clients * requestsPerClient / seconds;
+    }
+
+}
@@ -0,0 +1,150 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.io.*;
+import java.net.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import com.sun.net.httpserver.*;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Load test of home page responses: requests per second before and after sending fixed-length, pre-encoded bodies.
+ *
+ * <p>The configurations measured are:
+ * <ul>
+ * <li>{@code jdk-chunked} - the old way of responding: {@code sendResponseHeaders(status, 0)} (so the body is chunked),
+ * the message re-encoded with the platform charset, and no {@code Content-Type}
+ * <li>{@code jdk-fixed} - {@code HttpdUrlHandler} on the JDK engine, sending {@code DropboxStatus.getBody()} with a
+ * {@code Content-Length}
+ * <li>{@code jdk-fixed-close} - the same, but the client sends {@code Connection: close}, so every request opens a
+ * new connection (shows what keep-alive saves)
+ * <li>{@code nio-fixed} - {@code HttpdUrlHandler} on {@code HttpdNioServer}
+ * </ul>
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchHttpdResponses
+ *
+ * <p>Optional arguments: requests per client (default 2000).
+ */
+public class BenchHttpdResponses {
+
+    public static void main(String[] args) throws Exception {
+        int requestsPerClient = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        ConsoleLogger.setLevel(Level.OFF);
+        String[] configurations = {"jdk-chunked", "jdk-fixed", "jdk-fixed-close", "nio-fixed"};
+        int[] concurrencies = {1, 8, 32};
+        for (String configuration : configurations) {
+            StringBuilder line = new StringBuilder(String.format("%-16s", configuration));
+            for (int clients : concurrencies) {
+                ExecutorService executor = HttpdExecutors.create(HttpConfig.EXECUTOR_FIXED, HttpConfig.EXECUTOR_THREADS);
+                HttpServer jdkServer = null;
+                HttpdNioServer nioServer = null;
+                int port;
+                if (configuration.startsWith("nio")) {
+                    nioServer = new HttpdNioServer(new InetSocketAddress(HttpConfig.HTTP_SERVER, 0), new HttpdUrlHandler(), executor);
+                    nioServer.start();
+                    port = nioServer.getPort();
+                }
+                else {
+                    jdkServer = HttpdServer.createJdkServer(new InetSocketAddress(HttpConfig.HTTP_SERVER, 0));
+                    jdkServer.createContext("/", configuration.equals("jdk-chunked") ? new ChunkedHandler() : new HttpdUrlHandler());
+                    jdkServer.setExecutor(executor);
+                    jdkServer.start();
+                    port = jdkServer.getAddress().getPort();
+                }
+                try {
+                    URL homeUrl = new URL("http", HttpConfig.HTTP_SERVER, port, "/" + HttpConfig.HOME_PAGE);
+                    boolean close = configuration.endsWith("-close");
+                    runClients(homeUrl, close, clients, Math.max(1, requestsPerClient / 4)); // warm-up
+                    double requestsPerSecond = runClients(homeUrl, close, clients, requestsPerClient);
+                    line.append(String.format("  %3d clients: %7.0f req/s", clients, requestsPerSecond));
+                }
+                finally {
+                    if (nioServer != null) {
+                        nioServer.stop();
+                    }
+                    if (jdkServer != null) {
+                        jdkServer.stop(0);
+                    }
+                    executor.shutdown();
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    /** responds the way HttpdUrlHandler did before responses had a fixed length */
+    private static class ChunkedHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> headers = new HashMap<String, String>();
+            String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+            if (cookie != null) {
+                headers.put("Cookie", cookie);
+            }
+            URI uri = exchange.getRequestURI();
+            HttpdRequest request = new HttpdRequest(exchange.getRequestMethod(), uri.toString(), uri.getPath(), uri.getQuery(),
+                    headers, exchange.getRemoteAddress());
+            DropboxStatus statusAndResponse = handler.handle(request);
+            for (String setCookie : request.session.getResponseCookies()) {
+                exchange.getResponseHeaders().add("Set-Cookie", setCookie);
+            }
+            exchange.sendResponseHeaders(statusAndResponse.httpStatus, 0);
+            OutputStream os = exchange.getResponseBody();
+            os.write(statusAndResponse.message.getBytes());
+            os.close();
+        }
+        private final HttpdUrlHandler handler = new HttpdUrlHandler();
+    }
+
+    /**
+     * Request a page from several client threads at once.
+     *
+     * @return requests per second
+     */
+    private static double runClients(final URL url, final boolean close, int clients, final int requestsPerClient)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(clients);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int c = 0; c < clients; c++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    try {
+                        start.await();
+                        for (int i = 0; i < requestsPerClient; i++) {
+                            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                            if (close) {
+                                connection.setRequestProperty("Connection", "close");
+                            }
+                            connection.getResponseCode();
+                            InputStream in = connection.getInputStream();
+                            while (in.read(buffer) >= 0) { }
+                            in.close();
+                        }
+                    }
+                    catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    finally {
+                        finish.countDown();
+                    }
+                }
+            }).start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        finish.await();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        if (failures.get() > 0) {
+            System.out.println(String.format("%d clients failed", failures.get()));
+        }
+        return clients * requestsPerClient / seconds;
+    }
+
+}
@@ -0,0 +1,67 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Benchmark of HttpdRouter: routing time per request as the number of routes grows.
+ *
+ * <p>The router is given home and doc routes plus N dummy exact routes and N dummy prefix routes, and then routes
+ * requests for the home page (an exact route), a javadoc page (a prefix route, four directories deep) and an unknown
+ * page (404). The handlers return a shared status, so only routing is measured (apart from the 404, which includes
+ * creating the {@code DropboxStatus}).
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchHttpdRouter
+ *
+ * <p>Optional arguments: requests per run (default 2000000).
+ */
+public class BenchHttpdRouter {
+
+    public static void main(String[] args) throws Exception {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        ConsoleLogger.setLevel(Level.OFF);
+        final DropboxStatus okStatus = new DropboxStatus(200);
+        HttpdHandler ok = new HttpdHandler() {
+            public DropboxStatus handle(HttpdRequest request) {
+                return okStatus;
+            }
+        };
+        Map<String, String> headers = new HashMap<String, String>();
+        HttpdRequest[] requests = {
+            new HttpdRequest("GET", "/home", "/home", null, headers, null),
+            new HttpdRequest("GET", "/doc/apidocs/uk/org/rozanski/index.html", "/doc/apidocs/uk/org/rozanski/index.html", null, headers, null),
+            new HttpdRequest("GET", "/no/such/page", "/no/such/page", null, headers, null),
+        };
+        String[] names = {"exact", "prefix", "not found"};
+        for (int routes : new int[]{0, 10, 1000, 100000}) {
+            HttpdRouter router = new HttpdRouter();
+            router.addExact("GET", "/home", ok).addPrefix("GET", "/doc/", ok);
+            for (int i = 0; i < routes; i++) {
+                router.addExact("GET", "/endpoint" + i, ok);
+                router.addPrefix("GET", "/area" + i + "/", ok);
+            }
+            StringBuilder line = new StringBuilder(String.format("%6d extra routes:", routes * 2));
+            for (int r = 0; r < requests.length; r++) {
+                long elapsed = 0;
+                for (int run = 0; run < 3; run++) { // the first runs are warm-up
+                    long startTime = System.nanoTime();
+                    long check = 0;
+                    for (int op = 0; op < operations; op++) {
+                        check += router.handle(requests[r]).httpStatus;
+                    }
+                    elapsed = System.nanoTime() - startTime;
+                    if (check == 0) {
+                        System.out.println("no work done");
+                    }
+                }
+                line.append(String.format("  %s %6.1f ns/request", names[r], (double) elapsed / operations));
+            }
+            System.out.println(line);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import org.json.simple.*;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Benchmark of JsonWriter and JsonReader against json-simple 1.1: encodes and decodes per second for an access
+ * token record, and bytes allocated per operation.
+ *
+ * <p>The json-simple encoder is measured the way {@code AccessData.save()} used to use it: build a {@code JSONObject},
+ * write it to a {@code StringWriter}, pretty-print it with three {@code String.replace} passes and encode it to UTF-8.
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchJsonCodec
+ *
+ * <p>Optional arguments: operations per run (default 1000000).
+ */
+public class BenchJsonCodec {
+
+    public static void main(String[] args) throws Exception {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        AccessData accessData = new AccessData("XOaZNOBLx6AAAAAAAAAAAbzRkvN7kTxwPI8ebeE1smGKQpBbPsWn3lsbL1yabcde",
+                "123456789", "access token saved by DropboxWorkflowRedirect");
+        accessData.creationTime = TimeNow.timeNowString();
+        final byte[] json = encodeJsonSimple(accessData);
+        for (int run = 0; run < 3; run++) { // the first runs are warm-up
+            long[] results = new long[4];
+            long[] allocated = new long[4];
+            for (int i = 0; i < 4; i++) {
+                long allocatedBefore = allocatedBytes();
+                long startTime = System.nanoTime();
+                long check = 0;
+                for (int op = 0; op < operations; op++) {
+                    switch (i) {
+                        case 0: check += encodeJsonSimple(accessData).length; break;
+                        case 1: check += encodeJsonWriter(accessData).length; break;
+                        case 2: check += decodeJsonSimple(json).accessToken.length(); break;
+                        default: check += decodeJsonReader(json).accessToken.length(); break;
+                    }
+                }
+                results[i] = System.nanoTime() - startTime;
+                allocated[i] = allocatedBytes() - allocatedBefore;
+                if (check == 0) {
+                    System.out.println("no work done");
+                }
+            }
+            if (run == 2) {
+                String[] names = {"encode json-simple", "encode JsonWriter", "decode json-simple", "decode JsonReader"};
+                for (int i = 0; i < 4; i++) {
+                    System.out.println(String.format("%-20s: %10.0f ops/s, %6d bytes allocated/op", names[i],
+                            operations / (results[i] / 1e9), (allocated[i] < 0) ? -1 : allocated[i] / operations));
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static byte[] encodeJsonSimple(AccessData accessData) throws IOException {
+        JSONObject obj = new JSONObject();
+        obj.put("access_token", accessData.accessToken);
+        obj.put("user_id", accessData.userId);
+        obj.put("message", accessData.saveMessage);
+        obj.put("creation_time", accessData.creationTime);
+        StringWriter stringWriter = new StringWriter();
+        obj.writeJSONString(stringWriter);
+        String jsonText = stringWriter.toString();
+        jsonText = jsonText.replace("{", "{\n    ");
+        jsonText = jsonText.replace(",", ",\n    ");
+        jsonText = jsonText.replace("}", "\n}\n");
+        return (jsonText + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeJsonWriter(AccessData accessData) {
+        JsonWriter writer = new JsonWriter(true);
+        accessData.write(writer);
+        return writer.toByteArray();
+    }
+
+    private static AccessData decodeJsonSimple(byte[] json) {
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(new String(json, StandardCharsets.UTF_8));
+        AccessData accessData = new AccessData();
+        accessData.accessToken = (String) jsonObject.get("access_token");
+        accessData.userId = (String) jsonObject.get("user_id");
+        accessData.saveMessage = (String) jsonObject.get("message");
+        accessData.creationTime = (String) jsonObject.get("creation_time");
+        return accessData;
+    }
+
+    private static AccessData decodeJsonReader(byte[] json) throws IOException {
+        AccessData accessData = new AccessData();
+        accessData.read(new JsonReader(json, 0, json.length));
+        return accessData;
+    }
+
+    /**
+     * Return the number of bytes allocated by this thread, or -1 if the JVM does not support it.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
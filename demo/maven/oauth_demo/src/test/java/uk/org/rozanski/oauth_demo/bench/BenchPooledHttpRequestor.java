@@ -0,0 +1,131 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.StandardHttpRequestor;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+import uk.org.rozanski.oauth_demo.testlib.LocalHttpsServer;
+
+/**
+ * Benchmark of PooledHttpRequestor against the SDK's StandardHttpRequestor: requests per second, and TLS handshakes,
+ * against a local HTTPS server which stands in for the Dropbox hosts.
+ *
+ * <p>Each operation makes the calls the SDK makes: a POST (as in the token request of the finish step, and every
+ * Dropbox API call which sends a body), whose uploader is finished and then closed before the response body is read
+ * and closed, followed by a GET (as in an account info call). Many threads make operations at once, as when a batch
+ * of users is onboarded. The standard requestor opens a connection for every request in progress, and the JDK keeps
+ * at most {@code http.maxConnections} (default 5) of them when they become idle, so the rest are closed and each new
+ * one costs a handshake; the pooled requestor is limited to that many requests in progress, so after the first runs
+ * it makes no handshakes at all. On the loopback interface a handshake costs little more than its CPU time; to a
+ * Dropbox host it also costs two round trips.
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchPooledHttpRequestor
+ *
+ * <p>Optional arguments: operations per run (default 2000), threads (default 16).
+ */
+public class BenchPooledHttpRequestor {
+
+    public static void main(String[] args) throws Exception {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+        ConsoleLogger.setLevel(Level.OFF);
+        final LocalHttpsServer server = new LocalHttpsServer();
+        try {
+            HttpRequestor standard = new StandardHttpRequestor() {
+                protected void configureConnection(HttpsURLConnection conn) {
+                    conn.setSSLSocketFactory(server.getSocketFactory());
+                }
+            };
+            // the JDK keeps at most this many idle connections to a host
+            int keepAlive = Integer.getInteger("http.maxConnections", 5);
+            HttpRequestor pooled = new PooledHttpRequestor(35000, 35000, keepAlive, server.getSocketFactory(), null);
+            String[] names = {"StandardHttpRequestor", "PooledHttpRequestor"};
+            HttpRequestor[] requestors = {standard, pooled};
+            for (int run = 0; run < 3; run++) { // the first runs are warm-up
+                for (int i = 0; i < 2; i++) {
+                    int connectionsBefore = server.getConnectionCount();
+                    long startTime = System.nanoTime();
+                    long check = run(requestors[i], server, operations, threads);
+                    long elapsed = System.nanoTime() - startTime;
+                    int handshakes = server.getConnectionCount() - connectionsBefore;
+                    if (check == 0) {
+                        System.out.println("no work done");
+                    }
+                    if (run == 2) {
+                        System.out.println(String.format("%-22s: %8.0f requests/s, %6d TLS handshakes for %d requests",
+                                names[i], 2 * operations / (elapsed / 1e9), handshakes, 2 * operations));
+                    }
+                }
+            }
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    /** make the operations on several threads, returning the number of response bytes read */
+    private static long run(final HttpRequestor requestor, final LocalHttpsServer server, final int operations, int threads)
+            throws InterruptedException {
+        final AtomicLong check = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final byte[] form = "grant_type=authorization_code&code=Xf3bG7kq9NmA0AAAAAAAAB4tYp8sLr2vHc6Jw1uZe5Q".getBytes();
+        final List<HttpRequestor.Header> headers = new ArrayList<HttpRequestor.Header>();
+        headers.add(new HttpRequestor.Header("Content-Type", "application/x-www-form-urlencoded; charset=utf-8"));
+        for (int t = 0; t < threads; t++) {
+            final int count = operations / threads + ((t < operations % threads) ? 1 : 0);
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int op = 0; op < count; op++) {
+                            HttpRequestor.Uploader uploader = requestor.startPost(server.url("/1/oauth2/token"), headers);
+                            HttpRequestor.Response response;
+                            try {
+                                uploader.body.write(form);
+                                response = uploader.finish();
+                            }
+                            finally {
+                                uploader.close();
+                            }
+                            check.addAndGet(readAndClose(response));
+                            check.addAndGet(readAndClose(requestor.doGet(server.url("/1/account/info"), headers)));
+                        }
+                    }
+                    catch (IOException e) {
+                        System.out.println("request failed: " + e);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        return check.get();
+    }
+
+    private static long readAndClose(HttpRequestor.Response response) throws IOException {
+        long count = 0;
+        byte[] buffer = new byte[4096];
+        int n;
+        try {
+            while ((n = response.body.read(buffer)) >= 0) {
+                count += n;
+            }
+        }
+        finally {
+            response.body.close();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,85 @@
+package uk.org.rozanski.oauth_demo.bench;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Benchmark of QueryString against the parser which {@code DropboxWorkflowRedirect.httpdHandleFinishAndSave()} used
+ * before it: parses per second of a finish callback query string, and bytes allocated per parse.
+ *
+ * <p>The old parser is measured as it was written: {@code String.split("&")}, {@code indexOf} and {@code substring},
+ * and {@code URLDecoder.decode} of each name and value into a {@code LinkedHashMap} of {@code String[]}. QueryString
+ * is measured twice: looking up just the {@code state} and {@code code} parameters (as a route which only needs a
+ * few parameters would), and building the whole multi-map (as {@code DbxWebAuth.finish()} needs).
+ *
+ * <p>Benchmarks are not run by {@code mvn test}. Run this one from the command line as follows:
+ *    mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=uk.org.rozanski.oauth_demo.bench.BenchQueryString
+ *
+ * <p>Optional arguments: parses per run (default 2000000).
+ */
+public class BenchQueryString {
+
+    public static void main(String[] args) throws Exception {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        String query = "state=kD4qPZm1tV_n8yQ2x6W3Hg%3D%3D%7Coauth_demo&code=Xf3bG7kq9NmA0AAAAAAAAB4tYp8sLr2vHc6Jw1uZe5Q";
+        String[] names = {"split and URLDecoder", "QueryString get", "QueryString multi-map"};
+        for (int run = 0; run < 3; run++) { // the first runs are warm-up
+            long[] results = new long[3];
+            long[] allocated = new long[3];
+            for (int i = 0; i < 3; i++) {
+                long allocatedBefore = allocatedBytes();
+                long startTime = System.nanoTime();
+                long check = 0;
+                for (int op = 0; op < operations; op++) {
+                    switch (i) {
+                        case 0: check += parseSplit(query).get("state")[0].length(); break;
+                        case 1:
+                            QueryString parsed = QueryString.parse(query);
+                            check += parsed.get("state").length() + parsed.get("code").length();
+                            break;
+                        default: check += QueryString.parse(query).toMultiMap().get("state")[0].length(); break;
+                    }
+                }
+                results[i] = System.nanoTime() - startTime;
+                allocated[i] = allocatedBytes() - allocatedBefore;
+                if (check == 0) {
+                    System.out.println("no work done");
+                }
+            }
+            if (run == 2) {
+                for (int i = 0; i < 3; i++) {
+                    System.out.println(String.format("%-22s: %10.0f parses/s, %6d bytes allocated/parse", names[i],
+                            operations / (results[i] / 1e9), (allocated[i] < 0) ? -1 : allocated[i] / operations));
+                }
+            }
+        }
+    }
+
+    /** the parser used by httpdHandleFinishAndSave() before QueryString */
+    private static Map<String, String[]> parseSplit(String queryString) throws UnsupportedEncodingException {
+        Map<String, String[]> queryParams = new LinkedHashMap<String, String[]>();
+        for (String query : queryString.split("&")) {
+            int idx = query.indexOf("=");
+            String queryParam = URLDecoder.decode(query.substring(0, idx), "UTF-8");
+            String queryValue = URLDecoder.decode(query.substring(idx + 1), "UTF-8");
+            queryParams.put(queryParam, new String[]{queryValue});
+        }
+        return queryParams;
+    }
+
+    /**
+     * Return the number of bytes allocated by this thread, or -1 if the JVM does not support it.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+}
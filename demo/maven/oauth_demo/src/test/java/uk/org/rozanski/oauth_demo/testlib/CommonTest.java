@@ -100,6 +100,7 @@ public class CommonTest {
 
     public void deleteAccessData(String testName) throws IOException {
         deleteFile(AccessData.ACCESS_TOKEN_FILE);
+        AccessDataCache.invalidate();
     }
 
     /*
@@ -115,6 +116,39 @@ public class CommonTest {
         return csrfSessionKey;
     }
 
+    /*
+     *  ========================
+     *  RUN SEPARATE JAVA PROCESS
+     *  ========================
+     */
+    public static String runJavaProcess(String[] systemProperties, Class<?> mainClass, String... args)
+            throws IOException, InterruptedException {
+        java.util.List<String> command = new java.util.ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String systemProperty : systemProperties) {
+            command.add("-D" + systemProperty);
+        }
+        command.add(mainClass.getName());
+        for (String arg : args) {
+            command.add(arg);
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        assertEquals(String.format("process %s failed, output '%s'", mainClass.getName(), out), 0, process.waitFor());
+        return out.toString();
+    }
+
     /*
      *  =================
      *  UTILITY FUNCTIONS
@@ -122,9 +156,12 @@ public class CommonTest {
      */
     public void deleteOauthFiles() {
         deleteFile(AccessData.ACCESS_TOKEN_FILE);
+        AccessDataCache.invalidate();
         deleteFile(CsrfTokenStore.HTTPD_SESSION_FILE);
         deleteFile(CsrfTokenStore.HTTPD_SESSION_FILE_EXPIRED);
         deleteFile(HttpConfig.LATEST_URL_FILE);
+        AccessTokenVault.unload();
+        deleteFile(AccessTokenVault.VAULT_FILE);
     }
 
     private static void deleteFile(String filepath) {
@@ -3,7 +3,6 @@ package uk.org.rozanski.oauth_demo.testlib;
 import java.io.*;
 import static org.junit.Assert.*;
 
-import java.util.Locale;
 import java.util.UUID;
 
 import com.dropbox.core.*;
@@ -35,25 +34,17 @@ public class CommonTestDropbox {
     public DbxClient getDropboxClient() throws IOException, DbxException {
         AccessData accessData = new AccessData();
         accessData.load();
-        DbxRequestConfig config = new DbxRequestConfig(AppData.APP_NAME_VERSION,  Locale.getDefault().toString());
-        return new DbxClient(config, accessData.accessToken);
+        return DbxClientProvider.get(accessData.accessToken);
         }
 
     public DropboxFile createTestDropboxFile(int numberOfLines, String testName) throws IOException, DbxException {
         String fileContents = "";
-        String tmpFilePath = File.createTempFile(AppData.APP_NAME, ".txt").getPath();
         String dropboxPath = String.format(TEST_DROPBOX_FILEPATH, testName, UUID.randomUUID());
-        BufferedWriter bw = new BufferedWriter(new FileWriter(tmpFilePath));
         for (int i=1; i<11; i++) {
             String line = String.format(dropboxPath + " line %d", i) + "\n";
             fileContents += line;
-            bw.write(line);
         }
-        bw.close();
-        File f = new File(tmpFilePath);
-        DbxClient client = getDropboxClient();
-        client.uploadFile(dropboxPath, DbxWriteMode.force(), f.length(), new FileInputStream(f));
-        f.delete();
+        DropboxTools.uploadFile(getDropboxClient(), dropboxPath, fileContents.getBytes("UTF-8"));
         return new DropboxFile(String.format(dropboxPath, testName), fileContents);
     }
 
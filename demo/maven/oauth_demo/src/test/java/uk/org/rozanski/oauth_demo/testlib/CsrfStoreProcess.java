@@ -0,0 +1,30 @@
+package uk.org.rozanski.oauth_demo.testlib;
+
+import uk.org.rozanski.oauth_demo.lib.*;
+
+/**
+ * Separate process used by the multi-process tests of DirectoryCsrfTokenStore.
+ *
+ * <p>Usage: {@code CsrfStoreProcess get|set|clear sessionId [value]}
+ *
+ * <p>The session directory is passed in the system property {@code oauth.csrfDirectory}.
+ * The result of {@code get} is printed on a line starting with {@code RESULT=}.
+ */
+public class CsrfStoreProcess {
+
+    public static void main(String[] args) {
+        DirectoryCsrfTokenStore store = new DirectoryCsrfTokenStore(args[1]);
+        if (args[0].equals("get")) {
+            System.out.println(RESULT_PREFIX + store.get());
+        }
+        else if (args[0].equals("set")) {
+            store.set(args[2]);
+        }
+        else if (args[0].equals("clear")) {
+            store.clear();
+        }
+    }
+
+    public static final String RESULT_PREFIX = "RESULT=";
+
+}
@@ -0,0 +1,235 @@
+package uk.org.rozanski.oauth_demo.testlib;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Local HTTPS server which stands in for the Dropbox hosts in the tests and benchmarks of the HTTP requestors.
+ *
+ * <p>The server's certificate is self-signed and generated by {@code keytool} when the server is started, so no key
+ * is kept in the repository. Unless a handler is given, every request (of any method, to any path) has its body read
+ * and is answered with {@code 200} and a small JSON body.
+ *
+ * <p>{@code getSocketFactory()} returns a socket factory which trusts the server's certificate and counts the
+ * connections it opens (each of which costs a TLS handshake); {@code getCertificate()} returns the certificate, so that
+ * a client can be built which trusts it as its root.
+ */
+public class LocalHttpsServer {
+
+    /** body of every response */
+    public static final String RESPONSE_BODY = "{\"ok\": true}";
+
+    /**
+     * Start a server on a free port of the loopback interface, which answers every request with {@code RESPONSE_BODY}.
+     *
+     * @throws Exception if the certificate cannot be generated or the server cannot be started
+     */
+    public LocalHttpsServer() throws Exception {
+        this(new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                readBody(exchange.getRequestBody());
+                byte[] body = RESPONSE_BODY.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+    }
+
+    /**
+     * Start a server on a free port of the loopback interface.
+     *
+     * @param handler handler of every request
+     *
+     * @throws Exception if the certificate cannot be generated or the server cannot be started
+     */
+    public LocalHttpsServer(HttpHandler handler) throws Exception {
+        directory = Files.createTempDirectory("oauth_https");
+        Path keyStoreFile = directory.resolve("localhost.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA", "-keysize", "2048",
+                "-validity", "1", "-dname", "CN=localhost", "-ext", "san=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keyStoreFile.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true).start();
+        readBody(process.getInputStream());
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed to generate the certificate of the local HTTPS server");
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = Files.newInputStream(keyStoreFile);
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+        socketFactory = new CountingSocketFactory(clientContext.getSocketFactory(), connections);
+        certificate = keyStore.getCertificate("localhost");
+
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            // otherwise each response waits for the client's delayed acknowledgement of its headers
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+        server.createContext("/", handler);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+    }
+
+    /**
+     * Return the URL of a path on the server.
+     *
+     * @param path the path (starting with {@code /})
+     * @return the URL
+     */
+    public String url(String path) {
+        return "https://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * Return a socket factory which trusts the server and counts the connections it opens.
+     *
+     * @return the socket factory
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Return the server's (self-signed) certificate, which is the root of its own chain.
+     *
+     * @return the certificate
+     */
+    public Certificate getCertificate() {
+        return certificate;
+    }
+
+    /**
+     * Return the number of connections opened by {@code getSocketFactory()}.
+     *
+     * @return number of connections (and so of TLS handshakes)
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Stop the server and delete its certificate.
+     *
+     * @throws IOException if the certificate cannot be deleted
+     */
+    public void stop() throws IOException {
+        server.stop(0);
+        ((java.util.concurrent.ExecutorService) server.getExecutor()).shutdown();
+        for (File f : directory.toFile().listFiles()) {
+            f.delete();
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Read a stream to its end and close it (for handlers).
+     *
+     * @param in the stream
+     * @return the bytes read
+     *
+     * @throws IOException if the stream cannot be read
+     */
+    public static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, count);
+        }
+        in.close();
+        return body.toByteArray();
+    }
+
+    /** socket factory which counts the sockets it creates */
+    private static final class CountingSocketFactory extends SSLSocketFactory {
+
+        CountingSocketFactory(SSLSocketFactory factory, AtomicInteger count) {
+            this.factory = factory;
+            this.count = count;
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return factory.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            count.incrementAndGet();
+            return factory.createSocket();
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            count.incrementAndGet();
+            return factory.createSocket(socket, host, port, autoClose);
+        }
+
+        public Socket createSocket(String host, int port) throws IOException {
+            count.incrementAndGet();
+            return factory.createSocket(host, port);
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            count.incrementAndGet();
+            return factory.createSocket(host, port, localHost, localPort);
+        }
+
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            count.incrementAndGet();
+            return factory.createSocket(host, port);
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            count.incrementAndGet();
+            return factory.createSocket(address, port, localAddress, localPort);
+        }
+
+        private final SSLSocketFactory factory;
+        private final AtomicInteger count;
+    }
+
+    private static final String PASSWORD = "changeit";
+
+    private final Path directory;
+    private final HttpsServer server;
+    private final SSLSocketFactory socketFactory;
+    private final Certificate certificate;
+    private final AtomicInteger connections = new AtomicInteger();
+
+}